@@ -0,0 +1,132 @@
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether a route request may run now, has to wait for capacity, or is turned away,
+ * so that a burst of cross-town queries cannot tie up every server thread at once.
+ * <p>
+ * The server has a fixed number of cost units. A request is charged by its estimated cost: the
+ * great-circle distance between its snapped endpoints, squared, since the area A* explores grows
+ * with the square of the trip length. Short trips cost one unit and are almost always admitted
+ * immediately; long trips cost more and are the first to wait. A request that cannot get its
+ * units waits up to maxWaitMillis in a bounded queue; when the queue is full, or the wait runs
+ * out, the request is shed.
+ * <p>
+ * Requests that run many searches (trips, map matching) are charged by the area all their
+ * searches cover together, in the same units: a trip of 2 miles per unit covers about 4
+ * square miles per unit.
+ */
+public class AdmissionController {
+    private final int capacity;
+    private final int maxQueued;
+    private final long maxWaitMillis;
+    private final double milesPerUnit;
+    private final Semaphore units;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong shed = new AtomicLong();
+
+    /**
+     * @param capacity      Cost units that may be in use at once.
+     * @param maxQueued     Requests that may wait for units at once; later ones are shed.
+     * @param maxWaitMillis Longest a request waits for units before it is shed.
+     * @param milesPerUnit  Trip length that costs one unit; the cost grows with its square.
+     */
+    public AdmissionController(int capacity, int maxQueued, long maxWaitMillis,
+                               double milesPerUnit) {
+        this.capacity = capacity;
+        this.maxQueued = maxQueued;
+        this.maxWaitMillis = maxWaitMillis;
+        this.milesPerUnit = milesPerUnit;
+        this.units = new Semaphore(capacity);
+    }
+
+    /** Units charged for a trip of the given great-circle length, between 1 and capacity. */
+    int cost(double miles) {
+        return areaCost(miles * miles);
+    }
+
+    /**
+     * Units charged for searches that together cover about the given area, in square miles,
+     * between 1 and capacity.
+     */
+    int areaCost(double squareMiles) {
+        double units = squareMiles / (milesPerUnit * milesPerUnit);
+        return (int) Math.max(1, Math.min(capacity, Math.ceil(units)));
+    }
+
+    /**
+     * Admits a request for a trip of the given great-circle length, waiting for capacity if
+     * the server is busy.
+     *
+     * @return A ticket to close when the request is done, or null if it was shed.
+     */
+    public Ticket admit(double miles) throws InterruptedException {
+        return admitArea(miles * miles);
+    }
+
+    /**
+     * Admits a request whose searches together cover about the given area, in square miles,
+     * waiting for capacity if the server is busy.
+     *
+     * @return A ticket to close when the request is done, or null if it was shed.
+     */
+    public Ticket admitArea(double squareMiles) throws InterruptedException {
+        int cost = areaCost(squareMiles);
+        if (units.tryAcquire(cost)) {
+            return ticket(cost);
+        }
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            shed.incrementAndGet();
+            return null;
+        }
+        try {
+            if (units.tryAcquire(cost, maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                return ticket(cost);
+            }
+        } finally {
+            queued.decrementAndGet();
+        }
+        shed.incrementAndGet();
+        return null;
+    }
+
+    private Ticket ticket(int cost) {
+        admitted.incrementAndGet();
+        return new Ticket(cost);
+    }
+
+    /** Units not currently held by a request. */
+    public int available() {
+        return units.availablePermits();
+    }
+
+    public long admitted() {
+        return admitted.get();
+    }
+
+    public long shed() {
+        return shed.get();
+    }
+
+    /** The units held by one admitted request; closing it returns them. */
+    public class Ticket implements AutoCloseable {
+        private final int cost;
+        private boolean closed;
+
+        private Ticket(int cost) {
+            this.cost = cost;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                units.release(cost);
+            }
+        }
+    }
+}
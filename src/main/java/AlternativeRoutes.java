@@ -0,0 +1,480 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Finds alternatives to the shortest route with the via-node method of Abraham et al.,
+ * "Alternative Routes in Road Networks".
+ * <p>
+ * One forward shortest-path tree is grown from the start and one backward tree from the
+ * destination, both only as far as the longest acceptable alternative. Every vertex v reached
+ * by both trees names a candidate route, start -> v along the forward tree and v -> destination
+ * along the backward tree.
+ * <p>
+ * Many of those vertices name the same route: where both trees use the same edges (a
+ * plateau), every vertex along the shared stretch gives one route. Only the first vertex of
+ * each plateau is kept as a candidate. Candidates are ranked by twice their cost minus their
+ * plateau length, so long plateaus, which make naturally distinct routes, are tried first, and
+ * kept if they are
+ * <ul>
+ * <li>not much longer than the best route (stretch),</li>
+ * <li>mostly disjoint from every route already kept (overlap), and</li>
+ * <li>locally optimal: the stretch of the candidate around v is itself a shortest path, so
+ * the alternative has no pointless detour through v.</li>
+ * </ul>
+ * <p>
+ * Both trees, the local-optimality search and the path marks live in per-thread scratch arrays
+ * that are reused across requests, so a query costs about two bounded searches plus a few
+ * small ones. All of them count against one settled-vertex and time budget, taken from
+ * Router.Options like a route's, so an unreachable destination cannot make the forward tree
+ * cover its whole component.
+ */
+public class AlternativeRoutes {
+    /** Alternatives may cost at most this much more than the best route, as a fraction. */
+    static final double MAX_STRETCH = 0.25;
+    /** Alternatives may share at most this fraction of the best route's cost with a kept one. */
+    static final double MAX_OVERLAP = 0.6;
+    /** The stretch around the via vertex checked for optimality, as a fraction of the best. */
+    static final double LOCAL_OPTIMALITY = 0.25;
+    /** Candidates examined before giving up on finding more alternatives. */
+    static final int MAX_CANDIDATES = 64;
+    private static final double EPSILON = 1e-9;
+
+    private static final ThreadLocal<Workspace> WORKSPACES = new ThreadLocal<>();
+
+    /**
+     * Reusable per-thread arrays for the two trees, the local check, the vertices settled by
+     * the backward tree and simple-path marks.
+     */
+    private static final class Workspace {
+        final SearchState forward;
+        final SearchState backward;
+        final SearchState local;
+        final int[] reached;
+        final int[] mark;
+        int stamp;
+
+        Workspace(int n) {
+            forward = new SearchState(n);
+            backward = new SearchState(n);
+            local = new SearchState(n);
+            reached = new int[n];
+            mark = new int[n];
+        }
+
+        /** Starts a new set of marks. */
+        void clearMarks() {
+            stamp += 1;
+            if (stamp == Integer.MAX_VALUE) {
+                Arrays.fill(mark, 0);
+                stamp = 1;
+            }
+        }
+    }
+
+    /** One route found: its vertices, its weight and its weight relative to the best. */
+    public static class Route {
+        public final List<Long> path;
+        public final double cost;
+        /** cost divided by the cost of the best route; 1 for the best route itself. */
+        public final double stretch;
+
+        Route(List<Long> path, double cost, double stretch) {
+            this.path = path;
+            this.cost = cost;
+            this.stretch = stretch;
+        }
+    }
+
+    /**
+     * The outcome of {@link #find}: the routes found, best first, and how the search ended.
+     * A TIMED_OUT search returns the routes it found before its budget ran out, possibly
+     * none.
+     */
+    public static class Result {
+        public final Router.Status status;
+        public final List<Route> routes;
+        public final int settled;
+
+        Result(Router.Status status, List<Route> routes, int settled) {
+            this.status = status;
+            this.routes = routes;
+            this.settled = settled;
+        }
+    }
+
+    private final CompactGraph c;
+    private final RouteProfile profile;
+    private final double[] factor;
+    private final double scale;
+    private final Workspace ws;
+    private final int maxSettled;
+    private final long deadline;
+    private final boolean hasDeadline;
+    private Router.Status status = Router.Status.UNREACHABLE;
+    private int settled;
+    /** Number of entries of ws.reached filled by the backward tree. */
+    private int reachedCount;
+
+    private AlternativeRoutes(GraphDB g, Router.Options options) {
+        this.c = g.compact();
+        this.profile = options.profile;
+        this.maxSettled = options.maxSettled;
+        this.hasDeadline = options.timeoutNanos > 0;
+        this.deadline = System.nanoTime() + options.timeoutNanos;
+        this.factor = g.overlay().factors();
+        this.scale = profile.heuristicScale(c);
+        Workspace w = WORKSPACES.get();
+        if (w == null || w.mark.length < c.size()) {
+            w = new Workspace(c.size());
+            WORKSPACES.set(w);
+        }
+        this.ws = w;
+    }
+
+    /**
+     * Returns up to k routes between the vertices closest to the start and destination, best
+     * first. The first is the shortest route; each further one is an alternative as described
+     * above. The profile and budget of options apply; epsilon and corridor do not, since the
+     * trees must be exact. Returns no routes if the destination is unreachable.
+     */
+    public static Result find(GraphDB g, double stlon, double stlat, double destlon,
+                              double destlat, int k, Router.Options options) {
+        CompactGraph c = g.compact();
+        int s = c.nearest(stlon, stlat);
+        int t = c.nearest(destlon, destlat);
+        List<Route> routes = new ArrayList<>();
+        if (s < 0 || t < 0 || k <= 0) {
+            return new Result(Router.Status.UNREACHABLE, routes, 0);
+        }
+        AlternativeRoutes search = new AlternativeRoutes(g, options);
+        search.find(s, t, k, routes);
+        return new Result(search.status, routes, search.settled);
+    }
+
+    private void find(int s, int t, int k, List<Route> routes) {
+        forwardTree(s, t);
+        if (!ws.forward.isSettled(t)) {
+            return;
+        }
+        double best = ws.forward.dist(t);
+
+        /* The shortest route is read off the forward tree alone; the backward tree of the
+         * previous query must not extend it. */
+        ws.backward.reset();
+        List<BitSet> keptEdges = new ArrayList<>();
+        int[] shortest = join(s, t, t);
+        if (c.hasTurnRestrictions() && Router.TURN_RESTRICTIONS && violatesRestriction(shortest)) {
+            /* The tree ignores turn restrictions; let the edge-based search pick the best route
+             * and keep the trees only for finding alternatives. */
+            Router.Options exactOptions = new Router.Options().profile(profile)
+                    .maxSettled(Math.max(0, maxSettled - settled));
+            exactOptions.timeoutNanos = hasDeadline ? Math.max(1, deadline - System.nanoTime())
+                    : 0;
+            Router.Result exact = Router.route(c, factor, s, t, exactOptions);
+            settled += exact.settled;
+            if (exact.status != Router.Status.FOUND) {
+                status = exact.status;
+                return;
+            }
+            shortest = new int[exact.path.size()];
+            for (int i = 0; i < shortest.length; i += 1) {
+                shortest[i] = c.denseId(exact.path.get(i));
+            }
+            best = exact.cost;
+        }
+        keptEdges.add(edges(shortest));
+        routes.add(new Route(Router.toOsmIds(c, shortest), best, 1));
+        if (status == Router.Status.TIMED_OUT) {
+            return;
+        }
+        status = Router.Status.FOUND;
+        if (routes.size() == k) {
+            return;
+        }
+
+        double limit = best * (1 + MAX_STRETCH) + EPSILON;
+        backwardTree(t, limit);
+        MinHeap candidates = plateaus(s, t, limit);
+        int examined = 0;
+        while (!candidates.isEmpty() && routes.size() < k && examined < MAX_CANDIDATES
+                && status == Router.Status.FOUND) {
+            int v = candidates.poll();
+            double total = ws.forward.dist(v) + ws.backward.dist(v);
+            if (total > limit) {
+                continue;
+            }
+            examined += 1;
+            int[] path = join(s, t, v);
+            if (path == null) {
+                continue;
+            }
+            BitSet pathEdges = edges(path);
+            if (overlaps(pathEdges, keptEdges, best) || !locallyOptimal(path, v, best)
+                    || (c.hasTurnRestrictions() && Router.TURN_RESTRICTIONS
+                        && violatesRestriction(path))) {
+                continue;
+            }
+            keptEdges.add(pathEdges);
+            routes.add(new Route(Router.toOsmIds(c, path), total, total / best));
+        }
+    }
+
+    /**
+     * Counts one more settled vertex, as Router does. Returns false, and marks the search as
+     * timed out, once the settled-vertex or time budget is spent.
+     */
+    private boolean withinBudget() {
+        settled += 1;
+        if (settled > maxSettled || (hasDeadline && settled % Router.CLOCK_CHECK_INTERVAL == 0
+                && System.nanoTime() - deadline > 0)) {
+            status = Router.Status.TIMED_OUT;
+            return false;
+        }
+        return true;
+    }
+
+    private double cost(int e) {
+        double weight = profile.weight(c, e);
+        return factor == null ? weight : weight * factor[e];
+    }
+
+    /**
+     * Dijkstra from s over forward edges until every vertex within the stretch limit of the
+     * best route to t is settled, or the budget runs out.
+     */
+    private void forwardTree(int s, int t) {
+        SearchState state = ws.forward;
+        state.reset();
+        state.relax(s, 0, -1);
+        state.fringe.push(s, 0);
+        double limit = Double.POSITIVE_INFINITY;
+        while (!state.fringe.isEmpty()) {
+            double d = state.fringe.peekKey();
+            int v = state.fringe.poll();
+            if (state.isSettled(v)) {
+                continue;
+            }
+            if (d > limit || !withinBudget()) {
+                break;
+            }
+            state.settle(v);
+            if (v == t) {
+                limit = d * (1 + MAX_STRETCH) + EPSILON;
+            }
+            for (int e = c.firstEdge(v); e < c.endEdge(v); e += 1) {
+                int w = c.target(e);
+                double nd = d + cost(e);
+                if (nd != Double.POSITIVE_INFINITY && !state.isSettled(w)
+                        && state.relax(w, nd, v)) {
+                    state.fringe.push(w, nd);
+                }
+            }
+        }
+    }
+
+    /**
+     * Dijkstra from t over backward edges up to limit, or until the budget runs out. A
+     * vertex's parent is the next vertex on its shortest route to t. Settled vertices are
+     * listed in ws.reached.
+     */
+    private void backwardTree(int t, double limit) {
+        reachedCount = 0;
+        SearchState state = ws.backward;
+        state.reset();
+        state.relax(t, 0, -1);
+        state.fringe.push(t, 0);
+        while (!state.fringe.isEmpty()) {
+            double d = state.fringe.peekKey();
+            int w = state.fringe.poll();
+            if (state.isSettled(w)) {
+                continue;
+            }
+            if (d > limit || !withinBudget()) {
+                break;
+            }
+            state.settle(w);
+            ws.reached[reachedCount] = w;
+            reachedCount += 1;
+            for (int i = c.firstIn(w); i < c.endIn(w); i += 1) {
+                int u = c.source(i);
+                double nd = d + cost(c.inEdge(i));
+                if (nd != Double.POSITIVE_INFINITY && !state.isSettled(u)
+                        && state.relax(u, nd, w)) {
+                    state.fringe.push(u, nd);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the route s -> v along the forward tree followed by v -> t along the backward
+     * tree, or null if it visits a vertex twice.
+     */
+    private int[] join(int s, int t, int v) {
+        int head = 0;
+        for (int u = v; u >= 0; u = ws.forward.parent(u)) {
+            head += 1;
+        }
+        int tail = 0;
+        for (int u = ws.backward.parent(v); u >= 0; u = ws.backward.parent(u)) {
+            tail += 1;
+        }
+        int[] path = new int[head + tail];
+        ws.clearMarks();
+        int i = head - 1;
+        for (int u = v; u >= 0; u = ws.forward.parent(u), i -= 1) {
+            path[i] = u;
+            ws.mark[u] = ws.stamp;
+        }
+        i = head;
+        for (int u = ws.backward.parent(v); u >= 0; u = ws.backward.parent(u), i += 1) {
+            if (ws.mark[u] == ws.stamp) {
+                return null;
+            }
+            path[i] = u;
+        }
+        return path;
+    }
+
+    /**
+     * Returns the first vertex of every plateau reached by both trees within limit, keyed by
+     * twice its via route cost minus the plateau's length. A plateau starts at v if the
+     * forward tree does not reach v over an edge the backward tree also uses; it then follows
+     * the backward tree for as long as the forward tree agrees.
+     */
+    private MinHeap plateaus(int s, int t, double limit) {
+        MinHeap heap = new MinHeap(64);
+        for (int i = 0; i < reachedCount; i += 1) {
+            int v = ws.reached[i];
+            if (v == s || v == t || !ws.forward.isSettled(v)) {
+                continue;
+            }
+            int before = ws.forward.parent(v);
+            if (before >= 0 && ws.backward.parent(before) == v) {
+                continue;
+            }
+            double total = ws.forward.dist(v) + ws.backward.dist(v);
+            if (total > limit) {
+                continue;
+            }
+            int end = v;
+            for (int next = ws.backward.parent(end);
+                 next >= 0 && ws.forward.parent(next) == end; next = ws.backward.parent(end)) {
+                end = next;
+            }
+            double length = ws.backward.dist(v) - ws.backward.dist(end);
+            heap.push(v, 2 * total - length);
+        }
+        return heap;
+    }
+
+    /** Returns the id of the cheapest edge from u to w, or -1 if there is none. */
+    private int edge(int u, int w) {
+        int found = -1;
+        for (int e = c.firstEdge(u); e < c.endEdge(u); e += 1) {
+            if (c.target(e) == w && (found < 0 || cost(e) < cost(found))) {
+                found = e;
+            }
+        }
+        return found;
+    }
+
+    private BitSet edges(int[] path) {
+        BitSet set = new BitSet(c.edgeCount());
+        for (int i = 1; i < path.length; i += 1) {
+            set.set(edge(path[i - 1], path[i]));
+        }
+        return set;
+    }
+
+    /** Returns true if the path shares too much cost with any kept route. */
+    private boolean overlaps(BitSet pathEdges, List<BitSet> kept, double best) {
+        for (BitSet other : kept) {
+            double shared = 0;
+            for (int e = pathEdges.nextSetBit(0); e >= 0; e = pathEdges.nextSetBit(e + 1)) {
+                if (other.get(e)) {
+                    shared += cost(e);
+                }
+            }
+            if (shared > MAX_OVERLAP * best) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The T-test: takes the part of the path from LOCAL_OPTIMALITY * best before the via
+     * vertex to as far after it, and checks that it is a shortest path between its ends.
+     */
+    private boolean locallyOptimal(int[] path, int via, double best) {
+        double[] prefix = new double[path.length];
+        int at = 0;
+        for (int i = 1; i < path.length; i += 1) {
+            prefix[i] = prefix[i - 1] + cost(edge(path[i - 1], path[i]));
+            if (path[i] == via) {
+                at = i;
+            }
+        }
+        double reach = LOCAL_OPTIMALITY * best;
+        int x = at;
+        while (x > 0 && prefix[at] - prefix[x] < reach) {
+            x -= 1;
+        }
+        int y = at;
+        while (y < path.length - 1 && prefix[y] - prefix[at] < reach) {
+            y += 1;
+        }
+        double sub = prefix[y] - prefix[x];
+        return shortestDistance(path[x], path[y], sub) >= sub - EPSILON;
+    }
+
+    /**
+     * A* distance from u to w, or +infinity if it is more than bound or the budget runs out.
+     */
+    private double shortestDistance(int u, int w, double bound) {
+        SearchState state = ws.local;
+        state.reset();
+        state.relax(u, 0, -1);
+        state.fringe.push(u, c.distance(u, w) * scale);
+        while (!state.fringe.isEmpty()) {
+            if (state.fringe.peekKey() > bound + EPSILON) {
+                break;
+            }
+            int v = state.fringe.poll();
+            if (state.isSettled(v)) {
+                continue;
+            }
+            double d = state.dist(v);
+            if (v == w) {
+                return d;
+            }
+            if (!withinBudget()) {
+                break;
+            }
+            state.settle(v);
+            for (int e = c.firstEdge(v); e < c.endEdge(v); e += 1) {
+                int x = c.target(e);
+                double nd = d + cost(e);
+                if (nd != Double.POSITIVE_INFINITY && !state.isSettled(x)
+                        && state.relax(x, nd, v)) {
+                    state.fringe.push(x, nd + c.distance(x, w) * scale);
+                }
+            }
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+
+    private boolean violatesRestriction(int[] path) {
+        for (int i = 2; i < path.length; i += 1) {
+            int from = edge(path[i - 2], path[i - 1]);
+            int to = edge(path[i - 1], path[i]);
+            if (c.isRestricted(path[i - 1], from, to)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,263 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One cell of a Partition as a CellWorker loads it from the cell's file: the cell's vertices,
+ * the edges between them forward and backward, and the turn restrictions through them. Edges
+ * that leave the cell are left out, since cell searches never follow them, so a worker's heap
+ * holds the cells it owns and nothing of the rest of the graph.
+ * <p>
+ * Vertices and edges have local ids, numbered from 0 like CompactGraph's dense ids, and the
+ * accessors mirror CompactGraph's. vertex(i) is the dense id of local vertex i in the whole
+ * graph, which is how the coordinator names it; local ids ascend with dense ids. Partition
+ * keeps every restricted turn inside one cell, so the restrictions through a cell's vertices
+ * only involve the cell's own edges, and they are keyed as in CompactGraph but by local ids.
+ * <p>
+ * A cell file holds the vertex count n, the n dense ids, the boundary count and the boundary
+ * vertices' dense ids in the partition's order, edgeStart (n + 1 ints) and per edge its
+ * local target, length and time, inStart (n + 1 ints) and per backward entry its local source
+ * and local edge, and finally the restriction count and per restriction its key and to-edge.
+ */
+final class CellGraph {
+    final int cell;
+    /** Dense id of every local vertex, ascending. */
+    private final int[] vertices;
+    /** Dense ids of the cell's boundary vertices, in the partition's order. */
+    final int[] boundary;
+    private final int[] edgeStart;
+    private final int[] edgeTarget;
+    private final double[] edgeLength;
+    private final double[] edgeTime;
+    private final int[] inStart;
+    private final int[] inSource;
+    private final int[] inEdge;
+    private final long[] restrictionKey;
+    private final int[] restrictionTo;
+
+    private CellGraph(int cell, int[] vertices, int[] boundary, int[] edgeStart,
+                      int[] edgeTarget, double[] edgeLength, double[] edgeTime, int[] inStart,
+                      int[] inSource, int[] inEdge, long[] restrictionKey, int[] restrictionTo) {
+        this.cell = cell;
+        this.vertices = vertices;
+        this.boundary = boundary;
+        this.edgeStart = edgeStart;
+        this.edgeTarget = edgeTarget;
+        this.edgeLength = edgeLength;
+        this.edgeTime = edgeTime;
+        this.inStart = inStart;
+        this.inSource = inSource;
+        this.inEdge = inEdge;
+        this.restrictionKey = restrictionKey;
+        this.restrictionTo = restrictionTo;
+    }
+
+    static Path path(Path dir, int cell) {
+        return dir.resolve("cell-" + cell + ".bin");
+    }
+
+    /** Reads cell from the partition written into dir. */
+    static CellGraph read(Path dir, int cell) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(path(dir, cell)));
+        int n = in.getInt();
+        int[] vertices = new int[n];
+        for (int i = 0; i < n; i += 1) {
+            vertices[i] = in.getInt();
+        }
+        int[] boundary = new int[in.getInt()];
+        for (int i = 0; i < boundary.length; i += 1) {
+            boundary[i] = in.getInt();
+        }
+        int[] edgeStart = new int[n + 1];
+        for (int i = 0; i <= n; i += 1) {
+            edgeStart[i] = in.getInt();
+        }
+        int m = edgeStart[n];
+        int[] edgeTarget = new int[m];
+        double[] edgeLength = new double[m];
+        double[] edgeTime = new double[m];
+        for (int e = 0; e < m; e += 1) {
+            edgeTarget[e] = in.getInt();
+            edgeLength[e] = in.getDouble();
+            edgeTime[e] = in.getDouble();
+        }
+        int[] inStart = new int[n + 1];
+        for (int i = 0; i <= n; i += 1) {
+            inStart[i] = in.getInt();
+        }
+        int[] inSource = new int[inStart[n]];
+        int[] inEdge = new int[inStart[n]];
+        for (int i = 0; i < inSource.length; i += 1) {
+            inSource[i] = in.getInt();
+            inEdge[i] = in.getInt();
+        }
+        int r = in.getInt();
+        long[] restrictionKey = new long[r];
+        int[] restrictionTo = new int[r];
+        for (int i = 0; i < r; i += 1) {
+            restrictionKey[i] = in.getLong();
+            restrictionTo[i] = in.getInt();
+        }
+        return new CellGraph(cell, vertices, boundary, edgeStart, edgeTarget, edgeLength,
+                edgeTime, inStart, inSource, inEdge, restrictionKey, restrictionTo);
+    }
+
+    /**
+     * Writes cell of partition p of c into dir; members are the cell's dense vertex ids,
+     * ascending.
+     */
+    static void write(CompactGraph c, Partition p, int cell, int[] members, Path dir)
+            throws IOException {
+        int n = members.length;
+        /* Local edge ids follow the order the edges are written in. */
+        Map<Integer, Integer> localEdge = new HashMap<>();
+        for (int v : members) {
+            for (int e = c.firstEdge(v); e < c.endEdge(v); e += 1) {
+                if (p.cell[c.target(e)] == cell) {
+                    localEdge.put(e, localEdge.size());
+                }
+            }
+        }
+        try (DataOutputStream out = Partition.open(path(dir, cell))) {
+            out.writeInt(n);
+            for (int v : members) {
+                out.writeInt(v);
+            }
+            out.writeInt(p.boundary[cell].length);
+            for (int v : p.boundary[cell]) {
+                out.writeInt(v);
+            }
+            int edges = 0;
+            out.writeInt(edges);
+            for (int v : members) {
+                for (int e = c.firstEdge(v); e < c.endEdge(v); e += 1) {
+                    edges += p.cell[c.target(e)] == cell ? 1 : 0;
+                }
+                out.writeInt(edges);
+            }
+            for (int v : members) {
+                for (int e = c.firstEdge(v); e < c.endEdge(v); e += 1) {
+                    if (p.cell[c.target(e)] == cell) {
+                        out.writeInt(Arrays.binarySearch(members, c.target(e)));
+                        out.writeDouble(c.length(e));
+                        out.writeDouble(c.time(e));
+                    }
+                }
+            }
+            int entries = 0;
+            out.writeInt(entries);
+            for (int v : members) {
+                for (int i = c.firstIn(v); i < c.endIn(v); i += 1) {
+                    entries += p.cell[c.source(i)] == cell ? 1 : 0;
+                }
+                out.writeInt(entries);
+            }
+            for (int v : members) {
+                for (int i = c.firstIn(v); i < c.endIn(v); i += 1) {
+                    if (p.cell[c.source(i)] == cell) {
+                        out.writeInt(Arrays.binarySearch(members, c.source(i)));
+                        out.writeInt(localEdge.get(c.inEdge(i)));
+                    }
+                }
+            }
+            List<long[]> turns = new ArrayList<>();
+            if (c.hasTurnRestrictions()) {
+                for (int via = 0; via < n; via += 1) {
+                    int v = members[via];
+                    for (int i = c.firstIn(v); i < c.endIn(v); i += 1) {
+                        Integer from = localEdge.get(c.inEdge(i));
+                        for (int e = c.firstEdge(v); e < c.endEdge(v); e += 1) {
+                            if (from != null && localEdge.containsKey(e)
+                                    && c.isRestricted(v, c.inEdge(i), e)) {
+                                turns.add(new long[] {CompactGraph.key(via, from),
+                                    localEdge.get(e)});
+                            }
+                        }
+                    }
+                }
+            }
+            turns.sort((a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0])
+                    : Long.compare(a[1], b[1]));
+            out.writeInt(turns.size());
+            for (long[] turn : turns) {
+                out.writeLong(turn[0]);
+                out.writeInt((int) turn[1]);
+            }
+        }
+    }
+
+    /** Number of local vertices. */
+    int size() {
+        return vertices.length;
+    }
+
+    int edgeCount() {
+        return edgeTarget.length;
+    }
+
+    int inCount() {
+        return inSource.length;
+    }
+
+    /** Returns the dense id of local vertex i. */
+    int vertex(int i) {
+        return vertices[i];
+    }
+
+    /** Returns the local id of dense vertex v, or -1 if v is not in this cell. */
+    int local(int v) {
+        int i = Arrays.binarySearch(vertices, v);
+        return i < 0 ? -1 : i;
+    }
+
+    int firstEdge(int v) {
+        return edgeStart[v];
+    }
+
+    int endEdge(int v) {
+        return edgeStart[v + 1];
+    }
+
+    int target(int e) {
+        return edgeTarget[e];
+    }
+
+    /** First backward entry of v; source(i) and inEdge(i) for i in firstIn(v) .. endIn(v) - 1. */
+    int firstIn(int v) {
+        return inStart[v];
+    }
+
+    int endIn(int v) {
+        return inStart[v + 1];
+    }
+
+    int source(int i) {
+        return inSource[i];
+    }
+
+    int inEdge(int i) {
+        return inEdge[i];
+    }
+
+    /** Returns the weight profile minimises of edge e, as RouteProfile.weight does. */
+    double weight(RouteProfile profile, int e) {
+        return profile == RouteProfile.TIME ? edgeTime[e] : edgeLength[e];
+    }
+
+    boolean hasTurnRestrictions() {
+        return restrictionKey.length > 0;
+    }
+
+    /** Returns true if driving fromEdge into via and then leaving on toEdge is forbidden. */
+    boolean isRestricted(int via, int fromEdge, int toEdge) {
+        return restrictionKey.length > 0 && CompactGraph.isRestricted(restrictionKey,
+                restrictionTo, CompactGraph.key(via, fromEdge), toEdge);
+    }
+}
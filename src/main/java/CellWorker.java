@@ -0,0 +1,287 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Answers the searches of a routing cluster that stay inside one cell: distances between a
+ * vertex and the cell's boundary, the boundary-to-boundary table (clique) of the overlay, and
+ * the vertex path between two vertices of the cell. Searches never leave the cell, and a
+ * worker loads nothing but the cells it owns from the partition written by Partition.write
+ * (see CellGraph), so a cluster splits the graph's memory between workers as well as the
+ * search work.
+ * <p>
+ * A worker owns cells index, index + count, index + 2 * count, ... of the partition. Requests
+ * name vertices by their dense id in the whole graph, as the coordinator's overlay does, and
+ * the worker maps them to its cells' local ids. Cell searches obey turn restrictions, and
+ * that covers every route: Partition keeps each restricted turn inside one cell, so none
+ * happens at a boundary vertex, where the coordinator joins two searches. Like HotTargets,
+ * cell searches use the base edge weights; live closures are not applied, and a coordinator
+ * refuses them.
+ */
+final class CellWorker implements ClusterRouter.Cells {
+    private final int cellCount;
+    private final int index;
+    private final int count;
+    /** The cells this worker owns; cell k is at (k - index) / count. */
+    private final CellGraph[] cells;
+    /** Cliques computed so far, keyed by cell and profile. */
+    private final Map<Long, double[]> cliques = new ConcurrentHashMap<>();
+
+    /** Loads the cells worker index of count owns from the partition in dir. */
+    CellWorker(Path dir, int index, int count) throws IOException {
+        if (count < 1 || index < 0 || index >= count) {
+            throw new IllegalArgumentException("Worker " + index + " of " + count);
+        }
+        this.cellCount = Partition.readIndex(dir)[1];
+        this.index = index;
+        this.count = count;
+        List<CellGraph> owned = new ArrayList<>();
+        for (int k = index; k < cellCount; k += count) {
+            owned.add(CellGraph.read(dir, k));
+        }
+        this.cells = owned.toArray(new CellGraph[0]);
+    }
+
+    /** Parses a worker given as "index/count", as in -Dbmaps.cluster.worker=0/2. */
+    static CellWorker fromSpec(Path dir, String spec) throws IOException {
+        String[] parts = spec.split("/");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Expected index/count, got " + spec);
+        }
+        return new CellWorker(dir, Integer.parseInt(parts[0].trim()),
+                Integer.parseInt(parts[1].trim()));
+    }
+
+    boolean owns(int cell) {
+        return cell >= 0 && cell < cellCount && cell % count == index;
+    }
+
+    /** Cell numbers this worker owns. */
+    List<Integer> cells() {
+        List<Integer> owned = new ArrayList<>();
+        for (CellGraph g : cells) {
+            owned.add(g.cell);
+        }
+        return owned;
+    }
+
+    /** Returns the loaded cell, which must be one this worker owns. */
+    private CellGraph cell(int cell) {
+        if (!owns(cell)) {
+            throw new IllegalArgumentException("Cell " + cell + " is not served by worker "
+                    + index + "/" + count);
+        }
+        return cells[(cell - index) / count];
+    }
+
+    @Override
+    public double[] clique(int cell, RouteProfile profile) {
+        long key = (long) cell * RouteProfile.values().length + profile.ordinal();
+        return cliques.computeIfAbsent(key, k -> {
+            int[] boundary = cell(cell).boundary;
+            int b = boundary.length;
+            double[] table = new double[b * b];
+            for (int i = 0; i < b; i += 1) {
+                double[] row = distances(cell, profile, boundary[i], boundary, false);
+                System.arraycopy(row, 0, table, i * b, b);
+            }
+            return table;
+        });
+    }
+
+    @Override
+    public double[] distances(int cell, RouteProfile profile, int from, int[] targets,
+                              boolean backward) {
+        CellSearch search = search(cell, profile, from, targets, backward);
+        double[] result = new double[targets.length];
+        for (int i = 0; i < targets.length; i += 1) {
+            int local = search.graph.local(targets[i]);
+            int t = local < 0 ? -1 : Arrays.binarySearch(search.targets, local);
+            result[i] = t < 0 ? Double.POSITIVE_INFINITY : search.dist[t];
+        }
+        return result;
+    }
+
+    @Override
+    public int[] path(int cell, RouteProfile profile, int from, int to) {
+        CellSearch search = search(cell, profile, from, new int[] {to}, false);
+        if (search.targets.length == 0 || search.dist[0] == Double.POSITIVE_INFINITY) {
+            return new int[0];
+        }
+        if (to == from) {
+            return new int[] {from};
+        }
+        /* Walk the parents back from the vertex or, in an edge search, the edge that reached
+         * to. A vertex path ends at from itself; an edge path at an edge leaving from. */
+        CellGraph g = search.graph;
+        SearchState state = search.state;
+        int length = search.byEdge ? 1 : 0;
+        for (int x = search.last[0]; x >= 0; x = state.parent(x)) {
+            length += 1;
+        }
+        int[] path = new int[length];
+        path[0] = from;
+        for (int x = search.last[0], i = length - 1; x >= 0; x = state.parent(x), i -= 1) {
+            path[i] = g.vertex(search.byEdge ? g.target(x) : x);
+        }
+        return path;
+    }
+
+    /**
+     * A finished search of one cell, with what it found for every target in the cell. Vertices
+     * and edges here are the cell's local ids.
+     */
+    private static final class CellSearch {
+        final CellGraph graph;
+        /** The targets inside the cell, sorted and without repeats. */
+        final int[] targets;
+        /** Distance of each target; +infinity if it was not reached. */
+        final double[] dist;
+        /** The vertex, or in an edge search the edge, that reached each target; -1 if none. */
+        final int[] last;
+        final SearchState state;
+        final boolean byEdge;
+
+        CellSearch(CellGraph graph, int[] targets, SearchState state, boolean byEdge) {
+            this.graph = graph;
+            this.targets = targets;
+            this.dist = new double[targets.length];
+            this.last = new int[targets.length];
+            Arrays.fill(dist, Double.POSITIVE_INFINITY);
+            Arrays.fill(last, -1);
+            this.state = state;
+            this.byEdge = byEdge;
+        }
+
+        /** Records that v was reached at distance d by x; returns true if v is a new target. */
+        boolean found(int v, double d, int x) {
+            int t = Arrays.binarySearch(targets, v);
+            if (t < 0 || last[t] >= 0 || dist[t] == 0) {
+                return false;
+            }
+            dist[t] = d;
+            last[t] = x;
+            return true;
+        }
+    }
+
+    /**
+     * Runs Dijkstra from from, over forward or backward edges of cell, until every target is
+     * settled. from and targets are dense ids; targets outside the cell are left out. When the
+     * cell has turn restrictions the search runs over edges, as Router does, so that no route
+     * inside the cell makes a forbidden turn.
+     */
+    private CellSearch search(int cell, RouteProfile profile, int from, int[] targets,
+                              boolean backward) {
+        CellGraph g = cell(cell);
+        int source = g.local(from);
+        if (source < 0) {
+            throw new IllegalArgumentException("Vertex " + from + " is not in cell " + cell);
+        }
+        int[] sorted = new int[targets.length];
+        int inside = 0;
+        for (int target : targets) {
+            int local = g.local(target);
+            if (local >= 0) {
+                sorted[inside++] = local;
+            }
+        }
+        Arrays.sort(sorted, 0, inside);
+        int distinct = 0;
+        for (int i = 0; i < inside; i += 1) {
+            if (distinct == 0 || sorted[i] != sorted[distinct - 1]) {
+                sorted[distinct++] = sorted[i];
+            }
+        }
+        boolean byEdge = Router.TURN_RESTRICTIONS && g.hasTurnRestrictions();
+        SearchState state = Router.searchState(byEdge
+                ? Math.max(g.edgeCount(), g.inCount()) : g.size());
+        CellSearch search = new CellSearch(g, Arrays.copyOf(sorted, distinct), state, byEdge);
+        int remaining = distinct;
+        int t = Arrays.binarySearch(search.targets, source);
+        if (t >= 0) {
+            search.dist[t] = 0;
+            remaining -= 1;
+        }
+        if (byEdge) {
+            edgeSearch(g, profile, source, backward, search, remaining);
+            return search;
+        }
+        state.reset();
+        state.relax(source, 0, -1);
+        state.fringe.push(source, 0);
+        while (!state.fringe.isEmpty() && remaining > 0) {
+            int v = state.fringe.poll();
+            if (state.isSettled(v)) {
+                continue;
+            }
+            state.settle(v);
+            double d = state.dist(v);
+            if (search.found(v, d, v)) {
+                remaining -= 1;
+            }
+            int start = backward ? g.firstIn(v) : g.firstEdge(v);
+            int end = backward ? g.endIn(v) : g.endEdge(v);
+            for (int i = start; i < end; i += 1) {
+                int w = backward ? g.source(i) : g.target(i);
+                int e = backward ? g.inEdge(i) : i;
+                double nd = d + g.weight(profile, e);
+                if (!state.isSettled(w) && state.relax(w, nd, v)) {
+                    state.fringe.push(w, nd);
+                }
+            }
+        }
+        return search;
+    }
+
+    /**
+     * The edge-based form of search(). Forward, a state is an edge and its distance is that of
+     * the edge's target. Backward, a state is a backward entry, whose edge leaves the entry's
+     * source: its distance is that of the source to from, and a turn from a preceding edge
+     * onto it is checked at the source.
+     */
+    private void edgeSearch(CellGraph g, RouteProfile profile, int from, boolean backward,
+                            CellSearch search, int remaining) {
+        SearchState state = search.state;
+        state.reset();
+        int start = backward ? g.firstIn(from) : g.firstEdge(from);
+        int end = backward ? g.endIn(from) : g.endEdge(from);
+        for (int i = start; i < end; i += 1) {
+            int e = backward ? g.inEdge(i) : i;
+            if (state.relax(i, g.weight(profile, e), -1)) {
+                state.fringe.push(i, state.dist(i));
+            }
+        }
+        while (!state.fringe.isEmpty() && remaining > 0) {
+            int x = state.fringe.poll();
+            if (state.isSettled(x)) {
+                continue;
+            }
+            state.settle(x);
+            double d = state.dist(x);
+            int v = backward ? g.source(x) : g.target(x);
+            int via = backward ? g.inEdge(x) : x;
+            if (search.found(v, d, x)) {
+                remaining -= 1;
+            }
+            int first = backward ? g.firstIn(v) : g.firstEdge(v);
+            int last = backward ? g.endIn(v) : g.endEdge(v);
+            for (int i = first; i < last; i += 1) {
+                int e = backward ? g.inEdge(i) : i;
+                boolean restricted = backward ? g.isRestricted(v, e, via)
+                        : g.isRestricted(v, via, e);
+                if (restricted || state.isSettled(i)) {
+                    continue;
+                }
+                double nd = d + g.weight(profile, e);
+                if (state.relax(i, nd, x)) {
+                    state.fringe.push(i, nd);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,237 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * The part of a Partition that a routing cluster's coordinator loads: the cell of every vertex,
+ * the boundary vertices of every cell, the edges that cross between cells, and a snapping
+ * index of every vertex's OSM id and coordinates with a SpatialGrid over them. It holds no
+ * edge inside a cell; those are in the workers' CellGraphs.
+ * <p>
+ * Overlay positions number the boundary vertices cell by cell: those of cell k are at
+ * offset[k] .. offset[k + 1] - 1, in the order of boundary[k]. The cut edges leaving the
+ * vertex at position u are firstCut(u) .. endCut(u) - 1.
+ * <p>
+ * overlay.bin holds the vertex count n and the cell of every vertex, the cell count and per
+ * cell its boundary count and boundary vertices, then the total number of cut edges, and per
+ * overlay position the number of its cut edges and per cut edge its target, length and time.
+ * vertices.bin holds n and per vertex its OSM id, longitude, latitude and whether it has any
+ * edge, which is what a location may snap to.
+ */
+final class ClusterOverlay {
+    private static final String OVERLAY_FILE = "overlay.bin";
+    private static final String VERTICES_FILE = "vertices.bin";
+
+    final int cellCount;
+    /** The cell of every vertex. */
+    final int[] cell;
+    /** The boundary vertices of each cell. */
+    final int[][] boundary;
+    /** Position of every vertex in its cell's boundary list, or -1 if it is interior. */
+    final int[] boundaryIndex;
+    /** Overlay position of the first boundary vertex of each cell; the overlay size at the end. */
+    final int[] offset;
+    /** The vertex at every overlay position. */
+    final int[] overlayVertex;
+    private final int[] cutStart;
+    /** Overlay position of the target of every cut edge. */
+    private final int[] cutTarget;
+    private final double[] cutLength;
+    private final double[] cutTime;
+    private final long[] osmIds;
+    private final boolean[] snaps;
+    private final CoordinateStore coordinates;
+    private final SpatialGrid grid;
+
+    private ClusterOverlay(int[] cell, int[][] boundary, int[] cutStart, int[] cutVertex,
+                           double[] cutLength, double[] cutTime, long[] osmIds, boolean[] snaps,
+                           CoordinateStore coordinates) {
+        this.cell = cell;
+        this.cellCount = boundary.length;
+        this.boundary = boundary;
+        this.cutStart = cutStart;
+        this.cutLength = cutLength;
+        this.cutTime = cutTime;
+        this.osmIds = osmIds;
+        this.snaps = snaps;
+        this.coordinates = coordinates;
+        boundaryIndex = new int[cell.length];
+        Arrays.fill(boundaryIndex, -1);
+        offset = new int[cellCount + 1];
+        for (int k = 0; k < cellCount; k += 1) {
+            offset[k + 1] = offset[k] + boundary[k].length;
+            for (int i = 0; i < boundary[k].length; i += 1) {
+                boundaryIndex[boundary[k][i]] = i;
+            }
+        }
+        overlayVertex = new int[offset[cellCount]];
+        for (int k = 0; k < cellCount; k += 1) {
+            System.arraycopy(boundary[k], 0, overlayVertex, offset[k], boundary[k].length);
+        }
+        cutTarget = new int[cutVertex.length];
+        for (int j = 0; j < cutVertex.length; j += 1) {
+            cutTarget[j] = position(cutVertex[j]);
+        }
+        grid = new SpatialGrid(coordinates);
+    }
+
+    /** Reads the overlay and snapping index of the partition written into dir. */
+    static ClusterOverlay read(Path dir) throws IOException {
+        int[] counts = Partition.readIndex(dir);
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(dir.resolve(OVERLAY_FILE)));
+        int n = in.getInt();
+        int[] cell = new int[n];
+        for (int v = 0; v < n; v += 1) {
+            cell[v] = in.getInt();
+        }
+        int[][] boundary = new int[in.getInt()][];
+        int overlaySize = 0;
+        for (int k = 0; k < boundary.length; k += 1) {
+            boundary[k] = new int[in.getInt()];
+            for (int i = 0; i < boundary[k].length; i += 1) {
+                boundary[k][i] = in.getInt();
+            }
+            overlaySize += boundary[k].length;
+        }
+        if (n != counts[0] || boundary.length != counts[1]) {
+            throw new IOException("Overlay does not match its partition index in " + dir);
+        }
+        int m = in.getInt();
+        int[] cutStart = new int[overlaySize + 1];
+        int[] cutVertex = new int[m];
+        double[] cutLength = new double[m];
+        double[] cutTime = new double[m];
+        for (int u = 0; u < overlaySize; u += 1) {
+            cutStart[u + 1] = cutStart[u] + in.getInt();
+            for (int j = cutStart[u]; j < cutStart[u + 1]; j += 1) {
+                cutVertex[j] = in.getInt();
+                cutLength[j] = in.getDouble();
+                cutTime[j] = in.getDouble();
+            }
+        }
+        in = ByteBuffer.wrap(Files.readAllBytes(dir.resolve(VERTICES_FILE)));
+        if (in.getInt() != n) {
+            throw new IOException("Snapping index does not match its partition in " + dir);
+        }
+        long[] osmIds = new long[n];
+        boolean[] snaps = new boolean[n];
+        CoordinateStore coordinates = new CoordinateStore(GraphDB.OFF_HEAP_COORDINATES, n);
+        for (int v = 0; v < n; v += 1) {
+            osmIds[v] = in.getLong();
+            double lon = in.getDouble();
+            double lat = in.getDouble();
+            coordinates.add(lon, lat);
+            snaps[v] = in.get() != 0;
+        }
+        return new ClusterOverlay(cell, boundary, cutStart, cutVertex, cutLength, cutTime,
+                osmIds, snaps, coordinates);
+    }
+
+    /** Writes the overlay and snapping index of partition p of c into dir. */
+    static void write(CompactGraph c, Partition p, Path dir) throws IOException {
+        int n = c.size();
+        try (DataOutputStream out = Partition.open(dir.resolve(OVERLAY_FILE))) {
+            out.writeInt(n);
+            for (int v = 0; v < n; v += 1) {
+                out.writeInt(p.cell[v]);
+            }
+            out.writeInt(p.cellCount);
+            for (int[] vertices : p.boundary) {
+                out.writeInt(vertices.length);
+                for (int v : vertices) {
+                    out.writeInt(v);
+                }
+            }
+            int total = 0;
+            for (int[] vertices : p.boundary) {
+                for (int v : vertices) {
+                    total += cuts(c, p, v);
+                }
+            }
+            out.writeInt(total);
+            for (int[] vertices : p.boundary) {
+                for (int v : vertices) {
+                    out.writeInt(cuts(c, p, v));
+                    for (int e = c.firstEdge(v); e < c.endEdge(v); e += 1) {
+                        if (p.cell[c.target(e)] != p.cell[v]) {
+                            out.writeInt(c.target(e));
+                            out.writeDouble(c.length(e));
+                            out.writeDouble(c.time(e));
+                        }
+                    }
+                }
+            }
+        }
+        try (DataOutputStream out = Partition.open(dir.resolve(VERTICES_FILE))) {
+            out.writeInt(n);
+            for (int v = 0; v < n; v += 1) {
+                out.writeLong(c.osmId(v));
+                out.writeDouble(c.lon(v));
+                out.writeDouble(c.lat(v));
+                out.writeByte(c.isolated(v) ? 0 : 1);
+            }
+        }
+    }
+
+    /** Returns the number of edges out of v that leave its cell. */
+    private static int cuts(CompactGraph c, Partition p, int v) {
+        int cuts = 0;
+        for (int e = c.firstEdge(v); e < c.endEdge(v); e += 1) {
+            cuts += p.cell[c.target(e)] != p.cell[v] ? 1 : 0;
+        }
+        return cuts;
+    }
+
+    /** Number of vertices in the whole graph. */
+    int size() {
+        return cell.length;
+    }
+
+    /** Number of overlay positions, that is of boundary vertices. */
+    int overlaySize() {
+        return overlayVertex.length;
+    }
+
+    /** Returns the overlay position of boundary vertex v. */
+    int position(int v) {
+        return offset[cell[v]] + boundaryIndex[v];
+    }
+
+    int firstCut(int u) {
+        return cutStart[u];
+    }
+
+    int endCut(int u) {
+        return cutStart[u + 1];
+    }
+
+    /** Returns the overlay position of the target of cut edge j. */
+    int cutTarget(int j) {
+        return cutTarget[j];
+    }
+
+    /** Returns the weight profile minimises of cut edge j, as RouteProfile.weight does. */
+    double cutWeight(RouteProfile profile, int j) {
+        return profile == RouteProfile.TIME ? cutTime[j] : cutLength[j];
+    }
+
+    long osmId(int v) {
+        return osmIds[v];
+    }
+
+    double lon(int v) {
+        return coordinates.lon(v);
+    }
+
+    double lat(int v) {
+        return coordinates.lat(v);
+    }
+
+    /** Returns the vertex with an edge closest to (lon, lat), or -1 if there is none. */
+    int nearest(double lon, double lat) {
+        return grid.nearest(coordinates, lon, lat, v -> !snaps[v]);
+    }
+}
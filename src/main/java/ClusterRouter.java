@@ -0,0 +1,339 @@
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Routes over a Partition whose cells are served by CellWorkers, possibly in other processes.
+ * This is the coordinator of a routing cluster: it keeps the overlay graph of the partition
+ * (the boundary vertices, the edges that cross between cells, and one table of in-cell
+ * distances between the boundary vertices of every cell) and never searches inside a cell
+ * itself. It loads only the overlay and snapping index the partition was written with (see
+ * ClusterOverlay), never the graph's edges, and the workers only the cells they own.
+ * <p>
+ * A route from s in cell A to t in cell B asks A's worker for the distances from s to A's
+ * boundary and B's worker for the distances from B's boundary to t. It then runs Dijkstra over
+ * the overlay, and finally asks the cells the winning overlay path passes through for the
+ * vertex paths of its hops. The overlay holds the shortest in-cell distance between every
+ * pair of boundary vertices, so the result is the exact shortest path. When A and B are the
+ * same cell, the route that stays inside it is considered as well.
+ * <p>
+ * To run a cluster on one machine, write the partition once (see Partition), then start the
+ * workers and the coordinator on it, each on its own port:
+ * <pre>
+ *   java -cp ... Partition berkeley-2018.osm.xml partition/
+ *   java -Dbmaps.cluster.dir=partition/ -Dbmaps.port=4568 -Dbmaps.cluster.worker=0/2 MapServer
+ *   java -Dbmaps.cluster.dir=partition/ -Dbmaps.port=4569 -Dbmaps.cluster.worker=1/2 MapServer
+ *   java -Dbmaps.cluster.dir=partition/
+ *        -Dbmaps.cluster.workers=http://localhost:4568,http://localhost:4569 MapServer
+ * </pre>
+ * The coordinator's /route then answers through the workers. Cell k belongs to worker k % n of
+ * the list. Clique tables are fetched from the workers the first time a route reaches a cell
+ * and kept.
+ * <p>
+ * Of a route's Options, the profile is passed to the workers, and the timeout and settled-node
+ * budget apply to the coordinator's overlay search, checked between worker calls; a single
+ * call is bounded by the workers' own timeout. A weighted (epsilon) or corridor search has no
+ * counterpart over the overlay, so such options are refused rather than ignored. So are live
+ * closures: cell searches and clique tables use the base weights (see MapServer). Turn
+ * restrictions are obeyed: Partition keeps every restricted turn inside one cell, where the
+ * cell's searches check it.
+ */
+final class ClusterRouter {
+    /** The cell-local searches a coordinator delegates; answered locally or over HTTP. */
+    interface Cells {
+        /**
+         * Returns the in-cell distances between the cell's boundary vertices, row-major:
+         * entry i * b + j is the distance from boundary vertex i to boundary vertex j.
+         */
+        double[] clique(int cell, RouteProfile profile) throws IOException;
+
+        /**
+         * Returns the in-cell distances from from to each target, or with backward set from
+         * each target to from; +infinity where there is no path inside the cell.
+         */
+        double[] distances(int cell, RouteProfile profile, int from, int[] targets,
+                           boolean backward) throws IOException;
+
+        /** Returns the vertices of the shortest in-cell path from from to to, or none. */
+        int[] path(int cell, RouteProfile profile, int from, int to) throws IOException;
+    }
+
+    private final ClusterOverlay overlay;
+    private final Cells[] owners;
+    private final Map<Long, double[]> cliques = new ConcurrentHashMap<>();
+
+    /**
+     * @param owners The service answering for every cell, indexed by cell.
+     */
+    ClusterRouter(ClusterOverlay overlay, Cells[] owners) {
+        this.overlay = overlay;
+        this.owners = owners;
+    }
+
+    /**
+     * Returns a coordinator for workers given as comma-separated base URLs, as in
+     * -Dbmaps.cluster.workers; cell k is served by the (k % n)th.
+     */
+    static ClusterRouter coordinator(ClusterOverlay overlay, String workerUrls) {
+        String[] urls = workerUrls.split(",");
+        Cells[] workers = new Cells[urls.length];
+        for (int i = 0; i < urls.length; i += 1) {
+            workers[i] = new Remote(urls[i].trim());
+        }
+        Cells[] owners = new Cells[overlay.cellCount];
+        for (int k = 0; k < owners.length; k += 1) {
+            owners[k] = workers[k % workers.length];
+        }
+        return new ClusterRouter(overlay, owners);
+    }
+
+    /** A route found through the cluster, with the coordinates of its vertices for drawing it. */
+    static final class Route {
+        final Router.Result result;
+        final RouteShape shape;
+
+        Route(Router.Result result, RouteShape shape) {
+            this.result = result;
+            this.shape = shape;
+        }
+    }
+
+    /**
+     * Returns the great-circle distance in miles between the vertices the two locations snap
+     * to, like Router.snappedDistance on a GraphDB.
+     */
+    double snappedDistance(double stlon, double stlat, double destlon, double destlat) {
+        int s = overlay.nearest(stlon, stlat);
+        int t = overlay.nearest(destlon, destlat);
+        return s < 0 || t < 0 ? 0 : GraphDB.distance(overlay.lon(s), overlay.lat(s),
+                overlay.lon(t), overlay.lat(t));
+    }
+
+    /**
+     * Routes between the vertices closest to the given points.
+     *
+     * @throws IOException              If a worker cannot be reached.
+     * @throws IllegalArgumentException If options ask for epsilon or a corridor.
+     */
+    Route route(double stlon, double stlat, double destlon, double destlat,
+                Router.Options options) throws IOException {
+        int s = overlay.nearest(stlon, stlat);
+        int t = overlay.nearest(destlon, destlat);
+        if (s < 0 || t < 0) {
+            return new Route(new Router.Result(Router.Status.UNREACHABLE, new ArrayList<>(),
+                    Double.POSITIVE_INFINITY, 1, 0), RouteShape.EMPTY);
+        }
+        return search(s, t, options);
+    }
+
+    /** Routes from dense vertex s to dense vertex t. */
+    Router.Result route(int s, int t, Router.Options options) throws IOException {
+        return search(s, t, options).result;
+    }
+
+    private Route search(int s, int t, Router.Options options) throws IOException {
+        if (options.epsilon != 1 || options.corridor != 0) {
+            throw new IllegalArgumentException(
+                    "a routing cluster only finds exact routes, without epsilon or corridor");
+        }
+        RouteProfile profile = options.profile;
+        long deadline = System.nanoTime() + options.timeoutNanos;
+        List<Integer> path = new ArrayList<>();
+        if (s == t) {
+            path.add(s);
+            return found(path, 0, 0);
+        }
+        int a = overlay.cell[s];
+        int b = overlay.cell[t];
+        int[] exits = overlay.boundary[a];
+        int[] entries = overlay.boundary[b];
+        double[] out = owners[a].distances(a, profile, s, exits, false);
+        double[] in = owners[b].distances(b, profile, t, entries, true);
+        double best = a == b
+                ? owners[a].distances(a, profile, s, new int[] {t}, false)[0]
+                : Double.POSITIVE_INFINITY;
+
+        int[] offset = overlay.offset;
+        SearchState state = new SearchState(overlay.overlaySize());
+        state.reset();
+        for (int i = 0; i < exits.length; i += 1) {
+            if (out[i] != Double.POSITIVE_INFINITY) {
+                state.relax(offset[a] + i, out[i], -1);
+                state.fringe.push(offset[a] + i, out[i]);
+            }
+        }
+        int last = -1;
+        int settled = 0;
+        while (!state.fringe.isEmpty()) {
+            int u = state.fringe.poll();
+            if (state.isSettled(u)) {
+                continue;
+            }
+            double d = state.dist(u);
+            if (d >= best) {
+                break;
+            }
+            state.settle(u);
+            settled += 1;
+            if (settled > options.maxSettled
+                    || options.timeoutNanos > 0 && System.nanoTime() - deadline > 0) {
+                return new Route(new Router.Result(Router.Status.TIMED_OUT, new ArrayList<>(),
+                        Double.POSITIVE_INFINITY, 1, settled), RouteShape.EMPTY);
+            }
+            int v = overlay.overlayVertex[u];
+            int k = overlay.cell[v];
+            int i = u - offset[k];
+            if (k == b && d + in[i] < best) {
+                best = d + in[i];
+                last = u;
+            }
+            double[] clique = clique(k, profile);
+            int size = overlay.boundary[k].length;
+            for (int j = 0; j < size; j += 1) {
+                double nd = d + clique[i * size + j];
+                int w = offset[k] + j;
+                if (nd != Double.POSITIVE_INFINITY && !state.isSettled(w)
+                        && state.relax(w, nd, u)) {
+                    state.fringe.push(w, nd);
+                }
+            }
+            for (int j = overlay.firstCut(u); j < overlay.endCut(u); j += 1) {
+                int w = overlay.cutTarget(j);
+                double nd = d + overlay.cutWeight(profile, j);
+                if (!state.isSettled(w) && state.relax(w, nd, u)) {
+                    state.fringe.push(w, nd);
+                }
+            }
+        }
+        if (best == Double.POSITIVE_INFINITY) {
+            return new Route(new Router.Result(Router.Status.UNREACHABLE, new ArrayList<>(), best,
+                    1, settled), RouteShape.EMPTY);
+        }
+
+        int[] overlayVertex = overlay.overlayVertex;
+        if (last < 0) {
+            append(path, owners[a].path(a, profile, s, t));
+        } else {
+            List<Integer> hops = new ArrayList<>();
+            for (int u = last; u >= 0; u = state.parent(u)) {
+                hops.add(0, u);
+            }
+            append(path, owners[a].path(a, profile, s, overlayVertex[hops.get(0)]));
+            for (int h = 1; h < hops.size(); h += 1) {
+                int from = overlayVertex[hops.get(h - 1)];
+                int to = overlayVertex[hops.get(h)];
+                int k = overlay.cell[from];
+                if (k == overlay.cell[to]) {
+                    append(path, owners[k].path(k, profile, from, to));
+                } else {
+                    path.add(to);
+                }
+            }
+            append(path, owners[b].path(b, profile, overlayVertex[last], t));
+        }
+        return found(path, best, settled);
+    }
+
+    /** Returns the found route along the dense vertices of path. */
+    private Route found(List<Integer> path, double cost, int settled) {
+        List<Long> osmIds = new ArrayList<>();
+        double[] lons = new double[path.size()];
+        double[] lats = new double[path.size()];
+        for (int i = 0; i < path.size(); i += 1) {
+            int v = path.get(i);
+            osmIds.add(overlay.osmId(v));
+            lons[i] = overlay.lon(v);
+            lats[i] = overlay.lat(v);
+        }
+        return new Route(new Router.Result(Router.Status.FOUND, osmIds, cost, 1, settled),
+                new RouteShape(lons, lats));
+    }
+
+    private double[] clique(int cell, RouteProfile profile) throws IOException {
+        long key = (long) cell * RouteProfile.values().length + profile.ordinal();
+        double[] clique = cliques.get(key);
+        if (clique == null) {
+            clique = owners[cell].clique(cell, profile);
+            cliques.put(key, clique);
+        }
+        return clique;
+    }
+
+    /** Appends a vertex path, skipping its first vertex if path ends there. */
+    private static void append(List<Integer> path, int[] vertices) {
+        for (int i = 0; i < vertices.length; i += 1) {
+            if (i > 0 || path.isEmpty() || path.get(path.size() - 1) != vertices[i]) {
+                path.add(vertices[i]);
+            }
+        }
+    }
+
+    /** A worker in another process, reached through its /cluster endpoints. */
+    static final class Remote implements Cells {
+        private static final int TIMEOUT_MILLIS = 5000;
+        private static final Gson GSON = new GsonBuilder()
+                .serializeSpecialFloatingPointValues().create();
+        private final String base;
+
+        Remote(String base) {
+            this.base = base.endsWith("/") ? base.substring(0, base.length() - 1) : base;
+        }
+
+        @Override
+        public double[] clique(int cell, RouteProfile profile) throws IOException {
+            return get("/cluster/clique?cell=" + cell + "&profile=" + profile, double[].class);
+        }
+
+        @Override
+        public double[] distances(int cell, RouteProfile profile, int from, int[] targets,
+                                  boolean backward) throws IOException {
+            StringBuilder list = new StringBuilder();
+            for (int t : targets) {
+                list.append(list.length() == 0 ? "" : ",").append(t);
+            }
+            return get("/cluster/distances?cell=" + cell + "&profile=" + profile + "&from="
+                    + from + "&targets=" + list + "&backward=" + backward, double[].class);
+        }
+
+        @Override
+        public int[] path(int cell, RouteProfile profile, int from, int to)
+                throws IOException {
+            return get("/cluster/path?cell=" + cell + "&profile=" + profile + "&from=" + from
+                    + "&to=" + to, int[].class);
+        }
+
+        private <T> T get(String query, Class<T> type) throws IOException {
+            HttpURLConnection connection =
+                    (HttpURLConnection) new URL(base + query).openConnection();
+            try {
+                connection.setConnectTimeout(TIMEOUT_MILLIS);
+                connection.setReadTimeout(TIMEOUT_MILLIS);
+                if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                    throw new IOException(base + query + " returned "
+                            + connection.getResponseCode());
+                }
+                try (InputStream in = connection.getInputStream()) {
+                    return GSON.fromJson(new InputStreamReader(in, StandardCharsets.UTF_8),
+                            type);
+                }
+            } finally {
+                connection.disconnect();
+            }
+        }
+
+        /** Serializes a worker's answer; infinite distances travel as Infinity. */
+        static String toJson(Object answer) {
+            return GSON.toJson(answer);
+        }
+    }
+}
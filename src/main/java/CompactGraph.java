@@ -0,0 +1,1033 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+
+/**
+ * Immutable, array-backed road graph of a GraphDB; once it is built, the parsed Node and Edge
+ * objects are dropped and this is all that is kept of the map. Vertices are renumbered to
+ * dense ints in [0, size()), coordinates are fixed-point ints in a CoordinateStore addressed
+ * by dense id, and adjacency is stored in compressed sparse row (CSR) form: the edges leaving
+ * v are target(firstEdge(v)) .. target(endEdge(v) - 1). OSM ids are found by binary search
+ * over a sorted copy of the ids rather than in a map of boxed ids.
+ * <p>
+ * Dense ids follow a Hilbert curve over the vertices' coordinates rather than OSM id order,
+ * which is close to random in space, so that a search mostly touches vertices whose
+ * coordinates and edges are next to each other in the arrays; see SPATIAL_ORDER and
+ * GraphLayoutBenchmark.
+ * <p>
+ * The graph is directed. Forward edges only exist in the directions a car may drive, so one-way
+ * streets have a single edge. The backward CSR (firstIn, endIn, source, inEdge) lists, for
+ * every vertex, the forward edges that arrive at it; it shares the forward edge ids so edge
+ * attributes are stored once.
+ * <p>
+ * Edge weights for every RouteProfile are computed here once, so routing never parses a tag:
+ * length is in miles and time in seconds at the way's maxspeed, or at a default speed for its
+ * highway class when maxspeed is missing or unreadable.
+ * <p>
+ * Turn restrictions are kept as a table of forbidden (via, from-edge, to-edge) triples sorted by
+ * (via, from-edge), so a search can check a turn with a binary search over a primitive array.
+ * <p>
+ * A change to the map (see OsmChange) does not rebuild the graph: derive() returns a new
+ * version that shares the pages of every array with this one (see Pages) and only writes the
+ * vertices the change touches. Their new edges and backward entries are appended after the
+ * existing ones and their ranges pointed there, so edge ids of untouched vertices stay valid;
+ * the entries they replace are left unused. Vertices that moved or were added are searched
+ * linearly by nearest() instead of through the grid, and vertices that were removed keep their
+ * id but have no edges. Once the unused entries pass REBUILD_FRACTION of all entries, derive()
+ * builds a fresh graph instead.
+ * <p>
+ * The OSM-id based API on GraphDB stays the public face of the graph and is answered from
+ * here; searches that run many times per request (map matching, routing) work on dense ids
+ * directly so that they never box an id.
+ */
+final class CompactGraph {
+    /** Assumed speed limits, in mph, of highway classes without a usable maxspeed tag. */
+    private static final Map<String, Double> DEFAULT_SPEEDS = new HashMap<>();
+    private static final double FALLBACK_SPEED = 25;
+    private static final double KMH_TO_MPH = 0.621371;
+    /**
+     * Whether vertices are numbered along a Hilbert curve (the default) or in nodeList order;
+     * -Dbmaps.spatialOrder=false turns it off. On a 360,000-vertex extract whose node ids are
+     * not spatially sorted, routes ran 5 to 19% faster along the curve, since the vertices a
+     * search settles together sit in the same cache lines, and nearest() no slower.
+     */
+    static final boolean SPATIAL_ORDER =
+            Boolean.parseBoolean(System.getProperty("bmaps.spatialOrder", "true"));
+    /** Cells per side of the grid the Hilbert curve is laid over; indices fit in 30 bits. */
+    private static final int HILBERT_SIDE = 1 << 15;
+    /**
+     * Unused edges and backward entries, as a fraction of all of them, past which derive()
+     * rebuilds the graph; fewer than a page's worth are never worth a rebuild.
+     */
+    static final double REBUILD_FRACTION = 0.25;
+
+    static {
+        DEFAULT_SPEEDS.put("motorway", 65.0);
+        DEFAULT_SPEEDS.put("trunk", 55.0);
+        DEFAULT_SPEEDS.put("primary", 40.0);
+        DEFAULT_SPEEDS.put("secondary", 35.0);
+        DEFAULT_SPEEDS.put("tertiary", 30.0);
+        DEFAULT_SPEEDS.put("unclassified", 25.0);
+        DEFAULT_SPEEDS.put("residential", 25.0);
+        DEFAULT_SPEEDS.put("living_street", 10.0);
+        DEFAULT_SPEEDS.put("motorway_link", 45.0);
+        DEFAULT_SPEEDS.put("trunk_link", 40.0);
+        DEFAULT_SPEEDS.put("primary_link", 30.0);
+        DEFAULT_SPEEDS.put("secondary_link", 30.0);
+        DEFAULT_SPEEDS.put("tertiary_link", 25.0);
+    }
+
+    private final Pages.Longs osmIds;
+    /** Coordinates of every vertex, at slot v for dense id v. */
+    final CoordinateStore coordinates;
+    private final Pages.Ints edgeFirst;
+    private final Pages.Ints edgeEnd;
+    private final Pages.Ints edgeTarget;
+    private final Pages.Doubles edgeLength;
+    private final Pages.Doubles edgeTime;
+    private final Pages.Longs edgeWay;
+    /** Highest speed of any edge, used to keep the TIME heuristic admissible. */
+    final double maxSpeedMph;
+    private final Pages.Ints inFirst;
+    private final Pages.Ints inEnd;
+    private final Pages.Ints inSource;
+    private final Pages.Ints inEdge;
+
+    /* Shared by every version derived since the graph was last built from scratch. */
+
+    /** Sorted (via &lt;&lt; 32 | fromEdge) keys of forbidden turns. */
+    private final long[] restrictionKey;
+    /** The forbidden to-edge of each restrictionKey entry. */
+    private final int[] restrictionTo;
+    private final SpatialGrid grid;
+    /** OSM ids of the vertices the graph was built with, in ascending order, and their ids. */
+    private final long[] sortedIds;
+    private final int[] sortedDense;
+    /** Way ids in ascending order; the vertices of ways[i] are wayVertices[wayStart[i]..]. */
+    private final long[] ways;
+    private final int[] wayStart;
+    private final int[] wayVertices;
+    private final List<GraphDB.TurnRestriction> turnRestrictions;
+    private final Map<Long, List<GraphDB.TurnRestriction>> restrictionsByVia;
+
+    /* What derive() changed since then. */
+
+    /** Vias whose turns were resolved again, sorted, and their forbidden turns. */
+    private final int[] patchedVias;
+    private final long[] patchedKey;
+    private final int[] patchedTo;
+    /** Vertices that moved or were added, so grid does not have them where they are; sorted. */
+    private final int[] relocated;
+    /** OSM ids of added vertices, in ascending order, and their ids. */
+    private final long[] addedIds;
+    private final int[] addedDense;
+    /** Vertices of the ways that were changed. */
+    private final Map<Long, int[]> changedWays;
+    /** Edges and backward entries no vertex points at any more. */
+    private final int unused;
+    private final boolean derived;
+
+    CompactGraph(GraphDB g) {
+        this(Flat.of(g, SPATIAL_ORDER), g.turnRestrictions);
+    }
+
+    /** The arrays a graph is built from when it is built from scratch. */
+    private static final class Flat {
+        long[] osmIds;
+        CoordinateStore coordinates;
+        /** The edges of v are [edgeStart[v], edgeStart[v + 1]). */
+        int[] edgeStart;
+        int[] targets;
+        double[] lengths;
+        double[] times;
+        long[] ways;
+        double maxSpeedMph;
+
+        /** Lays out the parsed nodes of g. */
+        static Flat of(GraphDB g, boolean spatialOrder) {
+            GraphDB.Node[] nodes = g.nodeList.values().toArray(new GraphDB.Node[0]);
+            if (spatialOrder) {
+                nodes = hilbertOrder(nodes, g.coordinates);
+            }
+            Flat f = new Flat();
+            int n = nodes.length;
+            f.osmIds = new long[n];
+            f.coordinates = new CoordinateStore(g.coordinates.isOffHeap(), n);
+            Map<Long, Integer> dense = new HashMap<>(n * 2);
+            int m = 0;
+            for (int v = 0; v < n; v += 1) {
+                GraphDB.Node node = nodes[v];
+                f.osmIds[v] = node.id;
+                f.coordinates.add(node.lon(g.coordinates), node.lat(g.coordinates));
+                dense.put(node.id, v);
+                m += node.edgesToNeighbors.size();
+            }
+
+            f.edgeStart = new int[n + 1];
+            int[] targets = new int[m];
+            double[] lengths = new double[m];
+            double[] times = new double[m];
+            long[] ways = new long[m];
+            double fastest = 0;
+            int e = 0;
+            for (int from = 0; from < n; from += 1) {
+                int first = e;
+                for (GraphDB.Edge edge : nodes[from].edgesToNeighbors) {
+                    Integer to = dense.get(edge.endID);
+                    if (!edge.traversable || to == null || duplicate(targets, first, e, to)) {
+                        continue;
+                    }
+                    double speed = edge.speedMph();
+                    fastest = Math.max(fastest, speed);
+                    targets[e] = to;
+                    lengths[e] = edge.distance;
+                    times[e] = edge.distance / speed * 3600;
+                    ways[e] = Long.parseLong(edge.id);
+                    e += 1;
+                }
+                f.edgeStart[from + 1] = e;
+            }
+            f.targets = Arrays.copyOf(targets, e);
+            f.lengths = Arrays.copyOf(lengths, e);
+            f.times = Arrays.copyOf(times, e);
+            f.ways = Arrays.copyOf(ways, e);
+            f.maxSpeedMph = fastest > 0 ? fastest : FALLBACK_SPEED;
+            return f;
+        }
+
+        /** Lays out the vertices of c that still have edges, in their current order. */
+        static Flat of(CompactGraph c) {
+            int[] renumbered = new int[c.size()];
+            int n = 0;
+            for (int v = 0; v < c.size(); v += 1) {
+                renumbered[v] = c.isolated(v) ? -1 : n++;
+            }
+            Flat f = new Flat();
+            f.osmIds = new long[n];
+            f.coordinates = new CoordinateStore(c.coordinates.isOffHeap(), n);
+            f.edgeStart = new int[n + 1];
+            int m = 0;
+            for (int v = 0; v < c.size(); v += 1) {
+                m += c.endEdge(v) - c.firstEdge(v);
+            }
+            f.targets = new int[m];
+            f.lengths = new double[m];
+            f.times = new double[m];
+            f.ways = new long[m];
+            int e = 0;
+            for (int v = 0; v < c.size(); v += 1) {
+                int u = renumbered[v];
+                if (u < 0) {
+                    continue;
+                }
+                f.osmIds[u] = c.osmId(v);
+                f.coordinates.add(c.lon(v), c.lat(v));
+                for (int old = c.firstEdge(v); old < c.endEdge(v); old += 1) {
+                    f.targets[e] = renumbered[c.target(old)];
+                    f.lengths[e] = c.length(old);
+                    f.times[e] = c.time(old);
+                    f.ways[e] = c.way(old);
+                    e += 1;
+                }
+                f.edgeStart[u + 1] = e;
+            }
+            f.maxSpeedMph = c.maxSpeedMph;
+            return f;
+        }
+    }
+
+    private CompactGraph(Flat f, List<GraphDB.TurnRestriction> restrictions) {
+        int n = f.osmIds.length;
+        int m = f.targets.length;
+        osmIds = new Pages.Longs(f.osmIds, n);
+        coordinates = f.coordinates;
+        edgeFirst = new Pages.Ints(f.edgeStart, n);
+        edgeEnd = new Pages.Ints(Arrays.copyOfRange(f.edgeStart, 1, n + 1), n);
+        edgeTarget = new Pages.Ints(f.targets, m);
+        edgeLength = new Pages.Doubles(f.lengths, m);
+        edgeTime = new Pages.Doubles(f.times, m);
+        edgeWay = new Pages.Longs(f.ways, m);
+        maxSpeedMph = f.maxSpeedMph;
+
+        int[] reverseStart = new int[n + 1];
+        int[] reverseSource = new int[m];
+        int[] reverseEdge = new int[m];
+        for (int e = 0; e < m; e += 1) {
+            reverseStart[f.targets[e] + 1] += 1;
+        }
+        for (int w = 0; w < n; w += 1) {
+            reverseStart[w + 1] += reverseStart[w];
+        }
+        int[] fill = Arrays.copyOf(reverseStart, n);
+        for (int u = 0; u < n; u += 1) {
+            for (int e = f.edgeStart[u]; e < f.edgeStart[u + 1]; e += 1) {
+                int slot = fill[f.targets[e]]++;
+                reverseSource[slot] = u;
+                reverseEdge[slot] = e;
+            }
+        }
+        inFirst = new Pages.Ints(reverseStart, n);
+        inEnd = new Pages.Ints(Arrays.copyOfRange(reverseStart, 1, n + 1), n);
+        inSource = new Pages.Ints(reverseSource, m);
+        inEdge = new Pages.Ints(reverseEdge, m);
+
+        sortedDense = byKey(f.osmIds);
+        sortedIds = new long[n];
+        for (int i = 0; i < n; i += 1) {
+            sortedIds[i] = f.osmIds[sortedDense[i]];
+        }
+        addedIds = new long[0];
+        addedDense = new int[0];
+        relocated = new int[0];
+        changedWays = new HashMap<>();
+        unused = 0;
+        derived = false;
+
+        turnRestrictions = restrictions;
+        restrictionsByVia = new HashMap<>();
+        for (GraphDB.TurnRestriction r : restrictions) {
+            restrictionsByVia.computeIfAbsent(r.via, k -> new ArrayList<>()).add(r);
+        }
+        patchedVias = new int[0];
+        patchedKey = new long[0];
+        patchedTo = new int[0];
+        List<Integer> vias = new ArrayList<>();
+        for (long via : restrictionsByVia.keySet()) {
+            int v = denseId(via);
+            if (v >= 0) {
+                vias.add(v);
+            }
+        }
+        long[][] table = resolveTurns(vias);
+        restrictionKey = table[0];
+        restrictionTo = new int[table[1].length];
+        for (int i = 0; i < restrictionTo.length; i += 1) {
+            restrictionTo[i] = (int) table[1][i];
+        }
+
+        grid = new SpatialGrid(coordinates);
+
+        /* Way index: for each way, every vertex at either end of one of its edges. */
+        int[] byWay = byKey(f.ways);
+        int[] seen = new int[n];
+        Arrays.fill(seen, -1);
+        long[] wayIds = new long[m];
+        int[] starts = new int[m + 1];
+        int[] vertices = new int[2 * m];
+        int[] sources = new int[m];
+        for (int u = 0; u < n; u += 1) {
+            for (int e = f.edgeStart[u]; e < f.edgeStart[u + 1]; e += 1) {
+                sources[e] = u;
+            }
+        }
+        int count = 0, filled = 0;
+        for (int i = 0; i < m; i += 1) {
+            int e = byWay[i];
+            if (count == 0 || wayIds[count - 1] != f.ways[e]) {
+                wayIds[count] = f.ways[e];
+                starts[count] = filled;
+                count += 1;
+            }
+            for (int v : new int[] {sources[e], f.targets[e]}) {
+                if (seen[v] != count) {
+                    seen[v] = count;
+                    vertices[filled++] = v;
+                }
+            }
+        }
+        starts[count] = filled;
+        ways = Arrays.copyOf(wayIds, count);
+        wayStart = Arrays.copyOf(starts, count + 1);
+        wayVertices = Arrays.copyOf(vertices, filled);
+    }
+
+    /** A new version being written by derive(); its arrays share pages with the old one. */
+    private static final class Edit {
+        final CompactGraph from;
+        final Pages.Longs osmIds;
+        final CoordinateStore coordinates;
+        final Pages.Ints edgeFirst;
+        final Pages.Ints edgeEnd;
+        final Pages.Ints edgeTarget;
+        final Pages.Doubles edgeLength;
+        final Pages.Doubles edgeTime;
+        final Pages.Longs edgeWay;
+        final Pages.Ints inFirst;
+        final Pages.Ints inEnd;
+        final Pages.Ints inSource;
+        final Pages.Ints inEdge;
+        double maxSpeedMph;
+        final Set<Integer> vias = new TreeSet<>();
+        final Set<Integer> relocated = new TreeSet<>();
+        final Map<Long, Integer> added = new HashMap<>();
+        final Map<Long, int[]> changedWays;
+        int unused;
+
+        Edit(CompactGraph from) {
+            this.from = from;
+            osmIds = from.osmIds.copy();
+            coordinates = from.coordinates.copy();
+            edgeFirst = from.edgeFirst.copy();
+            edgeEnd = from.edgeEnd.copy();
+            edgeTarget = from.edgeTarget.copy();
+            edgeLength = from.edgeLength.copy();
+            edgeTime = from.edgeTime.copy();
+            edgeWay = from.edgeWay.copy();
+            inFirst = from.inFirst.copy();
+            inEnd = from.inEnd.copy();
+            inSource = from.inSource.copy();
+            inEdge = from.inEdge.copy();
+            maxSpeedMph = from.maxSpeedMph;
+            for (int v : from.patchedVias) {
+                vias.add(v);
+            }
+            for (int v : from.relocated) {
+                relocated.add(v);
+            }
+            for (int i = 0; i < from.addedIds.length; i += 1) {
+                added.put(from.addedIds[i], from.addedDense[i]);
+            }
+            changedWays = new HashMap<>(from.changedWays);
+            unused = from.unused;
+        }
+
+        /** Returns the id of OSM node id in the new version, or -1. */
+        int denseId(long id) {
+            Integer v = added.get(id);
+            return v != null ? v : from.denseId(id);
+        }
+    }
+
+    /**
+     * Returns a new version of this graph in which the given nodes have exactly the given edges
+     * and coordinates, the removed nodes are gone, and the given ways consist of the given
+     * nodes. This graph is not changed. Only the touched vertices, and the backward lists of
+     * the vertices their edges led or lead to, are written; every other page is shared.
+     *
+     * @param changed     Nodes whose edges or position changed, or that are new. Edges that
+     *                    cannot be driven or lead to a node that is not in the new version
+     *                    are left out, as when the graph is built.
+     * @param coordinates Where the changed nodes' coordinates are.
+     * @param removed     OSM ids of nodes that are not in the new version.
+     * @param wayNodes    For each way that was created, changed or deleted, its nodes now.
+     */
+    CompactGraph derive(Collection<GraphDB.Node> changed, CoordinateStore coordinates,
+                        Collection<Long> removed, Map<Long, Collection<Long>> wayNodes) {
+        Edit edit = new Edit(this);
+        List<Integer> vertices = new ArrayList<>();
+        for (GraphDB.Node node : changed) {
+            double lon = node.lon(coordinates), lat = node.lat(coordinates);
+            int v = edit.denseId(node.id);
+            if (v < 0) {
+                v = edit.osmIds.size();
+                edit.osmIds.set(v, node.id);
+                edit.coordinates.set(v, lon, lat);
+                edit.edgeFirst.set(v, 0);
+                edit.edgeEnd.set(v, 0);
+                edit.inFirst.set(v, 0);
+                edit.inEnd.set(v, 0);
+                edit.added.put(node.id, v);
+                edit.relocated.add(v);
+            } else if (CoordinateStore.encode(lon) != CoordinateStore.encode(lon(v))
+                    || CoordinateStore.encode(lat) != CoordinateStore.encode(lat(v))) {
+                edit.coordinates.set(v, lon, lat);
+                edit.relocated.add(v);
+            }
+            vertices.add(v);
+        }
+        Set<Integer> dead = new HashSet<>();
+        for (long id : removed) {
+            Integer v = edit.added.remove(id);
+            int d = v != null ? v : denseId(id);
+            if (d >= 0) {
+                dead.add(d);
+            }
+        }
+
+        /* Forward lists: the old edges' targets lose an entry, the new edges' targets gain one.
+         * incoming collects (source, edge) of the new edges by target. */
+        Set<Integer> rewritten = new HashSet<>(dead);
+        Set<Integer> backward = new HashSet<>();
+        Map<Integer, List<long[]>> incoming = new HashMap<>();
+        int i = 0;
+        for (GraphDB.Node node : changed) {
+            int u = vertices.get(i++);
+            rewritten.add(u);
+            for (int e = edit.edgeFirst.get(u); e < edit.edgeEnd.get(u); e += 1) {
+                backward.add(edit.edgeTarget.get(e));
+            }
+            edit.unused += edit.edgeEnd.get(u) - edit.edgeFirst.get(u);
+            int first = edit.edgeTarget.size();
+            for (GraphDB.Edge edge : node.edgesToNeighbors) {
+                int to = edit.denseId(edge.endID);
+                if (!edge.traversable || to < 0 || dead.contains(to)
+                        || duplicate(edit.edgeTarget, first, edit.edgeTarget.size(), to)) {
+                    continue;
+                }
+                int e = edit.edgeTarget.size();
+                double speed = edge.speedMph();
+                edit.maxSpeedMph = Math.max(edit.maxSpeedMph, speed);
+                edit.edgeTarget.set(e, to);
+                edit.edgeLength.set(e, edge.distance);
+                edit.edgeTime.set(e, edge.distance / speed * 3600);
+                edit.edgeWay.set(e, Long.parseLong(edge.id));
+                incoming.computeIfAbsent(to, k -> new ArrayList<>()).add(new long[] {u, e});
+                backward.add(to);
+            }
+            edit.edgeFirst.set(u, first);
+            edit.edgeEnd.set(u, edit.edgeTarget.size());
+        }
+        for (int v : dead) {
+            for (int e = edit.edgeFirst.get(v); e < edit.edgeEnd.get(v); e += 1) {
+                backward.add(edit.edgeTarget.get(e));
+            }
+            edit.unused += edit.edgeEnd.get(v) - edit.edgeFirst.get(v)
+                    + edit.inEnd.get(v) - edit.inFirst.get(v);
+            edit.edgeFirst.set(v, 0);
+            edit.edgeEnd.set(v, 0);
+            edit.inFirst.set(v, 0);
+            edit.inEnd.set(v, 0);
+        }
+
+        /* Backward lists: keep the entries from vertices whose edges were not rewritten, then
+         * add the rewritten ones' new edges. */
+        backward.removeAll(dead);
+        for (int w : backward) {
+            int first = edit.inSource.size();
+            int slot = first;
+            for (int j = edit.inFirst.get(w); j < edit.inEnd.get(w); j += 1) {
+                if (!rewritten.contains(edit.inSource.get(j))) {
+                    edit.inSource.set(slot, edit.inSource.get(j));
+                    edit.inEdge.set(slot, edit.inEdge.get(j));
+                    slot += 1;
+                }
+            }
+            for (long[] entry : incoming.getOrDefault(w, new ArrayList<>())) {
+                edit.inSource.set(slot, (int) entry[0]);
+                edit.inEdge.set(slot, (int) entry[1]);
+                slot += 1;
+            }
+            edit.unused += edit.inEnd.get(w) - edit.inFirst.get(w);
+            edit.inFirst.set(w, first);
+            edit.inEnd.set(w, slot);
+        }
+
+        /* Every turn through a vertex whose edges in or out have new ids is resolved again. */
+        for (int v : rewritten) {
+            addVia(edit, v);
+        }
+        for (int v : backward) {
+            addVia(edit, v);
+        }
+        for (Map.Entry<Long, Collection<Long>> way : wayNodes.entrySet()) {
+            int[] ids = new int[way.getValue().size()];
+            int count = 0;
+            for (long id : way.getValue()) {
+                int v = edit.denseId(id);
+                if (v >= 0 && !dead.contains(v)) {
+                    ids[count++] = v;
+                }
+            }
+            edit.changedWays.put(way.getKey(), Arrays.copyOf(ids, count));
+        }
+
+        CompactGraph next = new CompactGraph(edit);
+        if (next.unused >= Pages.PAGE_SIZE
+                && next.unused > REBUILD_FRACTION * (next.edgeCount() + next.inSource.size())) {
+            return new CompactGraph(Flat.of(next), turnRestrictions);
+        }
+        return next;
+    }
+
+    private void addVia(Edit edit, int v) {
+        if (v < size() ? restrictionsByVia.containsKey(osmId(v))
+                : restrictionsByVia.containsKey(edit.osmIds.get(v))) {
+            edit.vias.add(v);
+        }
+    }
+
+    private CompactGraph(Edit edit) {
+        CompactGraph from = edit.from;
+        osmIds = edit.osmIds;
+        coordinates = edit.coordinates;
+        edgeFirst = edit.edgeFirst;
+        edgeEnd = edit.edgeEnd;
+        edgeTarget = edit.edgeTarget;
+        edgeLength = edit.edgeLength;
+        edgeTime = edit.edgeTime;
+        edgeWay = edit.edgeWay;
+        maxSpeedMph = edit.maxSpeedMph;
+        inFirst = edit.inFirst;
+        inEnd = edit.inEnd;
+        inSource = edit.inSource;
+        inEdge = edit.inEdge;
+
+        restrictionKey = from.restrictionKey;
+        restrictionTo = from.restrictionTo;
+        grid = from.grid;
+        sortedIds = from.sortedIds;
+        sortedDense = from.sortedDense;
+        ways = from.ways;
+        wayStart = from.wayStart;
+        wayVertices = from.wayVertices;
+        turnRestrictions = from.turnRestrictions;
+        restrictionsByVia = from.restrictionsByVia;
+
+        relocated = toArray(edit.relocated);
+        long[] ids = new long[edit.added.size()];
+        int count = 0;
+        for (long id : edit.added.keySet()) {
+            ids[count++] = id;
+        }
+        Arrays.sort(ids);
+        addedIds = ids;
+        addedDense = new int[ids.length];
+        for (int i = 0; i < ids.length; i += 1) {
+            addedDense[i] = edit.added.get(ids[i]);
+        }
+        changedWays = edit.changedWays;
+        unused = edit.unused;
+        derived = true;
+
+        patchedVias = toArray(edit.vias);
+        List<Integer> vias = new ArrayList<>(edit.vias);
+        long[][] table = resolveTurns(vias);
+        patchedKey = table[0];
+        patchedTo = new int[table[1].length];
+        for (int i = 0; i < patchedTo.length; i += 1) {
+            patchedTo[i] = (int) table[1][i];
+        }
+    }
+
+    private static int[] toArray(Set<Integer> sorted) {
+        int[] values = new int[sorted.size()];
+        int i = 0;
+        for (int v : sorted) {
+            values[i++] = v;
+        }
+        return values;
+    }
+
+    /** Returns the indices of keys in ascending order of key; a merge sort, so nothing is boxed. */
+    private static int[] byKey(long[] keys) {
+        int n = keys.length;
+        int[] order = new int[n];
+        for (int i = 0; i < n; i += 1) {
+            order[i] = i;
+        }
+        int[] scratch = new int[n];
+        for (int width = 1; width < n; width *= 2) {
+            for (int lo = 0; lo < n - width; lo += 2 * width) {
+                int mid = lo + width, hi = Math.min(lo + 2 * width, n);
+                int i = lo, j = mid, k = lo;
+                while (i < mid && j < hi) {
+                    scratch[k++] = keys[order[j]] < keys[order[i]] ? order[j++] : order[i++];
+                }
+                while (i < mid) {
+                    scratch[k++] = order[i++];
+                }
+                while (j < hi) {
+                    scratch[k++] = order[j++];
+                }
+                System.arraycopy(scratch, lo, order, lo, hi - lo);
+            }
+        }
+        return order;
+    }
+
+    /**
+     * Returns the nodes sorted by their position along a Hilbert curve laid over their
+     * bounding box. Vertices that are close on the map then get close dense ids, so the
+     * coordinates and adjacency a search touches next are usually in cache already.
+     */
+    private static GraphDB.Node[] hilbertOrder(GraphDB.Node[] nodes, CoordinateStore store) {
+        double minLon = Double.POSITIVE_INFINITY, maxLon = Double.NEGATIVE_INFINITY;
+        double minLat = Double.POSITIVE_INFINITY, maxLat = Double.NEGATIVE_INFINITY;
+        for (GraphDB.Node node : nodes) {
+            minLon = Math.min(minLon, node.lon(store));
+            maxLon = Math.max(maxLon, node.lon(store));
+            minLat = Math.min(minLat, node.lat(store));
+            maxLat = Math.max(maxLat, node.lat(store));
+        }
+        double lonScale = (HILBERT_SIDE - 1) / Math.max(maxLon - minLon, 1e-12);
+        double latScale = (HILBERT_SIDE - 1) / Math.max(maxLat - minLat, 1e-12);
+        /* Sort (curve index, position) pairs packed into longs, so no boxing is needed. */
+        long[] keys = new long[nodes.length];
+        for (int i = 0; i < nodes.length; i += 1) {
+            int x = (int) ((nodes[i].lon(store) - minLon) * lonScale);
+            int y = (int) ((nodes[i].lat(store) - minLat) * latScale);
+            keys[i] = (hilbertIndex(x, y) << 32) | i;
+        }
+        Arrays.sort(keys);
+        GraphDB.Node[] sorted = new GraphDB.Node[nodes.length];
+        for (int i = 0; i < nodes.length; i += 1) {
+            sorted[i] = nodes[(int) keys[i]];
+        }
+        return sorted;
+    }
+
+    /** Distance of cell (x, y) along the Hilbert curve filling a HILBERT_SIDE square. */
+    static long hilbertIndex(int x, int y) {
+        long d = 0;
+        for (int s = HILBERT_SIDE / 2; s > 0; s /= 2) {
+            int rx = (x & s) > 0 ? 1 : 0;
+            int ry = (y & s) > 0 ? 1 : 0;
+            d += (long) s * s * ((3 * rx) ^ ry);
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = s - 1 - x;
+                    y = s - 1 - y;
+                }
+                int swap = x;
+                x = y;
+                y = swap;
+            }
+        }
+        return d;
+    }
+
+    /**
+     * Returns the speed limit, in mph, given by an OSM maxspeed value such as "25 mph",
+     * "40" (km/h, the OSM default unit) or "50 km/h". Values without a leading number
+     * ("none", "signals", ...) fall back to the default for the highway class.
+     */
+    static double speedMph(String maxSpeed, String highway) {
+        if (maxSpeed != null) {
+            int end = 0;
+            while (end < maxSpeed.length()
+                    && (Character.isDigit(maxSpeed.charAt(end)) || maxSpeed.charAt(end) == '.')) {
+                end += 1;
+            }
+            if (end > 0) {
+                try {
+                    double value = Double.parseDouble(maxSpeed.substring(0, end));
+                    if (value > 0) {
+                        return maxSpeed.contains("mph") ? value : value * KMH_TO_MPH;
+                    }
+                } catch (NumberFormatException e) {
+                    // fall through to the highway default
+                }
+            }
+        }
+        Double speed = highway == null ? null : DEFAULT_SPEEDS.get(highway);
+        return speed == null ? FALLBACK_SPEED : speed;
+    }
+
+    /** Overlapping ways can repeat a segment; keep only the first edge between two vertices. */
+    private static boolean duplicate(int[] targets, int from, int to, int target) {
+        for (int i = from; i < to; i += 1) {
+            if (targets[i] == target) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean duplicate(Pages.Ints targets, int from, int to, int target) {
+        for (int i = from; i < to; i += 1) {
+            if (targets.get(i) == target) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Resolves the parsed way-level restrictions through the given vias to forbidden edge
+     * pairs. A "no_" restriction forbids the turns from fromWay onto toWay; an "only_"
+     * restriction forbids every other turn out of fromWay at that node. A restriction whose
+     * from and to ways are the same is a U-turn ban and only forbids turning back onto the edge
+     * that was just driven.
+     *
+     * @return {sorted keys, matching to-edges}.
+     */
+    private long[][] resolveTurns(List<Integer> vias) {
+        int count = 0;
+        long[] keys = new long[16];
+        long[] tos = new long[16];
+        for (int via : vias) {
+            List<GraphDB.TurnRestriction> through = restrictionsByVia.get(osmId(via));
+            if (through == null) {
+                continue;
+            }
+            for (GraphDB.TurnRestriction r : through) {
+                for (int i = firstIn(via); i < endIn(via); i += 1) {
+                    int from = inEdge(i);
+                    if (way(from) != r.fromWay) {
+                        continue;
+                    }
+                    for (int to = firstEdge(via); to < endEdge(via); to += 1) {
+                        boolean forbidden;
+                        if (r.only) {
+                            forbidden = way(to) != r.toWay;
+                        } else if (r.fromWay == r.toWay) {
+                            forbidden = target(to) == source(i);
+                        } else {
+                            forbidden = way(to) == r.toWay;
+                        }
+                        if (!forbidden) {
+                            continue;
+                        }
+                        if (count == keys.length) {
+                            keys = Arrays.copyOf(keys, count * 2);
+                            tos = Arrays.copyOf(tos, count * 2);
+                        }
+                        keys[count] = key(via, from);
+                        tos[count] = to;
+                        count += 1;
+                    }
+                }
+            }
+        }
+        /* Sort by (key, to) through a combined index; the table is small. */
+        Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i += 1) {
+            order[i] = i;
+        }
+        final long[] k = keys;
+        final long[] t = tos;
+        Arrays.sort(order, (a, b) -> k[a] != k[b] ? Long.compare(k[a], k[b])
+                : Long.compare(t[a], t[b]));
+        long[] sortedKeys = new long[count];
+        long[] sortedTos = new long[count];
+        for (int i = 0; i < count; i += 1) {
+            sortedKeys[i] = keys[order[i]];
+            sortedTos[i] = tos[order[i]];
+        }
+        return new long[][] {sortedKeys, sortedTos};
+    }
+
+    /** Key of the restriction table entries for turns out of fromEdge at via. */
+    static long key(int via, int fromEdge) {
+        return ((long) via << 32) | (fromEdge & 0xffffffffL);
+    }
+
+    /** Number of vertex ids, including those of vertices removed by a change. */
+    int size() {
+        return osmIds.size();
+    }
+
+    /** Number of edge ids, including those of edges replaced by a change. */
+    int edgeCount() {
+        return edgeTarget.size();
+    }
+
+    /** Number of backward entry ids, including those a change left unused. */
+    int inCount() {
+        return inSource.size();
+    }
+
+    long osmId(int v) {
+        return osmIds.get(v);
+    }
+
+    /** First of the edges leaving v; they are firstEdge(v) .. endEdge(v) - 1. */
+    int firstEdge(int v) {
+        return edgeFirst.get(v);
+    }
+
+    int endEdge(int v) {
+        return edgeEnd.get(v);
+    }
+
+    int target(int e) {
+        return edgeTarget.get(e);
+    }
+
+    /** Length of edge e in miles. */
+    double length(int e) {
+        return edgeLength.get(e);
+    }
+
+    /** Driving time of edge e in seconds. */
+    double time(int e) {
+        return edgeTime.get(e);
+    }
+
+    /** OSM id of the way edge e belongs to. */
+    long way(int e) {
+        return edgeWay.get(e);
+    }
+
+    /** First backward entry of v; source(i) and inEdge(i) for i in firstIn(v) .. endIn(v) - 1. */
+    int firstIn(int v) {
+        return inFirst.get(v);
+    }
+
+    int endIn(int v) {
+        return inEnd.get(v);
+    }
+
+    /** The vertex backward entry i comes from. */
+    int source(int i) {
+        return inSource.get(i);
+    }
+
+    /** The forward edge of backward entry i. */
+    int inEdge(int i) {
+        return inEdge.get(i);
+    }
+
+    /** True for vertices without edges either way, which only removed vertices are. */
+    boolean isolated(int v) {
+        return edgeFirst.get(v) == edgeEnd.get(v) && inFirst.get(v) == inEnd.get(v);
+    }
+
+    /** Returns the dense ids of the vertices of an OSM way, or an empty array. */
+    int[] wayVertices(long way) {
+        int[] changed = changedWays.get(way);
+        if (changed != null) {
+            return changed;
+        }
+        int i = Arrays.binarySearch(ways, way);
+        return i < 0 ? new int[0] : Arrays.copyOfRange(wayVertices, wayStart[i], wayStart[i + 1]);
+    }
+
+    boolean hasTurnRestrictions() {
+        return restrictionKey.length > 0 || patchedKey.length > 0;
+    }
+
+    /**
+     * Returns true if driving fromEdge into via and then leaving on toEdge is forbidden.
+     * fromEdge must be an edge whose target is via.
+     */
+    boolean isRestricted(int via, int fromEdge, int toEdge) {
+        if (patchedVias.length > 0 && Arrays.binarySearch(patchedVias, via) >= 0) {
+            return isRestricted(patchedKey, patchedTo, key(via, fromEdge), toEdge);
+        }
+        return isRestricted(restrictionKey, restrictionTo, key(via, fromEdge), toEdge);
+    }
+
+    /**
+     * Looks key and toEdge up in a restriction table: keys sorted ascending, and tos the
+     * forbidden to-edge of each entry. TiledGraph keeps its tiles' restrictions the same way.
+     */
+    static boolean isRestricted(long[] keys, int[] tos, long key, int toEdge) {
+        int lo = 0, hi = keys.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid] < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        for (int i = lo; i < keys.length && keys[i] == key; i += 1) {
+            if (tos[i] == toEdge) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Returns the dense id of the vertex with the given OSM id, or -1 if it is not a vertex. */
+    int denseId(long osmId) {
+        int v = -1;
+        int i = addedIds.length > 0 ? Arrays.binarySearch(addedIds, osmId) : -1;
+        if (i >= 0) {
+            v = addedDense[i];
+        } else {
+            i = Arrays.binarySearch(sortedIds, osmId);
+            v = i < 0 ? -1 : sortedDense[i];
+        }
+        /* A removed vertex keeps its id, and one added again later gets a new one. */
+        return v < 0 || derived && isolated(v) ? -1 : v;
+    }
+
+    double lon(int v) {
+        return coordinates.lon(v);
+    }
+
+    double lat(int v) {
+        return coordinates.lat(v);
+    }
+
+    /** Great-circle distance in miles between two dense vertices. */
+    double distance(int v, int w) {
+        return GraphDB.distance(lon(v), lat(v), lon(w), lat(w));
+    }
+
+    /** The grid has these where they were when it was built, or not at all. */
+    private IntPredicate notInGrid() {
+        if (!derived) {
+            return v -> false;
+        }
+        return v -> isolated(v) || relocated.length > 0 && Arrays.binarySearch(relocated, v) >= 0;
+    }
+
+    /** Returns the vertex closest to (lon, lat), or -1 if the graph is empty. */
+    int nearest(double lon, double lat) {
+        int best = grid.nearest(coordinates, lon, lat, notInGrid());
+        double bestDist = best < 0 ? Double.POSITIVE_INFINITY
+                : GraphDB.distance(lon, lat, lon(best), lat(best));
+        for (int v : relocated) {
+            if (isolated(v)) {
+                continue;
+            }
+            double d = GraphDB.distance(lon, lat, lon(v), lat(v));
+            if (d < bestDist || (d == bestDist && v < best)) {
+                bestDist = d;
+                best = v;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Calls action with every vertex inside the box whose corners are (ullon, ullat) and
+     * (lrlon, lrlat), using the spatial grid.
+     */
+    void within(double ullon, double ullat, double lrlon, double lrlat, IntConsumer action) {
+        grid.within(coordinates, ullon, ullat, lrlon, lrlat, notInGrid(), action);
+        for (int v : relocated) {
+            double lon = lon(v);
+            double lat = lat(v);
+            if (!isolated(v) && lon >= ullon && lon <= lrlon && lat <= ullat && lat >= lrlat) {
+                action.accept(v);
+            }
+        }
+    }
+
+    /** Returns up to k vertices within maxMiles of (lon, lat), closest first. */
+    int[] nearest(double lon, double lat, int k, double maxMiles) {
+        int[] found = grid.nearest(coordinates, lon, lat, k, maxMiles, notInGrid());
+        if (relocated.length == 0) {
+            return found;
+        }
+        int[] all = Arrays.copyOf(found, found.length + relocated.length);
+        int count = found.length;
+        for (int v : relocated) {
+            if (!isolated(v) && GraphDB.distance(lon, lat, lon(v), lat(v)) <= maxMiles) {
+                all[count++] = v;
+            }
+        }
+        double[] dists = new double[count];
+        for (int i = 0; i < count; i += 1) {
+            dists[i] = GraphDB.distance(lon, lat, lon(all[i]), lat(all[i]));
+        }
+        int take = Math.min(k, count);
+        for (int i = 0; i < take; i += 1) {
+            int min = i;
+            for (int j = i + 1; j < count; j += 1) {
+                if (dists[j] < dists[min]) {
+                    min = j;
+                }
+            }
+            int tv = all[i];
+            all[i] = all[min];
+            all[min] = tv;
+            double td = dists[i];
+            dists[i] = dists[min];
+            dists[min] = td;
+        }
+        return Arrays.copyOf(all, take);
+    }
+}
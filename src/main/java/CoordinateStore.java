@@ -0,0 +1,123 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Coordinates of a graph's vertices, packed as pairs of ints in units of 1e-7 degrees (the
+ * precision OSM itself stores) instead of two doubles per vertex. While a file is parsed, a
+ * Node keeps only its slot here; CompactGraph then keeps the road vertices in a store of its
+ * own, at slot v for dense id v. lat()/lon() decode on access.
+ * <p>
+ * The pairs live in ByteBuffers of Pages.PAGE_SIZE slots each. Off heap (direct buffers)
+ * they cost the garbage collector nothing to trace or copy, and they do not count against
+ * -Xmx; they are bounded by -XX:MaxDirectMemorySize instead. On heap they are byte[]s; either
+ * way there are 8 bytes per vertex instead of 16 bytes inside every Node.
+ * <p>
+ * copy() starts a store for a new version of the graph that shares every page with this one
+ * and copies a page only when one of its slots is set; it keeps no reference to this store.
+ * Slots are appended or set from one thread while the store is filled; afterwards it is only
+ * read and may be shared between threads.
+ */
+final class CoordinateStore {
+    /** Fixed-point units per degree. */
+    static final double SCALE = 1e7;
+    private static final int SLOT_BYTES = 8;
+    private static final int PAGE_BYTES = Pages.PAGE_SIZE * SLOT_BYTES;
+
+    private final boolean offHeap;
+    private ByteBuffer[] pages;
+    /** Whether page p belongs to this store and may be written in place. */
+    private boolean[] owned;
+    private int size;
+
+    CoordinateStore(boolean offHeap) {
+        this(offHeap, Pages.PAGE_SIZE);
+    }
+
+    CoordinateStore(boolean offHeap, int capacity) {
+        this.offHeap = offHeap;
+        this.pages = new ByteBuffer[Math.max(1, (capacity + Pages.PAGE_SIZE - 1)
+                >>> Pages.PAGE_BITS)];
+        this.owned = new boolean[pages.length];
+    }
+
+    private CoordinateStore(CoordinateStore from) {
+        this.offHeap = from.offHeap;
+        this.pages = from.pages.clone();
+        this.owned = new boolean[pages.length];
+        this.size = from.size;
+    }
+
+    private ByteBuffer allocate() {
+        ByteBuffer b = offHeap ? ByteBuffer.allocateDirect(PAGE_BYTES)
+                : ByteBuffer.allocate(PAGE_BYTES);
+        return b.order(ByteOrder.nativeOrder());
+    }
+
+    /** Returns a store with the same coordinates that shares this one's pages. */
+    CoordinateStore copy() {
+        return new CoordinateStore(this);
+    }
+
+    /** Stores a coordinate and returns its slot. */
+    int add(double lon, double lat) {
+        set(size, lon, lat);
+        return size - 1;
+    }
+
+    /** Stores a coordinate at slot, which may be at most size(); the store grows by one then. */
+    void set(int slot, double lon, double lat) {
+        int p = slot >>> Pages.PAGE_BITS;
+        if (p >= pages.length) {
+            pages = Arrays.copyOf(pages, Math.max(p + 1, 2 * pages.length));
+            owned = Arrays.copyOf(owned, pages.length);
+        }
+        if (pages[p] == null) {
+            pages[p] = allocate();
+        } else if (!owned[p]) {
+            ByteBuffer from = pages[p].duplicate();
+            from.clear();
+            ByteBuffer page = allocate();
+            page.put(from);
+            pages[p] = page;
+        }
+        owned[p] = true;
+        int offset = (slot & (Pages.PAGE_SIZE - 1)) * SLOT_BYTES;
+        pages[p].putInt(offset, encode(lon));
+        pages[p].putInt(offset + 4, encode(lat));
+        size = Math.max(size, slot + 1);
+    }
+
+    double lon(int slot) {
+        return pages[slot >>> Pages.PAGE_BITS]
+                .getInt((slot & (Pages.PAGE_SIZE - 1)) * SLOT_BYTES) / SCALE;
+    }
+
+    double lat(int slot) {
+        return pages[slot >>> Pages.PAGE_BITS]
+                .getInt((slot & (Pages.PAGE_SIZE - 1)) * SLOT_BYTES + 4) / SCALE;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /** Bytes reserved for the coordinates, including room left for growth. */
+    long capacityBytes() {
+        long bytes = 0;
+        for (ByteBuffer page : pages) {
+            if (page != null) {
+                bytes += page.capacity();
+            }
+        }
+        return bytes;
+    }
+
+    static int encode(double degrees) {
+        return (int) Math.round(degrees * SCALE);
+    }
+}
@@ -0,0 +1,300 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Live closures and penalties layered over the static edge weights of a CompactGraph, so a
+ * street can be shut for an event without editing the OSM file and reparsing it.
+ * <p>
+ * Rules are kept per way id or per bounding box. Whenever they change, the overlay recomputes a
+ * single double[] of per-edge multipliers (1 = unchanged, +infinity = closed) and publishes it
+ * through a volatile field. Searches read that array once when they start, so a query always
+ * sees one consistent set of rules and never takes a lock, while updates take effect for every
+ * query that starts after them. Only the edges of the ruled ways and of the vertices the
+ * spatial grid finds in the boxes are visited, so an update costs a pass over the array plus
+ * the size of its rules. Listeners are called after the lock is released, so a slow listener
+ * never holds up other updates.
+ * <p>
+ * A multiplier must be at least 1, or +infinity to close: the A* heuristics assume no edge
+ * gets cheaper than its static weight. Anything else, NaN included, is refused.
+ */
+public class EdgeOverlay {
+    private final CompactGraph c;
+    private final Map<Long, Double> wayFactors = new LinkedHashMap<>();
+    private final Map<Integer, Box> boxes = new LinkedHashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private int nextBoxId = 1;
+    /** Per-edge multipliers, or null when no rule is active. Replaced, never mutated. */
+    private volatile double[] factors;
+    private volatile long version;
+
+    EdgeOverlay(CompactGraph c) {
+        this.c = c;
+    }
+
+    /** Callback for caches that hold results computed under the previous multipliers. */
+    public interface Listener {
+        /**
+         * Called after the multipliers change.
+         *
+         * @param worse  Ids of edges that became more expensive or were closed. A cached route
+         *               is stale if it uses any of them.
+         * @param better Ids of edges that became cheaper or were reopened. Any cached route
+         *               may now have a better alternative if this is non-empty.
+         */
+        void overlayChanged(BitSet worse, BitSet better);
+    }
+
+    /** A rectangular area in which every edge touching the area gets the same multiplier. */
+    static class Box {
+        final double ullon, ullat, lrlon, lrlat;
+        final double factor;
+
+        Box(double ullon, double ullat, double lrlon, double lrlat, double factor) {
+            this.ullon = ullon;
+            this.ullat = ullat;
+            this.lrlon = lrlon;
+            this.lrlat = lrlat;
+            this.factor = factor;
+        }
+
+        boolean contains(double lon, double lat) {
+            return lon >= ullon && lon <= lrlon && lat <= ullat && lat >= lrlat;
+        }
+    }
+
+    /** The edges whose multiplier went up or down in one update. */
+    private static final class Change {
+        final BitSet worse;
+        final BitSet better;
+
+        Change(BitSet worse, BitSet better) {
+            this.worse = worse;
+            this.better = better;
+        }
+    }
+
+    /**
+     * Returns the current per-edge multipliers, indexed by edge id, or null if no closure or
+     * penalty is active. The returned array must not be modified.
+     */
+    double[] factors() {
+        return factors;
+    }
+
+    /** Incremented every time the multipliers change. */
+    public long version() {
+        return version;
+    }
+
+    /**
+     * Registers a callback run after every change with the edges whose multiplier changed,
+     * so caches can drop exactly the routes that are affected.
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /** Closes every edge of the way. */
+    public void closeWay(long way) {
+        penalizeWay(way, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Multiplies the weight of every edge of the way by factor (+infinity closes it).
+     *
+     * @throws IllegalArgumentException if factor is not at least 1.
+     */
+    public void penalizeWay(long way, double factor) {
+        checkFactor(factor);
+        Change change;
+        synchronized (this) {
+            wayFactors.put(way, factor);
+            change = rebuild();
+        }
+        notifyListeners(change);
+    }
+
+    /** Removes the closure or penalty of a way. Returns false if it had none. */
+    public boolean reopenWay(long way) {
+        Change change;
+        synchronized (this) {
+            if (wayFactors.remove(way) == null) {
+                return false;
+            }
+            change = rebuild();
+        }
+        notifyListeners(change);
+        return true;
+    }
+
+    /**
+     * Multiplies the weight of every edge with an end inside the box by factor (+infinity
+     * closes them).
+     *
+     * @return An id for removing the rule again.
+     * @throws IllegalArgumentException if factor is not at least 1.
+     */
+    public int penalizeBox(double ullon, double ullat, double lrlon, double lrlat,
+                           double factor) {
+        checkFactor(factor);
+        int id;
+        Change change;
+        synchronized (this) {
+            id = nextBoxId;
+            nextBoxId += 1;
+            boxes.put(id, new Box(ullon, ullat, lrlon, lrlat, factor));
+            change = rebuild();
+        }
+        notifyListeners(change);
+        return id;
+    }
+
+    /** Removes a box rule. Returns false if there is no rule with that id. */
+    public boolean removeBox(int id) {
+        Change change;
+        synchronized (this) {
+            if (boxes.remove(id) == null) {
+                return false;
+            }
+            change = rebuild();
+        }
+        notifyListeners(change);
+        return true;
+    }
+
+    /** Removes every rule. */
+    public void clear() {
+        Change change;
+        synchronized (this) {
+            wayFactors.clear();
+            boxes.clear();
+            change = rebuild();
+        }
+        notifyListeners(change);
+    }
+
+    /** Throws IllegalArgumentException unless factor is a valid multiplier. */
+    static void checkFactor(double factor) {
+        if (!(factor >= 1)) {
+            throw new IllegalArgumentException("factor must be at least 1");
+        }
+    }
+
+    /**
+     * Replaces this overlay's rules with those of another, e.g. of the version of the graph
+     * this one replaces. Way rules apply to the same way ids and boxes to the same areas.
+     */
+    public void copyRules(EdgeOverlay other) {
+        Map<Long, Double> ways;
+        Map<Integer, Box> areas;
+        int next;
+        synchronized (other) {
+            ways = new LinkedHashMap<>(other.wayFactors);
+            areas = new LinkedHashMap<>(other.boxes);
+            next = other.nextBoxId;
+        }
+        Change change;
+        synchronized (this) {
+            wayFactors.clear();
+            wayFactors.putAll(ways);
+            boxes.clear();
+            boxes.putAll(areas);
+            nextBoxId = next;
+            change = rebuild();
+        }
+        notifyListeners(change);
+    }
+
+    /** Returns the active rules as maps suitable for a Json response. */
+    public synchronized List<Map<String, Object>> rules() {
+        List<Map<String, Object>> rules = new ArrayList<>();
+        for (Map.Entry<Long, Double> rule : wayFactors.entrySet()) {
+            Map<String, Object> r = new LinkedHashMap<>();
+            r.put("way", rule.getKey());
+            r.put("factor", describe(rule.getValue()));
+            rules.add(r);
+        }
+        for (Map.Entry<Integer, Box> rule : boxes.entrySet()) {
+            Box b = rule.getValue();
+            Map<String, Object> r = new LinkedHashMap<>();
+            r.put("box", rule.getKey());
+            r.put("ullon", b.ullon);
+            r.put("ullat", b.ullat);
+            r.put("lrlon", b.lrlon);
+            r.put("lrlat", b.lrlat);
+            r.put("factor", describe(b.factor));
+            rules.add(r);
+        }
+        return rules;
+    }
+
+    private static Object describe(double factor) {
+        return factor == Double.POSITIVE_INFINITY ? "closed" : (Object) factor;
+    }
+
+    /**
+     * Recomputes the multipliers from the rules and publishes them. Returns the edges that
+     * changed, for the caller to pass to the listeners once it has released the lock.
+     */
+    private Change rebuild() {
+        int m = c.edgeCount();
+        double[] next = null;
+        if (!wayFactors.isEmpty() || !boxes.isEmpty()) {
+            next = new double[m];
+            /* Ids a change to the graph left unused stay at 1, so they never count as better. */
+            Arrays.fill(next, 1);
+            for (Map.Entry<Long, Double> rule : wayFactors.entrySet()) {
+                long way = rule.getKey();
+                double factor = rule.getValue();
+                for (int v : c.wayVertices(way)) {
+                    for (int e = c.firstEdge(v); e < c.endEdge(v); e += 1) {
+                        if (c.way(e) == way) {
+                            next[e] = factor;
+                        }
+                    }
+                }
+            }
+            double[] factors = next;
+            for (Box b : boxes.values()) {
+                c.within(b.ullon, b.ullat, b.lrlon, b.lrlat, v -> {
+                    for (int e = c.firstEdge(v); e < c.endEdge(v); e += 1) {
+                        factors[e] = Math.max(factors[e], b.factor);
+                    }
+                    for (int i = c.firstIn(v); i < c.endIn(v); i += 1) {
+                        int e = c.inEdge(i);
+                        factors[e] = Math.max(factors[e], b.factor);
+                    }
+                });
+            }
+        }
+        double[] previous = factors;
+        BitSet worse = new BitSet(m);
+        BitSet better = new BitSet(m);
+        for (int e = 0; e < m; e += 1) {
+            double before = previous == null ? 1 : previous[e];
+            double after = next == null ? 1 : next[e];
+            if (after > before) {
+                worse.set(e);
+            } else if (after < before) {
+                better.set(e);
+            }
+        }
+        factors = next;
+        version += 1;
+        return new Change(worse, better);
+    }
+
+    private void notifyListeners(Change change) {
+        if (change.worse.isEmpty() && change.better.isEmpty()) {
+            return;
+        }
+        for (Listener listener : listeners) {
+            listener.overlayChanged(change.worse, change.better);
+        }
+    }
+}
@@ -2,8 +2,8 @@ import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -40,11 +40,20 @@ public class GraphBuildingHandler extends DefaultHandler {
     private static String tempWayID;
     private static String waySpeed;
     private static String wayName;
+    private static String wayHighway;
     private static boolean valid;
-    private static HashMap<Long, Long> tempEdgeList = new HashMap<>();
     private static Long lastNodeID;
     private final GraphDB g;
     private String activeState = "";
+    /** Node refs of the way being parsed, in the order they appear (and may be driven). */
+    private ArrayList<Long> wayNodes = new ArrayList<>();
+    /** 1 if the way may only be driven in node order, -1 if only against it, 0 if both. */
+    private int wayDirection;
+    private boolean wayRoundabout;
+    private boolean wayTwoWay;
+    /** Members and tags of the turn restriction relation being parsed. */
+    private Long restrictionFrom, restrictionVia, restrictionTo;
+    private String restrictionType;
 
     /**
      * Create a new GraphBuildingHandler.
@@ -85,7 +94,8 @@ public class GraphBuildingHandler extends DefaultHandler {
             String name = attributes.getValue("name");
             // Put the node into the nodeList of the graph
             lastNodeID = Long.parseLong(id);
-            g.nodeList.put(lastNodeID, g.new Node(lat, lon, id, name));
+            g.nodeList.put(lastNodeID, new GraphDB.Node(lastNodeID, g.coordinates,
+                    Double.parseDouble(lon), Double.parseDouble(lat), name));
         } else if (qName.equals("way")) {
             activeState = "way";
             // lastNode is now null, assign the temporary Way's ID for future assignment to edges
@@ -94,16 +104,8 @@ public class GraphBuildingHandler extends DefaultHandler {
         } else if (activeState.equals("way") && qName.equals("nd")) {
             /* While looking at a way, we found a <nd...> tag. */
             //System.out.println("Id of a node in this way: " + attributes.getValue("ref"));
-            // Use provided ID to search and assign tempNode
-            Long tempNodeID = Long.parseLong(attributes.getValue("ref"));
-            // Assign lastNode to this node
-            if (lastNodeID == null) {
-                lastNodeID = tempNodeID;
-            } else {
-                tempEdgeList.put(tempNodeID, lastNodeID);
-                tempEdgeList.put(lastNodeID, tempNodeID);
-                lastNodeID = tempNodeID;
-            }
+            // Remember the node in way order; one-way streets need to know which end is which
+            wayNodes.add(Long.parseLong(attributes.getValue("ref")));
             /* */
             /* Hint1: It would be useful to remember what was the last node in this way. */
             /* Hint2: Not all ways are valid. So, directly connecting the nodes here would be
@@ -124,12 +126,42 @@ public class GraphBuildingHandler extends DefaultHandler {
                 /* Hint: Setting a "flag" is good enough! */
                 if (ALLOWED_HIGHWAY_TYPES.contains(v)) {
                     valid = true;
+                    wayHighway = v;
                 }
             } else if (k.equals("name")) {
                 //System.out.println("Way Name: " + v);
                 wayName = v;
+            } else if (k.equals("oneway")) {
+                if (v.equals("yes") || v.equals("true") || v.equals("1")) {
+                    wayDirection = 1;
+                } else if (v.equals("-1") || v.equals("reverse")) {
+                    wayDirection = -1;
+                } else if (v.equals("no")) {
+                    wayTwoWay = true;
+                }
+            } else if (k.equals("junction") && v.equals("roundabout")) {
+                wayRoundabout = true;
             }
 //            System.out.println("Tag with k=" + k + ", v=" + v + ".");
+        } else if (qName.equals("relation")) {
+            activeState = "relation";
+        } else if (activeState.equals("relation") && qName.equals("member")) {
+            /* Only node-via restrictions are supported; via-way restrictions are ignored. */
+            String role = attributes.getValue("role");
+            String type = attributes.getValue("type");
+            Long ref = Long.parseLong(attributes.getValue("ref"));
+            if (role.equals("from") && type.equals("way")) {
+                restrictionFrom = ref;
+            } else if (role.equals("to") && type.equals("way")) {
+                restrictionTo = ref;
+            } else if (role.equals("via") && type.equals("node")) {
+                restrictionVia = ref;
+            }
+        } else if (activeState.equals("relation") && qName.equals("tag")) {
+            String k = attributes.getValue("k");
+            if (k.equals("restriction") || k.equals("restriction:motorcar")) {
+                restrictionType = attributes.getValue("v");
+            }
         } else if (activeState.equals("node") && qName.equals("tag") && attributes.getValue("k")
                 .equals("name")) {
             /* While looking at a node, we found a <tag...> with k="name". */
@@ -174,34 +206,55 @@ public class GraphBuildingHandler extends DefaultHandler {
             // If the way is valid, iterate through the temporary edges and add them
             // to the graph's EdgeList and add edge to node mappings to each node
 
+            // Roundabouts are one-way in node order unless explicitly tagged otherwise
+            if (wayRoundabout && wayDirection == 0 && !wayTwoWay) {
+                wayDirection = 1;
+            }
             if (valid) {
-                for (Long startNodeID : tempEdgeList.keySet()) {
-                    Long endNodeID = tempEdgeList.get(startNodeID);
+                for (int i = 1; i < wayNodes.size(); i += 1) {
+                    Long startNodeID = wayNodes.get(i - 1);
+                    Long endNodeID = wayNodes.get(i);
                     GraphDB.Node startNode = g.nodeList.get(startNodeID);
                     GraphDB.Node endNode = g.nodeList.get(endNodeID);
 
-                    GraphDB.Edge startFacingTempEdge = g.new Edge(tempWayID,
+                    GraphDB.Edge startFacingTempEdge = g.newEdge(tempWayID,
                             startNodeID, endNodeID);
-                    GraphDB.Edge endFacingTempEdge = g.new Edge(tempWayID, endNodeID, startNodeID);
+                    GraphDB.Edge endFacingTempEdge = g.newEdge(tempWayID, endNodeID, startNodeID);
 
                     startFacingTempEdge.maxSpeed = waySpeed;
                     startFacingTempEdge.name = wayName;
+                    startFacingTempEdge.highway = wayHighway;
+                    startFacingTempEdge.traversable = wayDirection >= 0;
                     endFacingTempEdge.maxSpeed = waySpeed;
                     endFacingTempEdge.name = wayName;
+                    endFacingTempEdge.highway = wayHighway;
+                    endFacingTempEdge.traversable = wayDirection <= 0;
 
                     startNode.edgesToNeighbors.add(startFacingTempEdge);
                     endNode.edgesToNeighbors.add(endFacingTempEdge);
-
-                    g.nodeList.put(startNodeID, startNode);
-                    g.nodeList.put(endNodeID, endNode);
                 }
             }
             lastNodeID = null;
-            tempEdgeList = new HashMap<>();
+            wayNodes = new ArrayList<>();
             tempWayID = null;
             valid = false;
             wayName = null;
             waySpeed = null;
+            wayHighway = null;
+            wayDirection = 0;
+            wayRoundabout = false;
+            wayTwoWay = false;
+        } else if (qName.equals("relation")) {
+            if (restrictionType != null && restrictionFrom != null && restrictionVia != null
+                    && restrictionTo != null) {
+                g.turnRestrictions.add(new GraphDB.TurnRestriction(restrictionFrom,
+                        restrictionVia, restrictionTo, restrictionType.startsWith("only_")));
+            }
+            activeState = "";
+            restrictionFrom = null;
+            restrictionVia = null;
+            restrictionTo = null;
+            restrictionType = null;
         }
     }
 }
@@ -7,7 +7,14 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
 
 /**
  * Graph for storing all of the intersection (vertex) and road (edge) information.
@@ -24,7 +31,38 @@ public class GraphDB {
      * creating helper classes, e.g. Node, Edge, etc.
      */
 
+    /**
+     * Whether node coordinates are kept off heap; -Dbmaps.offHeapCoordinates=true turns it on
+     * for extracts large enough that the collector notices the nodes.
+     */
+    static final boolean OFF_HEAP_COORDINATES = Boolean.getBoolean("bmaps.offHeapCoordinates");
+    /** Source of version numbers; every graph, parsed or derived, gets a new one. */
+    private static final AtomicLong VERSIONS = new AtomicLong();
+
+    /** Identifies this snapshot of the map data, e.g. for caches keyed on it. */
+    private final long version = VERSIONS.incrementAndGet();
+
+    /**
+     * The parsed nodes and their edges; only kept until build(), after which compact holds the
+     * graph and this is null. While a change is applied it holds only the nodes it touched.
+     */
     LinkedHashMap<Long, Node> nodeList = new LinkedHashMap<>();
+    /** Fixed-point coordinates of the nodes in nodeList, addressed by Node.slot; also dropped. */
+    CoordinateStore coordinates;
+    /** The version a change is applied to, until build(); null for a parsed graph. */
+    private GraphDB base;
+    /** OSM ids of base's vertices the change removed. */
+    private Set<Long> removed;
+    /** The nodes of every way the change created, modified or deleted. */
+    private Map<Long, Collection<Long>> changedWays;
+    /** Turn restriction relations, as parsed; resolved to edges when compact is built. */
+    ArrayList<TurnRestriction> turnRestrictions = new ArrayList<>();
+    /** The graph itself once parsing is done: the searches' view and the answer to lon(). */
+    private CompactGraph compact;
+    /** Live closures and penalties applied on top of compact's edge weights. */
+    private EdgeOverlay overlay;
+    /** Precomputed shortest-path trees to frequent destinations. */
+    private HotTargets hotTargets;
 
     /**
      * Example constructor shows how to create and start an XML parser.
@@ -33,6 +71,15 @@ public class GraphDB {
      * @param dbPath Path to the XML file to be parsed.
      */
     public GraphDB(String dbPath) {
+        this(dbPath, OFF_HEAP_COORDINATES);
+    }
+
+    /**
+     * @param dbPath              Path to the XML file to be parsed.
+     * @param offHeapCoordinates  Whether node coordinates are stored outside the Java heap.
+     */
+    GraphDB(String dbPath, boolean offHeapCoordinates) {
+        coordinates = new CoordinateStore(offHeapCoordinates);
         try {
             File inputFile = new File(dbPath);
             FileInputStream inputStream = new FileInputStream(inputFile);
@@ -46,6 +93,149 @@ public class GraphDB {
             e.printStackTrace();
         }
         clean();
+        build();
+    }
+
+    /**
+     * Starts a new version of base for OsmChange to edit; base itself is not changed. Base
+     * keeps no nodes once built, so mutableNode() recreates a node from its compact graph the
+     * first time the change touches it, and build() derives the new compact graph from base's
+     * with only those nodes rewritten.
+     */
+    GraphDB(GraphDB base) {
+        this.base = base;
+        turnRestrictions = new ArrayList<>(base.turnRestrictions);
+        coordinates = new CoordinateStore(base.compact.coordinates.isOffHeap());
+        removed = new HashSet<>();
+        changedWays = new HashMap<>();
+    }
+
+    /** Returns an edge from start to end with the way, length and speed of compact edge e. */
+    private static Edge recreate(CompactGraph c, int e, long start, long end,
+                                 boolean traversable) {
+        Edge edge = new Edge(Long.toString(c.way(e)), start, end, c.length(e));
+        edge.speed = c.time(e) > 0 ? c.length(e) / c.time(e) * 3600 : 0;
+        edge.traversable = traversable;
+        return edge;
+    }
+
+    private static boolean hasEdge(CompactGraph c, int v, int w) {
+        for (int e = c.firstEdge(v); e < c.endEdge(v); e += 1) {
+            if (c.target(e) == w) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Builds the search structures once nodeList is complete, then drops the nodes: from here
+     * on the graph lives in compact alone.
+     */
+    void build() {
+        if (base != null) {
+            compact = base.compact.derive(nodeList.values(), coordinates, removed, changedWays);
+            base = null;
+            removed = null;
+            changedWays = null;
+        } else {
+            compact = new CompactGraph(this);
+        }
+        overlay = new EdgeOverlay(compact);
+        hotTargets = new HotTargets(compact, overlay);
+        nodeList = null;
+        coordinates = null;
+    }
+
+    /**
+     * Returns node id of the graph being edited, or null if there is no such node. When a
+     * change is applied, a node of base is recreated with an edge for each direction of every
+     * road through it, as parsing produces them. Only valid before build().
+     */
+    Node mutableNode(long id) {
+        Node node = nodeList.get(id);
+        if (node != null || base == null || removed.contains(id)) {
+            return node;
+        }
+        CompactGraph c = base.compact;
+        int v = c.denseId(id);
+        if (v < 0) {
+            return null;
+        }
+        node = new Node(id, coordinates, c.lon(v), c.lat(v), null);
+        for (int e = c.firstEdge(v); e < c.endEdge(v); e += 1) {
+            node.edgesToNeighbors.add(recreate(c, e, id, c.osmId(c.target(e)), true));
+        }
+        /* Edges into v that cannot be driven back, such as one-way streets, were dropped
+         * from compact but still make the vertices neighbours. */
+        for (int i = c.firstIn(v); i < c.endIn(v); i += 1) {
+            int u = c.source(i);
+            if (!hasEdge(c, v, u)) {
+                node.edgesToNeighbors.add(recreate(c, c.inEdge(i), id, c.osmId(u), false));
+            }
+        }
+        nodeList.put(id, node);
+        return node;
+    }
+
+    /** Adds or replaces a node of the graph being edited. Only valid before build(). */
+    void putNode(Node node) {
+        nodeList.put(node.id, node);
+        if (removed != null) {
+            removed.remove(node.id);
+        }
+    }
+
+    /**
+     * Removes a node from the graph being edited and returns it, or null if there is no such
+     * node. Its neighbours keep their edges to it. Only valid before build().
+     */
+    Node removeNode(long id) {
+        Node node = mutableNode(id);
+        nodeList.remove(id);
+        if (removed != null && node != null) {
+            removed.add(id);
+        }
+        return node;
+    }
+
+    /** Records the nodes a way of the change consists of now; none if it was deleted. */
+    void changeWay(long id, Collection<Long> nodes) {
+        changedWays.put(id, nodes);
+    }
+
+    /** Returns an edge of way id from node start to node end, which must be in nodeList. */
+    Edge newEdge(String id, long start, long end) {
+        Node from = nodeList.get(start);
+        Node to = nodeList.get(end);
+        return new Edge(id, start, end, distance(from.lon(coordinates), from.lat(coordinates),
+                to.lon(coordinates), to.lat(coordinates)));
+    }
+
+    /** Returns the version of the map data this graph holds. */
+    long version() {
+        return version;
+    }
+
+    /**
+     * Returns the dense, array-backed view of this graph.
+     */
+    CompactGraph compact() {
+        return compact;
+    }
+
+    /**
+     * Returns the closures and penalties currently applied to this graph's edges.
+     */
+    EdgeOverlay overlay() {
+        return overlay;
+    }
+
+    /**
+     * Returns the shortest-path trees kept for this graph's most frequent destinations.
+     */
+    HotTargets hotTargets() {
+        return hotTargets;
     }
 
 
@@ -82,8 +272,9 @@ public class GraphDB {
      * @return An iterable of id's of all vertices in the graph.
      */
     Iterable<Long> vertices() {
-        //YOUR CODE HERE, this currently returns only an empty list.
-        return nodeList.keySet();
+        CompactGraph c = compact;
+        return () -> IntStream.range(0, c.size()).filter(v -> !c.isolated(v))
+                .mapToObj(c::osmId).iterator();
     }
 
     /**
@@ -94,17 +285,30 @@ public class GraphDB {
      */
     Iterable<Long> adjacent(long v) {
         ArrayList<Long> rList = new ArrayList<>();
-        Node vNode = nodeList.get(v);
-        for (Edge edge : vNode.edgesToNeighbors) {
-            if (edge.startID == v) {
-                rList.add(edge.endID);
-            } else if (edge.endID == v) {
-                rList.add(edge.startID);
+        CompactGraph c = compact;
+        int dense = vertex(v);
+        /* Neighbours either way: one-way streets only have an edge in one direction. */
+        for (int e = c.firstEdge(dense); e < c.endEdge(dense); e += 1) {
+            rList.add(c.osmId(c.target(e)));
+        }
+        for (int i = c.firstIn(dense); i < c.endIn(dense); i += 1) {
+            int u = c.source(i);
+            if (!hasEdge(c, dense, u)) {
+                rList.add(c.osmId(u));
             }
         }
         return rList;
     }
 
+    /** Returns the dense id of vertex v, which must be in the graph. */
+    private int vertex(long v) {
+        int dense = compact.denseId(v);
+        if (dense < 0) {
+            throw new IllegalArgumentException("No vertex " + v);
+        }
+        return dense;
+    }
+
     /**
      * Returns the great-circle distance between vertices v and w in miles.
      * Assumes the lon/lat methods are implemented properly.
@@ -213,37 +417,8 @@ public class GraphDB {
         */
 
     long closest(double lon, double lat) {
-        Double dist = Double.POSITIVE_INFINITY;
-        Long finalID = (long) -1;
-
-        Node targetNode = new Node(Double.toString(lat), Double.toString(lon), "0", "0");
-        nodeList.put(targetNode.id, targetNode);
-
-        for (Node node : nodeList.values()) {
-            if (!node.id.equals(targetNode.id)) {
-                Double tempDist = distance(node.id, targetNode.id);
-                if (tempDist < dist) {
-                    dist = tempDist;
-                    finalID = node.id;
-                }
-            }
-        }
-        nodeList.remove(targetNode.id);
-        return finalID;
-
-        /*
-        for (Long id : ids) {
-            if (!id.equals(targetNode.id)) {
-                double tempDist = distance(targetNode.id, id);
-                if (tempDist < dist) {
-                    dist = tempDist;
-                    finalID = id;
-                }
-            }
-        }
-        nodeList.remove(targetNode.id);
-        return finalID;
-        */
+        int v = compact.nearest(lon, lat);
+        return v < 0 ? -1 : compact.osmId(v);
     }
 
     /**
@@ -253,7 +428,7 @@ public class GraphDB {
      * @return The longitude of the vertex.
      */
     double lon(long v) {
-        return nodeList.get(v).lon;
+        return compact.lon(vertex(v));
     }
 
     /**
@@ -263,38 +438,82 @@ public class GraphDB {
      * @return The latitude of the vertex.
      */
     double lat(long v) {
-        return nodeList.get(v).lat;
+        return compact.lat(vertex(v));
     }
 
-    class Node {
-        double lat;
-        double lon;
+    /**
+     * A parsed node. Its coordinates are in the CoordinateStore of the graph it was made for,
+     * which is passed in rather than reached through the graph, so that a node does not keep
+     * a graph alive.
+     */
+    static class Node {
+        /** Where this node's coordinates are in its store. */
+        final int slot;
         String name;
-        Long id;
+        final long id;
         ArrayList<Edge> edgesToNeighbors;
 
-        Node(String lat, String lon, String id, String name) {
-            this.lat = Double.parseDouble(lat);
-            this.lon = Double.parseDouble(lon);
+        Node(long id, CoordinateStore store, double lon, double lat, String name) {
+            this.slot = store.add(lon, lat);
             this.name = name;
-            this.id = Long.parseLong(id);
+            this.id = id;
             this.edgesToNeighbors = new ArrayList<>();
         }
+
+        double lat(CoordinateStore store) {
+            return store.lat(slot);
+        }
+
+        double lon(CoordinateStore store) {
+            return store.lon(slot);
+        }
     }
 
-    class Edge {
+    static class Edge {
         String id;
         String name;
         String maxSpeed;
+        /** The highway tag of the way, used for a default speed when maxSpeed is missing. */
+        String highway;
         Long startID;
         Long endID;
         double distance;
-
-        Edge(String id, Long start, Long end) {
+        /** False if this edge runs against the direction of a one-way street. */
+        boolean traversable = true;
+        /**
+         * Speed limit in mph carried over from an earlier version of the graph, whose tags
+         * are gone; 0 to derive it from maxSpeed and highway.
+         */
+        double speed;
+
+        Edge(String id, long start, long end, double distance) {
             this.id = id;
             this.startID = start;
             this.endID = end;
-            this.distance = distance(start, end);
+            this.distance = distance;
+        }
+
+        /** Speed limit in mph to time this edge at. */
+        double speedMph() {
+            return speed > 0 ? speed : CompactGraph.speedMph(maxSpeed, highway);
+        }
+    }
+
+    /**
+     * An OSM turn restriction relation with a single via node: coming from fromWay through
+     * via, turning onto toWay is forbidden, or (if only is set) is the only allowed turn.
+     */
+    static class TurnRestriction {
+        final long fromWay;
+        final long via;
+        final long toWay;
+        final boolean only;
+
+        TurnRestriction(long fromWay, long via, long toWay, boolean only) {
+            this.fromWay = fromWay;
+            this.via = via;
+            this.toWay = toWay;
+            this.only = only;
         }
     }
 
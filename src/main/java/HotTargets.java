@@ -0,0 +1,323 @@
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Complete reverse shortest-path trees for the few destinations most routes go to (campus, BART
+ * stations, the hospital), so that a route to one of them is a walk along parent pointers
+ * instead of an A* search.
+ * <p>
+ * A tree holds, for every vertex, the edge it leaves by on its shortest way to the target
+ * (parent, -1 if the target cannot be reached) and the remaining weight (dist, as a float to
+ * halve the memory of a tree). Targets are either configured up front or detected: every
+ * route to a destination is counted, and one that reaches autoThreshold gets a tree, up to
+ * maxTrees of them. Once there is no room left, a newly hot destination takes the place of the
+ * detected target with the fewest routes, if that has fewer than it. Counts are halved every
+ * autoThreshold * maxTrees routes, so targets that were hot once and are no longer cool off
+ * and can be displaced; configured targets never are.
+ * <p>
+ * Trees are built on a single background thread. A tree remembers the overlay multipliers it
+ * was built under and is only used while they are still current; when closures change, every
+ * tree is rebuilt in the background and routes to the target fall back to A* until the new
+ * tree is published. Trees ignore turn restrictions, so a walked path that breaks one is not
+ * used either.
+ */
+public class HotTargets {
+    /** Default number of routes to a destination before it gets a tree. */
+    static final int AUTO_THRESHOLD =
+            Integer.getInteger("bmaps.hotTargets.threshold", 50);
+    /** Default maximum number of trees kept. */
+    static final int MAX_TREES = Integer.getInteger("bmaps.hotTargets.max", 8);
+
+    private final CompactGraph c;
+    private final EdgeOverlay overlay;
+    private final int autoThreshold;
+    private final int maxTrees;
+    private final Map<Long, Tree> trees = new ConcurrentHashMap<>();
+    /** Routes to each destination, trees or not, halved every agingInterval routes. */
+    private final Map<Long, AtomicInteger> counts = new ConcurrentHashMap<>();
+    private final AtomicInteger routesSinceAging = new AtomicInteger();
+    private final int agingInterval;
+    /** Keys that should have a tree, whether built, queued, or being rebuilt. */
+    private final Set<Long> active = ConcurrentHashMap.newKeySet();
+    /** Keys added with add(), which are never displaced. */
+    private final Set<Long> pinned = ConcurrentHashMap.newKeySet();
+    /** Keys of trees queued for (re)building, so a burst of changes builds each once. */
+    private final Map<Long, Boolean> pending = new ConcurrentHashMap<>();
+    private volatile ExecutorService builder;
+    /** Set once the graph is retired; no tree is built after that. */
+    private volatile boolean closed;
+
+    HotTargets(CompactGraph c, EdgeOverlay overlay) {
+        this(c, overlay, AUTO_THRESHOLD, MAX_TREES);
+    }
+
+    HotTargets(CompactGraph c, EdgeOverlay overlay, int autoThreshold, int maxTrees) {
+        this.c = c;
+        this.overlay = overlay;
+        this.autoThreshold = autoThreshold;
+        this.maxTrees = maxTrees;
+        this.agingInterval = Math.max(1, autoThreshold * maxTrees);
+        overlay.addListener(this::weightsChanged);
+    }
+
+    /** A reverse shortest-path tree to one target under one profile and set of multipliers. */
+    static final class Tree {
+        final int target;
+        final RouteProfile profile;
+        /** The overlay multipliers the tree was built under; compared by identity. */
+        final double[] factors;
+        final int[] parent;
+        final float[] dist;
+
+        Tree(int target, RouteProfile profile, double[] factors, int[] parent, float[] dist) {
+            this.target = target;
+            this.profile = profile;
+            this.factors = factors;
+            this.parent = parent;
+            this.dist = dist;
+        }
+    }
+
+    private static long key(int target, RouteProfile profile) {
+        return (long) target * RouteProfile.values().length + profile.ordinal();
+    }
+
+    /**
+     * Adds a target that always gets a tree for the given profile, whether or not it is
+     * routed to often. The tree is built in the background.
+     */
+    public void add(int target, RouteProfile profile) {
+        long key = key(target, profile);
+        pinned.add(key);
+        active.add(key);
+        schedule(key);
+    }
+
+    /**
+     * Parses targets given as "lon,lat;lon,lat;..." (as in -Dbmaps.hotTargets) and adds the
+     * vertex closest to each for every profile. Malformed entries are skipped.
+     */
+    public void configure(String spec) {
+        if (spec == null) {
+            return;
+        }
+        for (String entry : spec.split(";")) {
+            String[] parts = entry.split(",");
+            if (parts.length != 2) {
+                continue;
+            }
+            try {
+                int v = c.nearest(Double.parseDouble(parts[0].trim()),
+                        Double.parseDouble(parts[1].trim()));
+                if (v >= 0) {
+                    for (RouteProfile profile : RouteProfile.values()) {
+                        add(v, profile);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                // skip the entry
+            }
+        }
+    }
+
+    /**
+     * Counts a route to target and schedules a tree for it once it is hot, displacing the
+     * coldest detected target if there is no room.
+     */
+    void recordDestination(int target, RouteProfile profile) {
+        long key = key(target, profile);
+        int count = counts.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet();
+        if (routesSinceAging.incrementAndGet() >= agingInterval) {
+            age();
+        }
+        if (count >= autoThreshold && !active.contains(key)) {
+            promote(key, count);
+        }
+    }
+
+    private synchronized void promote(long key, int count) {
+        if (closed || active.contains(key)) {
+            return;
+        }
+        if (active.size() >= maxTrees) {
+            long coldest = -1;
+            int coldestCount = Integer.MAX_VALUE;
+            for (long other : active) {
+                AtomicInteger heat = counts.get(other);
+                int otherCount = heat == null ? 0 : heat.get();
+                if (!pinned.contains(other) && otherCount < coldestCount) {
+                    coldest = other;
+                    coldestCount = otherCount;
+                }
+            }
+            if (coldest < 0 || coldestCount >= count) {
+                return;
+            }
+            active.remove(coldest);
+            trees.remove(coldest);
+        }
+        active.add(key);
+        schedule(key);
+    }
+
+    /** Halves every count, forgetting destinations that drop to zero. */
+    private synchronized void age() {
+        if (routesSinceAging.get() < agingInterval) {
+            return;
+        }
+        routesSinceAging.set(0);
+        counts.values().removeIf(heat -> heat.updateAndGet(n -> n / 2) == 0);
+    }
+
+    /**
+     * Returns the route from start to target by walking a current tree, or null if there is
+     * no usable tree: none was built, the multipliers changed since, or the walk breaks a turn
+     * restriction.
+     */
+    Router.Result route(int start, int target, RouteProfile profile, double[] factors) {
+        Tree tree = trees.get(key(target, profile));
+        if (tree == null || tree.factors != factors) {
+            return null;
+        }
+        if (tree.dist[start] == Float.POSITIVE_INFINITY) {
+            return new Router.Result(Router.Status.UNREACHABLE, new ArrayList<>(),
+                    Double.POSITIVE_INFINITY, 1, 0);
+        }
+        boolean restricted = Router.TURN_RESTRICTIONS && c.hasTurnRestrictions();
+        List<Long> path = new ArrayList<>();
+        path.add(c.osmId(start));
+        double cost = 0;
+        int previous = -1;
+        for (int v = start; v != target; ) {
+            int e = tree.parent[v];
+            if (restricted && previous >= 0 && c.isRestricted(v, previous, e)) {
+                return null;
+            }
+            double weight = profile.weight(c, e);
+            cost += factors == null ? weight : weight * factors[e];
+            previous = e;
+            v = c.target(e);
+            path.add(c.osmId(v));
+        }
+        return new Router.Result(Router.Status.FOUND, path, cost, 1, 0);
+    }
+
+    /** Returns true if a tree to target for profile is built and current. */
+    boolean has(int target, RouteProfile profile) {
+        Tree tree = trees.get(key(target, profile));
+        return tree != null && tree.factors == overlay.factors();
+    }
+
+    private void weightsChanged(BitSet worse, BitSet better) {
+        for (Long key : active) {
+            schedule(key);
+        }
+    }
+
+    private void schedule(long key) {
+        if (closed || pending.putIfAbsent(key, Boolean.TRUE) != null) {
+            return;
+        }
+        ExecutorService b = executor();
+        if (b == null) {
+            pending.remove(key);
+            return;
+        }
+        try {
+            b.execute(() -> {
+                pending.remove(key);
+                int target = (int) (key / RouteProfile.values().length);
+                RouteProfile profile =
+                        RouteProfile.values()[(int) (key % RouteProfile.values().length)];
+                if (active.contains(key)) {
+                    trees.put(key, build(target, profile, overlay.factors()));
+                    /* Displaced while building. */
+                    if (!active.contains(key)) {
+                        trees.remove(key);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            /* The graph was retired meanwhile. */
+            pending.remove(key);
+        }
+    }
+
+    private ExecutorService executor() {
+        if (builder == null) {
+            synchronized (this) {
+                if (builder == null && !closed) {
+                    builder = Executors.newSingleThreadExecutor(r -> {
+                        Thread t = new Thread(r, "hot-target-trees");
+                        t.setDaemon(true);
+                        return t;
+                    });
+                }
+            }
+        }
+        return builder;
+    }
+
+    /**
+     * Stops building trees and drops the ones built, once the graph is replaced by a newer
+     * version. Routes already walking a tree keep their reference to it.
+     */
+    void close() {
+        ExecutorService b;
+        synchronized (this) {
+            closed = true;
+            b = builder;
+            builder = null;
+        }
+        if (b != null) {
+            b.shutdownNow();
+        }
+        pending.clear();
+        active.clear();
+        pinned.clear();
+        trees.clear();
+        counts.clear();
+    }
+
+    /** Runs a full Dijkstra from target over the backward edges. */
+    Tree build(int target, RouteProfile profile, double[] factors) {
+        int n = c.size();
+        int[] parent = new int[n];
+        float[] dist = new float[n];
+        SearchState state = new SearchState(n);
+        state.reset();
+        state.relax(target, 0, -1);
+        state.fringe.push(target, 0);
+        while (!state.fringe.isEmpty()) {
+            int w = state.fringe.poll();
+            if (state.isSettled(w)) {
+                continue;
+            }
+            state.settle(w);
+            double d = state.dist(w);
+            for (int i = c.firstIn(w); i < c.endIn(w); i += 1) {
+                int u = c.source(i);
+                int e = c.inEdge(i);
+                double weight = profile.weight(c, e);
+                double nd = d + (factors == null ? weight : weight * factors[e]);
+                if (nd != Double.POSITIVE_INFINITY && !state.isSettled(u)
+                        && state.relax(u, nd, e)) {
+                    state.fringe.push(u, nd);
+                }
+            }
+        }
+        for (int v = 0; v < n; v += 1) {
+            parent[v] = state.reached(v) ? state.parent(v) : -1;
+            dist[v] = (float) state.dist(v);
+        }
+        return new Tree(target, profile, factors, parent, dist);
+    }
+}
@@ -0,0 +1,347 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Snaps a GPS trace onto the road graph using a hidden Markov model decoded with Viterbi, in
+ * the style of Newson and Krumm's "Hidden Markov Map Matching Through Noise and Sparseness".
+ * <p>
+ * Every trace point gets a handful of candidate vertices from the graph's spatial grid, scored
+ * by how far they are from the fix (emission). Moving from a candidate of one point to a
+ * candidate of the next is scored by how much the road distance between them differs from the
+ * straight-line distance between the two fixes (transition), so the matcher prefers
+ * candidates that are actually connected the way the vehicle moved instead of whichever
+ * vertex happens to be nearest.
+ * <p>
+ * Road distances come from small Dijkstra searches bounded by the distance between the fixes.
+ * All of them share one SearchState, so a trace of thousands of points never allocates per-point
+ * search arrays. A match may be given a time budget; the clock is read once per fix and every
+ * Router.CLOCK_CHECK_INTERVAL settled vertices, and a match that runs out of time stops with
+ * status TIMED_OUT. A MapMatcher is not thread-safe.
+ */
+public class MapMatcher {
+    /** Candidates considered per trace point. */
+    static final int MAX_CANDIDATES = 5;
+    /** Radius, in miles, around a fix in which candidates are looked for (about 80m). */
+    static final double CANDIDATE_RADIUS = 0.05;
+    /** Standard deviation of GPS noise plus vertex spacing, in miles (about 20m). */
+    static final double SIGMA = 0.0125;
+    /** Scale of the exponential transition distribution, in miles. */
+    static final double BETA = 0.02;
+    /** Transitions whose road distance exceeds this multiple of the fix distance are dropped. */
+    static final double MAX_DETOUR = 3.0;
+    /** Fixes closer than this to the previous one, in miles, are folded into it. */
+    static final double MIN_FIX_SPACING = 2 * SIGMA;
+
+    private final GraphDB graph;
+    private final CompactGraph g;
+    private final SearchState state;
+    /** The deadline of the current match, if hasDeadline, and whether it has passed. */
+    private long deadline;
+    private boolean hasDeadline;
+    private boolean timedOut;
+
+    public MapMatcher(GraphDB graph) {
+        this.graph = graph;
+        this.g = graph.compact();
+        this.state = new SearchState(g.size());
+    }
+
+    GraphDB graph() {
+        return graph;
+    }
+
+    /**
+     * Result of matching a trace: the vertex each point was snapped to, and the connected
+     * route through those vertices. Both are empty if the match timed out.
+     */
+    public static class Match {
+        /** FOUND, or TIMED_OUT if the time budget ran out. */
+        public final Router.Status status;
+        /** OSM id of the vertex each trace point was matched to, in trace order. */
+        public final long[] matched;
+        /** OSM ids of the route driven through the matched vertices. */
+        public final List<Long> route;
+
+        Match(Router.Status status, long[] matched, List<Long> route) {
+            this.status = status;
+            this.matched = matched;
+            this.route = route;
+        }
+    }
+
+    /**
+     * Returns about the area, in square miles, that matching the first count points of a
+     * trace searches: for each step between fixes, one search per candidate, reaching as far
+     * as the detour bound. For admission control; see AdmissionController.admitArea.
+     */
+    static double searchArea(double[] lons, double[] lats, int count) {
+        double area = 0;
+        for (int t = 1; t < count; t += 1) {
+            double fixDist = GraphDB.distance(lons[t - 1], lats[t - 1], lons[t], lats[t]);
+            double bound = MAX_DETOUR * fixDist + 2 * CANDIDATE_RADIUS;
+            area += MAX_CANDIDATES * bound * bound;
+        }
+        return area;
+    }
+
+    /**
+     * Matches the first count points of a trace, taking as long as it needs.
+     *
+     * @param lons  Longitudes of the fixes, in driving order.
+     * @param lats  Latitudes of the fixes, in driving order.
+     * @param count Number of fixes to use.
+     * @return The matched vertices and the route through them.
+     */
+    public Match match(double[] lons, double[] lats, int count) {
+        return match(lons, lats, count, 0);
+    }
+
+    /**
+     * Like {@link #match(double[], double[], int)}, but gives up after timeoutMillis
+     * milliseconds (0 means no limit) and returns an empty match with status TIMED_OUT.
+     */
+    public Match match(double[] lons, double[] lats, int count, long timeoutMillis) {
+        hasDeadline = timeoutMillis > 0;
+        deadline = System.nanoTime() + timeoutMillis * 1000000L;
+        timedOut = false;
+        if (count == 0 || g.size() == 0) {
+            return new Match(Router.Status.FOUND, new long[0], new ArrayList<>());
+        }
+        /* Fixes closer together than the noise say nothing about where the vehicle went and
+         * only invite the model to bounce between neighbouring vertices, so they are folded
+         * into the previous fix and share its match. */
+        double[] keptLons = new double[count];
+        double[] keptLats = new double[count];
+        int[] keptIndex = new int[count];
+        int kept = 0;
+        for (int t = 0; t < count; t += 1) {
+            if (kept == 0 || GraphDB.distance(keptLons[kept - 1], keptLats[kept - 1],
+                    lons[t], lats[t]) >= MIN_FIX_SPACING) {
+                keptLons[kept] = lons[t];
+                keptLats[kept] = lats[t];
+                kept += 1;
+            }
+            keptIndex[t] = kept - 1;
+        }
+
+        int[] chosen = decode(keptLons, keptLats, kept);
+        List<Long> route = chosen == null ? null : stitch(chosen, keptLons, keptLats, kept);
+        if (route == null) {
+            return new Match(Router.Status.TIMED_OUT, new long[0], new ArrayList<>());
+        }
+        long[] matched = new long[count];
+        for (int t = 0; t < count; t += 1) {
+            matched[t] = g.osmId(chosen[keptIndex[t]]);
+        }
+        return new Match(Router.Status.FOUND, matched, route);
+    }
+
+    /**
+     * Returns true once the deadline of the current match has passed. Searches call it every
+     * CLOCK_CHECK_INTERVAL settled vertices; settled is their count so far.
+     */
+    private boolean expired(int settled) {
+        if (hasDeadline && !timedOut && settled % Router.CLOCK_CHECK_INTERVAL == 0
+                && System.nanoTime() - deadline > 0) {
+            timedOut = true;
+        }
+        return timedOut;
+    }
+
+    /**
+     * Runs Viterbi over the fixes and returns the dense vertex chosen for each one, or null if
+     * the time ran out.
+     */
+    private int[] decode(double[] lons, double[] lats, int count) {
+        int[][] candidates = new int[count][];
+        double[][] score = new double[count][];
+        int[][] back = new int[count][];
+
+        for (int t = 0; t < count; t += 1) {
+            if (expired(0)) {
+                return null;
+            }
+            int[] cand = g.nearest(lons[t], lats[t], MAX_CANDIDATES, CANDIDATE_RADIUS);
+            if (cand.length == 0) {
+                cand = new int[] {g.nearest(lons[t], lats[t])};
+            }
+            candidates[t] = cand;
+            score[t] = new double[cand.length];
+            back[t] = new int[cand.length];
+        }
+
+        double[] routeDist = new double[MAX_CANDIDATES];
+        for (int t = 0; t < count; t += 1) {
+            if (expired(0)) {
+                return null;
+            }
+            int[] cand = candidates[t];
+            for (int j = 0; j < cand.length; j += 1) {
+                score[t][j] = Double.NEGATIVE_INFINITY;
+                back[t][j] = -1;
+            }
+            if (t > 0) {
+                double fixDist = GraphDB.distance(lons[t - 1], lats[t - 1], lons[t], lats[t]);
+                double bound = MAX_DETOUR * fixDist + 2 * CANDIDATE_RADIUS;
+                int[] prev = candidates[t - 1];
+                for (int i = 0; i < prev.length; i += 1) {
+                    if (score[t - 1][i] == Double.NEGATIVE_INFINITY) {
+                        continue;
+                    }
+                    distances(prev[i], cand, bound, routeDist);
+                    for (int j = 0; j < cand.length; j += 1) {
+                        if (routeDist[j] == Double.POSITIVE_INFINITY) {
+                            continue;
+                        }
+                        double s = score[t - 1][i] - Math.abs(routeDist[j] - fixDist) / BETA;
+                        if (s > score[t][j]) {
+                            score[t][j] = s;
+                            back[t][j] = i;
+                        }
+                    }
+                }
+            }
+            /* If no candidate is reachable from the previous point the trace has a gap (tunnel,
+             * bad fix, missing road); restart the chain here instead of failing the trace. */
+            boolean broken = true;
+            for (int j = 0; j < cand.length; j += 1) {
+                if (score[t][j] != Double.NEGATIVE_INFINITY) {
+                    broken = false;
+                    break;
+                }
+            }
+            for (int j = 0; j < cand.length; j += 1) {
+                double d = GraphDB.distance(lons[t], lats[t], g.lon(cand[j]), g.lat(cand[j]));
+                double emission = -0.5 * (d / SIGMA) * (d / SIGMA);
+                score[t][j] = broken ? emission : score[t][j] + emission;
+            }
+        }
+
+        int[] chosen = new int[count];
+        int j = argmax(score[count - 1]);
+        for (int t = count - 1; t >= 0; t -= 1) {
+            chosen[t] = candidates[t][j];
+            if (t > 0) {
+                j = back[t][j] >= 0 ? back[t][j] : argmax(score[t - 1]);
+            }
+        }
+
+        return chosen;
+    }
+
+    private static int argmax(double[] values) {
+        int best = 0;
+        for (int i = 1; i < values.length; i += 1) {
+            if (values[i] > values[best]) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Fills out[j] with the road distance from source to targets[j], or +infinity if it is
+     * longer than bound. Stops as soon as every target is settled, or the time runs out.
+     */
+    private void distances(int source, int[] targets, double bound, double[] out) {
+        int remaining = targets.length;
+        int settled = 0;
+        for (int j = 0; j < targets.length; j += 1) {
+            out[j] = Double.POSITIVE_INFINITY;
+        }
+        state.reset();
+        state.relax(source, 0, -1);
+        state.fringe.push(source, 0);
+        while (!state.fringe.isEmpty() && remaining > 0) {
+            double d = state.fringe.peekKey();
+            int v = state.fringe.poll();
+            if (state.isSettled(v)) {
+                continue;
+            }
+            if (d > bound || expired(++settled)) {
+                break;
+            }
+            state.settle(v);
+            for (int j = 0; j < targets.length; j += 1) {
+                if (targets[j] == v && out[j] == Double.POSITIVE_INFINITY) {
+                    out[j] = d;
+                    remaining -= 1;
+                }
+            }
+            expand(v, d);
+        }
+    }
+
+    private void expand(int v, double d) {
+        for (int e = g.firstEdge(v); e < g.endEdge(v); e += 1) {
+            int w = g.target(e);
+            double nd = d + g.length(e);
+            if (!state.isSettled(w) && state.relax(w, nd, v)) {
+                state.fringe.push(w, nd);
+            }
+        }
+    }
+
+    /**
+     * Joins consecutive matched vertices with the shortest road path between them. Returns
+     * null if the time ran out.
+     */
+    private List<Long> stitch(int[] chosen, double[] lons, double[] lats, int count) {
+        List<Long> route = new ArrayList<>();
+        route.add(g.osmId(chosen[0]));
+        for (int t = 1; t < count; t += 1) {
+            if (expired(0)) {
+                return null;
+            }
+            int from = chosen[t - 1];
+            int to = chosen[t];
+            if (from == to) {
+                continue;
+            }
+            double fixDist = GraphDB.distance(lons[t - 1], lats[t - 1], lons[t], lats[t]);
+            double bound = MAX_DETOUR * Math.max(fixDist, g.distance(from, to))
+                    + 2 * CANDIDATE_RADIUS;
+            if (!path(from, to, bound)) {
+                if (timedOut) {
+                    return null;
+                }
+                route.add(g.osmId(to));
+                continue;
+            }
+            int mark = route.size();
+            for (int v = to; v != from; v = state.parent(v)) {
+                route.add(g.osmId(v));
+            }
+            Collections.reverse(route.subList(mark, route.size()));
+        }
+        return route;
+    }
+
+    /**
+     * Runs a bounded search from source that stops when target is settled. Returns false if
+     * target is out of bound or the time ran out.
+     */
+    private boolean path(int source, int target, double bound) {
+        int settled = 0;
+        state.reset();
+        state.relax(source, 0, -1);
+        state.fringe.push(source, 0);
+        while (!state.fringe.isEmpty()) {
+            double d = state.fringe.peekKey();
+            int v = state.fringe.poll();
+            if (state.isSettled(v)) {
+                continue;
+            }
+            if (d > bound || expired(++settled)) {
+                return false;
+            }
+            state.settle(v);
+            if (v == target) {
+                return true;
+            }
+            expand(v, d);
+        }
+        return false;
+    }
+}
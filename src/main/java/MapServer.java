@@ -1,20 +1,46 @@
 import com.google.gson.Gson;
+import org.eclipse.jetty.server.HttpOutput;
 
-import javax.imageio.ImageIO;
+import javax.servlet.http.HttpServletResponse;
 import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static spark.Spark.*;
 
@@ -53,15 +79,41 @@ public class MapServer {
      * HTTP failed response.
      */
     private static final int HALT_RESPONSE = 403;
+    /**
+     * HTTP response for route requests turned away because the server is saturated.
+     */
+    private static final int OVERLOADED_RESPONSE = 503;
+    /**
+     * Longest a route search may run, in milliseconds, before it gives up with a timeout.
+     */
+    private static final long ROUTE_TIMEOUT_MILLIS = 2000;
+    /**
+     * How long browsers may use a tile from /tiles without asking again, in seconds. After
+     * that they revalidate with the tile's ETag, which changes when the tile file does.
+     */
+    private static final int TILE_MAX_AGE_SECONDS = 3600;
+    /** Deepest level of the tile pyramid. */
+    static final int MAX_TILE_DEPTH = 7;
     /**
      * The tile images are in the IMG_ROOT folder.
      */
-    private static final String IMG_ROOT = "../library-sp18/data/proj3_imgs/";
+    static final String IMG_ROOT =
+            System.getProperty("bmaps.imgRoot", "../library-sp18/data/proj3_imgs/");
     /**
      * The OSM XML file path. Downloaded from <a href="http://download.bbbike.org/osm/">here</a>
      * using custom region selection.
      **/
-    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    private static final String OSM_DB_PATH =
+            System.getProperty("bmaps.osm", "../library-sp18/data/berkeley-2018.osm.xml");
+    /**
+     * The directories /reload may load OSM files and tile sets from, by default the ones
+     * holding OSM_DB_PATH and IMG_ROOT. Other paths are refused, so a client cannot make the
+     * server read arbitrary files.
+     */
+    private static final String DATA_ROOT = System.getProperty("bmaps.dataRoot",
+            parentOf(OSM_DB_PATH));
+    private static final String TILE_ROOT = System.getProperty("bmaps.tileRoot",
+            parentOf(IMG_ROOT));
     /**
      * Each raster request to the server will have the following parameters
      * as keys in the params map accessible by,
@@ -70,16 +122,32 @@ public class MapServer {
      * lrlat : lower right corner latitude,<br> lrlon : lower right corner longitude <br>
      * w : user viewport window width in pixels,<br> h : user viewport height in pixels.
      **/
+    /**
+     * The endpoints that need the whole graph in memory, refused when routing on tiles or in a
+     * routing cluster.
+     */
+    private static final String[] GRAPH_ENDPOINTS = {"/alternatives", "/match", "/trip",
+        "/changes", "/reload", "/closures", "/closures/*"};
     private static final String[] REQUIRED_RASTER_REQUEST_PARAMS =
         {"ullat", "ullon", "lrlat", "lrlon", "w", "h"};
     /**
      * Each route request to the server will have the following parameters
      * as keys in the params map.<br>
      * start_lat : start point latitude,<br> start_lon : start point longitude,<br>
-     * end_lat : end point latitude, <br>end_lon : end point longitude.
+     * end_lat : end point latitude, <br>end_lon : end point longitude.<br>
+     * An optional profile parameter ("distance" or "time") picks what the route minimises.
+     * Optional epsilon and corridor parameters ask for a faster, approximate route; see
+     * Router.Options.
      **/
     private static final String[] REQUIRED_ROUTE_REQUEST_PARAMS =
         {"start_lat", "start_lon", "end_lat", "end_lon"};
+    /**
+     * Each closure request for an area will have the bounding box of the area, with the same
+     * names as a raster request. An optional factor multiplies the weight of the edges
+     * instead of closing them.
+     **/
+    private static final String[] REQUIRED_CLOSURE_BOX_PARAMS =
+        {"ullat", "ullon", "lrlat", "lrlon"};
 
     /**
      * The result of rastering must be a map containing all of the
@@ -88,12 +156,106 @@ public class MapServer {
     private static final String[] REQUIRED_RASTER_RESULT_PARAMS =
         {"render_grid", "raster_ul_lon", "raster_ul_lat", "raster_lr_lon",
         "raster_lr_lat", "depth", "query_success"};
+    /**
+     * Response headers carrying the raster result next to a binary image (/raster with
+     * format=png or jpeg), and the result field each one holds.
+     */
+    private static final String[][] RASTER_HEADERS = {
+        {"X-Raster-Ul-Lon", "raster_ul_lon"}, {"X-Raster-Ul-Lat", "raster_ul_lat"},
+        {"X-Raster-Lr-Lon", "raster_lr_lon"}, {"X-Raster-Lr-Lat", "raster_lr_lat"},
+        {"X-Raster-Depth", "depth"}, {"X-Raster-Width", "raster_width"},
+        {"X-Raster-Height", "raster_height"}, {"X-Raster-Query-Success", "query_success"}};
+    /** The names of RASTER_HEADERS, which browsers let scripts of other origins read. */
+    private static final String EXPOSED_HEADERS;
+    static {
+        StringJoiner names = new StringJoiner(", ");
+        for (String[] header : RASTER_HEADERS) {
+            names.add(header[0]);
+        }
+        EXPOSED_HEADERS = names.toString();
+    }
 
-    private static Rasterer rasterer;
-    private static GraphDB graph;
-    private static List<Long> route = new LinkedList<>();
+    /** The current tile set; replaced as a whole by /reload, like graph. */
+    private static volatile Rasterer rasterer;
+    /**
+     * The current version of the graph. Replaced as a whole when map data changes; a request
+     * reads it once and uses that version throughout.
+     */
+    private static volatile GraphDB graph;
+    /** Serializes changes to the map data, so each builds on the version before it. */
+    private static final Object GRAPH_UPDATES = new Object();
+    /** The OSM file the current graph was last loaded from. */
+    private static String osmPath = OSM_DB_PATH;
+    /**
+     * The route drawn on the map. Routes run concurrently under admission control, so
+     * everything about the drawn route is replaced as one DrawnRoute and never field by field.
+     */
+    private static final AtomicReference<DrawnRoute> DRAWN_ROUTE =
+            new AtomicReference<>(DrawnRoute.NONE);
+    /** Counts changes of route, so rasters drawn with an earlier route are not reused. */
+    private static final AtomicLong ROUTE_VERSIONS = new AtomicLong();
+    /**
+     * Map matchers keep search scratch space, so each is used by one request at a time and
+     * returned here afterwards. Matchers of a replaced graph are drained when it is swapped.
+     */
+    private static final Queue<MapMatcher> MATCHERS = new ConcurrentLinkedQueue<>();
+    /**
+     * Most fixes a /match trace may have; readPoints stops reading the body past it, so a
+     * trace is bounded before admission control weighs it. An hour of 1 Hz fixes fits.
+     */
+    private static final int MAX_TRACE_POINTS = 4000;
+    /** Most stops a /trip request may have, and the time spent improving their order. */
+    private static final int MAX_TRIP_STOPS = 100;
+    private static final long TRIP_BUDGET_MILLIS = 500;
+    /** Number of routes /alternatives returns by default, and at most. */
+    private static final int DEFAULT_ALTERNATIVES = 3;
+    private static final int MAX_ALTERNATIVES = 5;
+    /** Limits how much routing work runs at once; trips of about 2 miles cost one unit. */
+    private static final AdmissionController ADMISSION = new AdmissionController(
+            4 * Runtime.getRuntime().availableProcessors(), 64, 1000, 2.0);
+    /** Runs the reroutes closures cause, one at a time and in order, off the request thread. */
+    private static final ExecutorService REROUTES = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "reroute");
+        t.setDaemon(true);
+        return t;
+    });
+    /**
+     * The cells this server answers for as a routing cluster worker, or null. Cluster servers
+     * load the partition in -Dbmaps.cluster.dir instead of the OSM file, so graph stays null;
+     * see ClusterRouter.
+     */
+    private static CellWorker cellWorker;
+    /** Routes through cluster workers when this server is a coordinator, or null. */
+    private static ClusterRouter cluster;
+    /**
+     * The graph tiles routes are served from when the server is started with
+     * -Dbmaps.tiles=dir, or null. The OSM file is then never loaded and graph stays null, so the
+     * endpoints that need the whole graph refuse requests; see GRAPH_ENDPOINTS.
+     */
+    private static TiledGraph tiledGraph;
     /* Define any static variables here. Do not define any instance variables of MapServer. */
 
+    /**
+     * A route drawn on the map: its vertices, their coordinates simplified for every depth
+     * and, if it came from /route, the start and end lon/lat and profile it was requested
+     * with, kept so closures and map changes can recompute it.
+     */
+    private static final class DrawnRoute {
+        static final DrawnRoute NONE =
+                new DrawnRoute(new LinkedList<>(), RouteShape.EMPTY, null, RouteProfile.DISTANCE);
+        final List<Long> path;
+        final RouteShape shape;
+        final double[] request;
+        final RouteProfile profile;
+
+        DrawnRoute(List<Long> path, RouteShape shape, double[] request, RouteProfile profile) {
+            this.path = path;
+            this.shape = shape;
+            this.request = request;
+            this.profile = profile;
+        }
+    }
+
 
     /**
      * Place any initialization statements that will be run before the server main loop here.
@@ -101,12 +263,57 @@ public class MapServer {
      * This is for testing purposes, and you may fail tests otherwise.
      **/
     public static void initialize() {
+        try {
+            rasterer = Rasterer.load(IMG_ROOT);
+        } catch (IOException e) {
+            /* Start without tiles; /reload can bring them in later. */
+            rasterer = new Rasterer();
+        }
+        if (TileCache.WARM_DEPTH >= 0) {
+            rasterer.tiles.warm(TileCache.WARM_DEPTH);
+        }
+        String worker = System.getProperty("bmaps.cluster.worker");
+        String workers = System.getProperty("bmaps.cluster.workers");
+        String graphTiles = System.getProperty("bmaps.tiles");
+        if (graphTiles != null) {
+            if (worker != null || workers != null) {
+                throw new IllegalStateException(
+                        "bmaps.tiles cannot be combined with a routing cluster");
+            }
+            try {
+                tiledGraph = new TiledGraph(Paths.get(graphTiles));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return;
+        }
+        if (worker != null || workers != null) {
+            String clusterDir = System.getProperty("bmaps.cluster.dir");
+            if (clusterDir == null) {
+                throw new IllegalStateException(
+                        "a routing cluster needs bmaps.cluster.dir; see Partition");
+            }
+            Path dir = Paths.get(clusterDir);
+            try {
+                if (worker != null) {
+                    cellWorker = CellWorker.fromSpec(dir, worker);
+                }
+                if (workers != null) {
+                    cluster = ClusterRouter.coordinator(ClusterOverlay.read(dir), workers);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return;
+        }
         graph = new GraphDB(OSM_DB_PATH);
-        rasterer = new Rasterer();
+        graph.overlay().addListener(MapServer::rerouteIfAffected);
+        graph.hotTargets().configure(System.getProperty("bmaps.hotTargets"));
     }
 
     public static void main(String[] args) {
         initialize();
+        port(Integer.getInteger("bmaps.port", 4567));
         staticFileLocation("/page");
         /* Allow for all origin requests (since this is not an authenticated server, we do not
          * care about CSRF).  */
@@ -114,23 +321,65 @@ public class MapServer {
             response.header("Access-Control-Allow-Origin", "*");
             response.header("Access-Control-Request-Method", "*");
             response.header("Access-Control-Allow-Headers", "*");
+            response.header("Access-Control-Expose-Headers", EXPOSED_HEADERS);
         });
 
+        /* Routing on graph tiles or in a cluster keeps only part of the graph in memory, which
+         * is not enough for the endpoints that work on the whole graph. */
+        for (String endpoint : GRAPH_ENDPOINTS) {
+            before(endpoint, (req, res) -> {
+                if (graph == null) {
+                    halt(HALT_RESPONSE, "Request failed - not available when routing on tiles"
+                            + " or in a cluster.");
+                }
+            });
+        }
+
         /* Define the raster endpoint for HTTP GET requests. I use anonymous functions to define
-         * the request handlers. */
+         * the request handlers. With format=png or format=jpeg the response is the image itself
+         * and the other fields of the result are sent as X-Raster-* headers; see
+         * RASTER_HEADERS. JPEG is smaller but lossy. With route=false the route is left off the
+         * image, for clients that draw it themselves from /route_geometry; such rasters do not
+         * change with the route. Either way the encoded image comes from the current tile
+         * set's RasterCache when the same grid was drawn before with the same route. */
         get("/raster", (req, res) -> {
             HashMap<String, Double> params =
                     getRequestParams(req, REQUIRED_RASTER_REQUEST_PARAMS);
-            /* The png image is written to the ByteArrayOutputStream */
-            ByteArrayOutputStream os = new ByteArrayOutputStream();
             /* getMapRaster() does almost all the work for this API call */
-            Map<String, Object> rasteredImgParams = rasterer.getMapRaster(params);
+            Rasterer r = rasterer;
+            Map<String, Object> rasteredImgParams = r.getMapRaster(params);
 
             boolean rasterSuccess = validateRasteredImgParams(rasteredImgParams);
 
-            if (rasterSuccess) {
-                writeImagesToOutputStream(rasteredImgParams, os);
-                String encodedImage = Base64.getEncoder().encodeToString(os.toByteArray());
+            String format = req.queryParams("format");
+            boolean drawRoute = !"false".equals(req.queryParams("route"));
+            if ("png".equals(format) || "jpeg".equals(format)) {
+                byte[] image = rasterSuccess
+                        ? encodedRaster(r, rasteredImgParams, format, drawRoute) : null;
+                for (String[] header : RASTER_HEADERS) {
+                    Object value = rasteredImgParams.get(header[1]);
+                    if (value != null) {
+                        res.header(header[0], String.valueOf(value));
+                    }
+                }
+                if (image == null) {
+                    res.status(204);
+                    return "";
+                }
+                res.raw().setContentType("image/" + format);
+                res.raw().setContentLength(image.length);
+                res.raw().getOutputStream().write(image);
+                return "";
+            }
+
+            if (rasterSuccess && "true".equals(req.queryParams("grid_only"))) {
+                /* The client fetches the tiles of the grid from /tiles itself. */
+                String[][] grid = (String[][]) rasteredImgParams.get("render_grid");
+                rasteredImgParams.put("raster_width", grid[0].length * TILE_SIZE);
+                rasteredImgParams.put("raster_height", grid.length * TILE_SIZE);
+            } else if (rasterSuccess) {
+                byte[] png = encodedRaster(r, rasteredImgParams, "png", drawRoute);
+                String encodedImage = Base64.getEncoder().encodeToString(png);
                 rasteredImgParams.put("b64_encoded_image_data", encodedImage);
             }
 
@@ -139,21 +388,342 @@ public class MapServer {
             return gson.toJson(rasteredImgParams);
         });
 
-        /* Define the routing endpoint for HTTP GET requests. */
+        /* Define the endpoint serving a single tile, /tiles/{depth}/{x}/{y}.png, for clients
+         * that place the tiles of the render grid themselves (the tile mode of map.js). The
+         * bytes of the tile file are sent as they are, without decoding, and browsers may keep
+         * them. */
+        get("/tiles/:depth/:x/:y", (req, res) -> {
+            String name = tileName(req.params(":depth"), req.params(":x"), req.params(":y"));
+            if (name == null) {
+                halt(404, "No such tile.");
+            }
+            serveTile(req, res, rasterer, name);
+            return "";
+        });
+
+        /* Define the endpoint reporting how the decoded-tile cache of the current tile set is
+         * doing: tiles and pixels kept, hits, misses and evictions. */
+        get("/tile_cache", (req, res) -> new Gson().toJson(rasterer.tiles.stats()));
+
+        /* Define the endpoint reporting how the encoded-raster cache of the current tile set is
+         * doing: rasters and bytes kept, hits, misses and evictions. */
+        get("/raster_cache", (req, res) -> new Gson().toJson(rasterer.rasters.stats()));
+
+        /* Define the endpoint reporting the canvases and encoding buffers kept for rasters:
+         * how many, their pixels, and how often a canvas was reused or had to be allocated. */
+        get("/raster_pool", (req, res) -> new Gson().toJson(RasterPool.SHARED.stats()));
+
+        /* Define the routing endpoint for HTTP GET requests. With -Dbmaps.tiles the route is
+         * searched on graph tiles (see TiledGraph), and on a cluster coordinator through its
+         * workers (see ClusterRouter), both without closures. */
         get("/route", (req, res) -> {
             HashMap<String, Double> params =
                     getRequestParams(req, REQUIRED_ROUTE_REQUEST_PARAMS);
-            route = Router.shortestPath(graph, params.get("start_lon"), params.get("start_lat"),
-                    params.get("end_lon"), params.get("end_lat"));
-            String directions = getDirectionsText();
+            RouteProfile profile = RouteProfile.fromString(req.queryParams("profile"));
+            double[] request = {params.get("start_lon"), params.get("start_lat"),
+                params.get("end_lon"), params.get("end_lat")};
+            GraphDB g = graph;
+            TiledGraph tiled = tiledGraph;
+            if (g == null && tiled == null && cluster == null) {
+                halt(HALT_RESPONSE, "Request failed - a cluster worker does not route.");
+            }
+            double miles = tiled != null
+                    ? tiled.snappedDistance(request[0], request[1], request[2], request[3])
+                    : cluster != null
+                    ? cluster.snappedDistance(request[0], request[1], request[2], request[3])
+                    : Router.snappedDistance(g, request[0], request[1], request[2], request[3]);
+            AdmissionController.Ticket ticket = ADMISSION.admit(miles);
+            if (ticket == null) {
+                halt(OVERLOADED_RESPONSE, "Server busy - try the route again shortly.");
+            }
+            Router.Result result = null;
+            RouteShape shape = null;
+            try {
+                Router.Options options = new Router.Options().profile(profile)
+                        .timeoutMillis(ROUTE_TIMEOUT_MILLIS)
+                        .epsilon(getOptionalDoubleParam(req, "epsilon", 1))
+                        .corridor(getOptionalDoubleParam(req, "corridor", 0));
+                if (tiled != null) {
+                    TiledGraph.Route found = tiled.route(request[0], request[1], request[2],
+                            request[3], options);
+                    result = found.result;
+                    shape = found.shape;
+                } else if (cluster != null) {
+                    ClusterRouter.Route found = cluster.route(request[0], request[1],
+                            request[2], request[3], options);
+                    result = found.result;
+                    shape = found.shape;
+                } else {
+                    result = Router.route(g, request[0], request[1], request[2],
+                            request[3], options);
+                }
+            } catch (IllegalArgumentException e) {
+                halt(HALT_RESPONSE, "Incorrect parameters - " + e.getMessage() + ".");
+            } catch (IOException e) {
+                e.printStackTrace();
+                halt(OVERLOADED_RESPONSE, "Routing cluster unavailable - try again shortly.");
+            } finally {
+                ticket.close();
+            }
+            if (shape == null) {
+                shape = new RouteShape(g, result.path);
+            }
+            setRoute(new DrawnRoute(result.path, shape, request, profile));
+            /* The response describes this request's route, even if another has been drawn
+             * since. */
+            String directions = getDirectionsText(g, result.path);
             Map<String, Object> routeParams = new HashMap<>();
-            routeParams.put("routing_success", !route.isEmpty());
+            routeParams.put("routing_success", !result.path.isEmpty());
+            routeParams.put("routing_status", result.status.name().toLowerCase());
+            routeParams.put("suboptimality_bound", result.bound);
             routeParams.put("directions_success", directions.length() > 0);
             routeParams.put("directions", directions);
+            routeParams.put("route_polyline", polyline(shape.points(-1)));
             Gson gson = new Gson();
             return gson.toJson(routeParams);
         });
 
+        /* Define the endpoint returning the route drawn on the map as an encoded polyline (see
+         * Polyline), for clients that draw it over rasters requested with route=false. The
+         * route may change without the client asking, when closures reroute it. An optional
+         * depth returns the route simplified for rasters of that depth; see RouteShape. */
+        get("/route_geometry", (req, res) -> {
+            int depth = (int) getOptionalDoubleParam(req, "depth", -1);
+            Map<String, Object> geometry = new HashMap<>();
+            geometry.put("route_polyline", polyline(DRAWN_ROUTE.get().shape.points(depth)));
+            return new Gson().toJson(geometry);
+        });
+
+        /* Define the endpoint for alternative routes. Takes the parameters of a route request
+         * plus an optional k (default 3); returns up to k routes, best first, without changing
+         * the route drawn on the map. The search runs under the same time budget as /route;
+         * a timed-out search returns the routes it found until then. */
+        get("/alternatives", (req, res) -> {
+            HashMap<String, Double> params =
+                    getRequestParams(req, REQUIRED_ROUTE_REQUEST_PARAMS);
+            RouteProfile profile = RouteProfile.fromString(req.queryParams("profile"));
+            int k = (int) Math.max(1, Math.min(MAX_ALTERNATIVES,
+                    getOptionalDoubleParam(req, "k", DEFAULT_ALTERNATIVES)));
+            GraphDB g = graph;
+            double miles = Router.snappedDistance(g, params.get("start_lon"),
+                    params.get("start_lat"), params.get("end_lon"), params.get("end_lat"));
+            AdmissionController.Ticket ticket = ADMISSION.admit(miles);
+            if (ticket == null) {
+                halt(OVERLOADED_RESPONSE, "Server busy - try the route again shortly.");
+            }
+            AlternativeRoutes.Result result;
+            try {
+                result = AlternativeRoutes.find(g, params.get("start_lon"),
+                        params.get("start_lat"), params.get("end_lon"), params.get("end_lat"),
+                        k, new Router.Options().profile(profile)
+                                .timeoutMillis(ROUTE_TIMEOUT_MILLIS));
+            } finally {
+                ticket.close();
+            }
+            List<Map<String, Object>> routes = new ArrayList<>();
+            for (AlternativeRoutes.Route r : result.routes) {
+                Map<String, Object> entry = new HashMap<>();
+                entry.put("route", r.path);
+                entry.put("cost", r.cost);
+                entry.put("stretch", r.stretch);
+                routes.add(entry);
+            }
+            Map<String, Object> alternativeParams = new HashMap<>();
+            alternativeParams.put("routing_success", !routes.isEmpty());
+            alternativeParams.put("routing_status", result.status.name().toLowerCase());
+            alternativeParams.put("routes", routes);
+            Gson gson = new Gson();
+            return gson.toJson(alternativeParams);
+        });
+
+        /* Define the map-matching endpoint for HTTP POST requests. The body is a GPS trace with
+         * one "lon,lat" fix per line, parsed as it streams in, of at most MAX_TRACE_POINTS
+         * fixes. Matching gets the time budget of a route; match_status tells whether it ran
+         * out. */
+        post("/match", (req, res) -> {
+            double[][] trace = readPoints(req.raw().getInputStream(), MAX_TRACE_POINTS);
+            AdmissionController.Ticket ticket = ADMISSION.admitArea(
+                    MapMatcher.searchArea(trace[0], trace[1], trace[0].length));
+            if (ticket == null) {
+                halt(OVERLOADED_RESPONSE, "Server busy - try the match again shortly.");
+            }
+            MapMatcher.Match match;
+            try {
+                match = matchTrace(trace);
+            } finally {
+                ticket.close();
+            }
+            Map<String, Object> matchParams = new HashMap<>();
+            matchParams.put("match_success", match.matched.length > 0);
+            matchParams.put("match_status", match.status.name().toLowerCase());
+            matchParams.put("matched_nodes", match.matched);
+            matchParams.put("route", match.route);
+            Gson gson = new Gson();
+            return gson.toJson(matchParams);
+        });
+
+        /* Define the trip endpoint for HTTP POST requests. The body lists the stops, one
+         * "lon,lat" per line, starting with where the trip starts. The optional round_trip
+         * parameter ("true" by default) returns to the start, and profile works as for /route.
+         * The planned trip becomes the route drawn on the map. */
+        post("/trip", (req, res) -> {
+            double[][] stops = readPoints(req.raw().getInputStream(), MAX_TRIP_STOPS);
+            boolean roundTrip = !"false".equals(req.queryParams("round_trip"));
+            RouteProfile profile = RouteProfile.fromString(req.queryParams("profile"));
+            GraphDB g = graph;
+            AdmissionController.Ticket ticket = ADMISSION.admitArea(
+                    TripPlanner.searchArea(stops[0], stops[1], stops[0].length));
+            if (ticket == null) {
+                halt(OVERLOADED_RESPONSE, "Server busy - try the trip again shortly.");
+            }
+            TripPlanner.Trip trip;
+            try {
+                trip = TripPlanner.plan(g, stops[0], stops[1], stops[0].length, roundTrip,
+                        profile, ROUTE_TIMEOUT_MILLIS, TRIP_BUDGET_MILLIS);
+            } finally {
+                ticket.close();
+            }
+            setRoute(new DrawnRoute(trip.route, new RouteShape(g, trip.route), null, profile));
+            Map<String, Object> tripParams = new HashMap<>();
+            tripParams.put("trip_success", trip.order.length > 0
+                    && trip.cost != Double.POSITIVE_INFINITY);
+            tripParams.put("trip_status", trip.status.name().toLowerCase());
+            tripParams.put("order", trip.order);
+            tripParams.put("cost", Double.isInfinite(trip.cost) ? null : trip.cost);
+            tripParams.put("route", trip.route);
+            Gson gson = new Gson();
+            return gson.toJson(tripParams);
+        });
+
+        /* Define the endpoint for applying an OSM change file (.osc), POSTed as the body. The
+         * changed graph is built next to the current one and then swapped in; routes already
+         * being computed finish on the old version. */
+        post("/changes", (req, res) -> {
+            long begin = System.nanoTime();
+            OsmChange change = null;
+            synchronized (GRAPH_UPDATES) {
+                try {
+                    change = OsmChange.apply(graph, req.raw().getInputStream());
+                } catch (IllegalArgumentException | IOException e) {
+                    halt(HALT_RESPONSE, "Incorrect change - " + e.getMessage());
+                }
+                swapGraph(change.graph);
+            }
+            Map<String, Object> changeParams = new HashMap<>();
+            changeParams.put("version", change.graph.version());
+            changeParams.put("nodes", change.nodes);
+            changeParams.put("ways", change.ways);
+            changeParams.put("millis", (System.nanoTime() - begin) / 1000000);
+            return new Gson().toJson(changeParams);
+        });
+
+        /* Define the endpoint for reloading the map data without a restart, after the OSM file
+         * or the tile directory was replaced. The optional osm and img_root parameters load
+         * from another place than before, which must be under DATA_ROOT and TILE_ROOT. The new
+         * graph and tile set are built while the old ones keep serving, then swapped in;
+         * closures carry over. With gc=true the heap is collected before each measurement, so
+         * the reported delta is what the new version retains rather than garbage. */
+        post("/reload", (req, res) -> {
+            boolean gc = "true".equals(req.queryParams("gc"));
+            Map<String, Object> reloadParams = new HashMap<>();
+            synchronized (GRAPH_UPDATES) {
+                String osm = req.queryParams("osm") == null ? osmPath
+                        : underRoot(req.queryParams("osm"), DATA_ROOT);
+                String imgRoot = req.queryParams("img_root") == null ? rasterer.imgRoot
+                        : underRoot(req.queryParams("img_root"), TILE_ROOT);
+                long heapBefore = usedHeap(gc);
+                long begin = System.nanoTime();
+                Rasterer tiles = null;
+                try {
+                    if (!new File(osm).canRead()) {
+                        throw new IOException("Cannot read " + osm);
+                    }
+                    tiles = Rasterer.load(imgRoot);
+                } catch (IOException e) {
+                    halt(HALT_RESPONSE, "Reload failed - " + e.getMessage());
+                }
+                GraphDB g = new GraphDB(osm);
+                if (g.compact().size() == 0) {
+                    halt(HALT_RESPONSE, "Reload failed - no roads in " + osm);
+                }
+                g.overlay().copyRules(graph.overlay());
+                if (TileCache.WARM_DEPTH >= 0) {
+                    tiles.tiles.warm(TileCache.WARM_DEPTH);
+                }
+                osmPath = osm;
+                rasterer = tiles;
+                swapGraph(g);
+                long millis = (System.nanoTime() - begin) / 1000000;
+                long heapAfter = usedHeap(gc);
+                reloadParams.put("graph_version", g.version());
+                reloadParams.put("tiles_version", tiles.version());
+                reloadParams.put("vertices", g.compact().size());
+                reloadParams.put("tiles", tiles.tileCount);
+                reloadParams.put("millis", millis);
+                reloadParams.put("heap_before_bytes", heapBefore);
+                reloadParams.put("heap_after_bytes", heapAfter);
+                reloadParams.put("heap_delta_bytes", heapAfter - heapBefore);
+            }
+            return new Gson().toJson(reloadParams);
+        });
+
+        /* Define the API endpoints for live closures and penalties. Rules are set with POST and
+         * removed with DELETE, so a crawler following links cannot close roads. The factor
+         * parameter is "closed" (the default) or a number of at least 1. Changes apply to
+         * routes requested afterwards, and the current route is recomputed in the background
+         * if it is affected. */
+        get("/closures", (req, res) -> new Gson().toJson(graph.overlay().rules()));
+
+        post("/closures/way", (req, res) -> {
+            graph.overlay().penalizeWay(getLongParam(req, "way"), getFactorParam(req));
+            return true;
+        });
+
+        delete("/closures/way", (req, res) ->
+                graph.overlay().reopenWay(getLongParam(req, "way")));
+
+        post("/closures/box", (req, res) -> {
+            HashMap<String, Double> params = getRequestParams(req, REQUIRED_CLOSURE_BOX_PARAMS);
+            int id = graph.overlay().penalizeBox(params.get("ullon"), params.get("ullat"),
+                    params.get("lrlon"), params.get("lrlat"), getFactorParam(req));
+            Map<String, Object> closureParams = new HashMap<>();
+            closureParams.put("id", id);
+            return new Gson().toJson(closureParams);
+        });
+
+        delete("/closures/box", (req, res) ->
+                graph.overlay().removeBox((int) getLongParam(req, "id")));
+
+        post("/closures/clear", (req, res) -> {
+            graph.overlay().clear();
+            return true;
+        });
+
+        /* Define the endpoints a routing cluster coordinator calls on its workers; see
+         * ClusterRouter. Vertices and cells are numbered as in the shared partition. */
+        get("/cluster/clique", (req, res) -> ClusterRouter.Remote.toJson(
+                cellWorker().clique(getCellParam(req), getProfileParam(req))));
+
+        get("/cluster/distances", (req, res) -> {
+            String[] list = req.queryParams("targets") == null ? new String[0]
+                    : req.queryParams("targets").split(",");
+            int[] targets = new int[list.length];
+            try {
+                for (int i = 0; i < list.length; i += 1) {
+                    targets[i] = Integer.parseInt(list[i]);
+                }
+            } catch (NumberFormatException e) {
+                halt(HALT_RESPONSE, "Incorrect parameters - provide numbers.");
+            }
+            return ClusterRouter.Remote.toJson(cellWorker().distances(getCellParam(req),
+                    getProfileParam(req), (int) getLongParam(req, "from"), targets,
+                    "true".equals(req.queryParams("backward"))));
+        });
+
+        get("/cluster/path", (req, res) -> ClusterRouter.Remote.toJson(cellWorker().path(
+                getCellParam(req), getProfileParam(req), (int) getLongParam(req, "from"),
+                (int) getLongParam(req, "to"))));
+
         /* Define the API endpoint for clearing the current route. */
         get("/clear_route", (req, res) -> {
             clearRoute();
@@ -211,31 +781,356 @@ public class MapServer {
     }
 
     /**
-     * Writes the images corresponding to rasteredImgParams to the output stream.
+     * Returns the file name of the tile at depth, x and y, given as in /tiles/{depth}/{x}/{y}.png,
+     * or null if there is no such tile in the pyramid.
+     */
+    private static String tileName(String depth, String x, String y) {
+        if (!y.endsWith(".png")) {
+            return null;
+        }
+        try {
+            int d = Integer.parseInt(depth);
+            int col = Integer.parseInt(x);
+            int row = Integer.parseInt(y.substring(0, y.length() - ".png".length()));
+            if (d < 0 || d > MAX_TILE_DEPTH || col < 0 || col >= 1 << d || row < 0
+                    || row >= 1 << d) {
+                return null;
+            }
+            return "d" + d + "_x" + col + "_y" + row + ".png";
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Sends the named tile of r as the response body, as stored. Tiles of an archive are
+     * slices of its mapping; a tile file is mapped for the request. Under Jetty the mapped
+     * bytes are handed to the connection, so they go from the page cache to the socket without
+     * being copied onto the heap. A request that already has the tile's ETag gets 304 Not
+     * Modified.
+     */
+    private static void serveTile(spark.Request req, spark.Response res, Rasterer r,
+                                  String name) throws IOException {
+        ByteBuffer bytes = null;
+        if (r.archive != null) {
+            bytes = r.archive.tile(name);
+            if (bytes == null) {
+                halt(404, "No such tile.");
+            }
+            if (notModified(req, res, Integer.toHexString(r.archive.crc(name)) + "-"
+                    + Integer.toHexString(bytes.remaining()))) {
+                return;
+            }
+        } else {
+            Path path = Paths.get(r.imgRoot + name);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (notModified(req, res, Long.toHexString(size) + "-"
+                        + Long.toHexString(Files.getLastModifiedTime(path).toMillis()))) {
+                    return;
+                }
+                bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } catch (NoSuchFileException e) {
+                halt(404, "No such tile.");
+            }
+        }
+        HttpServletResponse raw = res.raw();
+        raw.setContentType("image/png");
+        raw.setContentLengthLong(bytes.remaining());
+        OutputStream out = raw.getOutputStream();
+        if (out instanceof HttpOutput) {
+            ((HttpOutput) out).sendContent(bytes);
+        } else {
+            WritableByteChannel channel = Channels.newChannel(out);
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        }
+    }
+
+    /**
+     * Sets the caching headers of a tile with the given ETag, and answers 304 Not Modified,
+     * returning true, if the request already has it.
+     */
+    private static boolean notModified(spark.Request req, spark.Response res, String tag) {
+        String etag = "\"" + tag + "\"";
+        res.header("ETag", etag);
+        res.header("Cache-Control", "public, max-age=" + TILE_MAX_AGE_SECONDS);
+        if (etag.equals(req.headers("If-None-Match"))) {
+            res.status(304);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns a required integer request parameter, halting the request if it is missing or
+     * not a number.
+     */
+    private static long getLongParam(spark.Request req, String name) {
+        String value = req.queryParams(name);
+        if (value == null) {
+            halt(HALT_RESPONSE, "Request failed - parameters missing.");
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            halt(HALT_RESPONSE, "Incorrect parameters - provide numbers.");
+            return -1;
+        }
+    }
+
+    /**
+     * Returns the cell parameter of a cluster request, halting the request unless this server
+     * is a worker that owns the cell.
+     */
+    private static int getCellParam(spark.Request req) {
+        int cell = (int) getLongParam(req, "cell");
+        if (!cellWorker().owns(cell)) {
+            halt(HALT_RESPONSE, "Request failed - cell " + cell + " is not served here.");
+        }
+        return cell;
+    }
+
+    /** Returns the profile of a cluster request, which unlike /route must be given exactly. */
+    private static RouteProfile getProfileParam(spark.Request req) {
+        try {
+            return RouteProfile.valueOf(String.valueOf(req.queryParams("profile")));
+        } catch (IllegalArgumentException e) {
+            halt(HALT_RESPONSE, "Incorrect parameters - unknown profile.");
+            return null;
+        }
+    }
+
+    /** Returns this server's cell worker, halting the request if it is not one. */
+    private static CellWorker cellWorker() {
+        if (cellWorker == null) {
+            halt(HALT_RESPONSE, "Request failed - not a cluster worker.");
+        }
+        return cellWorker;
+    }
+
+    /**
+     * Returns an optional numeric request parameter, or defaultValue if it is absent.
+     */
+    private static double getOptionalDoubleParam(spark.Request req, String name,
+                                                 double defaultValue) {
+        String value = req.queryParams(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            halt(HALT_RESPONSE, "Incorrect parameters - provide numbers.");
+            return defaultValue;
+        }
+    }
+
+    /** Returns the directory holding path, or the current directory if it has none. */
+    private static String parentOf(String path) {
+        Path parent = Paths.get(path).toAbsolutePath().normalize().getParent();
+        return parent == null ? "." : parent.toString();
+    }
+
+    /**
+     * Returns path if it names an existing file or directory inside root once symbolic links
+     * and ".." are resolved, and halts the request otherwise.
+     */
+    private static String underRoot(String path, String root) {
+        try {
+            Path real = Paths.get(path).toRealPath();
+            if (real.startsWith(Paths.get(root).toRealPath())) {
+                return path;
+            }
+        } catch (IOException | InvalidPathException e) {
+            halt(HALT_RESPONSE, "Reload failed - cannot read " + path);
+        }
+        halt(HALT_RESPONSE, "Reload failed - " + path + " is outside the data directories.");
+        return null;
+    }
+
+    /**
+     * Returns the optional factor parameter of a closure request; closed (+infinity) if absent.
+     * Halts the request unless it is "closed" or a finite number of at least 1.
+     */
+    private static double getFactorParam(spark.Request req) {
+        String value = req.queryParams("factor");
+        if (value == null || value.equals("closed")) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double factor;
+        try {
+            factor = Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            factor = Double.NaN;
+        }
+        if (!Double.isFinite(factor) || factor < 1) {
+            halt(HALT_RESPONSE, "Incorrect parameters - factor must be closed or at least 1.");
+        }
+        return factor;
+    }
+
+    /** Returns the bytes of heap in use, after a full collection if gc is set. */
+    private static long usedHeap(boolean gc) {
+        if (gc) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Makes g the graph every request from now on uses; requests already running keep the
+     * version they started with. The current route is recomputed on g if it was requested
+     * with /route.
+     */
+    private static void swapGraph(GraphDB g) {
+        g.overlay().addListener(MapServer::rerouteIfAffected);
+        g.hotTargets().configure(System.getProperty("bmaps.hotTargets"));
+        GraphDB old = graph;
+        graph = g;
+        DrawnRoute current = DRAWN_ROUTE.get();
+        /* A trip stays, but its nodes may have moved or gone. */
+        List<Long> path = current.request == null ? current.path : shortestPath(g, current);
+        replaceRoute(current, new DrawnRoute(path, new RouteShape(g, path), current.request,
+                current.profile));
+        /* The hot-target builders and pooled matchers are all that refer to the old version
+         * from outside; g shares its pages but not the version itself (see OsmChange). Once
+         * they are drained, the old version is garbage as soon as the requests still running
+         * on it finish, which TestOsmChange checks with a WeakReference. */
+        old.hotTargets().close();
+        MATCHERS.removeIf(m -> m.graph() != g);
+    }
+
+    /**
+     * Recomputes the current route after closures change, if it uses an edge that got more
+     * expensive or if some edge got cheaper and a better route may now exist. The search runs
+     * on REROUTES, so the closure request that caused it returns without waiting for it.
+     */
+    private static void rerouteIfAffected(BitSet worse, BitSet better) {
+        REROUTES.execute(() -> reroute(worse, better));
+    }
+
+    private static void reroute(BitSet worse, BitSet better) {
+        DrawnRoute current = DRAWN_ROUTE.get();
+        if (current.request == null
+                || (better.isEmpty() && !routeUsesAny(current.path, worse))) {
+            return;
+        }
+        GraphDB g = graph;
+        List<Long> path = shortestPath(g, current);
+        replaceRoute(current, new DrawnRoute(path, new RouteShape(g, path), current.request,
+                current.profile));
+    }
+
+    /** Searches the route again for the request that drawn was made for. */
+    private static List<Long> shortestPath(GraphDB g, DrawnRoute drawn) {
+        double[] request = drawn.request;
+        return Router.shortestPath(g, request[0], request[1], request[2], request[3],
+                drawn.profile);
+    }
+
+    /** Returns true if any consecutive pair of vertices of r is joined by one of the edges. */
+    private static boolean routeUsesAny(List<Long> r, BitSet edges) {
+        CompactGraph c = graph.compact();
+        int prev = -1;
+        for (long id : r) {
+            int v = c.denseId(id);
+            if (prev >= 0) {
+                for (int e = c.firstEdge(prev); e < c.endEdge(prev); e += 1) {
+                    if (c.target(e) == v && edges.get(e)) {
+                        return true;
+                    }
+                }
+            }
+            prev = v;
+        }
+        return false;
+    }
+
+    /**
+     * Writes the images corresponding to rasteredImgParams to the output stream, as format
+     * ("png" or "jpeg"), with the route on them if drawRoute.
      * In Spring 2016, students had to do this on their own, but in 2017,
      * we have made this into provided code since it was just a bit too low level.
      */
-    private static void writeImagesToOutputStream(Map<String, Object> rasteredImageParams,
-                                                  ByteArrayOutputStream os) {
+    private static void writeImagesToOutputStream(Rasterer rasterer,
+                                                  Map<String, Object> rasteredImageParams,
+                                                  String format, boolean drawRoute,
+                                                  OutputStream os) {
+        BufferedImage img = renderRaster(rasterer, rasteredImageParams, drawRoute);
+        try {
+            RasterEncoder.DEFAULT.write(img, format, os);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            RasterPool.SHARED.release(img);
+        }
+    }
+
+    /**
+     * Returns the raster in rasteredImageParams encoded as format, from the rasterer's
+     * RasterCache if it was drawn before (with the current route on the current graph, if
+     * drawRoute), and adds its size as raster_width and raster_height.
+     */
+    private static byte[] encodedRaster(Rasterer rasterer,
+                                        Map<String, Object> rasteredImageParams,
+                                        String format, boolean drawRoute) {
         String[][] renderGrid = (String[][]) rasteredImageParams.get("render_grid");
-        int numVertTiles = renderGrid.length;
-        int numHorizTiles = renderGrid[0].length;
+        String[] lastRow = renderGrid[renderGrid.length - 1];
+        /* The version is read before the route renderRaster draws, so a raster can only be
+         * kept under a version older than its route, which is never asked for again. Rasters
+         * without the route are the same for every route and graph. */
+        GraphDB g = graph;
+        long graphVersion = g == null ? 0 : g.version();
+        String key = renderGrid[0][0] + ":" + lastRow[lastRow.length - 1] + ":" + format
+                + (drawRoute ? ":" + graphVersion + ":" + ROUTE_VERSIONS.get() : "");
+        byte[] image = rasterer.rasters.get(key);
+        if (image != null) {
+            rasteredImageParams.put("raster_width", renderGrid[0].length * TILE_SIZE);
+            rasteredImageParams.put("raster_height", renderGrid.length * TILE_SIZE);
+            return image;
+        }
+        RasterPool.Buffer os = RasterPool.SHARED.buffer();
+        writeImagesToOutputStream(rasterer, rasteredImageParams, format, drawRoute, os);
+        image = os.toByteArray();
+        RasterPool.SHARED.release(os);
+        rasterer.rasters.put(key, image);
+        return image;
+    }
 
-        BufferedImage img = new BufferedImage(numHorizTiles * MapServer.TILE_SIZE,
-                numVertTiles * MapServer.TILE_SIZE, BufferedImage.TYPE_INT_RGB);
-        Graphics graphic = img.getGraphics();
-        int x = 0, y = 0;
-
-        for (int r = 0; r < numVertTiles; r += 1) {
-            for (int c = 0; c < numHorizTiles; c += 1) {
-                graphic.drawImage(getImage(IMG_ROOT + renderGrid[r][c]), x, y, null);
-                x += MapServer.TILE_SIZE;
-                if (x >= img.getWidth()) {
-                    x = 0;
-                    y += MapServer.TILE_SIZE;
-                }
-            }
+    /** Makes drawn the route drawn on the map. */
+    private static void setRoute(DrawnRoute drawn) {
+        DRAWN_ROUTE.set(drawn);
+        ROUTE_VERSIONS.incrementAndGet();
+    }
+
+    /**
+     * Makes next the route drawn on the map if expected still is, so a route recomputed in
+     * the background never replaces one a request has drawn in the meantime.
+     */
+    private static void replaceRoute(DrawnRoute expected, DrawnRoute next) {
+        if (DRAWN_ROUTE.compareAndSet(expected, next)) {
+            ROUTE_VERSIONS.incrementAndGet();
         }
+    }
+
+    /** Returns points, {lons, lats} as RouteShape gives them, as an encoded polyline. */
+    private static String polyline(double[][] points) {
+        return Polyline.encode(points[0], points[1], points[0].length);
+    }
+
+    /**
+     * Stitches the tiles of the render grid and draws the route on them if drawRoute, and adds
+     * the size of the image to rasteredImageParams as raster_width and raster_height.
+     */
+    private static BufferedImage renderRaster(Rasterer rasterer,
+                                              Map<String, Object> rasteredImageParams,
+                                              boolean drawRoute) {
+        String[][] renderGrid = (String[][]) rasteredImageParams.get("render_grid");
+        BufferedImage img = rasterer.stitch(renderGrid);
+        Graphics graphic = img.getGraphics();
 
         /* If there is a route, draw it. */
         double ullon = (double) rasteredImageParams.get("raster_ul_lon"); //tiles.get(0).ulp;
@@ -245,49 +1140,92 @@ public class MapServer {
 
         final double wdpp = (lrlon - ullon) / img.getWidth();
         final double hdpp = (ullat - lrlat) / img.getHeight();
-        if (route != null && !route.isEmpty()) {
+        /* The route as simplified for the raster's depth, so drawing it scales with its
+         * pixels rather than its vertices. */
+        double[][] points = DRAWN_ROUTE.get().shape.points((int) rasteredImageParams.get("depth"));
+        int count = points[0].length;
+        if (drawRoute && count > 1) {
             Graphics2D g2d = (Graphics2D) graphic;
             g2d.setColor(MapServer.ROUTE_STROKE_COLOR);
             g2d.setStroke(new BasicStroke(MapServer.ROUTE_STROKE_WIDTH_PX,
                     BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
-            route.stream().reduce((v, w) -> {
-                g2d.drawLine((int) ((graph.lon(v) - ullon) * (1 / wdpp)),
-                        (int) ((ullat - graph.lat(v)) * (1 / hdpp)),
-                        (int) ((graph.lon(w) - ullon) * (1 / wdpp)),
-                        (int) ((ullat - graph.lat(w)) * (1 / hdpp)));
-                return w;
-            });
+            int[] xs = new int[count];
+            int[] ys = new int[count];
+            for (int i = 0; i < count; i += 1) {
+                xs[i] = (int) ((points[0][i] - ullon) * (1 / wdpp));
+                ys[i] = (int) ((ullat - points[1][i]) * (1 / hdpp));
+            }
+            g2d.drawPolyline(xs, ys, count);
         }
+        graphic.dispose();
 
         rasteredImageParams.put("raster_width", img.getWidth());
         rasteredImageParams.put("raster_height", img.getHeight());
+        return img;
+    }
 
+    /**
+     * Snaps a GPS trace, given as {lons, lats}, to the graph within ROUTE_TIMEOUT_MILLIS.
+     */
+    private static MapMatcher.Match matchTrace(double[][] trace) {
+        GraphDB g = graph;
+        MapMatcher matcher = MATCHERS.poll();
+        if (matcher == null || matcher.graph() != g) {
+            matcher = new MapMatcher(g);
+        }
         try {
-            ImageIO.write(img, "png", os);
-        } catch (IOException e) {
-            e.printStackTrace();
+            return matcher.match(trace[0], trace[1], trace[0].length, ROUTE_TIMEOUT_MILLIS);
+        } finally {
+            if (matcher.graph() == graph) {
+                MATCHERS.offer(matcher);
+            }
         }
-
     }
 
-    private static BufferedImage getImage(String imgPath) {
-        BufferedImage tileImg = null;
-        if (tileImg == null) {
+    /**
+     * Reads "lon,lat" lines from a request body into {lons, lats}, halting the request on a
+     * malformed line or more than max points. Blank lines and lines starting with '#' are
+     * skipped.
+     */
+    private static double[][] readPoints(InputStream in, int max) throws IOException {
+        double[] lons = new double[1024];
+        double[] lats = new double[1024];
+        int count = 0;
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            int comma = line.indexOf(',');
+            if (comma < 0) {
+                halt(HALT_RESPONSE, "Incorrect points - expected lon,lat per line.");
+            }
+            if (count == max) {
+                halt(HALT_RESPONSE, "Request failed - too many points.");
+            }
+            if (count == lons.length) {
+                lons = Arrays.copyOf(lons, count * 2);
+                lats = Arrays.copyOf(lats, count * 2);
+            }
             try {
-                File in = new File(imgPath);
-                tileImg = ImageIO.read(in);
-            } catch (IOException | NullPointerException e) {
-                e.printStackTrace();
+                lons[count] = Double.parseDouble(line.substring(0, comma).trim());
+                lats[count] = Double.parseDouble(line.substring(comma + 1).trim());
+            } catch (NumberFormatException e) {
+                halt(HALT_RESPONSE, "Incorrect points - provide numbers.");
             }
+            count += 1;
         }
-        return tileImg;
+        return new double[][] {Arrays.copyOf(lons, count), Arrays.copyOf(lats, count)};
     }
 
     /**
      * Clear the current found route, if it exists.
      */
     public static void clearRoute() {
-        route = new LinkedList<Long>();
+        setRoute(DrawnRoute.NONE);
     }
 
     /**
@@ -342,11 +1280,11 @@ public class MapServer {
     }
 
     /**
-     * Takes the route of this MapServer and converts it into an HTML friendly
+     * Takes a route and converts it into an HTML friendly
      * String to be passed to the frontend.
      */
-    private static String getDirectionsText() {
-        List<Router.NavigationDirection> directions = Router.routeDirections(graph, route);
+    private static String getDirectionsText(GraphDB g, List<Long> route) {
+        List<Router.NavigationDirection> directions = Router.routeDirections(g, route);
         if (directions == null || directions.isEmpty()) {
             return "";
         }
@@ -0,0 +1,83 @@
+import java.util.Arrays;
+
+/**
+ * Binary min-heap of (int vertex, double key) pairs backed by two parallel primitive arrays.
+ * Used by the searches in place of PriorityQueue&lt;Long&gt; so that pushing a vertex does not
+ * box it or call back into a comparator. Decrease-key is not supported; callers push the vertex
+ * again and skip stale entries when they are polled (lazy deletion).
+ */
+final class MinHeap {
+    private int[] vertices;
+    private double[] keys;
+    private int size;
+
+    MinHeap(int capacity) {
+        capacity = Math.max(capacity, 16);
+        vertices = new int[capacity];
+        keys = new double[capacity];
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    /** Returns the smallest key in the heap. The heap must not be empty. */
+    double peekKey() {
+        return keys[0];
+    }
+
+    void push(int vertex, double key) {
+        if (size == vertices.length) {
+            vertices = Arrays.copyOf(vertices, size * 2);
+            keys = Arrays.copyOf(keys, size * 2);
+        }
+        int i = size;
+        size += 1;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (keys[parent] <= key) {
+                break;
+            }
+            vertices[i] = vertices[parent];
+            keys[i] = keys[parent];
+            i = parent;
+        }
+        vertices[i] = vertex;
+        keys[i] = key;
+    }
+
+    /** Removes the entry with the smallest key and returns its vertex. */
+    int poll() {
+        int top = vertices[0];
+        size -= 1;
+        if (size > 0) {
+            int vertex = vertices[size];
+            double key = keys[size];
+            int i = 0;
+            int half = size >>> 1;
+            while (i < half) {
+                int child = 2 * i + 1;
+                if (child + 1 < size && keys[child + 1] < keys[child]) {
+                    child += 1;
+                }
+                if (key <= keys[child]) {
+                    break;
+                }
+                vertices[i] = vertices[child];
+                keys[i] = keys[child];
+                i = child;
+            }
+            vertices[i] = vertex;
+            keys[i] = key;
+        }
+        return top;
+    }
+}
@@ -0,0 +1,292 @@
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Applies an OSM change file (.osc: create, modify and delete blocks of nodes and ways) to a
+ * GraphDB, producing a new version of the graph instead of reparsing the whole extract.
+ * <p>
+ * The new version recreates only the nodes the change touches, with their edges, from the old
+ * one's CompactGraph (see GraphDB(GraphDB)), and only those are edited, so the old version
+ * stays intact for the queries still running on it. Once all changes are in, the new version
+ * derives its CompactGraph from the old one, rewriting only the touched vertices and sharing
+ * the rest, and the caller swaps it in with a single reference assignment. Queries that
+ * already hold the old version finish on it, and queries that start later see the change; the
+ * new version keeps no reference to the old one, which is collected once they are done.
+ * The closures of the old version carry over.
+ * <p>
+ * Ways are interpreted exactly as when the extract is parsed; the way elements of create and
+ * modify blocks are handed to a GraphBuildingHandler. A way in the change must only refer to
+ * nodes that are in the graph (on some road) or created by the same change. Otherwise the
+ * change is rejected as a whole. Turn restriction relations in a change are ignored.
+ */
+final class OsmChange {
+    /** The new version of the graph. */
+    final GraphDB graph;
+    /** Number of node and way elements applied. */
+    final int nodes;
+    final int ways;
+
+    private OsmChange(GraphDB graph, int nodes, int ways) {
+        this.graph = graph;
+        this.nodes = nodes;
+        this.ways = ways;
+    }
+
+    /**
+     * Reads a change file and applies it to a new version of base; base is not changed.
+     *
+     * @throws IOException              If the change cannot be read or is not valid XML.
+     * @throws IllegalArgumentException If a way refers to a node that does not exist.
+     */
+    static OsmChange apply(GraphDB base, InputStream in) throws IOException {
+        byte[] osc = readAll(in);
+        SAXParser parser;
+        try {
+            parser = SAXParserFactory.newInstance().newSAXParser();
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IOException(e);
+        }
+        /* The first pass only collects the ways the change replaces or deletes, so their
+         * nodes can be looked up before any of them is edited. */
+        WayCollector collector = new WayCollector();
+        parse(parser, osc, collector);
+        GraphDB g = new GraphDB(base);
+        Map<String, Set<Long>> wayNodes = nodesOf(base, collector.replaced);
+        Applier applier = new Applier(g, wayNodes);
+        parse(parser, osc, applier);
+        applier.dropIsolated();
+        g.build();
+        g.overlay().copyRules(base.overlay());
+        return new OsmChange(g, applier.nodes, applier.ways);
+    }
+
+    private static void parse(SAXParser parser, byte[] osc, DefaultHandler handler)
+            throws IOException {
+        try {
+            parser.reset();
+            parser.parse(new ByteArrayInputStream(osc), handler);
+        } catch (SAXException e) {
+            if (e.getException() instanceof IllegalArgumentException) {
+                throw (IllegalArgumentException) e.getException();
+            }
+            throw new IOException(e);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1 << 16];
+        for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    /** Returns, for each of the given way ids, the nodes at either end of an edge of it. */
+    private static Map<String, Set<Long>> nodesOf(GraphDB g, Set<String> ways) {
+        Map<String, Set<Long>> nodes = new HashMap<>();
+        CompactGraph c = g.compact();
+        for (String way : ways) {
+            Set<Long> ends = new HashSet<>();
+            for (int v : c.wayVertices(Long.parseLong(way))) {
+                ends.add(c.osmId(v));
+            }
+            if (!ends.isEmpty()) {
+                nodes.put(way, ends);
+            }
+        }
+        return nodes;
+    }
+
+    /** Collects the ids of ways that are modified or deleted. */
+    private static final class WayCollector extends DefaultHandler {
+        private final Set<String> replaced = new HashSet<>();
+        private String action = "";
+
+        @Override
+        public void startElement(String uri, String localName, String qName,
+                                 Attributes attributes) {
+            if (qName.equals("create") || qName.equals("modify") || qName.equals("delete")) {
+                action = qName;
+            } else if (qName.equals("way") && !action.equals("create")) {
+                replaced.add(attributes.getValue("id"));
+            }
+        }
+    }
+
+    /**
+     * Applies the elements of a change to g. Node elements are handled here; way elements of
+     * create and modify blocks go to the GraphBuildingHandler once the nodes they touch have
+     * been copied into g.
+     */
+    private static final class Applier extends GraphBuildingHandler {
+        private final GraphDB g;
+        private final Map<String, Set<Long>> wayNodes;
+        /** Nodes whose edges changed; those left without any are dropped at the end. */
+        private final Set<Long> touched = new HashSet<>();
+        private String action = "";
+        private GraphDB.Node node;
+        private String way;
+        private final List<Long> refs = new ArrayList<>();
+        private int nodes;
+        private int ways;
+
+        Applier(GraphDB g, Map<String, Set<Long>> wayNodes) {
+            super(g);
+            this.g = g;
+            this.wayNodes = wayNodes;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName,
+                                 Attributes attributes) throws SAXException {
+            if (qName.equals("create") || qName.equals("modify") || qName.equals("delete")) {
+                action = qName;
+            } else if (qName.equals("node")) {
+                nodes += 1;
+                node = startNode(attributes);
+            } else if (node != null && qName.equals("tag")) {
+                if ("name".equals(attributes.getValue("k"))) {
+                    node.name = attributes.getValue("v");
+                }
+            } else if (qName.equals("way")) {
+                ways += 1;
+                way = attributes.getValue("id");
+                removeWay(way);
+                if (!action.equals("delete")) {
+                    super.startElement(uri, localName, qName, attributes);
+                }
+            } else if (way != null && !action.equals("delete")) {
+                if (qName.equals("nd")) {
+                    refs.add(Long.parseLong(attributes.getValue("ref")));
+                }
+                super.startElement(uri, localName, qName, attributes);
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName)
+                throws SAXException {
+            if (qName.equals("node")) {
+                node = null;
+            } else if (qName.equals("way")) {
+                if (action.equals("delete")) {
+                    g.changeWay(Long.parseLong(way), new ArrayList<>());
+                } else {
+                    for (long ref : refs) {
+                        if (g.mutableNode(ref) == null) {
+                            throw new SAXException(new IllegalArgumentException("Way " + way
+                                    + " refers to node " + ref + ", which is not in the graph"));
+                        }
+                        touched.add(ref);
+                    }
+                    super.endElement(uri, localName, qName);
+                    wayNodes.put(way, new HashSet<>(refs));
+                    g.changeWay(Long.parseLong(way), new HashSet<>(refs));
+                }
+                way = null;
+                refs.clear();
+            }
+        }
+
+        /**
+         * Creates, moves or deletes a node. Returns the node of g that later name tags apply
+         * to, or null for a deletion.
+         */
+        private GraphDB.Node startNode(Attributes attributes) {
+            long id = Long.parseLong(attributes.getValue("id"));
+            if (action.equals("delete")) {
+                GraphDB.Node old = g.removeNode(id);
+                if (old != null) {
+                    for (GraphDB.Edge edge : old.edgesToNeighbors) {
+                        GraphDB.Node neighbor = g.mutableNode(edge.endID);
+                        if (neighbor != null) {
+                            neighbor.edgesToNeighbors.removeIf(e -> e.endID == id);
+                            touched.add(edge.endID);
+                        }
+                    }
+                }
+                return null;
+            }
+            double lat = Double.parseDouble(attributes.getValue("lat"));
+            double lon = Double.parseDouble(attributes.getValue("lon"));
+            GraphDB.Node old = g.mutableNode(id);
+            GraphDB.Node created = new GraphDB.Node(id, g.coordinates, lon, lat,
+                    old == null ? null : old.name);
+            g.putNode(created);
+            touched.add(id);
+            if (old == null) {
+                return created;
+            }
+            /* The node moved (or may have): its edges, and its neighbours' edges to it, get
+             * their lengths measured again. */
+            for (GraphDB.Edge edge : old.edgesToNeighbors) {
+                GraphDB.Node neighbor = g.mutableNode(edge.endID);
+                if (neighbor == null) {
+                    continue;
+                }
+                created.edgesToNeighbors.add(copy(edge));
+                List<GraphDB.Edge> edges = neighbor.edgesToNeighbors;
+                for (int i = 0; i < edges.size(); i += 1) {
+                    if (edges.get(i).endID == id) {
+                        edges.set(i, copy(edges.get(i)));
+                    }
+                }
+            }
+            return created;
+        }
+
+        /** Returns a copy of edge in g, with its length measured between g's nodes. */
+        private GraphDB.Edge copy(GraphDB.Edge edge) {
+            GraphDB.Edge copy = g.newEdge(edge.id, edge.startID, edge.endID);
+            copy.name = edge.name;
+            copy.maxSpeed = edge.maxSpeed;
+            copy.highway = edge.highway;
+            copy.speed = edge.speed;
+            copy.traversable = edge.traversable;
+            return copy;
+        }
+
+        /** Removes every edge of the way from g, copying the nodes that had one. */
+        private void removeWay(String id) {
+            Set<Long> nodes = wayNodes.remove(id);
+            if (nodes == null) {
+                return;
+            }
+            for (long v : nodes) {
+                GraphDB.Node n = g.mutableNode(v);
+                if (n != null) {
+                    n.edgesToNeighbors.removeIf(e -> e.id.equals(id));
+                    touched.add(v);
+                }
+            }
+        }
+
+        /** Drops nodes the change left without edges, as GraphDB does after parsing. */
+        void dropIsolated() {
+            for (Iterator<Long> it = touched.iterator(); it.hasNext(); ) {
+                long id = it.next();
+                GraphDB.Node n = g.nodeList.get(id);
+                if (n != null && n.edgesToNeighbors.isEmpty()) {
+                    g.removeNode(id);
+                }
+            }
+        }
+    }
+}
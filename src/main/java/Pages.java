@@ -0,0 +1,180 @@
+import java.util.Arrays;
+
+/**
+ * Primitive arrays split into pages of PAGE_SIZE entries, so that a new version of a graph can
+ * share every page of the old one and copy only the pages it writes to. copy() clones the page
+ * table, which is one reference per page, not the entries; set() then copies a page the first
+ * time it is written unless the page was created or copied by this array. The copy keeps no
+ * reference to the array it was copied from, so an old version is collected once unused.
+ * <p>
+ * An array is written by one thread while it is filled and only read once the graph holding it
+ * is published.
+ */
+final class Pages {
+    static final int PAGE_BITS = 10;
+    static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    private Pages() {
+    }
+
+    private static int pagesFor(int size) {
+        return Math.max(1, (size + PAGE_SIZE - 1) >>> PAGE_BITS);
+    }
+
+    /** Paged int[]. */
+    static final class Ints {
+        private int[][] pages;
+        /** Whether page p belongs to this array and may be written in place. */
+        private boolean[] owned;
+        private int size;
+
+        Ints(int[] values, int size) {
+            pages = new int[pagesFor(size)][];
+            for (int p = 0; p < pages.length; p += 1) {
+                pages[p] = Arrays.copyOfRange(values, p << PAGE_BITS, (p + 1) << PAGE_BITS);
+            }
+            owned = new boolean[pages.length];
+            Arrays.fill(owned, true);
+            this.size = size;
+        }
+
+        private Ints(Ints from) {
+            pages = from.pages.clone();
+            owned = new boolean[pages.length];
+            size = from.size;
+        }
+
+        int get(int i) {
+            return pages[i >>> PAGE_BITS][i & PAGE_MASK];
+        }
+
+        int size() {
+            return size;
+        }
+
+        /** Returns an array with the same entries that shares this one's pages. */
+        Ints copy() {
+            return new Ints(this);
+        }
+
+        /** Sets entry i, growing the array if i is at or past its end. */
+        void set(int i, int value) {
+            int p = i >>> PAGE_BITS;
+            if (p >= pages.length) {
+                pages = Arrays.copyOf(pages, Math.max(p + 1, 2 * pages.length));
+                owned = Arrays.copyOf(owned, pages.length);
+            }
+            if (pages[p] == null) {
+                pages[p] = new int[PAGE_SIZE];
+            } else if (!owned[p]) {
+                pages[p] = pages[p].clone();
+            }
+            owned[p] = true;
+            pages[p][i & PAGE_MASK] = value;
+            size = Math.max(size, i + 1);
+        }
+    }
+
+    /** Paged long[]. */
+    static final class Longs {
+        private long[][] pages;
+        private boolean[] owned;
+        private int size;
+
+        Longs(long[] values, int size) {
+            pages = new long[pagesFor(size)][];
+            for (int p = 0; p < pages.length; p += 1) {
+                pages[p] = Arrays.copyOfRange(values, p << PAGE_BITS, (p + 1) << PAGE_BITS);
+            }
+            owned = new boolean[pages.length];
+            Arrays.fill(owned, true);
+            this.size = size;
+        }
+
+        private Longs(Longs from) {
+            pages = from.pages.clone();
+            owned = new boolean[pages.length];
+            size = from.size;
+        }
+
+        long get(int i) {
+            return pages[i >>> PAGE_BITS][i & PAGE_MASK];
+        }
+
+        int size() {
+            return size;
+        }
+
+        Longs copy() {
+            return new Longs(this);
+        }
+
+        void set(int i, long value) {
+            int p = i >>> PAGE_BITS;
+            if (p >= pages.length) {
+                pages = Arrays.copyOf(pages, Math.max(p + 1, 2 * pages.length));
+                owned = Arrays.copyOf(owned, pages.length);
+            }
+            if (pages[p] == null) {
+                pages[p] = new long[PAGE_SIZE];
+            } else if (!owned[p]) {
+                pages[p] = pages[p].clone();
+            }
+            owned[p] = true;
+            pages[p][i & PAGE_MASK] = value;
+            size = Math.max(size, i + 1);
+        }
+    }
+
+    /** Paged double[]. */
+    static final class Doubles {
+        private double[][] pages;
+        private boolean[] owned;
+        private int size;
+
+        Doubles(double[] values, int size) {
+            pages = new double[pagesFor(size)][];
+            for (int p = 0; p < pages.length; p += 1) {
+                pages[p] = Arrays.copyOfRange(values, p << PAGE_BITS, (p + 1) << PAGE_BITS);
+            }
+            owned = new boolean[pages.length];
+            Arrays.fill(owned, true);
+            this.size = size;
+        }
+
+        private Doubles(Doubles from) {
+            pages = from.pages.clone();
+            owned = new boolean[pages.length];
+            size = from.size;
+        }
+
+        double get(int i) {
+            return pages[i >>> PAGE_BITS][i & PAGE_MASK];
+        }
+
+        int size() {
+            return size;
+        }
+
+        Doubles copy() {
+            return new Doubles(this);
+        }
+
+        void set(int i, double value) {
+            int p = i >>> PAGE_BITS;
+            if (p >= pages.length) {
+                pages = Arrays.copyOf(pages, Math.max(p + 1, 2 * pages.length));
+                owned = Arrays.copyOf(owned, pages.length);
+            }
+            if (pages[p] == null) {
+                pages[p] = new double[PAGE_SIZE];
+            } else if (!owned[p]) {
+                pages[p] = pages[p].clone();
+            }
+            owned[p] = true;
+            pages[p][i & PAGE_MASK] = value;
+            size = Math.max(size, i + 1);
+        }
+    }
+}
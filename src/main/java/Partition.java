@@ -0,0 +1,467 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * A split of a CompactGraph into cells of at most a given number of vertices, with few edges
+ * between cells, and the boundary vertices the cells connect through. This is what lets a
+ * route be answered by searches confined to single cells plus a search over a small overlay
+ * of boundary vertices; see ClusterRouter.
+ * <p>
+ * Cells come from recursive inertial flow bisection. A set of vertices is sorted along a few
+ * directions (east-west, north-south and the diagonals). For each direction, the first and
+ * last quarter along it become source and sink, and a unit-capacity max flow between them
+ * gives the minimum cut. The direction with the smallest cut wins. Its vertices reachable
+ * from the sources in the residual graph form one half, so each half keeps at least a
+ * quarter of the vertices. Road networks have small natural cuts (rivers, freeways, ridges)
+ * and this finds them.
+ * <p>
+ * The overlay only knows distances between vertices, so it cannot check a turn restriction
+ * at a boundary vertex. Bisection therefore works on atoms rather than single vertices: the
+ * via vertex of every restriction is tied to all its neighbours (see atoms()), so every edge
+ * of a restricted turn lies inside one cell and the cell's own search checks it. A cell can
+ * exceed its size limit when one atom alone is larger.
+ * <p>
+ * write() saves a partition for a routing cluster, so that none of its processes loads the
+ * graph: partition.idx holds the vertex and cell counts, overlay.bin and vertices.bin what the
+ * coordinator loads (see ClusterOverlay), and cell-k.bin each cell for the worker owning it
+ * (see CellGraph). All of them number vertices by the graph's dense ids. Write it once with
+ * <pre>
+ *   java -cp ... Partition berkeley-2018.osm.xml partition/ [most vertices in a cell]
+ * </pre>
+ */
+final class Partition {
+    /** Default most vertices in a cell. */
+    static final int CELL_SIZE = 2000;
+    private static final int MAGIC = 0x424d5043;
+    private static final int VERSION = 1;
+    private static final String INDEX_FILE = "partition.idx";
+    /** Fraction of the vertices, at each end of a direction, used as source and sink. */
+    private static final double TERMINAL_FRACTION = 0.25;
+    /** Directions (east, north components) vertices are sorted along. */
+    private static final double[][] DIRECTIONS = {{1, 0}, {0, 1}, {1, 1}, {1, -1}};
+
+    /** The cell of every vertex. */
+    final int[] cell;
+    /** Number of cells; cells are numbered from 0. */
+    final int cellCount;
+    /** The boundary vertices of each cell: those with an edge to or from another cell. */
+    final int[][] boundary;
+    /** Position of every vertex in its cell's boundary list, or -1 if it is interior. */
+    final int[] boundaryIndex;
+
+    private Partition(int[] cell, int cellCount, CompactGraph c) {
+        this.cell = cell;
+        this.cellCount = cellCount;
+        int n = c.size();
+        boolean[] isBoundary = new boolean[n];
+        for (int v = 0; v < n; v += 1) {
+            for (int e = c.firstEdge(v); e < c.endEdge(v); e += 1) {
+                int w = c.target(e);
+                if (cell[w] != cell[v]) {
+                    isBoundary[v] = true;
+                    isBoundary[w] = true;
+                }
+            }
+        }
+        int[] counts = new int[cellCount];
+        for (int v = 0; v < n; v += 1) {
+            if (isBoundary[v]) {
+                counts[cell[v]] += 1;
+            }
+        }
+        boundary = new int[cellCount][];
+        for (int k = 0; k < cellCount; k += 1) {
+            boundary[k] = new int[counts[k]];
+            counts[k] = 0;
+        }
+        boundaryIndex = new int[n];
+        Arrays.fill(boundaryIndex, -1);
+        for (int v = 0; v < n; v += 1) {
+            if (isBoundary[v]) {
+                int k = cell[v];
+                boundaryIndex[v] = counts[k];
+                boundary[k][counts[k]] = v;
+                counts[k] += 1;
+            }
+        }
+    }
+
+    /**
+     * Partitions c into cells of at most maxCellSize vertices, or a single atom where that is
+     * larger.
+     */
+    static Partition inertialFlow(CompactGraph c, int maxCellSize) {
+        int n = c.size();
+        int[] cell = new int[n];
+        int cellCount = 0;
+        Deque<int[]> parts = new ArrayDeque<>();
+        int[] all = new int[n];
+        for (int v = 0; v < n; v += 1) {
+            all[v] = v;
+        }
+        if (n > 0) {
+            parts.push(all);
+        }
+        Bisection bisection = new Bisection(c, atoms(c));
+        while (!parts.isEmpty()) {
+            int[] part = parts.pop();
+            int[][] halves = part.length <= Math.max(maxCellSize, 1) ? null
+                    : bisection.split(part);
+            if (halves == null) {
+                for (int v : part) {
+                    cell[v] = cellCount;
+                }
+                cellCount += 1;
+                continue;
+            }
+            parts.push(halves[1]);
+            parts.push(halves[0]);
+        }
+        return new Partition(cell, cellCount, c);
+    }
+
+    /**
+     * Returns the atom of every vertex, named by its smallest vertex. The via vertex of a turn
+     * restriction shares an atom with every vertex it has an edge to or from, and atoms that
+     * share a vertex are one; every other vertex is an atom of its own.
+     */
+    static int[] atoms(CompactGraph c) {
+        int n = c.size();
+        int[] atom = new int[n];
+        for (int v = 0; v < n; v += 1) {
+            atom[v] = v;
+        }
+        if (c.hasTurnRestrictions()) {
+            for (int v = 0; v < n; v += 1) {
+                if (!isVia(c, v)) {
+                    continue;
+                }
+                for (int e = c.firstEdge(v); e < c.endEdge(v); e += 1) {
+                    union(atom, v, c.target(e));
+                }
+                for (int i = c.firstIn(v); i < c.endIn(v); i += 1) {
+                    union(atom, v, c.source(i));
+                }
+            }
+        }
+        for (int v = 0; v < n; v += 1) {
+            atom[v] = find(atom, v);
+        }
+        return atom;
+    }
+
+    /** Returns true if some turn through v is forbidden. */
+    private static boolean isVia(CompactGraph c, int v) {
+        for (int i = c.firstIn(v); i < c.endIn(v); i += 1) {
+            for (int e = c.firstEdge(v); e < c.endEdge(v); e += 1) {
+                if (c.isRestricted(v, c.inEdge(i), e)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static int find(int[] parent, int v) {
+        while (parent[v] != v) {
+            parent[v] = parent[parent[v]];
+            v = parent[v];
+        }
+        return v;
+    }
+
+    /** Joins the sets of v and w under the smaller of their roots. */
+    private static void union(int[] parent, int v, int w) {
+        int a = find(parent, v);
+        int b = find(parent, w);
+        parent[Math.max(a, b)] = Math.min(a, b);
+    }
+
+    /**
+     * Writes this partition of c into dir for a routing cluster: the index, the coordinator's
+     * overlay and snapping index, and one file per cell. The index goes last, so a directory
+     * whose writing failed cannot be opened as a partition.
+     */
+    void write(CompactGraph c, Path dir) throws IOException {
+        Files.createDirectories(dir);
+        Files.deleteIfExists(dir.resolve(INDEX_FILE));
+        int[][] members = new int[cellCount][];
+        int[] sizes = cellSizes();
+        for (int k = 0; k < cellCount; k += 1) {
+            members[k] = new int[sizes[k]];
+            sizes[k] = 0;
+        }
+        for (int v = 0; v < cell.length; v += 1) {
+            members[cell[v]][sizes[cell[v]]++] = v;
+        }
+        ClusterOverlay.write(c, this, dir);
+        for (int k = 0; k < cellCount; k += 1) {
+            CellGraph.write(c, this, k, members[k], dir);
+        }
+        try (DataOutputStream out = open(dir.resolve(INDEX_FILE))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(cell.length);
+            out.writeInt(cellCount);
+        }
+    }
+
+    /** Reads the index of the partition written into dir: {vertex count, cell count}. */
+    static int[] readIndex(Path dir) throws IOException {
+        ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(dir.resolve(INDEX_FILE)));
+        if (index.getInt() != MAGIC || index.getInt() != VERSION) {
+            throw new IOException("Not a partition index: " + dir.resolve(INDEX_FILE));
+        }
+        return new int[] {index.getInt(), index.getInt()};
+    }
+
+    static DataOutputStream open(Path path) throws IOException {
+        OutputStream out = Files.newOutputStream(path);
+        return new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+    }
+
+    /** Partitions an OSM file: Partition osm-file directory [most vertices in a cell]. */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: Partition osm-file directory [most vertices in a cell]");
+            System.exit(1);
+        }
+        int cellSize = args.length > 2 ? Integer.parseInt(args[2]) : CELL_SIZE;
+        long begin = System.nanoTime();
+        CompactGraph c = new GraphDB(args[0]).compact();
+        Partition partition = inertialFlow(c, cellSize);
+        partition.write(c, Paths.get(args[1]));
+        System.out.printf("Wrote %d cells of %d vertices to %s in %.1f s%n",
+                partition.cellCount, c.size(), args[1], (System.nanoTime() - begin) / 1e9);
+    }
+
+    /** Returns the number of vertices in every cell. */
+    int[] cellSizes() {
+        int[] sizes = new int[cellCount];
+        for (int k : cell) {
+            sizes[k] += 1;
+        }
+        return sizes;
+    }
+
+    /**
+     * Scratch space for one bisection at a time, indexed by vertex. The flow network has one
+     * node per atom of the part, so a split never separates an atom.
+     */
+    private static final class Bisection {
+        private final CompactGraph c;
+        /** The atom of every vertex; see atoms(). */
+        private final int[] atom;
+        /** Position of each atom, by its name, among the part's atoms, or -1 if outside it. */
+        private final int[] local;
+
+        Bisection(CompactGraph c, int[] atom) {
+            this.c = c;
+            this.atom = atom;
+            this.local = new int[c.size()];
+            Arrays.fill(local, -1);
+        }
+
+        /**
+         * Splits part, a union of atoms, in two along the smallest inertial flow cut; returns
+         * null if it is a single atom.
+         */
+        int[][] split(int[] part) {
+            int[] atoms = new int[part.length];
+            int n = 0;
+            for (int v : part) {
+                if (local[atom[v]] < 0) {
+                    local[atom[v]] = n;
+                    atoms[n++] = atom[v];
+                }
+            }
+            if (n < 2) {
+                local[atoms[0]] = -1;
+                return null;
+            }
+            atoms = Arrays.copyOf(atoms, n);
+            Network network = new Network(part, n);
+            int terminals = Math.max(1, (int) (n * TERMINAL_FRACTION));
+            boolean[] best = null;
+            int bestCut = Integer.MAX_VALUE;
+            for (double[] direction : DIRECTIONS) {
+                int[] order = sortAlong(atoms, direction);
+                boolean[] side = network.minCut(order, terminals, bestCut);
+                if (side != null) {
+                    bestCut = network.flow;
+                    best = side;
+                }
+            }
+            int count = 0;
+            for (int v : part) {
+                count += best[local[atom[v]]] ? 1 : 0;
+            }
+            int[] first = new int[count];
+            int[] second = new int[part.length - count];
+            int a = 0;
+            int b = 0;
+            for (int v : part) {
+                if (best[local[atom[v]]]) {
+                    first[a++] = v;
+                } else {
+                    second[b++] = v;
+                }
+            }
+            for (int v : atoms) {
+                local[v] = -1;
+            }
+            return new int[][] {first, second};
+        }
+
+        /**
+         * Returns local indices of part ordered by projection onto direction. Here part holds
+         * the names of atoms, which stand at the position of the vertex naming them.
+         */
+        private int[] sortAlong(int[] part, double[] direction) {
+            int n = part.length;
+            double[] key = new double[n];
+            Integer[] order = new Integer[n];
+            for (int i = 0; i < n; i += 1) {
+                int v = part[i];
+                double x = c.lon(v) * Math.cos(Math.toRadians(c.lat(v)));
+                key[i] = x * direction[0] + c.lat(v) * direction[1];
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> {
+                int byKey = Double.compare(key[a], key[b]);
+                return byKey != 0 ? byKey : Integer.compare(part[a], part[b]);
+            });
+            int[] sorted = new int[n];
+            for (int i = 0; i < n; i += 1) {
+                sorted[i] = order[i];
+            }
+            return sorted;
+        }
+
+        /**
+         * The part's edges between atoms as an undirected unit-capacity flow network: every
+         * road segment is a pair of arcs that are each other's reverse, so a one-way street can
+         * be cut as cheaply as a two-way one; both directions of a two-way street count.
+         */
+        private final class Network {
+            private final int n;
+            private final int[] arcStart;
+            private final int[] arcHead;
+            private final int[] arcTail;
+            /** The arc running the other way along the same segment. */
+            private final int[] pair;
+            private final int[] capacity;
+            private final int[] initial;
+            int flow;
+
+            Network(int[] part, int atoms) {
+                n = atoms;
+                arcStart = new int[n + 1];
+                List<int[]> segments = new ArrayList<>();
+                for (int v : part) {
+                    int i = local[atom[v]];
+                    for (int e = c.firstEdge(v); e < c.endEdge(v); e += 1) {
+                        int j = local[atom[c.target(e)]];
+                        if (j >= 0 && j != i) {
+                            segments.add(new int[] {i, j});
+                            arcStart[i + 1] += 1;
+                            arcStart[j + 1] += 1;
+                        }
+                    }
+                }
+                for (int i = 0; i < n; i += 1) {
+                    arcStart[i + 1] += arcStart[i];
+                }
+                int m = arcStart[n];
+                arcHead = new int[m];
+                arcTail = new int[m];
+                pair = new int[m];
+                capacity = new int[m];
+                initial = new int[m];
+                int[] next = Arrays.copyOf(arcStart, n);
+                for (int[] s : segments) {
+                    int a = next[s[0]]++;
+                    int b = next[s[1]]++;
+                    arcTail[a] = s[0];
+                    arcHead[a] = s[1];
+                    arcTail[b] = s[1];
+                    arcHead[b] = s[0];
+                    pair[a] = b;
+                    pair[b] = a;
+                }
+                Arrays.fill(initial, 1);
+            }
+
+            /**
+             * Runs Edmonds-Karp from the first terminals vertices of order to the last ones
+             * and returns the source side of the minimum cut, or null if the flow reaches
+             * limit first (a cheaper cut is already known).
+             */
+            boolean[] minCut(int[] order, int terminals, int limit) {
+                System.arraycopy(initial, 0, capacity, 0, capacity.length);
+                byte[] role = new byte[n];
+                for (int i = 0; i < terminals; i += 1) {
+                    role[order[i]] = 1;
+                    role[order[n - 1 - i]] = 2;
+                }
+                flow = 0;
+                int[] via = new int[n];
+                int[] queue = new int[n];
+                while (true) {
+                    Arrays.fill(via, -2);
+                    int head = 0;
+                    int tail = 0;
+                    for (int i = 0; i < n; i += 1) {
+                        if (role[i] == 1) {
+                            via[i] = -1;
+                            queue[tail++] = i;
+                        }
+                    }
+                    int sink = -1;
+                    while (head < tail && sink < 0) {
+                        int i = queue[head++];
+                        for (int a = arcStart[i]; a < arcStart[i + 1]; a += 1) {
+                            int j = arcHead[a];
+                            if (capacity[a] > 0 && via[j] == -2) {
+                                via[j] = a;
+                                if (role[j] == 2) {
+                                    sink = j;
+                                    break;
+                                }
+                                queue[tail++] = j;
+                            }
+                        }
+                    }
+                    if (sink < 0) {
+                        boolean[] side = new boolean[n];
+                        for (int i = 0; i < n; i += 1) {
+                            side[i] = via[i] != -2;
+                        }
+                        return side;
+                    }
+                    flow += 1;
+                    if (flow >= limit) {
+                        return null;
+                    }
+                    for (int j = sink; via[j] >= 0; ) {
+                        int a = via[j];
+                        capacity[a] -= 1;
+                        capacity[pair[a]] += 1;
+                        j = arcTail[a];
+                    }
+                }
+            }
+        }
+    }
+}
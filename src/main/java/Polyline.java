@@ -0,0 +1,82 @@
+import java.util.Arrays;
+
+/**
+ * The encoded polyline format of Google's mapping APIs, which the front end draws routes from:
+ * every point is a latitude and a longitude rounded to 1e-5 degrees (about a metre), each
+ * written as its difference from the previous point in base-64 digits of 5 bits, least
+ * significant first. A route of a thousand vertices comes to a few kilobytes of text, against
+ * several times that as a JSON array of numbers.
+ */
+final class Polyline {
+    private static final double PRECISION = 1e5;
+
+    private Polyline() {
+    }
+
+    /** Encodes the first count points of lons and lats. */
+    static String encode(double[] lons, double[] lats, int count) {
+        StringBuilder sb = new StringBuilder(count * 8);
+        long lat = 0;
+        long lon = 0;
+        for (int i = 0; i < count; i += 1) {
+            long nextLat = Math.round(lats[i] * PRECISION);
+            long nextLon = Math.round(lons[i] * PRECISION);
+            write(sb, nextLat - lat);
+            write(sb, nextLon - lon);
+            lat = nextLat;
+            lon = nextLon;
+        }
+        return sb.toString();
+    }
+
+    private static void write(StringBuilder sb, long delta) {
+        long v = delta < 0 ? ~(delta << 1) : delta << 1;
+        while (v >= 0x20) {
+            sb.append((char) ((0x20 | (v & 0x1f)) + 63));
+            v >>= 5;
+        }
+        sb.append((char) (v + 63));
+    }
+
+    /**
+     * Returns the points of an encoded polyline as {lons, lats}.
+     *
+     * @throws IllegalArgumentException If it is cut off or has characters outside the format.
+     */
+    static double[][] decode(String encoded) {
+        double[] lons = new double[encoded.length() / 2];
+        double[] lats = new double[encoded.length() / 2];
+        int count = 0;
+        long lat = 0;
+        long lon = 0;
+        int[] at = {0};
+        while (at[0] < encoded.length()) {
+            lat += read(encoded, at);
+            lon += read(encoded, at);
+            lats[count] = lat / PRECISION;
+            lons[count] = lon / PRECISION;
+            count += 1;
+        }
+        return new double[][] {Arrays.copyOf(lons, count), Arrays.copyOf(lats, count)};
+    }
+
+    /** Reads the number starting at at[0] and moves at[0] past it. */
+    private static long read(String encoded, int[] at) {
+        long v = 0;
+        int shift = 0;
+        while (true) {
+            if (at[0] >= encoded.length() || shift > 60) {
+                throw new IllegalArgumentException("Polyline cut off");
+            }
+            int digit = encoded.charAt(at[0]++) - 63;
+            if (digit < 0 || digit > 0x3f) {
+                throw new IllegalArgumentException("Not a polyline character");
+            }
+            v |= (long) (digit & 0x1f) << shift;
+            shift += 5;
+            if (digit < 0x20) {
+                return (v & 1) != 0 ? ~(v >> 1) : v >> 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Encoded rasters, kept so that a render grid asked for again, such as the default viewport at
+ * the first few depths, is sent without stitching the tiles and encoding the PNG again. Rasters
+ * are kept in LRU order and the least recently used are dropped once the bytes of all rasters
+ * kept exceed the budget.
+ * <p>
+ * A raster is only as current as the route drawn on it, so MapServer's keys name the route and
+ * graph versions as well as the grid; rasters of older routes are never asked for again and
+ * age out.
+ * <p>
+ * Every Rasterer has its own cache, so rasters of a tile set replaced by /reload are dropped
+ * together with it.
+ */
+final class RasterCache {
+    /** Default budget, in bytes of encoded PNG. -Dbmaps.rasterCache.bytes sets it. */
+    static final long BUDGET_BYTES = Long.getLong("bmaps.rasterCache.bytes", 32L << 20);
+
+    private final long budgetBytes;
+    private final LinkedHashMap<String, byte[]> rasters = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    RasterCache(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    /** Returns the raster kept under key, or null if there is none. */
+    synchronized byte[] get(String key) {
+        byte[] raster = rasters.get(key);
+        if (raster != null) {
+            hits += 1;
+        } else {
+            misses += 1;
+        }
+        return raster;
+    }
+
+    /**
+     * Keeps raster under key, unless it alone is over the budget. Requests that missed on the
+     * same key at the same time each put their own; the first is kept.
+     */
+    synchronized void put(String key, byte[] raster) {
+        if (rasters.containsKey(key) || raster.length > budgetBytes) {
+            return;
+        }
+        rasters.put(key, raster);
+        bytes += raster.length;
+        Iterator<Map.Entry<String, byte[]>> lru = rasters.entrySet().iterator();
+        while (bytes > budgetBytes) {
+            bytes -= lru.next().getValue().length;
+            lru.remove();
+            evictions += 1;
+        }
+    }
+
+    /** Returns the number of rasters kept, their bytes, the budget and the counters so far. */
+    synchronized Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("rasters", rasters.size());
+        stats.put("bytes", bytes);
+        stats.put("budget_bytes", budgetBytes);
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("evictions", evictions);
+        return stats;
+    }
+}
@@ -0,0 +1,273 @@
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes rasters for /raster. PNGs are written by this class rather than ImageIO, which looks
+ * up a writer and allocates a Deflater and row buffers for every image and offers no choice of
+ * row filter: here every thread keeps its own Deflater and buffers from one image to the next,
+ * and the deflate level and the filter are set per encoder. JPEG, for clients that take it,
+ * is a half to a third of the size of the PNG at some loss of detail; it goes through a
+ * per-thread ImageIO writer.
+ * <p>
+ * Only 8-bit RGB PNGs are written: the canvas has no alpha.
+ */
+final class RasterEncoder {
+    /** The PNG row filters; the first five are the filter types of the PNG format. */
+    enum Filter {
+        NONE, SUB, UP, AVERAGE, PAETH,
+        /** Picks, for every row, the filter with the least sum of absolute differences. */
+        ADAPTIVE
+    }
+
+    /**
+     * The encoder /raster uses. -Dbmaps.png.level sets the deflate level (4 by default, as
+     * ImageIO's), -Dbmaps.png.filter the filter and -Dbmaps.jpeg.quality the JPEG quality
+     * (0.85). Map tiles are mostly flat areas, which deflate well as they are, so no filter
+     * is the default: it comes out no larger than ImageIO's adaptive filtering, in less time.
+     */
+    static final RasterEncoder DEFAULT = new RasterEncoder(
+            Integer.getInteger("bmaps.png.level", 4),
+            Filter.valueOf(System.getProperty("bmaps.png.filter", "none")
+                    .toUpperCase(Locale.ROOT)),
+            Float.parseFloat(System.getProperty("bmaps.jpeg.quality", "0.85")));
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    private static final byte[] IHDR = "IHDR".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] IDAT = "IDAT".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] IEND = "IEND".getBytes(StandardCharsets.US_ASCII);
+    private static final int BYTES_PER_PIXEL = 3;
+    /** Largest IDAT chunk written, which is also the deflate output buffer. */
+    private static final int CHUNK_BYTES = 1 << 16;
+
+    private static final ThreadLocal<State> STATE = ThreadLocal.withInitial(State::new);
+    private static final ThreadLocal<ImageWriter> JPEG_WRITER = ThreadLocal.withInitial(
+        () -> ImageIO.getImageWritersByFormatName("jpeg").next());
+
+    private final int level;
+    private final Filter filter;
+    private final float jpegQuality;
+
+    /**
+     * @param level       Deflate level of PNGs, from 0 (stored) to 9 (smallest).
+     * @param filter      Row filter of PNGs.
+     * @param jpegQuality Quality of JPEGs, from 0 to 1.
+     */
+    RasterEncoder(int level, Filter filter, float jpegQuality) {
+        if (level < 0 || level > 9 || jpegQuality < 0 || jpegQuality > 1) {
+            throw new IllegalArgumentException("No such PNG level or JPEG quality");
+        }
+        this.level = level;
+        this.filter = filter;
+        this.jpegQuality = jpegQuality;
+    }
+
+    /** What one thread keeps between images. */
+    private static final class State {
+        /** Never ended; its native memory goes with the thread. */
+        final Deflater deflater = new Deflater();
+        final CRC32 crc = new CRC32();
+        final byte[] chunk = new byte[CHUNK_BYTES];
+        final byte[] header = new byte[13];
+        int[] pixels = new int[0];
+        byte[] previous = new byte[0];
+        byte[] current = new byte[0];
+        /** One row per filter type, each starting with the type. */
+        byte[][] filtered = new byte[Filter.ADAPTIVE.ordinal()][0];
+
+        void ensure(int width) {
+            int rowBytes = width * BYTES_PER_PIXEL;
+            if (current.length < rowBytes) {
+                pixels = new int[width];
+                previous = new byte[rowBytes];
+                current = new byte[rowBytes];
+                for (int f = 0; f < filtered.length; f += 1) {
+                    filtered[f] = new byte[rowBytes + 1];
+                    filtered[f][0] = (byte) f;
+                }
+            }
+        }
+    }
+
+    /** Writes img as format, "jpeg" or "png", to os. */
+    void write(BufferedImage img, String format, OutputStream os) throws IOException {
+        if ("jpeg".equals(format)) {
+            jpeg(img, os);
+        } else {
+            png(img, os);
+        }
+    }
+
+    void png(BufferedImage img, OutputStream os) throws IOException {
+        State s = STATE.get();
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int rowBytes = width * BYTES_PER_PIXEL;
+        s.ensure(width);
+        os.write(SIGNATURE);
+        putInt(s.header, 0, width);
+        putInt(s.header, 4, height);
+        s.header[8] = 8;
+        s.header[9] = 2;
+        chunk(os, s, IHDR, s.header, s.header.length);
+
+        int[] canvas = img.getType() == BufferedImage.TYPE_INT_RGB
+                ? ((DataBufferInt) img.getRaster().getDataBuffer()).getData() : null;
+        Deflater deflater = s.deflater;
+        deflater.reset();
+        deflater.setLevel(level);
+        Arrays.fill(s.previous, 0, rowBytes, (byte) 0);
+        int pending = 0;
+        for (int y = 0; y < height; y += 1) {
+            int[] rgb = canvas;
+            int offset = y * width;
+            if (canvas == null) {
+                rgb = s.pixels;
+                offset = 0;
+                img.getRGB(0, y, width, 1, rgb, 0, width);
+            }
+            for (int x = 0, i = 0; x < width; x += 1, i += BYTES_PER_PIXEL) {
+                int p = rgb[offset + x];
+                s.current[i] = (byte) (p >> 16);
+                s.current[i + 1] = (byte) (p >> 8);
+                s.current[i + 2] = (byte) p;
+            }
+            byte[] row = filter(s, rowBytes);
+            deflater.setInput(row, 0, rowBytes + 1);
+            while (!deflater.needsInput()) {
+                pending = deflate(os, s, pending);
+            }
+            byte[] swap = s.previous;
+            s.previous = s.current;
+            s.current = swap;
+        }
+        deflater.finish();
+        while (!deflater.finished()) {
+            pending = deflate(os, s, pending);
+        }
+        if (pending > 0) {
+            chunk(os, s, IDAT, s.chunk, pending);
+        }
+        chunk(os, s, IEND, s.chunk, 0);
+    }
+
+    /** Deflates into the chunk buffer after pending bytes, writing it out once it is full. */
+    private static int deflate(OutputStream os, State s, int pending) throws IOException {
+        pending += s.deflater.deflate(s.chunk, pending, CHUNK_BYTES - pending);
+        if (pending == CHUNK_BYTES) {
+            chunk(os, s, IDAT, s.chunk, pending);
+            return 0;
+        }
+        return pending;
+    }
+
+    /** Returns the current row filtered as this encoder's filter says, led by its type. */
+    private byte[] filter(State s, int rowBytes) {
+        if (filter != Filter.ADAPTIVE) {
+            filterRow(s, filter.ordinal(), rowBytes);
+            return s.filtered[filter.ordinal()];
+        }
+        int best = 0;
+        long bestSum = Long.MAX_VALUE;
+        for (int f = 0; f < s.filtered.length; f += 1) {
+            filterRow(s, f, rowBytes);
+            long sum = 0;
+            byte[] row = s.filtered[f];
+            for (int i = 1; i <= rowBytes; i += 1) {
+                sum += Math.abs(row[i]);
+            }
+            if (sum < bestSum) {
+                best = f;
+                bestSum = sum;
+            }
+        }
+        return s.filtered[best];
+    }
+
+    private static void filterRow(State s, int type, int rowBytes) {
+        byte[] cur = s.current;
+        byte[] prev = s.previous;
+        byte[] out = s.filtered[type];
+        for (int i = 0; i < rowBytes; i += 1) {
+            int a = i < BYTES_PER_PIXEL ? 0 : cur[i - BYTES_PER_PIXEL] & 0xff;
+            int b = prev[i] & 0xff;
+            int predicted;
+            switch (type) {
+                case 1:
+                    predicted = a;
+                    break;
+                case 2:
+                    predicted = b;
+                    break;
+                case 3:
+                    predicted = (a + b) >> 1;
+                    break;
+                case 4:
+                    int c = i < BYTES_PER_PIXEL ? 0 : prev[i - BYTES_PER_PIXEL] & 0xff;
+                    predicted = paeth(a, b, c);
+                    break;
+                default:
+                    predicted = 0;
+            }
+            out[i + 1] = (byte) (cur[i] - predicted);
+        }
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return pb <= pc ? b : c;
+    }
+
+    private static void chunk(OutputStream os, State s, byte[] type, byte[] data, int length)
+            throws IOException {
+        byte[] word = new byte[4];
+        putInt(word, 0, length);
+        os.write(word);
+        os.write(type);
+        os.write(data, 0, length);
+        s.crc.reset();
+        s.crc.update(type);
+        s.crc.update(data, 0, length);
+        putInt(word, 0, (int) s.crc.getValue());
+        os.write(word);
+    }
+
+    private static void putInt(byte[] bytes, int at, int value) {
+        bytes[at] = (byte) (value >>> 24);
+        bytes[at + 1] = (byte) (value >>> 16);
+        bytes[at + 2] = (byte) (value >>> 8);
+        bytes[at + 3] = (byte) value;
+    }
+
+    void jpeg(BufferedImage img, OutputStream os) throws IOException {
+        ImageWriter writer = JPEG_WRITER.get();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(jpegQuality);
+        /* Closing the image stream flushes it but leaves os open. */
+        try (ImageOutputStream out = new MemoryCacheImageOutputStream(os)) {
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(img, null, null), param);
+        } finally {
+            writer.reset();
+        }
+    }
+}
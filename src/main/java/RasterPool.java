@@ -0,0 +1,134 @@
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Canvases and encoding buffers kept for the next raster. A canvas of a large grid is tens of
+ * megabytes, too large for the young generation, so allocating one per /raster call fills the
+ * old generation with garbage and brings on full collections; the encoded image grows a buffer
+ * by copying it over and over.
+ * <p>
+ * Canvases are kept by grid size, columns by rows, since a canvas only fits grids of its own
+ * size, up to a budget of pixels over all sizes; when a canvas comes back and the budget is
+ * spent, the sizes used least recently go first. Buffers are kept up to a number of them
+ * and a size each, so what the pool keeps is bounded by BUFFERS times MAX_BUFFER_BYTES.
+ * <p>
+ * Anything taken from the pool belongs to the caller until it gives it back, and must not be
+ * used after that. One pool serves every Rasterer: canvas sizes do not depend on the tiles.
+ */
+final class RasterPool {
+    /**
+     * Default budget, in pixels: an eighth of the heap, at 4 bytes a pixel. Every client keeps
+     * its own few grid sizes, and a budget that holds fewer sizes than the clients cycle
+     * through keeps none of the ones asked for next, so it is sized by what the heap can spare
+     * rather than by a grid. -Dbmaps.canvasPool.pixels sets it.
+     */
+    static final long BUDGET_PIXELS = Long.getLong("bmaps.canvasPool.pixels",
+            Runtime.getRuntime().maxMemory() / 8 / 4);
+    /** Number of encoding buffers kept. */
+    private static final int BUFFERS = 2 * Runtime.getRuntime().availableProcessors();
+    /** Largest buffer kept; a raster that grew one larger gets to drop it. */
+    private static final int MAX_BUFFER_BYTES = 16 << 20;
+    private static final int FIRST_BUFFER_BYTES = 1 << 20;
+
+    static final RasterPool SHARED = new RasterPool(BUDGET_PIXELS);
+
+    /** A buffer whose size the pool can see. */
+    static final class Buffer extends ByteArrayOutputStream {
+        private Buffer() {
+            super(FIRST_BUFFER_BYTES);
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+    }
+
+    private final long budgetPixels;
+    /** Canvases by pixel size, (long) width << 32 | height, least recently used first. */
+    private final LinkedHashMap<Long, ArrayDeque<BufferedImage>> canvases =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private final ArrayDeque<Buffer> buffers = new ArrayDeque<>();
+    private long pixels;
+    private long reused;
+    private long allocated;
+
+    RasterPool(long budgetPixels) {
+        this.budgetPixels = budgetPixels;
+    }
+
+    /** Returns a canvas of width by height pixels, kept or new, with whatever pixels it has. */
+    BufferedImage canvas(int width, int height) {
+        synchronized (this) {
+            ArrayDeque<BufferedImage> kept = canvases.get(key(width, height));
+            if (kept != null && !kept.isEmpty()) {
+                BufferedImage canvas = kept.pop();
+                pixels -= (long) width * height;
+                reused += 1;
+                return canvas;
+            }
+            allocated += 1;
+        }
+        return new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    }
+
+    /** Gives a canvas back, to be kept if the budget allows. */
+    synchronized void release(BufferedImage canvas) {
+        long size = (long) canvas.getWidth() * canvas.getHeight();
+        if (size > budgetPixels) {
+            return;
+        }
+        Long key = key(canvas.getWidth(), canvas.getHeight());
+        Iterator<Map.Entry<Long, ArrayDeque<BufferedImage>>> lru =
+                canvases.entrySet().iterator();
+        while (pixels + size > budgetPixels) {
+            Map.Entry<Long, ArrayDeque<BufferedImage>> oldest = lru.next();
+            for (BufferedImage dropped : oldest.getValue()) {
+                pixels -= (long) dropped.getWidth() * dropped.getHeight();
+            }
+            lru.remove();
+        }
+        canvases.computeIfAbsent(key, k -> new ArrayDeque<>()).push(canvas);
+        pixels += size;
+    }
+
+    private static Long key(int width, int height) {
+        return (long) width << 32 | height;
+    }
+
+    /** Returns an empty buffer, kept or new. */
+    synchronized Buffer buffer() {
+        Buffer buffer = buffers.poll();
+        if (buffer == null) {
+            return new Buffer();
+        }
+        buffer.reset();
+        return buffer;
+    }
+
+    /** Gives a buffer back, to be kept unless it grew too large or enough are kept. */
+    synchronized void release(Buffer buffer) {
+        if (buffer.capacity() <= MAX_BUFFER_BYTES && buffers.size() < BUFFERS) {
+            buffers.push(buffer);
+        }
+    }
+
+    /** Returns the canvases kept, their pixels, the budget, buffers kept and counters so far. */
+    synchronized Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        int count = 0;
+        for (ArrayDeque<BufferedImage> kept : canvases.values()) {
+            count += kept.size();
+        }
+        stats.put("canvases", count);
+        stats.put("pixels", pixels);
+        stats.put("budget_pixels", budgetPixels);
+        stats.put("buffers", buffers.size());
+        stats.put("reused", reused);
+        stats.put("allocated", allocated);
+        return stats;
+    }
+}
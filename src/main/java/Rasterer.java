@@ -1,5 +1,14 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
 
 /**
  * This class provides all code necessary to take a query box and produce
@@ -10,9 +19,120 @@ import java.util.Map;
 
 
 public class Rasterer {
+    private static final AtomicLong VERSIONS = new AtomicLong();
+    /**
+     * Where the tiles of the render grid are read from: a directory, ending in a separator,
+     * or a TileArchive.
+     */
+    final String imgRoot;
+    /** The archive at imgRoot, or null if imgRoot is a directory. */
+    final TileArchive archive;
+    /** Number of tiles found in imgRoot, or -1 if it was not indexed. */
+    final int tileCount;
+    /** Distinguishes tile sets loaded one after another; see MapServer's /reload. */
+    private final long version = VERSIONS.incrementAndGet();
+    /** Decoded tiles of imgRoot. */
+    final TileCache tiles;
+    /** Encoded rasters of imgRoot's tiles; see MapServer's /raster. */
+    final RasterCache rasters = new RasterCache(RasterCache.BUDGET_BYTES);
 
     public Rasterer() {
-        // YOUR CODE HERE
+        this(MapServer.IMG_ROOT, null, -1);
+    }
+
+    private Rasterer(String imgRoot, TileArchive archive, int tileCount) {
+        this.imgRoot = archive != null || imgRoot.endsWith(File.separator)
+                || imgRoot.endsWith("/") ? imgRoot : imgRoot + File.separator;
+        this.archive = archive;
+        this.tileCount = tileCount;
+        this.tiles = new TileCache(this::openTile, TileCache.BUDGET_PIXELS);
+    }
+
+    /**
+     * Returns a rasterer for the tiles at imgRoot: a TileArchive, or a directory, which is
+     * checked to hold tiles named as in the render grid (d{depth}_x{x}_y{y}.png).
+     *
+     * @throws IOException If the archive cannot be mapped, or the directory cannot be listed
+     *                     or has no tiles.
+     */
+    static Rasterer load(String imgRoot) throws IOException {
+        File root = new File(imgRoot);
+        if (root.isFile()) {
+            TileArchive archive = TileArchive.open(root.toPath());
+            return new Rasterer(imgRoot, archive, archive.tileCount());
+        }
+        File[] files = root.listFiles();
+        if (files == null) {
+            throw new IOException("Cannot list tile directory " + imgRoot);
+        }
+        int count = 0;
+        for (File f : files) {
+            if (f.isFile() && f.getName().matches("d\\d+_x\\d+_y\\d+\\.png")) {
+                count += 1;
+            }
+        }
+        if (count == 0) {
+            throw new IOException("No tiles in " + imgRoot);
+        }
+        return new Rasterer(imgRoot, null, count);
+    }
+
+    /** Opens the PNG bytes of the named tile, or returns null if the archive has none. */
+    InputStream openTile(String name) throws IOException {
+        return archive != null ? archive.open(name) : new FileInputStream(imgRoot + name);
+    }
+
+    long version() {
+        return version;
+    }
+
+    /**
+     * Returns the tiles of renderGrid stitched into one image, TILE_SIZE pixels per tile, on a
+     * canvas from RasterPool.SHARED, to which the caller may give it back. The tiles are
+     * fetched, and decoded on a miss, in parallel, and each is copied into its own part of the
+     * image's pixel array rather than drawn through a Graphics; missing tiles are black.
+     */
+    BufferedImage stitch(String[][] renderGrid) {
+        int rows = renderGrid.length;
+        int cols = renderGrid[0].length;
+        int width = cols * MapServer.TILE_SIZE;
+        BufferedImage img = RasterPool.SHARED.canvas(width, rows * MapServer.TILE_SIZE);
+        int[] pixels = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+        IntStream.range(0, rows * cols).parallel().forEach(i -> {
+            int r = i / cols;
+            int c = i % cols;
+            copy(tiles.get(renderGrid[r][c]), pixels, width,
+                    (r * width + c) * MapServer.TILE_SIZE);
+        });
+        return img;
+    }
+
+    /**
+     * Copies tile into pixels, an image width pixels wide, with its upper left corner at
+     * offset; a tile larger than TILE_SIZE is cut off. What a missing or smaller tile leaves of
+     * its place is cleared, as the canvas may hold an earlier raster.
+     */
+    private static void copy(BufferedImage tile, int[] pixels, int width, int offset) {
+        if (tile == null || tile.getWidth() < MapServer.TILE_SIZE
+                || tile.getHeight() < MapServer.TILE_SIZE) {
+            for (int y = 0; y < MapServer.TILE_SIZE; y += 1) {
+                int row = offset + y * width;
+                Arrays.fill(pixels, row, row + MapServer.TILE_SIZE, 0);
+            }
+        }
+        if (tile == null) {
+            return;
+        }
+        int w = Math.min(tile.getWidth(), MapServer.TILE_SIZE);
+        int h = Math.min(tile.getHeight(), MapServer.TILE_SIZE);
+        if (tile.getType() != BufferedImage.TYPE_INT_RGB) {
+            tile.getRGB(0, 0, w, h, pixels, offset, width);
+            return;
+        }
+        int[] source = ((DataBufferInt) tile.getRaster().getDataBuffer()).getData();
+        for (int y = 0; y < h; y += 1) {
+            System.arraycopy(source, y * tile.getWidth(), pixels, offset + y * width, w);
+        }
     }
 
     public Map<String, Object> getMapRaster(Map<String, Double> params) {
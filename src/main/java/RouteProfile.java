@@ -0,0 +1,40 @@
+/**
+ * What a route minimises. Each profile picks one of the per-edge weights CompactGraph
+ * precomputes at load time, together with the factor that turns great-circle miles into a
+ * lower bound on that weight, so A* stays admissible whichever profile is used.
+ */
+public enum RouteProfile {
+    /** Shortest route, weighted in miles. */
+    DISTANCE,
+    /** Fastest route, weighted in seconds of driving at the edge's speed limit. */
+    TIME;
+
+    /** Returns the weight this profile minimises of edge e. */
+    double weight(CompactGraph c, int e) {
+        return this == TIME ? c.time(e) : c.length(e);
+    }
+
+    /**
+     * Returns the factor by which a great-circle distance in miles must be multiplied to give
+     * a lower bound on the remaining weight: 1 for distance, and for time the seconds per mile
+     * at the fastest speed anywhere in the network.
+     */
+    double heuristicScale(CompactGraph c) {
+        return this == TIME ? 3600 / c.maxSpeedMph : 1;
+    }
+
+    /**
+     * Parses a profile name as given in a request, ignoring case. Missing or unknown names
+     * fall back to DISTANCE.
+     */
+    static RouteProfile fromString(String name) {
+        if (name != null) {
+            for (RouteProfile p : values()) {
+                if (p.name().equalsIgnoreCase(name)) {
+                    return p;
+                }
+            }
+        }
+        return DISTANCE;
+    }
+}
@@ -0,0 +1,143 @@
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The coordinates of a route, looked up in the graph once, and a simplified version of them for
+ * every depth of the tile pyramid. At depth d a pixel spans 2^(7-d) times what it spans at depth
+ * 7, so a long route at a shallow depth puts many vertices in the same pixel; drawing every one
+ * of them costs time without changing a pixel. Each depth keeps the vertices Douglas-Peucker
+ * needs to stay within TOLERANCE_PX pixels of the route, measured in that depth's pixels, so
+ * drawing the route and sending it to clients scale with its size on screen rather than with
+ * its vertices.
+ * <p>
+ * Shapes are immutable and made once per route (see MapServer's setRoute), before any raster
+ * needs one.
+ */
+final class RouteShape {
+    /** Furthest, in pixels, a simplified route may stray from the route. */
+    static final double TOLERANCE_PX = 0.5;
+    /** The shape of no route. */
+    static final RouteShape EMPTY = new RouteShape(new double[0], new double[0]);
+
+    private final double[] lons;
+    private final double[] lats;
+    /** The longitudes and latitudes kept at each depth, from 0 to MapServer.MAX_TILE_DEPTH. */
+    private final double[][] depthLons;
+    private final double[][] depthLats;
+
+    /**
+     * Looks up the vertices of route in g, leaving out those g does not have: a route planned
+     * on an earlier version may pass nodes a change has since removed.
+     */
+    RouteShape(GraphDB g, List<Long> route) {
+        this(coordinates(g, route, true), coordinates(g, route, false));
+    }
+
+    /** Simplifies the route through the given coordinates, which must not be changed. */
+    RouteShape(double[] lons, double[] lats) {
+        this.lons = lons;
+        this.lats = lats;
+        depthLons = new double[MapServer.MAX_TILE_DEPTH + 1][];
+        depthLats = new double[MapServer.MAX_TILE_DEPTH + 1][];
+        for (int depth = 0; depth <= MapServer.MAX_TILE_DEPTH; depth += 1) {
+            double pixels = MapServer.TILE_SIZE << depth;
+            double lonPerPixel = (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON) / pixels;
+            double latPerPixel = (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT) / pixels;
+            boolean[] keep = simplify(lons, lats, lonPerPixel, latPerPixel);
+            int count = 0;
+            for (boolean k : keep) {
+                count += k ? 1 : 0;
+            }
+            depthLons[depth] = new double[count];
+            depthLats[depth] = new double[count];
+            for (int i = 0, j = 0; i < keep.length; i += 1) {
+                if (keep[i]) {
+                    depthLons[depth][j] = lons[i];
+                    depthLats[depth][j] = lats[i];
+                    j += 1;
+                }
+            }
+        }
+    }
+
+    private static double[] coordinates(GraphDB g, List<Long> route, boolean lon) {
+        double[] values = new double[route.size()];
+        int count = 0;
+        CompactGraph c = g.compact();
+        for (long v : route) {
+            int dense = c.denseId(v);
+            if (dense >= 0) {
+                values[count] = lon ? c.lon(dense) : c.lat(dense);
+                count += 1;
+            }
+        }
+        return Arrays.copyOf(values, count);
+    }
+
+    /**
+     * Returns {lons, lats} of the route simplified for depth, the deepest level's for a depth
+     * past it, or of every vertex for a negative depth. The arrays must not be changed.
+     */
+    double[][] points(int depth) {
+        if (depth < 0) {
+            return new double[][] {lons, lats};
+        }
+        int d = Math.min(depth, MapServer.MAX_TILE_DEPTH);
+        return new double[][] {depthLons[d], depthLats[d]};
+    }
+
+    /**
+     * Marks the vertices Douglas-Peucker keeps: the ends, and recursively the vertex furthest
+     * from the line between the ends of a stretch, while it is further than TOLERANCE_PX. Runs
+     * on a stack of stretches rather than recursing, as routes can have thousands of vertices.
+     */
+    private static boolean[] simplify(double[] lons, double[] lats, double lonPerPixel,
+                                      double latPerPixel) {
+        int n = lons.length;
+        boolean[] keep = new boolean[n];
+        if (n == 0) {
+            return keep;
+        }
+        keep[0] = true;
+        keep[n - 1] = true;
+        double tolerance = TOLERANCE_PX * TOLERANCE_PX;
+        int[] stack = new int[2 * n];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = n - 1;
+        while (top > 0) {
+            int b = stack[--top];
+            int a = stack[--top];
+            double ax = lons[a] / lonPerPixel;
+            double ay = lats[a] / latPerPixel;
+            double dx = lons[b] / lonPerPixel - ax;
+            double dy = lats[b] / latPerPixel - ay;
+            double length = dx * dx + dy * dy;
+            int furthest = -1;
+            double furthestDistance = tolerance;
+            for (int i = a + 1; i < b; i += 1) {
+                double px = lons[i] / lonPerPixel - ax;
+                double py = lats[i] / latPerPixel - ay;
+                /* Distance to the segment, not the line through it, so a route that doubles
+                 * back past its ends keeps the turn. */
+                double t = length == 0 ? 0
+                        : Math.max(0, Math.min(1, (px * dx + py * dy) / length));
+                double ex = px - t * dx;
+                double ey = py - t * dy;
+                double distance = ex * ex + ey * ey;
+                if (distance > furthestDistance) {
+                    furthest = i;
+                    furthestDistance = distance;
+                }
+            }
+            if (furthest >= 0) {
+                keep[furthest] = true;
+                stack[top++] = a;
+                stack[top++] = furthest;
+                stack[top++] = furthest;
+                stack[top++] = b;
+            }
+        }
+        return keep;
+    }
+}
@@ -1,10 +1,6 @@
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Objects;
-import java.util.PriorityQueue;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -17,153 +13,399 @@ import java.util.regex.Pattern;
  * down to the priority you use to order your vertices.
  */
 public class Router {
+    /**
+     * Whether routes obey OSM turn restrictions. Honouring them needs the slower edge-based
+     * search, so it can be switched off with -Dbmaps.turnRestrictions=false.
+     */
+    static final boolean TURN_RESTRICTIONS =
+            Boolean.parseBoolean(System.getProperty("bmaps.turnRestrictions", "true"));
+    /** Number of settled vertices between two looks at the clock. */
+    static final int CLOCK_CHECK_INTERVAL = 256;
+    /** Smallest corridor half-width, in miles, so that short trips can still go around a block. */
+    static final double MIN_CORRIDOR_SLACK = 0.25;
+    /** Search scratch space, one per thread, grown to the largest graph seen. */
+    private static final ThreadLocal<SearchState> STATES = new ThreadLocal<>();
+
+    /**
+     * Per-request settings for {@link #route}. The defaults give the exact shortest route by
+     * distance with no limit on the work done.
+     */
+    public static class Options {
+        RouteProfile profile = RouteProfile.DISTANCE;
+        int maxSettled = Integer.MAX_VALUE;
+        long timeoutNanos = 0;
+        double epsilon = 1;
+        double corridor = 0;
+
+        /** Minimise the weight of this profile. */
+        public Options profile(RouteProfile p) {
+            this.profile = p;
+            return this;
+        }
+
+        /** Give up after settling this many vertices (edges, with turn restrictions). */
+        public Options maxSettled(int n) {
+            this.maxSettled = n;
+            return this;
+        }
+
+        /** Give up after this many milliseconds; 0 means no limit. */
+        public Options timeoutMillis(long millis) {
+            this.timeoutNanos = millis * 1000000L;
+            return this;
+        }
+
+        /**
+         * Weights the A* heuristic by epsilon (at least 1). The search settles far fewer
+         * vertices, and the route it returns costs at most epsilon times the optimum.
+         */
+        public Options epsilon(double e) {
+            this.epsilon = Math.max(1, e);
+            return this;
+        }
+
+        /**
+         * Ignores vertices outside the ellipse with the snapped endpoints as foci in which the
+         * distance to both foci adds up to at most factor times the distance between them; 0
+         * turns the corridor off. If no route fits in the corridor the search is rerun without
+         * it, so pruning never turns a reachable destination into an unreachable one.
+         */
+        public Options corridor(double factor) {
+            this.corridor = factor <= 0 ? 0 : Math.max(1, factor);
+            return this;
+        }
+    }
+
+    /** How a search ended. */
+    public enum Status {
+        FOUND, UNREACHABLE, TIMED_OUT
+    }
+
+    /**
+     * The outcome of {@link #route}: the path (empty unless status is FOUND), its weight under
+     * the requested profile and how much work the search did.
+     * <p>
+     * bound is the guaranteed ratio between cost and the weight of the best route: 1 for an
+     * exact search, epsilon for a weighted one. When a corridor was used, the guarantee is
+     * relative to the best route that stays inside the corridor.
+     */
+    public static class Result {
+        public final Status status;
+        public final List<Long> path;
+        public final double cost;
+        public final double bound;
+        public final int settled;
+
+        Result(Status status, List<Long> path, double cost, double bound, int settled) {
+            this.status = status;
+            this.path = path;
+            this.cost = cost;
+            this.bound = bound;
+            this.settled = settled;
+        }
+    }
+
     /**
      * Return a List of longs representing the shortest path from the node
      * closest to a start location and the node closest to the destination
      * location.
      *
-     * @param // g       The graph to use.
-     * @param // stlon   The longitude of the start location.
-     * @param // stlat   The latitude of the start location.
-     * @param // destlon The longitude of the destination location.
-     * @param // destlat The latitude of the destination location.
+     * @param g       The graph to use.
+     * @param stlon   The longitude of the start location.
+     * @param stlat   The latitude of the start location.
+     * @param destlon The longitude of the destination location.
+     * @param destlat The latitude of the destination location.
      * @return A list of node id's in the order visited on the shortest path.
-     **/
-
-    /* public static LinkedList<Long> parentChain(Long id, HashMap<Long, Long> p) {
-        long tempID = id;
-        LinkedList<Long> rLst = new LinkedList<>();
-        rLst.addFirst(tempID);
-        while (p.get(tempID) != -1) {
-            rLst.addFirst(p.get(tempID));
-            tempID = p.get(tempID);
-        }
-        return rLst;
-    } */
-
+     */
     public static List<Long> shortestPath(GraphDB g, double stlon, double stlat,
                                           double destlon, double destlat) {
+        return shortestPath(g, stlon, stlat, destlon, destlat, RouteProfile.DISTANCE);
+    }
+
+    /**
+     * Like {@link #shortestPath(GraphDB, double, double, double, double)}, but minimises the
+     * weight of the given profile, e.g. travel time instead of distance.
+     */
+    public static List<Long> shortestPath(GraphDB g, double stlon, double stlat,
+                                          double destlon, double destlat, RouteProfile profile) {
+        return route(g, stlon, stlat, destlon, destlat, new Options().profile(profile)).path;
+    }
+
+    /**
+     * Finds the route between the vertices closest to the start and destination, within the
+     * work budget of options. A search that runs out of budget stops cleanly with status
+     * TIMED_OUT and an empty path. Routes to a destination with a current hot-target tree
+     * are read off the tree instead of searched for.
+     */
+    public static Result route(GraphDB g, double stlon, double stlat,
+                               double destlon, double destlat, Options options) {
+        CompactGraph c = g.compact();
+        int start = c.nearest(stlon, stlat);
+        int end = c.nearest(destlon, destlat);
+        if (start < 0 || end < 0) {
+            return new Result(Status.UNREACHABLE, new ArrayList<>(), Double.POSITIVE_INFINITY,
+                    options.epsilon, 0);
+        }
+        double[] factor = g.overlay().factors();
+        HotTargets hot = g.hotTargets();
+        hot.recordDestination(end, options.profile);
+        Result walked = hot.route(start, end, options.profile, factor);
+        if (walked != null) {
+            return walked;
+        }
+        return route(c, factor, start, end, options);
+    }
+
+    /** Like {@link #route(GraphDB, double, double, double, double, Options)}, between dense ids. */
+    static Result route(CompactGraph c, double[] factor, int start, int end, Options options) {
+        Query q = new Query(c, factor, options, start, end, options.corridor);
+        int[] path = search(q);
+        int settled = q.settled;
+        if (q.status == Status.UNREACHABLE && q.corridor > 0) {
+            Query retry = new Query(c, factor, options, start, end, 0);
+            retry.settled = settled;
+            path = search(retry);
+            q = retry;
+        }
+        return new Result(q.status, toOsmIds(c, path), q.cost, options.epsilon, q.settled);
+    }
+
+    private static int[] search(Query q) {
+        return TURN_RESTRICTIONS && q.c.hasTurnRestrictions() ? edgeSearch(q) : nodeSearch(q);
+    }
+
+    /**
+     * Returns the great-circle distance in miles between the vertices the two locations snap
+     * to. This is a cheap lower bound on the length of the route, which makes it a usable
+     * estimate of how expensive a route request will be before running it.
+     */
+    public static double snappedDistance(GraphDB g, double stlon, double stlat,
+                                         double destlon, double destlat) {
+        CompactGraph c = g.compact();
+        int start = c.nearest(stlon, stlat);
+        int end = c.nearest(destlon, destlat);
+        return start < 0 || end < 0 ? 0 : c.distance(start, end);
+    }
 
-        HashSet<Long> marked = new HashSet<>();
-        HashMap<Long, Long> parents = new HashMap<>();
-        HashMap<Long, Double> bestDist = new HashMap<>();
-
-        Long startID = g.closest(stlon, stlat);
-        Long endID = g.closest(destlon, destlat);
-        Long currID = startID;
-        GraphDB.Node currNode = g.nodeList.get(currID);
-
-        PriorityQueue<Long> fringe = new PriorityQueue<>((o1, o2) -> {
-            Double priOne = bestDist.get(o1) + g.distance(o1, endID);
-            Double priTwo = bestDist.get(o2) + g.distance(o2, endID);
-            if (priOne > priTwo) {
-                return 1;
-            } else if (priOne < priTwo) {
-                return -1;
+    /** Returns this thread's search scratch space, with room for at least capacity entries. */
+    static SearchState searchState(int capacity) {
+        SearchState state = STATES.get();
+        if (state == null || state.capacity() < capacity) {
+            state = new SearchState(capacity);
+            STATES.set(state);
+        }
+        return state;
+    }
+
+    static List<Long> toOsmIds(CompactGraph c, int[] path) {
+        List<Long> route = new ArrayList<>();
+        if (path != null) {
+            for (int v : path) {
+                route.add(c.osmId(v));
             }
-            return 0;
-        });
-
-        marked.add(currID);
-        parents.put(currID, (long) -1);
-        bestDist.put(currID, (double) 0);
-
-        while (!currID.equals(endID)) {
-            for (GraphDB.Edge edge : currNode.edgesToNeighbors) {
-                double currDist = bestDist.get(currID) + edge.distance;
-                if (!marked.contains(edge.endID)) {
-                    /* if (edge.endID.equals(endID)) {
-                        parents.put(edge.endID, currID);
-                        bestDist.put(edge.endID, currDist);
-                        currID = endID;
-                        return parentChain(currID, parents);
-                        */
-                    /*} else */
-                    if (!parents.containsKey(edge.endID)
-                            || !bestDist.containsKey(edge.endID)) {
-                        parents.put(edge.endID, currID);
-                        bestDist.put(edge.endID, currDist);
-                        fringe.add(edge.endID);
-                    } else if (currDist < bestDist.get(edge.endID)) {
-                        parents.replace(edge.endID, currID);
-                        bestDist.replace(edge.endID, currDist);
-                        fringe.add(edge.endID);
-                    }
-                }
+        }
+        return route;
+    }
+
+    /**
+     * Everything one search needs that does not change while it runs: the endpoints, the
+     * weights, overlay factors and heuristic scale of the profile, the corridor and the work
+     * budget. Also collects how the search ended.
+     */
+    private static final class Query {
+        final CompactGraph c;
+        final int start;
+        final int end;
+        final RouteProfile profile;
+        final double[] factor;
+        /** Heuristic multiplier: the profile's miles-to-weight scale times epsilon. */
+        final double scale;
+        final double corridor;
+        /** Largest distance to start plus distance to end a vertex in the corridor may have. */
+        final double corridorMiles;
+        final int maxSettled;
+        final long deadline;
+        final boolean hasDeadline;
+        Status status = Status.UNREACHABLE;
+        double cost = Double.POSITIVE_INFINITY;
+        int settled;
+
+        Query(CompactGraph c, double[] factor, Options options, int start, int end,
+              double corridor) {
+            this.c = c;
+            this.start = start;
+            this.end = end;
+            this.profile = options.profile;
+            this.factor = factor;
+            this.scale = options.profile.heuristicScale(c) * options.epsilon;
+            this.corridor = corridor;
+            double direct = c.distance(start, end);
+            this.corridorMiles = Math.max(corridor * direct, direct + 2 * MIN_CORRIDOR_SLACK);
+            this.maxSettled = options.maxSettled;
+            this.hasDeadline = options.timeoutNanos > 0;
+            this.deadline = System.nanoTime() + options.timeoutNanos;
+        }
+
+        /**
+         * Returns the weight of edge e with the overlay multiplier applied; +infinity if the
+         * edge is closed.
+         */
+        double weight(int e) {
+            double w = profile.weight(c, e);
+            return factor == null ? w : w * factor[e];
+        }
+
+        /** Heuristic estimate of the weight from v to end, inflated by epsilon. */
+        double estimate(int v) {
+            return c.distance(v, end) * scale;
+        }
+
+        /** Returns true if the corridor is on and v lies outside it. */
+        boolean pruned(int v) {
+            return corridor > 0 && c.distance(start, v) + c.distance(v, end) > corridorMiles;
+        }
+
+        /**
+         * Counts one more settled vertex. Returns false, and marks the search as timed out,
+         * once the settled-node or time budget is spent; the clock is only read every
+         * CLOCK_CHECK_INTERVAL vertices to keep this cheap.
+         */
+        boolean withinBudget() {
+            settled += 1;
+            if (settled > maxSettled || (hasDeadline && settled % CLOCK_CHECK_INTERVAL == 0
+                    && System.nanoTime() - deadline > 0)) {
+                status = Status.TIMED_OUT;
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A* over vertices, minimising weight times the overlay factor. The heuristic is the
+     * great-circle distance to end times the profile's scale and epsilon. Returns the dense
+     * vertices of the path, or null if end is unreachable or the budget ran out.
+     */
+    private static int[] nodeSearch(Query q) {
+        CompactGraph c = q.c;
+        int start = q.start;
+        int end = q.end;
+        SearchState state = searchState(c.size());
+        state.reset();
+        state.relax(start, 0, -1);
+        state.fringe.push(start, q.estimate(start));
+        while (!state.fringe.isEmpty()) {
+            int v = state.fringe.poll();
+            if (state.isSettled(v)) {
+                continue;
+            }
+            if (!q.withinBudget()) {
+                return null;
             }
-            currID = fringe.poll();
-            if (currID == null) {
-                return new ArrayList<>();
+            state.settle(v);
+            double d = state.dist(v);
+            if (v == end) {
+                q.status = Status.FOUND;
+                q.cost = d;
+                return vertexPath(state, end);
             }
-            marked.add(currID);
-            currNode = g.nodeList.get(currID);
+            for (int e = c.firstEdge(v); e < c.endEdge(v); e += 1) {
+                int w = c.target(e);
+                if (state.isSettled(w) || q.pruned(w)) {
+                    continue;
+                }
+                double nd = d + q.weight(e);
+                if (nd == Double.POSITIVE_INFINITY) {
+                    continue;
+                }
+                if (state.relax(w, nd, v)) {
+                    state.fringe.push(w, nd + q.estimate(w));
+                }
+            }
+        }
+        return null;
+    }
+
+    private static int[] vertexPath(SearchState state, int end) {
+        int length = 0;
+        for (int v = end; v >= 0; v = state.parent(v)) {
+            length += 1;
         }
-        LinkedList<Long> rLst = new LinkedList<>();
-        rLst.addFirst(currID);
-        while (parents.get(currID) != -1) {
-            rLst.addFirst(parents.get(currID));
-            currID = parents.get(currID);
+        int[] path = new int[length];
+        for (int v = end, i = length - 1; v >= 0; v = state.parent(v), i -= 1) {
+            path[i] = v;
         }
-        return rLst;
+        return path;
     }
 
-        /*
-        HashSet<Long> marked = new HashSet<>();
-        HashMap<Long, Double> bestDistToNode = new HashMap<>();
-        HashMap<Long, ArrayList<Long>> bestPathToNode = new HashMap<>();
-
-        Long startNodeID = g.closest(stlon, stlat);
-        Long endNodeID = g.closest(destlon, destlat);
-        Long currentID = startNodeID;
-        GraphDB.Node currentNode = g.nodeList.get(currentID);
-
-        PriorityQueue<Long> fringe = new PriorityQueue<>((o1, o2) -> {
-            Double myPri = bestDistToNode.get(o1) + g.distance(o1, endNodeID);
-            Double otherPri = bestDistToNode.get(o2) + g.distance(o2, endNodeID);
-            if (myPri > otherPri) {
-                return 1;
-            } else if (myPri < otherPri) {
-                return -1;
+    /**
+     * A* over edges, used when the graph has turn restrictions: a restriction depends on the
+     * edge a vertex was entered by, so the search state is the edge just driven rather than
+     * the vertex reached. Returns the dense vertices of the path, or null if end is
+     * unreachable or the budget ran out.
+     */
+    private static int[] edgeSearch(Query q) {
+        CompactGraph c = q.c;
+        int start = q.start;
+        int end = q.end;
+        if (start == end) {
+            q.status = Status.FOUND;
+            q.cost = 0;
+            return new int[] {start};
+        }
+        SearchState state = searchState(c.edgeCount());
+        state.reset();
+        for (int e = c.firstEdge(start); e < c.endEdge(start); e += 1) {
+            double d = q.weight(e);
+            if (d != Double.POSITIVE_INFINITY && !q.pruned(c.target(e))
+                    && state.relax(e, d, -1)) {
+                state.fringe.push(e, d + q.estimate(c.target(e)));
+            }
+        }
+        while (!state.fringe.isEmpty()) {
+            int e = state.fringe.poll();
+            if (state.isSettled(e)) {
+                continue;
             }
-            return 0;
-        });
-
-        bestDistToNode.put(startNodeID, (double) 0);
-        bestPathToNode.put(startNodeID, new ArrayList<Long>());
-        bestPathToNode.get(startNodeID).add(startNodeID);
-        fringe.add(startNodeID);
-        int i = 0;
-
-        while (!currentID.equals(endNodeID)) {
-            for (GraphDB.Edge edge : currentNode.edgesToNeighbors) {
-                if (!marked.contains(edge.endID)) {
-                    double currDis = bestDistToNode.get(currentID) + edge.distance;
-                    ArrayList<Long> currLst =
-                            (ArrayList<Long>) bestPathToNode.get(currentID).clone();
-                    currLst.add(edge.endID);
-                    if (edge.endID.equals(endNodeID)) {
-                        bestDistToNode.replace(currentID, currDis);
-                        bestPathToNode.replace(currentID, currLst);
-                        return bestPathToNode.get(currentID);
-                    } else if (!bestDistToNode.containsKey(edge.endID)) {
-                        bestDistToNode.put(edge.endID, currDis);
-                        bestPathToNode.put(edge.endID, currLst);
-                        fringe.add(edge.endID);
-                    } else if (currDis < bestDistToNode.get(edge.endID)) {
-                        bestDistToNode.replace(edge.endID, currDis);
-                        bestPathToNode.replace(edge.endID, currLst);
-                        fringe.add(edge.endID);
-                    }
+            if (!q.withinBudget()) {
+                return null;
+            }
+            state.settle(e);
+            int v = c.target(e);
+            double d = state.dist(e);
+            if (v == end) {
+                q.status = Status.FOUND;
+                q.cost = d;
+                return edgePath(c, state, start, e);
+            }
+            for (int f = c.firstEdge(v); f < c.endEdge(v); f += 1) {
+                if (state.isSettled(f) || c.isRestricted(v, e, f) || q.pruned(c.target(f))) {
+                    continue;
+                }
+                double nd = d + q.weight(f);
+                if (nd == Double.POSITIVE_INFINITY) {
+                    continue;
+                }
+                if (state.relax(f, nd, e)) {
+                    state.fringe.push(f, nd + q.estimate(c.target(f)));
                 }
             }
-            currentID = fringe.poll();
-            currentNode = g.nodeList.get(currentID);
-            marked.add(currentID);
         }
-        return bestPathToNode.get(currentID);
-
-        */
+        return null;
+    }
 
+    private static int[] edgePath(CompactGraph c, SearchState state, int start, int last) {
+        int length = 1;
+        for (int e = last; e >= 0; e = state.parent(e)) {
+            length += 1;
+        }
+        int[] path = new int[length];
+        path[0] = start;
+        for (int e = last, i = length - 1; e >= 0; e = state.parent(e), i -= 1) {
+            path[i] = c.target(e);
+        }
+        return path;
+    }
 
     /**
      * Create the list of directions corresponding to a route on the graph.
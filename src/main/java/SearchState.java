@@ -0,0 +1,79 @@
+import java.util.Arrays;
+
+/**
+ * Scratch space for a single-source search over a CompactGraph: tentative distances, parent
+ * pointers, settled flags and the fringe. The arrays are sized once for the whole graph and are
+ * never cleared; instead every entry is tagged with the generation it was written in, so
+ * {@link #reset()} is O(1) and a search only pays for the vertices it actually touches.
+ * This is what lets the map matcher run thousands of small bounded searches per trace.
+ * <p>
+ * A SearchState is not thread-safe; each thread keeps its own.
+ */
+final class SearchState {
+    private final double[] dist;
+    private final int[] parent;
+    private final int[] touched;
+    private final int[] settled;
+    private int generation;
+    final MinHeap fringe;
+
+    SearchState(int capacity) {
+        dist = new double[capacity];
+        parent = new int[capacity];
+        touched = new int[capacity];
+        settled = new int[capacity];
+        fringe = new MinHeap(64);
+    }
+
+    int capacity() {
+        return dist.length;
+    }
+
+    /** Forgets the previous search. */
+    void reset() {
+        generation += 1;
+        if (generation == Integer.MAX_VALUE) {
+            Arrays.fill(touched, 0);
+            Arrays.fill(settled, 0);
+            generation = 1;
+        }
+        fringe.clear();
+    }
+
+    /** Returns the best known distance to v, or +infinity if v was not reached. */
+    double dist(int v) {
+        return touched[v] == generation ? dist[v] : Double.POSITIVE_INFINITY;
+    }
+
+    /** Returns the predecessor of v on its best known path, or -1 for the source. */
+    int parent(int v) {
+        return touched[v] == generation ? parent[v] : -1;
+    }
+
+    boolean reached(int v) {
+        return touched[v] == generation;
+    }
+
+    boolean isSettled(int v) {
+        return settled[v] == generation;
+    }
+
+    void settle(int v) {
+        settled[v] = generation;
+    }
+
+    /**
+     * Records d as the distance to v through p if it improves on the current value.
+     *
+     * @return true if the distance was improved and v should be (re)inserted into the fringe.
+     */
+    boolean relax(int v, double d, int p) {
+        if (touched[v] == generation && dist[v] <= d) {
+            return false;
+        }
+        touched[v] = generation;
+        dist[v] = d;
+        parent[v] = p;
+        return true;
+    }
+}
@@ -0,0 +1,132 @@
+import java.util.Arrays;
+
+/**
+ * Search scratch space like SearchState, but keyed by an open-addressing hash table instead of
+ * arrays indexed by vertex id, so it takes room in proportion to the vertices a search reaches
+ * rather than to the whole graph. TiledGraph needs this: its ids span the whole extract while a
+ * search only loads the tiles around the route, and arrays over every id would cost about as
+ * much heap as loading the graph.
+ * <p>
+ * A SparseSearchState is made for one search and is not thread-safe.
+ */
+final class SparseSearchState {
+    /** Marks a free slot of the table. */
+    private static final int FREE = -1;
+
+    /** Vertex ids by slot, FREE where there is none; the length is a power of two. */
+    private int[] keys;
+    /** Index into dist, parent and settled of the vertex in the same slot of keys. */
+    private int[] entries;
+    private double[] dist;
+    private int[] parent;
+    private boolean[] settled;
+    private int size;
+    final MinHeap fringe = new MinHeap(64);
+
+    /** Makes a state with room for about expected vertices before it has to grow. */
+    SparseSearchState(int expected) {
+        int slots = Integer.highestOneBit(Math.max(16, 2 * expected - 1)) << 1;
+        keys = new int[slots];
+        Arrays.fill(keys, FREE);
+        entries = new int[slots];
+        dist = new double[slots / 2];
+        parent = new int[slots / 2];
+        settled = new boolean[slots / 2];
+    }
+
+    /** Number of vertices reached so far. */
+    int size() {
+        return size;
+    }
+
+    /** Returns the slot of v, or the free slot where v would go. */
+    private int slot(int v) {
+        int mask = keys.length - 1;
+        int h = v * 0x9e3779b9;
+        int i = (h ^ (h >>> 16)) & mask;
+        while (keys[i] != FREE && keys[i] != v) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /** Returns the entry of v, or -1 if v was not reached. */
+    private int entry(int v) {
+        int i = slot(v);
+        return keys[i] == FREE ? -1 : entries[i];
+    }
+
+    /** Adds v, which must not have been reached, and returns its entry. */
+    private int add(int v) {
+        if (2 * (size + 1) > keys.length) {
+            grow();
+        }
+        int i = slot(v);
+        keys[i] = v;
+        entries[i] = size;
+        size += 1;
+        return size - 1;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        int[] oldEntries = entries;
+        keys = new int[2 * oldKeys.length];
+        Arrays.fill(keys, FREE);
+        entries = new int[keys.length];
+        for (int i = 0; i < oldKeys.length; i += 1) {
+            if (oldKeys[i] != FREE) {
+                int j = slot(oldKeys[i]);
+                keys[j] = oldKeys[i];
+                entries[j] = oldEntries[i];
+            }
+        }
+        dist = Arrays.copyOf(dist, keys.length / 2);
+        parent = Arrays.copyOf(parent, keys.length / 2);
+        settled = Arrays.copyOf(settled, keys.length / 2);
+    }
+
+    /** Returns the best known distance to v, or +infinity if v was not reached. */
+    double dist(int v) {
+        int e = entry(v);
+        return e < 0 ? Double.POSITIVE_INFINITY : dist[e];
+    }
+
+    /** Returns the predecessor of v on its best known path, or -1 for the source. */
+    int parent(int v) {
+        int e = entry(v);
+        return e < 0 ? -1 : parent[e];
+    }
+
+    boolean reached(int v) {
+        return entry(v) >= 0;
+    }
+
+    boolean isSettled(int v) {
+        int e = entry(v);
+        return e >= 0 && settled[e];
+    }
+
+    /** Marks v, which must have been reached, as settled. */
+    void settle(int v) {
+        settled[entry(v)] = true;
+    }
+
+    /**
+     * Records d as the distance to v through p if it improves on the current value.
+     *
+     * @return true if the distance was improved and v should be (re)inserted into the fringe.
+     */
+    boolean relax(int v, double d, int p) {
+        int e = entry(v);
+        if (e >= 0 && dist[e] <= d) {
+            return false;
+        }
+        if (e < 0) {
+            e = add(v);
+        }
+        dist[e] = d;
+        parent[e] = p;
+        return true;
+    }
+}
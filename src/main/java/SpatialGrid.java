@@ -0,0 +1,215 @@
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+
+/**
+ * Uniform lon/lat bucket grid over the vertices of a CompactGraph, stored in compressed
+ * form (one offset array, one vertex array). Nearest-neighbour queries scan rings of cells
+ * outwards from the query point and stop as soon as no unscanned cell can hold anything
+ * closer, so results are exact great-circle answers, not approximations.
+ * <p>
+ * The grid holds vertex numbers only. Queries are given the coordinates to measure with and
+ * the vertices to leave out, so a later version of the graph can reuse the grid of an earlier
+ * one: it passes its own coordinates and skips the vertices that moved or were removed since.
+ */
+final class SpatialGrid {
+    /** Miles per degree of latitude, using the same earth radius as GraphDB.distance. */
+    private static final double MILES_PER_DEGREE = 3963 * Math.PI / 180;
+    /** Average number of vertices per cell the grid is sized for. */
+    private static final int TARGET_PER_CELL = 4;
+
+    private final double minLon, minLat;
+    private final double cellLon, cellLat;
+    private final int cols, rows;
+    private final int[] cellStart;
+    private final int[] cellVertices;
+    /** Lower bound, in miles, on the distance covered by one ring of cells. */
+    private final double ringMiles;
+
+    /** Indexes the first coordinates.size() slots; vertex v is at slot v. */
+    SpatialGrid(CoordinateStore coordinates) {
+        int n = coordinates.size();
+        double loLon = Double.POSITIVE_INFINITY, hiLon = Double.NEGATIVE_INFINITY;
+        double loLat = Double.POSITIVE_INFINITY, hiLat = Double.NEGATIVE_INFINITY;
+        for (int v = 0; v < n; v += 1) {
+            loLon = Math.min(loLon, coordinates.lon(v));
+            hiLon = Math.max(hiLon, coordinates.lon(v));
+            loLat = Math.min(loLat, coordinates.lat(v));
+            hiLat = Math.max(hiLat, coordinates.lat(v));
+        }
+        if (n == 0) {
+            loLon = hiLon = loLat = hiLat = 0;
+        }
+        int side = Math.max(1, (int) Math.ceil(Math.sqrt((double) n / TARGET_PER_CELL)));
+        minLon = loLon;
+        minLat = loLat;
+        cols = side;
+        rows = side;
+        cellLon = Math.max(hiLon - loLon, 1e-9) / cols;
+        cellLat = Math.max(hiLat - loLat, 1e-9) / rows;
+
+        /* Meridians converge towards the poles, so a degree of longitude is worth the least at
+         * the highest latitude in the grid; 0.9 leaves room for the great circle bowing
+         * poleward of the parallel. */
+        double maxAbsLat = Math.min(89, Math.max(Math.abs(loLat), Math.abs(hiLat)));
+        double lonMiles = cellLon * MILES_PER_DEGREE * Math.cos(Math.toRadians(maxAbsLat)) * 0.9;
+        ringMiles = Math.min(cellLat * MILES_PER_DEGREE, lonMiles);
+
+        cellStart = new int[cols * rows + 1];
+        int[] cellOf = new int[n];
+        for (int v = 0; v < n; v += 1) {
+            cellOf[v] = cell(col(coordinates.lon(v)), row(coordinates.lat(v)));
+            cellStart[cellOf[v] + 1] += 1;
+        }
+        for (int c = 0; c < cols * rows; c += 1) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        cellVertices = new int[n];
+        int[] fill = Arrays.copyOf(cellStart, cols * rows);
+        for (int v = 0; v < n; v += 1) {
+            cellVertices[fill[cellOf[v]]++] = v;
+        }
+    }
+
+    private int col(double lon) {
+        int c = (int) Math.floor((lon - minLon) / cellLon);
+        return Math.max(0, Math.min(cols - 1, c));
+    }
+
+    private int row(double lat) {
+        int r = (int) Math.floor((lat - minLat) / cellLat);
+        return Math.max(0, Math.min(rows - 1, r));
+    }
+
+    private int cell(int c, int r) {
+        return r * cols + c;
+    }
+
+    /**
+     * Calls action with every vertex inside the box whose corners are (ullon, ullat) and
+     * (lrlon, lrlat), edges included, except those skipped. Only the cells overlapping the box
+     * are scanned.
+     */
+    void within(CoordinateStore coordinates, double ullon, double ullat, double lrlon,
+                double lrlat, IntPredicate skip, IntConsumer action) {
+        for (int r = row(lrlat); r <= row(ullat); r += 1) {
+            for (int c = col(ullon); c <= col(lrlon); c += 1) {
+                int cell = cell(c, r);
+                for (int i = cellStart[cell]; i < cellStart[cell + 1]; i += 1) {
+                    int v = cellVertices[i];
+                    double lon = coordinates.lon(v);
+                    double lat = coordinates.lat(v);
+                    if (lon >= ullon && lon <= lrlon && lat <= ullat && lat >= lrlat
+                            && !skip.test(v)) {
+                        action.accept(v);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the vertex closest to (lon, lat) by great-circle distance, or -1 if the grid
+     * is empty or every vertex is skipped.
+     */
+    int nearest(CoordinateStore coordinates, double lon, double lat, IntPredicate skip) {
+        int c0 = col(lon), r0 = row(lat);
+        int best = -1;
+        double bestDist = Double.POSITIVE_INFINITY;
+        int maxRing = Math.max(cols, rows);
+        for (int k = 0; k <= maxRing; k += 1) {
+            /* Every cell in ring k is at least k - 1 whole cells away from the query. */
+            if (best >= 0 && bestDist <= (k - 1) * ringMiles) {
+                break;
+            }
+            for (int r = r0 - k; r <= r0 + k; r += 1) {
+                if (r < 0 || r >= rows) {
+                    continue;
+                }
+                boolean edgeRow = r == r0 - k || r == r0 + k;
+                int step = edgeRow ? 1 : 2 * k;
+                for (int c = c0 - k; c <= c0 + k; c += Math.max(step, 1)) {
+                    if (c < 0 || c >= cols) {
+                        continue;
+                    }
+                    int cell = cell(c, r);
+                    for (int i = cellStart[cell]; i < cellStart[cell + 1]; i += 1) {
+                        int v = cellVertices[i];
+                        if (skip.test(v)) {
+                            continue;
+                        }
+                        double d = GraphDB.distance(lon, lat, coordinates.lon(v),
+                                coordinates.lat(v));
+                        if (d < bestDist || (d == bestDist && v < best)) {
+                            bestDist = d;
+                            best = v;
+                        }
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns up to k vertices within maxMiles of (lon, lat), closest first.
+     */
+    int[] nearest(CoordinateStore coordinates, double lon, double lat, int k, double maxMiles,
+                  IntPredicate skip) {
+        int c0 = col(lon), r0 = row(lat);
+        int[] found = new int[16];
+        double[] dists = new double[16];
+        int count = 0;
+        int maxRing = Math.max(cols, rows);
+        for (int ring = 0; ring <= maxRing && (ring - 1) * ringMiles <= maxMiles; ring += 1) {
+            for (int r = r0 - ring; r <= r0 + ring; r += 1) {
+                if (r < 0 || r >= rows) {
+                    continue;
+                }
+                boolean edgeRow = r == r0 - ring || r == r0 + ring;
+                int step = edgeRow ? 1 : 2 * ring;
+                for (int c = c0 - ring; c <= c0 + ring; c += Math.max(step, 1)) {
+                    if (c < 0 || c >= cols) {
+                        continue;
+                    }
+                    int cell = cell(c, r);
+                    for (int i = cellStart[cell]; i < cellStart[cell + 1]; i += 1) {
+                        int v = cellVertices[i];
+                        if (skip.test(v)) {
+                            continue;
+                        }
+                        double d = GraphDB.distance(lon, lat, coordinates.lon(v),
+                                coordinates.lat(v));
+                        if (d > maxMiles) {
+                            continue;
+                        }
+                        if (count == found.length) {
+                            found = Arrays.copyOf(found, count * 2);
+                            dists = Arrays.copyOf(dists, count * 2);
+                        }
+                        found[count] = v;
+                        dists[count] = d;
+                        count += 1;
+                    }
+                }
+            }
+        }
+        /* Selection of the k smallest; k is small so this beats a full sort. */
+        int take = Math.min(k, count);
+        for (int i = 0; i < take; i += 1) {
+            int min = i;
+            for (int j = i + 1; j < count; j += 1) {
+                if (dists[j] < dists[min]) {
+                    min = j;
+                }
+            }
+            int tv = found[i];
+            found[i] = found[min];
+            found[min] = tv;
+            double td = dists[i];
+            dists[i] = dists[min];
+            dists[min] = td;
+        }
+        return Arrays.copyOf(found, take);
+    }
+}
@@ -0,0 +1,242 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * All the tiles of a tile directory packed into one file that is memory-mapped, so a tile is a
+ * slice of the mapping instead of a file to open, stat and read. It also makes the tile set a
+ * single artifact to ship and swap.
+ * <p>
+ * The file starts with a header (magic, version, deepest level, number of tiles) and an index
+ * with one entry per place in the pyramid, level by level and row by row: the tile at depth d,
+ * x, y is entry (4^d - 1) / 3 + y * 2^d + x. An entry holds the offset and length of the tile's
+ * PNG bytes in the file, length 0 if the directory had no such tile, and the CRC-32 of the
+ * bytes, which /tiles uses as the ETag. The PNG bytes follow the index, in index order, so the
+ * tiles of a row of the render grid are next to each other in the file.
+ * <p>
+ * Pack a directory with
+ * <pre>
+ *   java -cp ... TileArchive proj3_imgs/ proj3_imgs.tiles
+ * </pre>
+ * and give the archive instead of the directory as -Dbmaps.imgRoot or /reload's img_root.
+ */
+final class TileArchive {
+    private static final int MAGIC = 0x424d5441;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+    private static final int ENTRY_BYTES = 16;
+    /** Deepest level an archive may have; the index of level 12 alone takes 256 MB. */
+    private static final int MAX_DEPTH = 12;
+
+    private final ByteBuffer mapped;
+    private final int maxDepth;
+    private final int tileCount;
+
+    private TileArchive(ByteBuffer mapped) throws IOException {
+        this.mapped = mapped;
+        if (mapped.limit() < HEADER_BYTES || mapped.getInt(0) != MAGIC
+                || mapped.getInt(4) != VERSION) {
+            throw new IOException("Not a tile archive");
+        }
+        maxDepth = mapped.getInt(8);
+        tileCount = mapped.getInt(12);
+        if (maxDepth < 0 || maxDepth > MAX_DEPTH
+                || HEADER_BYTES + (long) slots(maxDepth) * ENTRY_BYTES > mapped.limit()) {
+            throw new IOException("Corrupt tile archive index");
+        }
+    }
+
+    /**
+     * Maps the archive at path.
+     *
+     * @throws IOException If it cannot be read, is not an archive or is larger than 2 GB.
+     */
+    static TileArchive open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(path + " is larger than 2 GB");
+            }
+            return new TileArchive(channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size()));
+        }
+    }
+
+    /** Number of places in the pyramid from depth 0 to depth maxDepth. */
+    private static int slots(int maxDepth) {
+        return ((1 << (2 * (maxDepth + 1))) - 1) / 3;
+    }
+
+    int tileCount() {
+        return tileCount;
+    }
+
+    /**
+     * Returns the index entry of the tile named as in the render grid (d{depth}_x{x}_y{y}.png),
+     * or -1 if the name is not one or lies outside the archive's pyramid.
+     */
+    private int entry(String name) {
+        int x = name.indexOf("_x");
+        int y = name.indexOf("_y");
+        if (!name.startsWith("d") || x < 0 || y < x || !name.endsWith(".png")) {
+            return -1;
+        }
+        try {
+            int depth = Integer.parseInt(name.substring(1, x));
+            int col = Integer.parseInt(name.substring(x + 2, y));
+            int row = Integer.parseInt(name.substring(y + 2, name.length() - ".png".length()));
+            if (depth < 0 || depth > maxDepth || col < 0 || col >= 1 << depth || row < 0
+                    || row >= 1 << depth) {
+                return -1;
+            }
+            return slots(depth - 1) + (row << depth) + col;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Returns the PNG bytes of the named tile as a slice of the mapping, or null if none. */
+    ByteBuffer tile(String name) {
+        int e = entry(name);
+        if (e < 0) {
+            return null;
+        }
+        int at = HEADER_BYTES + e * ENTRY_BYTES;
+        int length = mapped.getInt(at + 8);
+        if (length == 0) {
+            return null;
+        }
+        ByteBuffer slice = mapped.duplicate();
+        slice.position((int) mapped.getLong(at));
+        slice.limit(slice.position() + length);
+        return slice.slice();
+    }
+
+    /** Returns the CRC-32 of the named tile's bytes; only meaningful if tile(name) is not null. */
+    int crc(String name) {
+        return mapped.getInt(HEADER_BYTES + entry(name) * ENTRY_BYTES + 12);
+    }
+
+    /** Returns a stream over the named tile's bytes, or null if there is no such tile. */
+    InputStream open(String name) {
+        ByteBuffer bytes = tile(name);
+        return bytes == null ? null : new InputStream() {
+            @Override
+            public int read() {
+                return bytes.hasRemaining() ? bytes.get() & 0xff : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (!bytes.hasRemaining()) {
+                    return -1;
+                }
+                int n = Math.min(len, bytes.remaining());
+                bytes.get(b, off, n);
+                return n;
+            }
+
+            @Override
+            public int available() {
+                return bytes.remaining();
+            }
+        };
+    }
+
+    /**
+     * Packs the tiles of directory imgRoot, named d{depth}_x{x}_y{y}.png, into an archive at
+     * out. Other files are left out.
+     */
+    static void pack(Path imgRoot, Path out) throws IOException {
+        File[] files = imgRoot.toFile().listFiles();
+        if (files == null) {
+            throw new IOException("Cannot list " + imgRoot);
+        }
+        int maxDepth = -1;
+        for (File f : files) {
+            int[] key = parse(f.getName());
+            if (key != null && f.isFile()) {
+                maxDepth = Math.max(maxDepth, key[0]);
+            }
+        }
+        if (maxDepth < 0) {
+            throw new IOException("No tiles in " + imgRoot);
+        }
+        File[] bySlot = new File[slots(maxDepth)];
+        int count = 0;
+        for (File f : files) {
+            int[] key = parse(f.getName());
+            if (key != null && f.isFile()) {
+                bySlot[slots(key[0] - 1) + (key[2] << key[0]) + key[1]] = f;
+                count += 1;
+            }
+        }
+        long offset = HEADER_BYTES + (long) bySlot.length * ENTRY_BYTES;
+        try (DataOutputStream index = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(out)))) {
+            index.writeInt(MAGIC);
+            index.writeInt(VERSION);
+            index.writeInt(maxDepth);
+            index.writeInt(count);
+            for (File f : bySlot) {
+                long length = f == null ? 0 : f.length();
+                index.writeLong(length == 0 ? 0 : offset);
+                index.writeInt((int) length);
+                index.writeInt(f == null ? 0 : crc(f.toPath()));
+                offset += length;
+            }
+            if (offset > Integer.MAX_VALUE) {
+                throw new IOException("Tiles add up to more than 2 GB");
+            }
+            for (File f : bySlot) {
+                if (f != null) {
+                    Files.copy(f.toPath(), index);
+                }
+            }
+        }
+    }
+
+    /** Returns {depth, x, y} of a tile file name, or null if it is not one. */
+    private static int[] parse(String name) {
+        if (!name.matches("d\\d+_x\\d+_y\\d+\\.png")) {
+            return null;
+        }
+        String[] parts = name.substring(1, name.length() - ".png".length()).split("_[xy]");
+        try {
+            int depth = Integer.parseInt(parts[0]);
+            int x = Integer.parseInt(parts[1]);
+            int y = Integer.parseInt(parts[2]);
+            return depth <= MAX_DEPTH && x < 1 << depth && y < 1 << depth
+                    ? new int[] {depth, x, y} : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static int crc(Path file) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(Files.readAllBytes(file));
+        return (int) crc.getValue();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: TileArchive <tile directory> <archive>");
+            System.exit(1);
+        }
+        long begin = System.nanoTime();
+        pack(Paths.get(args[0]), Paths.get(args[1]));
+        TileArchive archive = open(Paths.get(args[1]));
+        System.out.printf("Packed %d tiles up to depth %d into %s (%d bytes) in %d ms%n",
+                archive.tileCount, archive.maxDepth, args[1], archive.mapped.limit(),
+                (System.nanoTime() - begin) / 1000000);
+    }
+}
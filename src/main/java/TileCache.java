@@ -0,0 +1,159 @@
+import javax.imageio.ImageIO;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decoded map tiles, kept so that panning over an area does not read and decode the same PNGs
+ * again for every raster. Tiles are kept in LRU order and the least recently used are dropped
+ * once the pixels of all tiles kept exceed the budget.
+ * <p>
+ * The lock is only held to look a tile up and to add one; decoding happens outside it, so
+ * requests that miss on different tiles decode them at the same time. Two requests missing on
+ * the same tile both decode it and the first to finish is kept.
+ * <p>
+ * Tiles are kept as TYPE_INT_RGB, whatever the PNG's own pixel layout, so that
+ * Rasterer.stitch copies their rows as they are.
+ * <p>
+ * Every Rasterer has its own cache, so tiles of a tile set replaced by /reload are dropped
+ * together with it.
+ */
+final class TileCache {
+    /** Default budget, in pixels: 256 tiles of 256 by 256. -Dbmaps.tileCache.pixels sets it. */
+    static final long BUDGET_PIXELS =
+            Long.getLong("bmaps.tileCache.pixels", 256L * 256 * 256);
+    /**
+     * Deepest level decoded ahead of the first request, or -1 for none;
+     * -Dbmaps.tileCache.warmDepth sets it. Levels 0 to 3 hold 85 tiles.
+     */
+    static final int WARM_DEPTH = Integer.getInteger("bmaps.tileCache.warmDepth", -1);
+
+    /** Where a cache reads the tiles it decodes. */
+    interface Source {
+        /** Opens the PNG bytes of the named tile, or returns null if there is none. */
+        InputStream open(String name) throws IOException;
+    }
+
+    private final Source source;
+    private final long budgetPixels;
+    private final LinkedHashMap<String, BufferedImage> tiles =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private long pixels;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    TileCache(Source source, long budgetPixels) {
+        this.source = source;
+        this.budgetPixels = budgetPixels;
+    }
+
+    /**
+     * @param imgRoot Directory the tiles are read from, ending in a separator.
+     */
+    TileCache(String imgRoot, long budgetPixels) {
+        this(name -> new FileInputStream(imgRoot + name), budgetPixels);
+    }
+
+    /**
+     * Returns the tile with the given file name, decoding it if it is not kept, or null if it
+     * cannot be read.
+     */
+    BufferedImage get(String name) {
+        synchronized (this) {
+            BufferedImage tile = tiles.get(name);
+            if (tile != null) {
+                hits += 1;
+                return tile;
+            }
+            misses += 1;
+        }
+        return load(name);
+    }
+
+    /**
+     * Decodes every tile from depth 0 to maxDepth on a background thread, without counting
+     * them as misses.
+     */
+    void warm(int maxDepth) {
+        Thread warmer = new Thread(() -> {
+            for (int depth = 0; depth <= maxDepth; depth += 1) {
+                for (int y = 0; y < 1 << depth; y += 1) {
+                    for (int x = 0; x < 1 << depth; x += 1) {
+                        String name = "d" + depth + "_x" + x + "_y" + y + ".png";
+                        synchronized (this) {
+                            if (tiles.containsKey(name)) {
+                                continue;
+                            }
+                        }
+                        load(name);
+                    }
+                }
+            }
+        }, "tile-warmup");
+        warmer.setDaemon(true);
+        warmer.start();
+    }
+
+    private BufferedImage load(String name) {
+        BufferedImage tile;
+        try (InputStream in = source.open(name)) {
+            /* Decoding from memory rather than through ImageIO's temporary file cache. */
+            tile = in == null ? null : ImageIO.read(new MemoryCacheImageInputStream(in));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        if (tile != null) {
+            tile = intRgb(tile);
+            put(name, tile);
+        }
+        return tile;
+    }
+
+    private static BufferedImage intRgb(BufferedImage tile) {
+        if (tile.getType() == BufferedImage.TYPE_INT_RGB) {
+            return tile;
+        }
+        int w = tile.getWidth();
+        int h = tile.getHeight();
+        BufferedImage converted = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        tile.getRGB(0, 0, w, h,
+                ((DataBufferInt) converted.getRaster().getDataBuffer()).getData(), 0, w);
+        return converted;
+    }
+
+    private synchronized void put(String name, BufferedImage tile) {
+        long size = (long) tile.getWidth() * tile.getHeight();
+        if (tiles.containsKey(name) || size > budgetPixels) {
+            return;
+        }
+        tiles.put(name, tile);
+        pixels += size;
+        Iterator<Map.Entry<String, BufferedImage>> lru = tiles.entrySet().iterator();
+        while (pixels > budgetPixels) {
+            BufferedImage evicted = lru.next().getValue();
+            lru.remove();
+            pixels -= (long) evicted.getWidth() * evicted.getHeight();
+            evictions += 1;
+        }
+    }
+
+    /** Returns the number of tiles kept, their pixels, the budget and the counters so far. */
+    synchronized Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("tiles", tiles.size());
+        stats.put("pixels", pixels);
+        stats.put("budget_pixels", budgetPixels);
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("evictions", evictions);
+        return stats;
+    }
+}
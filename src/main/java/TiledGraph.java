@@ -0,0 +1,817 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A road graph stored on disk as a grid of square tiles, of which only the tiles a request
+ * touches are in memory. Loading a whole extract into GraphDB at boot costs time and heap for
+ * areas nobody routes in; with tiles, boot reads only a small index, and a tile is read the
+ * first time closest() looks into it or a search reaches one of its vertices.
+ * <p>
+ * The directory holds graph.idx and one tile-N.bin per non-empty tile. Vertices are numbered
+ * tile by tile, so each tile owns a contiguous range of ids and the index only records where
+ * each range starts; edges are numbered the same way. A tile stores its vertices' OSM ids and
+ * coordinates and, in CSR form, their outgoing edges with length, time and way; edge targets
+ * are global ids and may lie in other tiles. A search that crosses a tile border therefore
+ * loads the next tile and goes on exactly as if the whole graph were in memory, so routes
+ * across tiles are the same as on the full graph.
+ * <p>
+ * A tile also stores the turn restrictions through its vertices, as CompactGraph does: keys
+ * via &lt;&lt; 32 | fromEdge, sorted, with the forbidden to-edge of each. The from-edge may
+ * belong to another tile, which is why edge ids are global too. When the extract has any
+ * restrictions the search runs over edges, like Router's, and checks them at every turn.
+ * <p>
+ * Loaded tiles are kept in LRU order and the least recently used are dropped once their
+ * estimated size exceeds the memory budget. A search holds on to the tiles it has reached
+ * until it ends, so it never reads one twice; memory can exceed the budget by the tiles of the
+ * searches running at the time. Search scratch space is a hash table over the vertices reached
+ * (see SparseSearchState), so nothing in a search is sized by the whole graph. Live closures
+ * are not stored in tiles.
+ * <p>
+ * MapServer routes on tiles instead of a GraphDB when started with -Dbmaps.tiles=dir.
+ * <p>
+ * Build the tiles once with
+ * <pre>
+ *   java -cp ... TiledGraph berkeley-2018.osm.xml tiles/ [tile size in degrees]
+ * </pre>
+ */
+final class TiledGraph {
+    /** Default side of a tile, in degrees; about 0.7 by 0.5 miles around Berkeley. */
+    static final double TILE_DEGREES = 0.01;
+    /** Default memory budget for loaded tiles, in bytes; -Dbmaps.tiles.budgetMb overrides it. */
+    static final long BUDGET_BYTES = Long.getLong("bmaps.tiles.budgetMb", 256) << 20;
+    private static final int MAGIC = 0x424d5447;
+    private static final int VERSION = 2;
+    private static final String INDEX_FILE = "graph.idx";
+    private static final double MILES_PER_DEGREE = 3963 * Math.PI / 180;
+
+    private final Path dir;
+    private final double minLon;
+    private final double minLat;
+    private final double tileDegrees;
+    private final int cols;
+    private final int rows;
+    private final double maxSpeedMph;
+    /** First vertex id of every tile; the vertex count at the end. */
+    private final int[] firstVertex;
+    /** First edge id of every tile; the edge count at the end. */
+    private final int[] firstEdge;
+    /** Whether any tile has turn restrictions, so that searches have to run over edges. */
+    private final boolean restricted;
+    /** Lower bound on the miles in one degree of longitude anywhere in the grid. */
+    private final double milesPerLonDegree;
+    private final long budgetBytes;
+    private final LinkedHashMap<Integer, Tile> loaded = new LinkedHashMap<>(16, 0.75f, true);
+    private long loadedBytes;
+    private long loads;
+    private long evictions;
+
+    /**
+     * One tile's vertices, their outgoing edges and the turn restrictions through them. Ids
+     * in edgeTarget and the restriction table are global; edge i of the arrays is edge
+     * firstEdge + i.
+     */
+    static final class Tile {
+        final int first;
+        final int firstEdge;
+        final long[] osmIds;
+        final double[] lons;
+        final double[] lats;
+        final int[] edgeStart;
+        final int[] edgeTarget;
+        final double[] edgeLength;
+        final double[] edgeTime;
+        final long[] edgeWay;
+        final long[] restrictionKey;
+        final int[] restrictionTo;
+
+        Tile(int first, int firstEdge, long[] osmIds, double[] lons, double[] lats,
+             int[] edgeStart, int[] edgeTarget, double[] edgeLength, double[] edgeTime,
+             long[] edgeWay, long[] restrictionKey, int[] restrictionTo) {
+            this.first = first;
+            this.firstEdge = firstEdge;
+            this.osmIds = osmIds;
+            this.lons = lons;
+            this.lats = lats;
+            this.edgeStart = edgeStart;
+            this.edgeTarget = edgeTarget;
+            this.edgeLength = edgeLength;
+            this.edgeTime = edgeTime;
+            this.edgeWay = edgeWay;
+            this.restrictionKey = restrictionKey;
+            this.restrictionTo = restrictionTo;
+        }
+
+        /** Approximate heap taken by the tile's arrays. */
+        long bytes() {
+            return 28L * osmIds.length + 28L * edgeTarget.length + 12L * restrictionTo.length
+                    + 64;
+        }
+
+        boolean holds(int v) {
+            return v >= first && v < first + osmIds.length;
+        }
+
+        boolean holdsEdge(int e) {
+            return e >= firstEdge && e < firstEdge + edgeTarget.length;
+        }
+
+        /**
+         * Returns true if driving global edge fromEdge into via, a vertex of this tile, and
+         * leaving on global edge toEdge is forbidden.
+         */
+        boolean isRestricted(int via, int fromEdge, int toEdge) {
+            return restrictionKey.length > 0 && CompactGraph.isRestricted(restrictionKey,
+                    restrictionTo, CompactGraph.key(via, fromEdge), toEdge);
+        }
+
+        double[] weights(RouteProfile profile) {
+            return profile == RouteProfile.TIME ? edgeTime : edgeLength;
+        }
+    }
+
+    /** Opens the tiles in dir with the default memory budget. */
+    TiledGraph(Path dir) throws IOException {
+        this(dir, BUDGET_BYTES);
+    }
+
+    TiledGraph(Path dir, long budgetBytes) throws IOException {
+        this.dir = dir;
+        this.budgetBytes = budgetBytes;
+        ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(dir.resolve(INDEX_FILE)));
+        if (index.getInt() != MAGIC || index.getInt() != VERSION) {
+            throw new IOException("Not a graph tile index: " + dir.resolve(INDEX_FILE));
+        }
+        minLon = index.getDouble();
+        minLat = index.getDouble();
+        tileDegrees = index.getDouble();
+        cols = index.getInt();
+        rows = index.getInt();
+        maxSpeedMph = index.getDouble();
+        firstVertex = new int[cols * rows + 1];
+        for (int t = 0; t < firstVertex.length; t += 1) {
+            firstVertex[t] = index.getInt();
+        }
+        firstEdge = new int[cols * rows + 1];
+        for (int t = 0; t < firstEdge.length; t += 1) {
+            firstEdge[t] = index.getInt();
+        }
+        restricted = index.getInt() > 0;
+        double maxAbsLat = Math.max(Math.abs(minLat), Math.abs(minLat + rows * tileDegrees));
+        milesPerLonDegree = MILES_PER_DEGREE * Math.cos(Math.toRadians(Math.min(maxAbsLat, 90)));
+    }
+
+    /** Number of vertices in the whole graph, loaded or not. */
+    int size() {
+        return firstVertex[firstVertex.length - 1];
+    }
+
+    /**
+     * Returns the tile holding vertex v, loading it if needed. An empty tile shares its first
+     * id with the tile after it, so the last tile starting at or before v is the one.
+     */
+    Tile tileOf(int v) {
+        return tile(tileIndex(v));
+    }
+
+    private int tileIndex(int v) {
+        return lastAtOrBefore(firstVertex, v);
+    }
+
+    /** Returns the tile holding edge e; edges are numbered tile by tile like vertices. */
+    private int edgeTileIndex(int e) {
+        return lastAtOrBefore(firstEdge, e);
+    }
+
+    private static int lastAtOrBefore(int[] starts, int id) {
+        int lo = 0;
+        int hi = starts.length - 2;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (starts[mid] <= id) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    /** Returns tile t, reading it from disk if it is not loaded, and marks it recently used. */
+    synchronized Tile tile(int t) {
+        Tile tile = loaded.get(t);
+        if (tile != null) {
+            return tile;
+        }
+        try {
+            tile = read(t);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        loads += 1;
+        loaded.put(t, tile);
+        loadedBytes += tile.bytes();
+        Iterator<Map.Entry<Integer, Tile>> lru = loaded.entrySet().iterator();
+        while (loadedBytes > budgetBytes && loaded.size() > 1) {
+            Tile evicted = lru.next().getValue();
+            lru.remove();
+            loadedBytes -= evicted.bytes();
+            evictions += 1;
+        }
+        return tile;
+    }
+
+    synchronized int loadedTiles() {
+        return loaded.size();
+    }
+
+    synchronized long loadedBytes() {
+        return loadedBytes;
+    }
+
+    synchronized long loads() {
+        return loads;
+    }
+
+    synchronized long evictions() {
+        return evictions;
+    }
+
+    private Tile read(int t) throws IOException {
+        int first = firstVertex[t];
+        int n = firstVertex[t + 1] - first;
+        long[] osmIds = new long[n];
+        double[] lons = new double[n];
+        double[] lats = new double[n];
+        int[] edgeStart = new int[n + 1];
+        if (n == 0) {
+            return new Tile(first, firstEdge[t], osmIds, lons, lats, edgeStart, new int[0],
+                    new double[0], new double[0], new long[0], new long[0], new int[0]);
+        }
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(tilePath(dir, t)));
+        for (int i = 0; i < n; i += 1) {
+            osmIds[i] = in.getLong();
+            lons[i] = in.getDouble();
+            lats[i] = in.getDouble();
+        }
+        for (int i = 0; i <= n; i += 1) {
+            edgeStart[i] = in.getInt();
+        }
+        int m = edgeStart[n];
+        int[] edgeTarget = new int[m];
+        double[] edgeLength = new double[m];
+        double[] edgeTime = new double[m];
+        long[] edgeWay = new long[m];
+        for (int e = 0; e < m; e += 1) {
+            edgeTarget[e] = in.getInt();
+            edgeLength[e] = in.getDouble();
+            edgeTime[e] = in.getDouble();
+            edgeWay[e] = in.getLong();
+        }
+        int r = in.getInt();
+        long[] restrictionKey = new long[r];
+        int[] restrictionTo = new int[r];
+        for (int i = 0; i < r; i += 1) {
+            restrictionKey[i] = in.getLong();
+            restrictionTo[i] = in.getInt();
+        }
+        return new Tile(first, firstEdge[t], osmIds, lons, lats, edgeStart, edgeTarget,
+                edgeLength, edgeTime, edgeWay, restrictionKey, restrictionTo);
+    }
+
+    private static Path tilePath(Path dir, int t) {
+        return dir.resolve("tile-" + t + ".bin");
+    }
+
+    private int col(double lon) {
+        return Math.max(0, Math.min(cols - 1, (int) Math.floor((lon - minLon) / tileDegrees)));
+    }
+
+    private int row(double lat) {
+        return Math.max(0, Math.min(rows - 1, (int) Math.floor((lat - minLat) / tileDegrees)));
+    }
+
+    /**
+     * Returns the vertex closest to the given point, or -1 if the graph is empty. Looks in
+     * the point's tile and then in rings of tiles around it, until the next ring is farther
+     * away than the best vertex found; only the tiles looked into are loaded.
+     */
+    int closest(double lon, double lat) {
+        int col = col(lon);
+        int row = row(lat);
+        int best = -1;
+        double bestMiles = Double.POSITIVE_INFINITY;
+        for (int ring = 0; ring < Math.max(cols, rows); ring += 1) {
+            if (best >= 0 && (ring - 1) * tileDegrees
+                    * Math.min(milesPerLonDegree, MILES_PER_DEGREE) > bestMiles) {
+                break;
+            }
+            for (int r = row - ring; r <= row + ring; r += 1) {
+                for (int c = col - ring; c <= col + ring; c += 1) {
+                    boolean onRing = Math.abs(r - row) == ring || Math.abs(c - col) == ring;
+                    if (!onRing || r < 0 || r >= rows || c < 0 || c >= cols) {
+                        continue;
+                    }
+                    int t = r * cols + c;
+                    if (firstVertex[t + 1] == firstVertex[t]) {
+                        continue;
+                    }
+                    Tile tile = tile(t);
+                    for (int i = 0; i < tile.osmIds.length; i += 1) {
+                        double miles = GraphDB.distance(lon, lat, tile.lons[i], tile.lats[i]);
+                        if (miles < bestMiles) {
+                            bestMiles = miles;
+                            best = tile.first + i;
+                        }
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    /** Returns the OSM id of vertex v. */
+    long osmId(int v) {
+        Tile tile = tileOf(v);
+        return tile.osmIds[v - tile.first];
+    }
+
+    /** Returns the longitude of vertex v. */
+    double lon(int v) {
+        Tile tile = tileOf(v);
+        return tile.lons[v - tile.first];
+    }
+
+    /** Returns the latitude of vertex v. */
+    double lat(int v) {
+        Tile tile = tileOf(v);
+        return tile.lats[v - tile.first];
+    }
+
+    /** A route found on the tiles, with the coordinates of its vertices for drawing it. */
+    static final class Route {
+        final Router.Result result;
+        final RouteShape shape;
+
+        Route(Router.Result result, RouteShape shape) {
+            this.result = result;
+            this.shape = shape;
+        }
+    }
+
+    /**
+     * Returns the great-circle distance in miles between the vertices the two locations snap
+     * to, like Router.snappedDistance on a GraphDB.
+     */
+    double snappedDistance(double stlon, double stlat, double destlon, double destlat) {
+        int s = closest(stlon, stlat);
+        int t = closest(destlon, destlat);
+        return s < 0 || t < 0 ? 0 : GraphDB.distance(lon(s), lat(s), lon(t), lat(t));
+    }
+
+    /**
+     * Finds the route between the vertices closest to the start and destination within the
+     * budget of options, like Router.route on a GraphDB. Tiles hold no closures, and there are
+     * no hot-target trees to read routes off.
+     */
+    Route route(double stlon, double stlat, double destlon, double destlat,
+                Router.Options options) {
+        int s = closest(stlon, stlat);
+        int t = closest(destlon, destlat);
+        if (s < 0 || t < 0) {
+            return new Route(new Router.Result(Router.Status.UNREACHABLE, new ArrayList<>(),
+                    Double.POSITIVE_INFINITY, options.epsilon, 0), RouteShape.EMPTY);
+        }
+        return route(s, t, options);
+    }
+
+    /**
+     * Runs A* from s to t, loading tiles as the search reaches them. Profile, budget, epsilon
+     * and corridor work as in Router, and so do turn restrictions: with any in the extract, the
+     * search runs over edges. The scratch space is a SparseSearchState, so it grows with the
+     * vertices or edges the search reaches, not with size().
+     */
+    Route route(int s, int t, Router.Options options) {
+        Map<Integer, Tile> reached = new HashMap<>();
+        Search q = search(new Search(reached, s, t, options, options.corridor, 0));
+        if (q.status == Router.Status.UNREACHABLE && options.corridor > 0) {
+            q = search(new Search(reached, s, t, options, 0, q.settled));
+        }
+        if (q.status != Router.Status.FOUND) {
+            return new Route(new Router.Result(q.status, new ArrayList<>(),
+                    Double.POSITIVE_INFINITY, options.epsilon, q.settled), RouteShape.EMPTY);
+        }
+        List<Long> path = new ArrayList<>();
+        double[] lons = new double[q.vertices.size()];
+        double[] lats = new double[q.vertices.size()];
+        for (int i = q.vertices.size() - 1; i >= 0; i -= 1) {
+            int v = q.vertices.get(i);
+            Tile owner = pinned(reached, v);
+            path.add(owner.osmIds[v - owner.first]);
+            lons[path.size() - 1] = owner.lons[v - owner.first];
+            lats[path.size() - 1] = owner.lats[v - owner.first];
+        }
+        return new Route(new Router.Result(Router.Status.FOUND, path, q.cost,
+                options.epsilon, q.settled), new RouteShape(lons, lats));
+    }
+
+    private Search search(Search q) {
+        return Router.TURN_RESTRICTIONS && restricted ? edgeSearch(q) : nodeSearch(q);
+    }
+
+    /**
+     * The scratch space, bounds and outcome of one search from s to t, which skips vertices
+     * outside the corridor when corridor is positive. settled starts at the count of an
+     * earlier search of the same request.
+     */
+    private final class Search {
+        final SparseSearchState state = new SparseSearchState(64);
+        final Map<Integer, Tile> reached;
+        final int s;
+        final int t;
+        final RouteProfile profile;
+        final int maxSettled;
+        final double scale;
+        final double corridor;
+        final double slon;
+        final double slat;
+        final double tlon;
+        final double tlat;
+        final double corridorMiles;
+        final boolean hasDeadline;
+        final long deadline;
+        Router.Status status = Router.Status.UNREACHABLE;
+        int settled;
+        double cost = Double.POSITIVE_INFINITY;
+        /** The vertices of the route from t back to s, once it is found. */
+        List<Integer> vertices;
+
+        Search(Map<Integer, Tile> reached, int s, int t, Router.Options options,
+               double corridor, int settled) {
+            this.reached = reached;
+            this.s = s;
+            this.t = t;
+            this.settled = settled;
+            this.corridor = corridor;
+            profile = options.profile;
+            maxSettled = options.maxSettled;
+            scale = (profile == RouteProfile.TIME ? 3600 / maxSpeedMph : 1) * options.epsilon;
+            Tile source = pinned(reached, s);
+            slon = source.lons[s - source.first];
+            slat = source.lats[s - source.first];
+            Tile target = pinned(reached, t);
+            tlon = target.lons[t - target.first];
+            tlat = target.lats[t - target.first];
+            double direct = GraphDB.distance(slon, slat, tlon, tlat);
+            corridorMiles = Math.max(corridor * direct, direct + 2 * Router.MIN_CORRIDOR_SLACK);
+            hasDeadline = options.timeoutNanos > 0;
+            deadline = System.nanoTime() + options.timeoutNanos;
+        }
+
+        /** Counts one more settled entry; false, with the status set, once over budget. */
+        boolean withinBudget() {
+            settled += 1;
+            if (settled > maxSettled || (hasDeadline
+                    && settled % Router.CLOCK_CHECK_INTERVAL == 0
+                    && System.nanoTime() - deadline > 0)) {
+                status = Router.Status.TIMED_OUT;
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Returns the A* estimate of w, a vertex of tile next, or +infinity if w lies outside
+         * the corridor.
+         */
+        double estimate(Tile next, int w) {
+            double lon = next.lons[w - next.first];
+            double lat = next.lats[w - next.first];
+            double toTarget = GraphDB.distance(lon, lat, tlon, tlat);
+            if (corridor > 0
+                    && GraphDB.distance(slon, slat, lon, lat) + toTarget > corridorMiles) {
+                return Double.POSITIVE_INFINITY;
+            }
+            return scale * toTarget;
+        }
+
+        void found(double d, List<Integer> path) {
+            status = Router.Status.FOUND;
+            cost = d;
+            vertices = path;
+        }
+    }
+
+    /** A* over vertices, for extracts without turn restrictions. */
+    private Search nodeSearch(Search q) {
+        SparseSearchState state = q.state;
+        state.relax(q.s, 0, -1);
+        state.fringe.push(q.s, 0);
+        Tile tile = pinned(q.reached, q.s);
+        while (!state.fringe.isEmpty()) {
+            int v = state.fringe.poll();
+            if (state.isSettled(v)) {
+                continue;
+            }
+            if (!q.withinBudget()) {
+                return q;
+            }
+            state.settle(v);
+            double d = state.dist(v);
+            if (v == q.t) {
+                List<Integer> path = new ArrayList<>();
+                for (int u = v; u >= 0; u = state.parent(u)) {
+                    path.add(u);
+                }
+                q.found(d, path);
+                return q;
+            }
+            if (!tile.holds(v)) {
+                tile = pinned(q.reached, v);
+            }
+            double[] weight = tile.weights(q.profile);
+            int local = v - tile.first;
+            for (int e = tile.edgeStart[local]; e < tile.edgeStart[local + 1]; e += 1) {
+                int w = tile.edgeTarget[e];
+                if (state.isSettled(w)) {
+                    continue;
+                }
+                double estimate = q.estimate(tile.holds(w) ? tile : pinned(q.reached, w), w);
+                if (estimate == Double.POSITIVE_INFINITY) {
+                    continue;
+                }
+                double nd = d + weight[e];
+                if (state.relax(w, nd, v)) {
+                    state.fringe.push(w, nd + estimate);
+                }
+            }
+        }
+        return q;
+    }
+
+    /**
+     * A* over global edge ids, as Router does with turn restrictions: the state is the edge
+     * just driven, so each turn out of its target can be checked against the target's tile.
+     */
+    private Search edgeSearch(Search q) {
+        if (q.s == q.t) {
+            List<Integer> path = new ArrayList<>();
+            path.add(q.s);
+            q.found(0, path);
+            return q;
+        }
+        SparseSearchState state = q.state;
+        Tile source = pinned(q.reached, q.s);
+        double[] sourceWeight = source.weights(q.profile);
+        int local = q.s - source.first;
+        for (int e = source.edgeStart[local]; e < source.edgeStart[local + 1]; e += 1) {
+            int w = source.edgeTarget[e];
+            double estimate = q.estimate(source.holds(w) ? source : pinned(q.reached, w), w);
+            if (estimate != Double.POSITIVE_INFINITY
+                    && state.relax(source.firstEdge + e, sourceWeight[e], -1)) {
+                state.fringe.push(source.firstEdge + e, sourceWeight[e] + estimate);
+            }
+        }
+        Tile edgeTile = source;
+        while (!state.fringe.isEmpty()) {
+            int e = state.fringe.poll();
+            if (state.isSettled(e)) {
+                continue;
+            }
+            if (!q.withinBudget()) {
+                return q;
+            }
+            state.settle(e);
+            if (!edgeTile.holdsEdge(e)) {
+                edgeTile = pinnedEdge(q.reached, e);
+            }
+            int v = edgeTile.edgeTarget[e - edgeTile.firstEdge];
+            double d = state.dist(e);
+            if (v == q.t) {
+                List<Integer> path = new ArrayList<>();
+                for (int f = e; f >= 0; f = state.parent(f)) {
+                    Tile owner = pinnedEdge(q.reached, f);
+                    path.add(owner.edgeTarget[f - owner.firstEdge]);
+                }
+                path.add(q.s);
+                q.found(d, path);
+                return q;
+            }
+            Tile tile = pinned(q.reached, v);
+            double[] weight = tile.weights(q.profile);
+            local = v - tile.first;
+            for (int f = tile.edgeStart[local]; f < tile.edgeStart[local + 1]; f += 1) {
+                int id = tile.firstEdge + f;
+                if (state.isSettled(id) || tile.isRestricted(v, e, id)) {
+                    continue;
+                }
+                int w = tile.edgeTarget[f];
+                double estimate = q.estimate(tile.holds(w) ? tile : pinned(q.reached, w), w);
+                if (estimate == Double.POSITIVE_INFINITY) {
+                    continue;
+                }
+                double nd = d + weight[f];
+                if (state.relax(id, nd, e)) {
+                    state.fringe.push(id, nd + estimate);
+                }
+            }
+        }
+        return q;
+    }
+
+    /** Returns the tile of v, from the tiles this search already holds if it can. */
+    private Tile pinned(Map<Integer, Tile> reached, int v) {
+        return pinnedTile(reached, tileIndex(v));
+    }
+
+    /** Returns the tile of edge e, from the tiles this search already holds if it can. */
+    private Tile pinnedEdge(Map<Integer, Tile> reached, int e) {
+        return pinnedTile(reached, edgeTileIndex(e));
+    }
+
+    private Tile pinnedTile(Map<Integer, Tile> reached, int t) {
+        Tile tile = reached.get(t);
+        if (tile == null) {
+            tile = tile(t);
+            reached.put(t, tile);
+        }
+        return tile;
+    }
+
+    /**
+     * Writes c as tiles of the given size into dir, replacing any tiles there, with its turn
+     * restrictions renumbered to the tiles' vertex and edge ids.
+     */
+    static void write(CompactGraph c, Path dir, double tileDegrees) throws IOException {
+        int n = c.size();
+        double minLon = Double.POSITIVE_INFINITY, maxLon = Double.NEGATIVE_INFINITY;
+        double minLat = Double.POSITIVE_INFINITY, maxLat = Double.NEGATIVE_INFINITY;
+        for (int v = 0; v < n; v += 1) {
+            minLon = Math.min(minLon, c.lon(v));
+            maxLon = Math.max(maxLon, c.lon(v));
+            minLat = Math.min(minLat, c.lat(v));
+            maxLat = Math.max(maxLat, c.lat(v));
+        }
+        if (n == 0) {
+            minLon = maxLon = minLat = maxLat = 0;
+        }
+        int cols = (int) Math.floor((maxLon - minLon) / tileDegrees) + 1;
+        int rows = (int) Math.floor((maxLat - minLat) / tileDegrees) + 1;
+        int tiles = cols * rows;
+
+        /* Number vertices tile by tile, keeping CompactGraph's order within a tile. */
+        int[] tileOf = new int[n];
+        int[] firstVertex = new int[tiles + 1];
+        for (int v = 0; v < n; v += 1) {
+            int col = Math.min(cols - 1, (int) Math.floor((c.lon(v) - minLon) / tileDegrees));
+            int row = Math.min(rows - 1, (int) Math.floor((c.lat(v) - minLat) / tileDegrees));
+            tileOf[v] = row * cols + col;
+            firstVertex[tileOf[v] + 1] += 1;
+        }
+        for (int t = 0; t < tiles; t += 1) {
+            firstVertex[t + 1] += firstVertex[t];
+        }
+        int[] id = new int[n];
+        int[] order = new int[n];
+        int[] next = Arrays.copyOf(firstVertex, tiles);
+        for (int v = 0; v < n; v += 1) {
+            id[v] = next[tileOf[v]]++;
+            order[id[v]] = v;
+        }
+        /* Edges follow their source, so each tile owns a contiguous range of edge ids too. */
+        int[] edgeId = new int[c.edgeCount()];
+        int[] firstEdge = new int[tiles + 1];
+        int edgeCount = 0;
+        for (int t = 0; t < tiles; t += 1) {
+            firstEdge[t] = edgeCount;
+            for (int i = firstVertex[t]; i < firstVertex[t + 1]; i += 1) {
+                int v = order[i];
+                for (int e = c.firstEdge(v); e < c.endEdge(v); e += 1) {
+                    edgeId[e] = edgeCount++;
+                }
+            }
+        }
+        firstEdge[tiles] = edgeCount;
+        int restrictions = 0;
+
+        Files.createDirectories(dir);
+        for (int t = 0; t < tiles; t += 1) {
+            Files.deleteIfExists(tilePath(dir, t));
+            if (firstVertex[t + 1] == firstVertex[t]) {
+                continue;
+            }
+            try (DataOutputStream out = open(tilePath(dir, t))) {
+                for (int i = firstVertex[t]; i < firstVertex[t + 1]; i += 1) {
+                    int v = order[i];
+                    out.writeLong(c.osmId(v));
+                    out.writeDouble(c.lon(v));
+                    out.writeDouble(c.lat(v));
+                }
+                int edges = 0;
+                for (int i = firstVertex[t]; i <= firstVertex[t + 1]; i += 1) {
+                    out.writeInt(edges);
+                    if (i < firstVertex[t + 1]) {
+                        int v = order[i];
+                        edges += c.endEdge(v) - c.firstEdge(v);
+                    }
+                }
+                for (int i = firstVertex[t]; i < firstVertex[t + 1]; i += 1) {
+                    int v = order[i];
+                    for (int e = c.firstEdge(v); e < c.endEdge(v); e += 1) {
+                        out.writeInt(id[c.target(e)]);
+                        out.writeDouble(c.length(e));
+                        out.writeDouble(c.time(e));
+                        out.writeLong(c.way(e));
+                    }
+                }
+                long[][] table = restrictions(c, order, firstVertex[t], firstVertex[t + 1], id,
+                        edgeId);
+                out.writeInt(table[0].length);
+                for (int i = 0; i < table[0].length; i += 1) {
+                    out.writeLong(table[0][i]);
+                    out.writeInt((int) table[1][i]);
+                }
+                restrictions += table[0].length;
+            }
+        }
+        try (DataOutputStream out = open(dir.resolve(INDEX_FILE))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeDouble(minLon);
+            out.writeDouble(minLat);
+            out.writeDouble(tileDegrees);
+            out.writeInt(cols);
+            out.writeInt(rows);
+            out.writeDouble(c.maxSpeedMph);
+            for (int first : firstVertex) {
+                out.writeInt(first);
+            }
+            for (int first : firstEdge) {
+                out.writeInt(first);
+            }
+            out.writeInt(restrictions);
+        }
+    }
+
+    /**
+     * Returns the restriction table of the tile holding the new ids from .. to - 1, in
+     * CompactGraph's form: {sorted keys, matching to-edges}, with new vertex and edge ids.
+     */
+    private static long[][] restrictions(CompactGraph c, int[] order, int from, int to, int[] id,
+                                         int[] edgeId) {
+        List<long[]> turns = new ArrayList<>();
+        if (c.hasTurnRestrictions()) {
+            for (int i = from; i < to; i += 1) {
+                int via = order[i];
+                for (int j = c.firstIn(via); j < c.endIn(via); j += 1) {
+                    int in = c.inEdge(j);
+                    for (int out = c.firstEdge(via); out < c.endEdge(via); out += 1) {
+                        if (c.isRestricted(via, in, out)) {
+                            turns.add(new long[] {CompactGraph.key(id[via], edgeId[in]),
+                                edgeId[out]});
+                        }
+                    }
+                }
+            }
+        }
+        turns.sort((a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+        long[][] table = new long[2][turns.size()];
+        for (int i = 0; i < turns.size(); i += 1) {
+            table[0][i] = turns.get(i)[0];
+            table[1][i] = turns.get(i)[1];
+        }
+        return table;
+    }
+
+    private static DataOutputStream open(Path path) throws IOException {
+        OutputStream out = Files.newOutputStream(path);
+        return new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+    }
+
+    /** Builds tiles from an OSM file: TiledGraph osm-file tile-directory [tile degrees]. */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: TiledGraph osm-file tile-directory [tile degrees]");
+            System.exit(1);
+        }
+        double degrees = args.length > 2 ? Double.parseDouble(args[2]) : TILE_DEGREES;
+        long begin = System.nanoTime();
+        GraphDB g = new GraphDB(args[0]);
+        write(g.compact(), Paths.get(args[1]), degrees);
+        System.out.printf("Wrote %d vertices to %s in %.1f s%n", g.compact().size(), args[1],
+                (System.nanoTime() - begin) / 1e9);
+    }
+}
@@ -0,0 +1,422 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Orders a set of stops into a short trip, for users who need to visit many places and do not
+ * care in which order.
+ * <p>
+ * Every stop is snapped to the graph once. A one-to-many Dijkstra from each stop, stopped as
+ * soon as every other stop is settled, fills the (asymmetric, since streets can be one-way)
+ * table of road costs between stops; the searches run in parallel on threads of their own, so
+ * a large trip cannot take over the common pool that parallel streams share. The order is then
+ * built by nearest insertion and improved by 2-opt (reversing a stretch of the trip) and Or-opt
+ * (moving a run of one to three stops elsewhere) until no move helps or the time budget is
+ * spent. Finally the legs are routed with Router and stitched into one node list. The table
+ * ignores turn restrictions, but the legs honour them, so the reported cost can be slightly
+ * below that of the stitched route.
+ * <p>
+ * The searches of the table and of the legs share a deadline of their own. A trip whose
+ * searches do not finish by then comes back TIMED_OUT, without an order or route.
+ * <p>
+ * The first stop is where the trip starts. A round trip also ends there; otherwise the trip
+ * ends at whichever stop makes it shortest.
+ */
+public class TripPlanner {
+    private static final double IMPROVEMENT = 1e-9;
+    /** Number of settled vertices between two looks at the clock in a table search. */
+    private static final int CLOCK_CHECK_INTERVAL = 256;
+    /** Runs the table searches of every trip; as many threads as there are processors. */
+    private static final ExecutorService TABLE_THREADS = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), r -> {
+                Thread t = new Thread(r, "trip-table");
+                t.setDaemon(true);
+                return t;
+            });
+
+    private final CompactGraph c;
+    private final RouteProfile profile;
+    private final double[] factor;
+
+    private TripPlanner(GraphDB g, RouteProfile profile) {
+        this.c = g.compact();
+        this.profile = profile;
+        this.factor = g.overlay().factors();
+    }
+
+    /** A planned trip. */
+    public static class Trip {
+        /**
+         * FOUND if every search finished, even if some stop is unreachable; TIMED_OUT if they
+         * ran past their deadline, in which case there is no order or route.
+         */
+        public final Router.Status status;
+        /** Indices of the input stops in visiting order, starting with 0. */
+        public final int[] order;
+        /** Total weight of the trip under the profile; +infinity if a stop is unreachable. */
+        public final double cost;
+        /** OSM ids of the whole trip, leg after leg. */
+        public final List<Long> route;
+
+        Trip(Router.Status status, int[] order, double cost, List<Long> route) {
+            this.status = status;
+            this.order = order;
+            this.cost = cost;
+            this.route = route;
+        }
+    }
+
+    /**
+     * Plans a trip through the first count stops.
+     *
+     * @param lons         Longitudes of the stops; the first is the start.
+     * @param lats         Latitudes of the stops.
+     * @param count        Number of stops.
+     * @param roundTrip    Whether the trip returns to the first stop.
+     * @param searchMillis Time allowed for all searches: the table and the legs.
+     * @param budgetMillis Time allowed for improving the order once the table is built.
+     */
+    public static Trip plan(GraphDB g, double[] lons, double[] lats, int count,
+                            boolean roundTrip, RouteProfile profile, long searchMillis,
+                            long budgetMillis) {
+        if (count == 0 || g.compact().size() == 0) {
+            return new Trip(Router.Status.FOUND, new int[0], 0, new ArrayList<>());
+        }
+        return new TripPlanner(g, profile).plan(lons, lats, count, roundTrip,
+                System.nanoTime() + searchMillis * 1000000L, budgetMillis);
+    }
+
+    /**
+     * Returns about the area, in square miles, that the table searches of a trip through the
+     * given stops cover together: one search per stop, each reaching across the stops'
+     * bounding box. For admission control; see AdmissionController.admitArea.
+     */
+    static double searchArea(double[] lons, double[] lats, int count) {
+        if (count == 0) {
+            return 0;
+        }
+        double minLon = lons[0], maxLon = lons[0], minLat = lats[0], maxLat = lats[0];
+        for (int i = 1; i < count; i += 1) {
+            minLon = Math.min(minLon, lons[i]);
+            maxLon = Math.max(maxLon, lons[i]);
+            minLat = Math.min(minLat, lats[i]);
+            maxLat = Math.max(maxLat, lats[i]);
+        }
+        double span = GraphDB.distance(minLon, minLat, maxLon, maxLat);
+        return count * span * span;
+    }
+
+    private Trip plan(double[] lons, double[] lats, int count, boolean roundTrip,
+                      long searchDeadline, long budgetMillis) {
+        int[] stops = new int[count];
+        for (int i = 0; i < count; i += 1) {
+            stops[i] = c.nearest(lons[i], lats[i]);
+        }
+        double[][] table = table(stops, searchDeadline);
+        if (table == null) {
+            return timedOut();
+        }
+        long deadline = System.nanoTime() + budgetMillis * 1000000L;
+        /* An open trip is planned as a round trip through a phantom stop that every stop can
+         * reach for free and that can only be left for stop 0. The phantom ends up just before
+         * stop 0, so the same moves also pick where an open trip ends. */
+        int n = roundTrip ? count : count + 1;
+        double[][] cost = new double[n][n];
+        for (int i = 0; i < count; i += 1) {
+            System.arraycopy(table[i], 0, cost[i], 0, count);
+        }
+        if (!roundTrip) {
+            for (int j = 1; j < count; j += 1) {
+                cost[count][j] = Double.POSITIVE_INFINITY;
+            }
+        }
+        int[] tour = insertion(cost);
+        improve(tour, cost, deadline);
+
+        int[] order = new int[count];
+        int k = 0;
+        for (int i = 0; i < n && k < count; i += 1) {
+            if (tour[i] < count) {
+                order[k] = tour[i];
+                k += 1;
+            }
+        }
+        List<Long> route = stitch(stops, order, roundTrip, searchDeadline);
+        if (route == null) {
+            return timedOut();
+        }
+        return new Trip(Router.Status.FOUND, order, length(tour, cost), route);
+    }
+
+    private static Trip timedOut() {
+        return new Trip(Router.Status.TIMED_OUT, new int[0], Double.POSITIVE_INFINITY,
+                new ArrayList<>());
+    }
+
+    /**
+     * Returns table[i][j], the road cost from stop i to stop j, or null if the searches did
+     * not finish by deadline. Each row is one Dijkstra that stops once every stop is settled;
+     * rows are independent and run in parallel on TABLE_THREADS, each on its thread's search
+     * state.
+     */
+    private double[][] table(int[] stops, long deadline) {
+        int count = stops.length;
+        /* slot[v] is the first stop at vertex v, or -1; several stops can share a vertex. */
+        int[] slot = new int[c.size()];
+        Arrays.fill(slot, -1);
+        int distinct = 0;
+        for (int j = 0; j < count; j += 1) {
+            if (slot[stops[j]] < 0) {
+                slot[stops[j]] = j;
+                distinct += 1;
+            }
+        }
+        final int targets = distinct;
+        List<Callable<double[]>> rows = new ArrayList<>();
+        for (int i = 0; i < count; i += 1) {
+            final int from = i;
+            rows.add(() -> row(stops, slot, targets, from, deadline));
+        }
+        double[][] table = new double[count][];
+        try {
+            /* Rows still running at the deadline are cancelled; they also give up on their
+             * own, so a cancelled row does not keep its thread. */
+            List<Future<double[]>> done = TABLE_THREADS.invokeAll(rows,
+                    Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            for (int i = 0; i < count; i += 1) {
+                table[i] = done.get(i).get();
+                if (table[i] == null) {
+                    return null;
+                }
+            }
+        } catch (CancellationException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+        return table;
+    }
+
+    /** Returns the row of stop i of the table, or null if deadline passed first. */
+    private double[] row(int[] stops, int[] slot, int targets, int i, long deadline) {
+        int count = stops.length;
+        double[] row = new double[count];
+        Arrays.fill(row, Double.POSITIVE_INFINITY);
+        SearchState state = Router.searchState(c.size());
+        state.reset();
+        state.relax(stops[i], 0, -1);
+        state.fringe.push(stops[i], 0);
+        int remaining = targets;
+        int settled = 0;
+        while (!state.fringe.isEmpty() && remaining > 0) {
+            int v = state.fringe.poll();
+            if (state.isSettled(v)) {
+                continue;
+            }
+            settled += 1;
+            if (settled % CLOCK_CHECK_INTERVAL == 0 && System.nanoTime() - deadline > 0) {
+                return null;
+            }
+            state.settle(v);
+            double d = state.dist(v);
+            if (slot[v] >= 0) {
+                row[slot[v]] = d;
+                remaining -= 1;
+            }
+            for (int e = c.firstEdge(v); e < c.endEdge(v); e += 1) {
+                int w = c.target(e);
+                double weight = profile.weight(c, e);
+                double nd = d + (factor == null ? weight : weight * factor[e]);
+                if (nd != Double.POSITIVE_INFINITY && !state.isSettled(w)
+                        && state.relax(w, nd, v)) {
+                    state.fringe.push(w, nd);
+                }
+            }
+        }
+        for (int j = 0; j < count; j += 1) {
+            row[j] = row[slot[stops[j]]];
+        }
+        return row;
+    }
+
+    /**
+     * Nearest insertion: starting from stop 0 alone, repeatedly takes the stop closest to any
+     * stop already on the tour and inserts it where it lengthens the tour least.
+     */
+    private static int[] insertion(double[][] cost) {
+        int n = cost.length;
+        int[] tour = new int[n];
+        boolean[] onTour = new boolean[n];
+        double[] nearest = new double[n];
+        tour[0] = 0;
+        onTour[0] = true;
+        for (int j = 0; j < n; j += 1) {
+            nearest[j] = Math.min(cost[0][j], cost[j][0]);
+        }
+        for (int size = 1; size < n; size += 1) {
+            int next = -1;
+            for (int j = 0; j < n; j += 1) {
+                if (!onTour[j] && (next < 0 || nearest[j] < nearest[next])) {
+                    next = j;
+                }
+            }
+            int at = 0;
+            double best = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < size; i += 1) {
+                int a = tour[i];
+                int b = tour[(i + 1) % size];
+                double delta = cost[a][next] + cost[next][b] - (size == 1 ? 0 : cost[a][b]);
+                if (at == 0 || delta < best) {
+                    best = delta;
+                    at = i + 1;
+                }
+            }
+            System.arraycopy(tour, at, tour, at + 1, size - at);
+            tour[at] = next;
+            onTour[next] = true;
+            for (int j = 0; j < n; j += 1) {
+                nearest[j] = Math.min(nearest[j], Math.min(cost[next][j], cost[j][next]));
+            }
+        }
+        return tour;
+    }
+
+    /**
+     * Applies improving 2-opt and Or-opt moves, first found first taken, until neither finds
+     * one or the deadline passes. tour[0] stays stop 0. Every move is priced in O(1) from the
+     * table before it is made.
+     */
+    private static void improve(int[] tour, double[][] cost, long deadline) {
+        boolean improved = true;
+        while (improved && System.nanoTime() - deadline < 0) {
+            improved = twoOpt(tour, cost) || orOpt(tour, cost);
+        }
+    }
+
+    /**
+     * Reverses the first stretch tour[i..j] whose reversal shortens the tour. The graph is
+     * directed, so the reversed stretch is driven the other way; its cost in both directions
+     * is accumulated as j grows.
+     */
+    private static boolean twoOpt(int[] tour, double[][] cost) {
+        int n = tour.length;
+        for (int i = 1; i < n - 1; i += 1) {
+            int before = tour[i - 1];
+            double forward = 0;
+            double backward = 0;
+            for (int j = i + 1; j < n; j += 1) {
+                forward += cost[tour[j - 1]][tour[j]];
+                backward += cost[tour[j]][tour[j - 1]];
+                int after = tour[(j + 1) % n];
+                double delta = cost[before][tour[j]] + backward + cost[tour[i]][after]
+                        - cost[before][tour[i]] - forward - cost[tour[j]][after];
+                if (delta < -IMPROVEMENT) {
+                    reverse(tour, i, j);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves the first run of one to three stops whose removal and reinsertion between two
+     * other neighbouring stops shortens the tour.
+     */
+    private static boolean orOpt(int[] tour, double[][] cost) {
+        int n = tour.length;
+        for (int run = 1; run <= 3; run += 1) {
+            for (int i = 1; i + run <= n; i += 1) {
+                int first = tour[i];
+                int last = tour[i + run - 1];
+                int before = tour[i - 1];
+                int after = tour[(i + run) % n];
+                double removed = cost[before][first] + cost[last][after] - cost[before][after];
+                for (int x = 0; x < n; x += 1) {
+                    if (x >= i - 1 && x < i + run) {
+                        continue;
+                    }
+                    int a = tour[x];
+                    int b = tour[(x + 1) % n];
+                    double added = cost[a][first] + cost[last][b] - cost[a][b];
+                    if (added - removed < -IMPROVEMENT) {
+                        move(tour, i, run, x < i ? x + 1 : x + 1 - run);
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Weight of the tour, including the way from its last stop back to tour[0]. */
+    private static double length(int[] tour, double[][] cost) {
+        double total = cost[tour[tour.length - 1]][tour[0]];
+        for (int i = 0; i + 1 < tour.length; i += 1) {
+            total += cost[tour[i]][tour[i + 1]];
+        }
+        return total;
+    }
+
+    private static void reverse(int[] tour, int i, int j) {
+        for (; i < j; i += 1, j -= 1) {
+            int swap = tour[i];
+            tour[i] = tour[j];
+            tour[j] = swap;
+        }
+    }
+
+    /** Moves tour[from .. from + run) so that it starts at index to. */
+    private static void move(int[] tour, int from, int run, int to) {
+        int[] moved = new int[run];
+        System.arraycopy(tour, from, moved, 0, run);
+        if (to < from) {
+            System.arraycopy(tour, to, tour, to + run, from - to);
+        } else {
+            System.arraycopy(tour, from + run, tour, from, to - from);
+        }
+        System.arraycopy(moved, 0, tour, to, run);
+    }
+
+    /**
+     * Routes every leg and joins them, dropping the vertex each leg shares with the last.
+     * Returns null if deadline passes before every leg is routed.
+     */
+    private List<Long> stitch(int[] stops, int[] order, boolean roundTrip, long deadline) {
+        List<Long> route = new ArrayList<>();
+        route.add(c.osmId(stops[order[0]]));
+        int legs = roundTrip && order.length > 1 ? order.length : order.length - 1;
+        for (int i = 0; i < legs; i += 1) {
+            int from = stops[order[i]];
+            int to = stops[order[(i + 1) % order.length]];
+            if (from == to) {
+                continue;
+            }
+            long left = (deadline - System.nanoTime()) / 1000000L;
+            if (left <= 0) {
+                return null;
+            }
+            Router.Result leg = Router.route(c, factor, from, to,
+                    new Router.Options().profile(profile).timeoutMillis(left));
+            if (leg.status == Router.Status.TIMED_OUT) {
+                return null;
+            }
+            if (leg.status != Router.Status.FOUND) {
+                route.add(c.osmId(to));
+                continue;
+            }
+            route.addAll(leg.path.subList(1, leg.path.size()));
+        }
+        return route;
+    }
+}
@@ -30,6 +30,10 @@ $(function() {
     var getInProgress = false;
     var route_params = {};
     var map;
+    var map_url;
+    var tilemap;
+    var route_canvas;
+    var route_lons = [], route_lats = [];
     var dest;
     var tx = 0, ty = 0;
     var rtx, rty;
@@ -37,7 +41,7 @@ $(function() {
     var host;
     var ullon_bound, ullat_bound, lrlon_bound, lrlat_bound;
     var img_w, img_h;
-    var constrain, theme;
+    var constrain, theme, tile_mode;
 
     /* Starting hyper-parameters #machinelearning */
     const zoom_delta = 0.04;
@@ -55,8 +59,10 @@ $(function() {
         host = 'http://localhost:4567';
     }
     const raster_server = host + '/raster';
+    const tiles_server = host + '/tiles/';
     const route_server = host + '/route';
     const clear_route = host + '/clear_route';
+    const route_geometry = host + '/route_geometry';
     const search = host + '/search';
 
     /* ════════════════════════════ ೋღ HELPERS ღೋ ══════════════════════════ */
@@ -101,6 +107,152 @@ $(function() {
         }
     }
 
+    /* Lays the tiles of the render grid out in the tile layer. The browser fetches each one
+       from the tile server as a file and keeps it, so panning back over them is free. */
+    function placeTiles(grid) {
+        const $tilemap = $(tilemap);
+        $tilemap.empty();
+        for (var r = 0; r < grid.length; r++) {
+            for (var c = 0; c < grid[r].length; c++) {
+                const xy = /^d(\d+)_x(\d+)_y(\d+)\.png$/.exec(grid[r][c]);
+                $('<img/>', {
+                    src: tiles_server + xy[1] + '/' + xy[2] + '/' + xy[3] + '.png',
+                    class: 'tile'
+                }).css({left: c * 256, top: r * 256}).appendTo($tilemap);
+            }
+        }
+    }
+
+    function showLayer() {
+        map.style.display = tile_mode ? 'none' : '';
+        tilemap.style.display = tile_mode ? '' : 'none';
+    }
+
+    /* Decodes a route sent as an encoded polyline: latitude and longitude differences in
+       1e-5 degrees, 5 bits per character, least significant first. */
+    function decodePolyline(encoded) {
+        const lons = [], lats = [];
+        var at = 0, lat = 0, lon = 0;
+        function next() {
+            var v = 0, shift = 0, digit;
+            do {
+                digit = encoded.charCodeAt(at++) - 63;
+                v |= (digit & 0x1f) << shift;
+                shift += 5;
+            } while (digit >= 0x20);
+            return (v & 1) ? ~(v >> 1) : (v >> 1);
+        }
+        while (at < encoded.length) {
+            lat += next();
+            lon += next();
+            lats.push(lat / 1e5);
+            lons.push(lon / 1e5);
+        }
+        route_lons = lons;
+        route_lats = lats;
+    }
+
+    /* Draws the route on the canvas laid over the raster, which the server sends without it,
+       in the colour and width the server used to draw it in. */
+    function drawRoute() {
+        if (!img_w) {
+            return;
+        }
+        if (route_canvas.width !== img_w || route_canvas.height !== img_h) {
+            route_canvas.width = img_w;
+            route_canvas.height = img_h;
+        }
+        const ctx = route_canvas.getContext('2d');
+        ctx.clearRect(0, 0, img_w, img_h);
+        if (route_lons.length < 2) {
+            return;
+        }
+        ctx.strokeStyle = 'rgba(108, 181, 230, 0.78)';
+        ctx.lineWidth = 5;
+        ctx.lineCap = 'round';
+        ctx.lineJoin = 'round';
+        ctx.beginPath();
+        for (var i = 0; i < route_lons.length; i++) {
+            const x = (route_lons[i] - ullon_bound) / wdpp;
+            const y = (ullat_bound - route_lats[i]) / hdpp;
+            if (i === 0) {
+                ctx.moveTo(x, y);
+            } else {
+                ctx.lineTo(x, y);
+            }
+        }
+        ctx.stroke();
+    }
+
+    /* Fetches the route again, since closures may have rerouted it on the server, simplified
+       for the depth of the raster it is drawn over. */
+    function updateRouteGeometry() {
+        $.get({
+            async: true,
+            url: route_geometry,
+            data: {depth: current_level},
+            success: function(data) {
+                decodePolyline(data.route_polyline);
+                drawRoute();
+            },
+            dataType: 'json'
+        });
+    }
+
+    /* Reads the raster result the server sends as headers along with a binary image. */
+    function rasterHeaders(xhr) {
+        return {
+            query_success: xhr.getResponseHeader('X-Raster-Query-Success') === 'true',
+            raster_ul_lon: parseFloat(xhr.getResponseHeader('X-Raster-Ul-Lon')),
+            raster_ul_lat: parseFloat(xhr.getResponseHeader('X-Raster-Ul-Lat')),
+            raster_lr_lon: parseFloat(xhr.getResponseHeader('X-Raster-Lr-Lon')),
+            raster_lr_lat: parseFloat(xhr.getResponseHeader('X-Raster-Lr-Lat')),
+            depth: parseInt(xhr.getResponseHeader('X-Raster-Depth'), 10),
+            raster_width: parseInt(xhr.getResponseHeader('X-Raster-Width'), 10),
+            raster_height: parseInt(xhr.getResponseHeader('X-Raster-Height'), 10)
+        };
+    }
+
+    /* Takes a raster result: draw() puts the new image up, then the transform is updated. */
+    function showRaster(data, draw, successCallback) {
+        console.log(data);
+        if (data.query_success) {
+            $loadingStatus.hide();
+            draw();
+            ullon_bound = data.raster_ul_lon;
+            ullat_bound = data.raster_ul_lat;
+            lrlon_bound = data.raster_lr_lon;
+            lrlat_bound = data.raster_lr_lat;
+            current_level = data.depth;
+            img_w = data.raster_width;
+            img_h = data.raster_height;
+            wdpp = (lrlon_bound - ullon_bound) / img_w;
+            hdpp = (ullat_bound - lrlat_bound) / img_h;
+            // Compute initial transform
+            tx = - (params.ullon - ullon_bound) * (1 / wdpp);
+            ty = (params.ullat - ullat_bound) * (1 / hdpp);
+            rtx = (route_params.end_lon - params.ullon) * (1 / wdpp) - dest.width / 2 - tx;
+            rty = - (route_params.end_lat - params.ullat) * (1 / hdpp) - dest.height - ty;
+            drawRoute();
+            updateRouteGeometry();
+            updateMarkers();
+            getInProgress = false;
+            if (successCallback) {
+                successCallback();
+            }
+        } else {
+            $loadingStatus.hide();
+        }
+    }
+
+    function rasterError() {
+        getInProgress = false;
+        $errorStatus.show();
+        setTimeout(function() {
+            $errorStatus.fadeOut();
+        }, 4000);
+    }
+
     function updateImg(successCallback) {
         /* Synchronous ajax call for image update.
            Could be async for better experience but then user spam locks up the server.
@@ -108,53 +260,49 @@ $(function() {
            updates which are called before ajax() is called #sigh #why #justjavascriptthings */
         $loadingStatus.show();
         getInProgress = true;
-        $.get({
-            async: true,
-            url: raster_server,
-            data: params,
-            success: function(data) {
-                console.log(data);
-                if (data.query_success) {
-                    $loadingStatus.hide();
-                    map.src = 'data:image/png;base64,' + data.b64_encoded_image_data;
-                    console.log('Updating map with image length: ' +
-                                data.b64_encoded_image_data.length);
-                    ullon_bound = data.raster_ul_lon;
-                    ullat_bound = data.raster_ul_lat;
-                    lrlon_bound = data.raster_lr_lon;
-                    lrlat_bound = data.raster_lr_lat;
-                    current_level = data.depth;
-                    img_w = data.raster_width;
-                    img_h = data.raster_height;
-                    wdpp = (lrlon_bound - ullon_bound) / img_w;
-                    hdpp = (ullat_bound - lrlat_bound) / img_h;
-                    // Compute initial transform
-                    tx = - (params.ullon - ullon_bound) * (1 / wdpp);
-                    ty = (params.ullat - ullat_bound) * (1 / hdpp);
-                    rtx = (route_params.end_lon - params.ullon) * (1 / wdpp) - dest.width / 2 - tx;
-                    rty = - (route_params.end_lat - params.ullat) * (1 / hdpp) - dest.height - ty;
-                    updateMarkers();
-                    getInProgress = false;
-                    if (successCallback) {
-                        successCallback();
-                    }
-                } else {
-                    $loadingstatus.hide();
+        if (tile_mode) {
+            $.get({
+                async: true,
+                url: raster_server,
+                data: $.extend({grid_only: true}, params),
+                success: function(data) {
+                    showRaster(data, function() {
+                        placeTiles(data.render_grid);
+                    }, successCallback);
+                },
+                error: rasterError,
+                dataType: 'json'
+            });
+            return;
+        }
+        /* The image comes as PNG bytes, without Base64 or JSON around it, and without the
+           route, which drawRoute() puts on top. */
+        const xhr = new XMLHttpRequest();
+        xhr.open('GET', raster_server + '?'
+            + $.param($.extend({format: 'png', route: false}, params)));
+        xhr.responseType = 'blob';
+        xhr.onload = function() {
+            if (xhr.status !== 200 && xhr.status !== 204) {
+                rasterError();
+                return;
+            }
+            showRaster(rasterHeaders(xhr), function() {
+                if (map_url) {
+                    URL.revokeObjectURL(map_url);
                 }
-            },
-            error: function() {
-                getInProgress = false;
-                $errorStatus.show();
-                setTimeout(function() {
-                    $errorStatus.fadeOut();
-                }, 4000);
-            },
-            dataType: 'json'
-        });
+                map_url = URL.createObjectURL(xhr.response);
+                map.src = map_url;
+                console.log('Updating map with image size: ' + xhr.response.size);
+            }, successCallback);
+        };
+        xhr.onerror = rasterError;
+        xhr.send();
     }
 
     function updateT() {
         map.style.transform = 'translateX(' + tx + 'px) translateY(' + ty + 'px)';
+        tilemap.style.transform = map.style.transform;
+        route_canvas.style.transform = map.style.transform;
         dest.style.transform = 'translateX(' + (tx+rtx) + 'px) translateY(' + (ty+rty) + 'px)';
         for (var i = 0; i < markers.length; i++) {
             const marker = markers[i];
@@ -173,7 +321,8 @@ $(function() {
             data: route_params,
             success: function(data) {
                 data = JSON.parse(data);
-                updateImg();
+                decodePolyline(data.route_polyline);
+                drawRoute();
                 if (data.directions_success) {
                     $directionsText.html(data.directions);
                 } else {
@@ -270,6 +419,7 @@ $(function() {
         const allcookies = document.cookie.replace(/ /g, '').split(';');
         var foundConstrain = false;
         var foundTheme = false;
+        var foundTiles = false;
         for (var i = 0; i < allcookies.length; i++) {
             const kv = allcookies[i].split('=');
             if (kv[0] === 'constrain') {
@@ -281,6 +431,9 @@ $(function() {
             } else if (kv[0] === 'theme') {
                 theme = kv[1];
                 foundTheme = true;
+            } else if (kv[0] === 'tiles') {
+                tile_mode = (kv[1] === 'true');
+                foundTiles = true;
             }
         }
         if (!foundConstrain) {
@@ -291,6 +444,10 @@ $(function() {
             document.cookie = 'theme=default';
             theme = 'default';
         }
+        if (!foundTiles) {
+            document.cookie = 'tiles=false';
+            tile_mode = false;
+        }
         const date = new Date();
         // Expire 7 days from now
         date.setTime(date.getTime() + 604800000);
@@ -313,12 +470,15 @@ $(function() {
     /* ══════════════════════════════════ ೋღ SETUP ღೋ ════════════════════════════════ */
 
     map = document.getElementById('map');
+    tilemap = document.getElementById('tilemap');
+    route_canvas = document.getElementById('route-canvas');
     dest = document.getElementById('dest');
     dest.style.visibility = 'hidden';
     params.lrlon = real_lrlon();
     params.lrlat = real_lrlat();
     loadCookies();
     setTheme();
+    showLayer();
     update();
     /* Hide scroll bar */
     $('body').css('overflow', 'hidden');
@@ -410,7 +570,9 @@ $(function() {
             success: function() {
                 dest.style.visibility = 'hidden';
                 $directionsText.html('No routing directions to display.');
-                update();
+                route_lons = [];
+                route_lats = [];
+                drawRoute();
             },
         });
     });
@@ -424,6 +586,9 @@ $(function() {
         if (constrain) {
             $('#constrain-input').prop('checked', true);
         }
+        if (tile_mode) {
+            $('#tiles-input').prop('checked', true);
+        }
         $('input[name=theme][value=' + theme + ']').prop('checked', true);
         $('.info').removeClass('active');
     });
@@ -468,6 +633,7 @@ $(function() {
 
     /* Prevent image dragging */
     $('img').on('dragstart', function(event) { event.preventDefault(); });
+    $(tilemap).on('dragstart', 'img', function(event) { event.preventDefault(); });
 
     // Allow for window resizing
     window.onresize = function() {
@@ -482,6 +648,13 @@ $(function() {
         update();
     });
 
+    $('#tiles-input').change(function() {
+        tile_mode = $(this).is(':checked');
+        setCookie('tiles', tile_mode);
+        showLayer();
+        update();
+    });
+
     $('input[type=radio][name=theme]').change(function() {
         theme = this.value;
         setCookie('theme', this.value);
@@ -0,0 +1,53 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Reports what node coordinates cost the Java heap and the collector with and without
+ * -Dbmaps.offHeapCoordinates. Not a unit test; run it once per mode, with the same -Xmx and
+ * collector:
+ * <pre>
+ *   java -cp target/classes:target/test-classes:... CoordinateStorageBenchmark [osm file]
+ *   java -Dbmaps.offHeapCoordinates=true -cp ... CoordinateStorageBenchmark [osm file]
+ * </pre>
+ * It prints the heap retained by the loaded graph, the bytes kept off heap, and the mean
+ * pause of a full collection with the graph live.
+ */
+public class CoordinateStorageBenchmark {
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    private static final int COLLECTIONS = 10;
+
+    public static void main(String[] args) {
+        long before = retainedHeap();
+        GraphDB g = new GraphDB(args.length > 0 ? args[0] : OSM_DB_PATH);
+        long retained = retainedHeap() - before;
+        long gcMillis = collectionMillis();
+        for (int i = 0; i < COLLECTIONS; i += 1) {
+            System.gc();
+        }
+        double pause = (collectionMillis() - gcMillis) / (double) COLLECTIONS;
+        System.out.printf("mode             %s%n",
+                g.compact().coordinates.isOffHeap() ? "off heap" : "heap");
+        System.out.printf("nodes            %d%n", g.compact().size());
+        System.out.printf("retained heap    %.1f MB%n", retained / 1e6);
+        System.out.printf("off-heap bytes   %.1f MB%n",
+                g.compact().coordinates.isOffHeap()
+                        ? g.compact().coordinates.capacityBytes() / 1e6 : 0.0);
+        System.out.printf("full gc pause    %.1f ms%n", pause);
+    }
+
+    private static long retainedHeap() {
+        for (int i = 0; i < 3; i += 1) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long collectionMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(gc.getCollectionTime(), 0);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,109 @@
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares the time to encode rasters against their size: ImageIO's PNG writer, as /raster
+ * used to, RasterEncoder's PNGs at several deflate levels and filters, and JPEG. The rasters
+ * are the grids of the queries of raster_params.txt, stitched from the tiles at img root. Not
+ * a unit test; run it by hand:
+ * <pre>
+ *   java -cp target/classes:target/test-classes:... EncoderBenchmark [img root] [params file]
+ * </pre>
+ * For every encoding it prints the mean time per raster and the mean size. Both depend on the
+ * tiles: the real ones, flat areas and thin lines, deflate far better than photographs.
+ */
+public class EncoderBenchmark {
+    private static final String PARAMS_PATH = "raster_params.txt";
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int ROUNDS = 10;
+
+    private interface Encoding {
+        void write(BufferedImage img, OutputStream os) throws IOException;
+    }
+
+    public static void main(String[] args) throws IOException {
+        String imgRoot = args.length > 0 ? args[0] : MapServer.IMG_ROOT;
+        Rasterer rasterer = Rasterer.load(imgRoot);
+        List<BufferedImage> rasters = new ArrayList<>();
+        long pixels = 0;
+        for (Map<String, Double> query
+                : readQueries(args.length > 1 ? args[1] : PARAMS_PATH)) {
+            BufferedImage img = rasterer.stitch(
+                    (String[][]) rasterer.getMapRaster(query).get("render_grid"));
+            rasters.add(img);
+            pixels += (long) img.getWidth() * img.getHeight();
+        }
+        System.out.printf("%d rasters of %.0f pixels on average%n", rasters.size(),
+                (double) pixels / rasters.size());
+        System.out.printf("%-24s %12s %12s%n", "encoding", "ms/raster", "KB/raster");
+        report(rasters, "ImageIO png", (img, os) -> ImageIO.write(img, "png", os));
+        for (RasterEncoder.Filter filter : new RasterEncoder.Filter[] {
+            RasterEncoder.Filter.NONE, RasterEncoder.Filter.UP,
+            RasterEncoder.Filter.ADAPTIVE}) {
+            for (int level : new int[] {1, 4, 6, 9}) {
+                RasterEncoder encoder = new RasterEncoder(level, filter, 0.85f);
+                report(rasters, "png " + filter.name().toLowerCase() + " " + level,
+                        encoder::png);
+            }
+        }
+        for (float quality : new float[] {0.75f, 0.85f, 0.95f}) {
+            RasterEncoder encoder = new RasterEncoder(4, RasterEncoder.Filter.ADAPTIVE, quality);
+            report(rasters, "jpeg " + quality, encoder::jpeg);
+        }
+    }
+
+    private static void report(List<BufferedImage> rasters, String name, Encoding encoding)
+            throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        for (int r = 0; r < WARMUP_ROUNDS; r += 1) {
+            for (BufferedImage img : rasters) {
+                os.reset();
+                encoding.write(img, os);
+            }
+        }
+        long bytes = 0;
+        long begin = System.nanoTime();
+        for (int r = 0; r < ROUNDS; r += 1) {
+            for (BufferedImage img : rasters) {
+                os.reset();
+                encoding.write(img, os);
+                bytes += os.size();
+            }
+        }
+        long elapsed = System.nanoTime() - begin;
+        int count = ROUNDS * rasters.size();
+        System.out.printf("%-24s %12.1f %12.1f%n", name, elapsed / 1e6 / count,
+                bytes / 1024.0 / count);
+    }
+
+    /** Reads groups of ullon, ullat, lrlon, lrlat, w, h, skipping # comment lines. */
+    private static List<Map<String, Double>> readQueries(String path) throws IOException {
+        List<Double> values = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(path), StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                values.add(Double.parseDouble(line));
+            }
+        }
+        String[] names = {"ullon", "ullat", "lrlon", "lrlat", "w", "h"};
+        List<Map<String, Double>> queries = new ArrayList<>();
+        for (int i = 0; i + names.length <= values.size(); i += names.length) {
+            Map<String, Double> query = new HashMap<>();
+            for (int j = 0; j < names.length; j += 1) {
+                query.put(names[j], values.get(i + j));
+            }
+            queries.add(query);
+        }
+        return queries;
+    }
+}
@@ -0,0 +1,58 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * The operations bench.GraphLayoutBenchmark measures. JMH refuses benchmarks in the default
+ * package and a named package cannot see this project's classes, so the benchmark calls
+ * these through JDK interfaces instead.
+ */
+public class GraphLayoutWorkload {
+    /** Number of distinct queries each operation cycles through. */
+    public static final int QUERIES = 256;
+
+    /**
+     * Loads the extract with the given vertex order and returns "route" and "nearest"
+     * operations. Both take a query index in [0, QUERIES) and return a value that depends
+     * on the result, so the work cannot be optimised away. The same queries are used for
+     * both orders.
+     * <p>
+     * The order is CompactGraph.SPATIAL_ORDER, which is fixed once CompactGraph is loaded, so
+     * this sets bmaps.spatialOrder first; JMH runs each parameter value in its own fork.
+     */
+    public static Map<String, IntUnaryOperator> create(String osmPath, boolean spatialOrder) {
+        System.setProperty("bmaps.spatialOrder", Boolean.toString(spatialOrder));
+        if (CompactGraph.SPATIAL_ORDER != spatialOrder) {
+            throw new IllegalStateException("CompactGraph was loaded with the other order");
+        }
+        CompactGraph c = new GraphDB(osmPath).compact();
+        double minLon = Double.POSITIVE_INFINITY, maxLon = Double.NEGATIVE_INFINITY;
+        double minLat = Double.POSITIVE_INFINITY, maxLat = Double.NEGATIVE_INFINITY;
+        for (int v = 0; v < c.size(); v += 1) {
+            minLon = Math.min(minLon, c.lon(v));
+            maxLon = Math.max(maxLon, c.lon(v));
+            minLat = Math.min(minLat, c.lat(v));
+            maxLat = Math.max(maxLat, c.lat(v));
+        }
+        Random random = new Random(61);
+        double[] lons = new double[2 * QUERIES];
+        double[] lats = new double[2 * QUERIES];
+        for (int i = 0; i < 2 * QUERIES; i += 1) {
+            lons[i] = minLon + random.nextDouble() * (maxLon - minLon);
+            lats[i] = minLat + random.nextDouble() * (maxLat - minLat);
+        }
+        int[] starts = new int[QUERIES];
+        int[] ends = new int[QUERIES];
+        for (int i = 0; i < QUERIES; i += 1) {
+            starts[i] = c.nearest(lons[2 * i], lats[2 * i]);
+            ends[i] = c.nearest(lons[2 * i + 1], lats[2 * i + 1]);
+        }
+        Router.Options options = new Router.Options();
+        Map<String, IntUnaryOperator> operations = new HashMap<>();
+        operations.put("route", i -> Router.route(c, null, starts[i], ends[i], options).settled);
+        operations.put("nearest", i -> c.nearest(lons[i], lats[i])
+                + c.nearest(lons[QUERIES + i], lats[QUERIES + i]));
+        return operations;
+    }
+}
@@ -0,0 +1,123 @@
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares stitching render grids tile by tile through Graphics.drawImage, as /raster used to,
+ * with Rasterer.stitch, on the queries of raster_params.txt. Not a unit test; run it by hand:
+ * <pre>
+ *   java -cp target/classes:target/test-classes:... RasterBenchmark [img root] [params file]
+ *       [scale]
+ * </pre>
+ * Scale multiplies the width and height of every query, 2 by default, which stands for a
+ * large monitor: one depth deeper and about four times the tiles. Cold runs start from an
+ * empty tile cache, so they include decoding the PNGs; warm runs find every tile decoded, as
+ * long as -Dbmaps.tileCache.pixels holds all tiles of the grids (at scale 2, 450 tiles or
+ * 2^25 pixels).
+ * For every mode it prints the mean time per query and the mean tiles per grid.
+ */
+public class RasterBenchmark {
+    private static final String PARAMS_PATH = "raster_params.txt";
+    private static final int COLD_ROUNDS = 5;
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 20;
+
+    public static void main(String[] args) throws IOException {
+        String imgRoot = args.length > 0 ? args[0] : MapServer.IMG_ROOT;
+        double scale = args.length > 2 ? Double.parseDouble(args[2]) : 2;
+        List<String[][]> grids = new ArrayList<>();
+        long tiles = 0;
+        for (Map<String, Double> query
+                : readQueries(args.length > 1 ? args[1] : PARAMS_PATH, scale)) {
+            String[][] grid = (String[][]) Rasterer.load(imgRoot).getMapRaster(query)
+                    .get("render_grid");
+            grids.add(grid);
+            tiles += grid.length * grid[0].length;
+        }
+        System.out.printf("%d grids of %.1f tiles on average, %d CPUs%n", grids.size(),
+                (double) tiles / grids.size(), Runtime.getRuntime().availableProcessors());
+        System.out.printf("%-24s %12s%n", "mode", "ms/query");
+        for (boolean parallel : new boolean[] {false, true}) {
+            String mode = parallel ? "stitch" : "drawImage";
+            cold(imgRoot, grids, mode + ", cold", parallel);
+            warm(Rasterer.load(imgRoot), grids, mode + ", warm", parallel);
+        }
+    }
+
+    private static void cold(String imgRoot, List<String[][]> grids, String mode,
+                             boolean parallel) throws IOException {
+        long elapsed = 0;
+        for (int r = 0; r < COLD_ROUNDS; r += 1) {
+            for (String[][] grid : grids) {
+                Rasterer rasterer = Rasterer.load(imgRoot);
+                long begin = System.nanoTime();
+                render(rasterer, grid, parallel);
+                elapsed += System.nanoTime() - begin;
+            }
+        }
+        System.out.printf("%-24s %12.2f%n", mode, elapsed / 1e6 / COLD_ROUNDS / grids.size());
+    }
+
+    private static void warm(Rasterer rasterer, List<String[][]> grids, String mode,
+                             boolean parallel) {
+        for (int r = 0; r < WARMUP_ROUNDS; r += 1) {
+            for (String[][] grid : grids) {
+                render(rasterer, grid, parallel);
+            }
+        }
+        long begin = System.nanoTime();
+        for (int r = 0; r < ROUNDS; r += 1) {
+            for (String[][] grid : grids) {
+                render(rasterer, grid, parallel);
+            }
+        }
+        long elapsed = System.nanoTime() - begin;
+        System.out.printf("%-24s %12.2f%n", mode, elapsed / 1e6 / ROUNDS / grids.size());
+    }
+
+    private static BufferedImage render(Rasterer rasterer, String[][] grid, boolean parallel) {
+        if (parallel) {
+            return rasterer.stitch(grid);
+        }
+        BufferedImage img = new BufferedImage(grid[0].length * MapServer.TILE_SIZE,
+                grid.length * MapServer.TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+        Graphics graphic = img.getGraphics();
+        for (int r = 0; r < grid.length; r += 1) {
+            for (int c = 0; c < grid[0].length; c += 1) {
+                graphic.drawImage(rasterer.tiles.get(grid[r][c]), c * MapServer.TILE_SIZE,
+                        r * MapServer.TILE_SIZE, null);
+            }
+        }
+        graphic.dispose();
+        return img;
+    }
+
+    /** Reads groups of ullon, ullat, lrlon, lrlat, w, h, skipping # comment lines. */
+    private static List<Map<String, Double>> readQueries(String path, double scale)
+            throws IOException {
+        List<Double> values = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(path), StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                values.add(Double.parseDouble(line));
+            }
+        }
+        String[] names = {"ullon", "ullat", "lrlon", "lrlat", "w", "h"};
+        List<Map<String, Double>> queries = new ArrayList<>();
+        for (int i = 0; i + names.length <= values.size(); i += names.length) {
+            Map<String, Double> query = new HashMap<>();
+            for (int j = 0; j < names.length; j += 1) {
+                query.put(names[j], values.get(i + j) * (j >= 4 ? scale : 1));
+            }
+            queries.add(query);
+        }
+        return queries;
+    }
+}
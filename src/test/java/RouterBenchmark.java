@@ -0,0 +1,83 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the latency of exact routing with the approximate modes (weighted A*, with and
+ * without a corridor) on the queries of path_params.txt. Not a unit test; run it by hand:
+ * <pre>
+ *   java -cp target/classes:target/test-classes:... RouterBenchmark [osm file] [params file]
+ * </pre>
+ * For every mode it prints the mean time per query, the mean settled vertices and the worst
+ * observed ratio of the route's cost to the exact cost, which must stay within the bound.
+ */
+public class RouterBenchmark {
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    private static final String PARAMS_PATH = "path_params.txt";
+    private static final int WARMUP_ROUNDS = 200;
+    private static final int ROUNDS = 1000;
+
+    public static void main(String[] args) throws IOException {
+        GraphDB g = new GraphDB(args.length > 0 ? args[0] : OSM_DB_PATH);
+        double[][] queries = readQueries(args.length > 1 ? args[1] : PARAMS_PATH);
+        double[] exact = new double[queries.length];
+        for (int i = 0; i < queries.length; i += 1) {
+            exact[i] = run(g, queries[i], new Router.Options()).cost;
+        }
+        System.out.printf("%-26s %12s %10s %10s%n", "mode", "us/query", "settled", "max ratio");
+        report(g, queries, exact, "exact", new Router.Options());
+        report(g, queries, exact, "epsilon 1.1", new Router.Options().epsilon(1.1));
+        report(g, queries, exact, "epsilon 1.5", new Router.Options().epsilon(1.5));
+        report(g, queries, exact, "epsilon 1.5, corridor 1.3",
+                new Router.Options().epsilon(1.5).corridor(1.3));
+    }
+
+    private static void report(GraphDB g, double[][] queries, double[] exact, String mode,
+                               Router.Options options) {
+        for (int r = 0; r < WARMUP_ROUNDS; r += 1) {
+            for (double[] q : queries) {
+                run(g, q, options);
+            }
+        }
+        long settled = 0;
+        double worst = 1;
+        long begin = System.nanoTime();
+        for (int r = 0; r < ROUNDS; r += 1) {
+            for (int i = 0; i < queries.length; i += 1) {
+                Router.Result result = run(g, queries[i], options);
+                settled += result.settled;
+                if (exact[i] > 0) {
+                    worst = Math.max(worst, result.cost / exact[i]);
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - begin;
+        int count = ROUNDS * queries.length;
+        System.out.printf("%-26s %12.1f %10d %10.4f%n", mode, elapsed / 1e3 / count,
+                settled / count, worst);
+    }
+
+    private static Router.Result run(GraphDB g, double[] q, Router.Options options) {
+        return Router.route(g, q[0], q[1], q[2], q[3], options);
+    }
+
+    /** Reads groups of start_lon, start_lat, end_lon, end_lat, skipping # comment lines. */
+    private static double[][] readQueries(String path) throws IOException {
+        List<Double> values = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(path), StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                values.add(Double.parseDouble(line));
+            }
+        }
+        double[][] queries = new double[values.size() / 4][];
+        for (int i = 0; i < queries.length; i += 1) {
+            queries[i] = new double[] {values.get(4 * i), values.get(4 * i + 1),
+                values.get(4 * i + 2), values.get(4 * i + 3)};
+        }
+        return queries;
+    }
+}
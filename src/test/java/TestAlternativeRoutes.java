@@ -0,0 +1,82 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Alternative routes on a graph with three disjoint roads between the same two vertices. See
+ * tiny-alternatives.osm.xml for its layout.
+ */
+public class TestAlternativeRoutes {
+    private static final String OSM_DB_PATH_ALTERNATIVES = "tiny-alternatives.osm.xml";
+    private static GraphDB graph;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graph = new GraphDB(OSM_DB_PATH_ALTERNATIVES);
+        initialized = true;
+    }
+
+    @Test
+    public void testFindsDisjointAlternativesBestFirst() {
+        List<AlternativeRoutes.Route> routes = AlternativeRoutes.find(graph, 0.0, 38.0, 0.3,
+                38.0, 3, new Router.Options()).routes;
+        assertEquals(3, routes.size());
+        assertEquals(Arrays.asList(1L, 2L, 4L), routes.get(0).path);
+        assertEquals(Arrays.asList(1L, 31L, 32L, 33L, 4L), routes.get(1).path);
+        assertEquals(Arrays.asList(1L, 51L, 52L, 53L, 4L), routes.get(2).path);
+        assertEquals(1, routes.get(0).stretch, 0);
+        for (int i = 1; i < routes.size(); i += 1) {
+            assertTrue(routes.get(i).stretch > routes.get(i - 1).stretch);
+            assertTrue(routes.get(i).stretch <= 1 + AlternativeRoutes.MAX_STRETCH);
+        }
+    }
+
+    @Test
+    public void testReturnsAtMostK() {
+        List<AlternativeRoutes.Route> routes = AlternativeRoutes.find(graph, 0.0, 38.0, 0.3,
+                38.0, 2, new Router.Options()).routes;
+        assertEquals(2, routes.size());
+        assertEquals(Arrays.asList(1L, 2L, 4L), routes.get(0).path);
+    }
+
+    @Test
+    public void testShortestMatchesRouter() {
+        List<AlternativeRoutes.Route> routes = AlternativeRoutes.find(graph, 0.0, 38.0, 0.3,
+                38.0, 1, new Router.Options().profile(RouteProfile.TIME)).routes;
+        assertEquals(Router.shortestPath(graph, 0.0, 38.0, 0.3, 38.0, RouteProfile.TIME),
+                routes.get(0).path);
+    }
+
+    @Test
+    public void testBudgetStopsTheSearch() {
+        AlternativeRoutes.Result result = AlternativeRoutes.find(graph, 0.0, 38.0, 0.3, 38.0,
+                3, new Router.Options().maxSettled(2));
+        assertEquals(Router.Status.TIMED_OUT, result.status);
+        assertTrue(result.routes.isEmpty());
+        assertTrue(result.settled <= 3);
+    }
+
+    @Test
+    public void testUnreachableReportsStatus() {
+        graph.overlay().closeWay(10L);
+        graph.overlay().closeWay(11L);
+        graph.overlay().closeWay(12L);
+        try {
+            AlternativeRoutes.Result result = AlternativeRoutes.find(graph, 0.0, 38.0, 0.3,
+                    38.0, 3, new Router.Options());
+            assertEquals(Router.Status.UNREACHABLE, result.status);
+            assertTrue(result.routes.isEmpty());
+        } finally {
+            graph.overlay().clear();
+        }
+    }
+}
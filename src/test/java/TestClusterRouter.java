@@ -0,0 +1,185 @@
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Partitioning and routing through cell workers, checked against Router on every pair of
+ * vertices. The partition is written to a temporary directory and the coordinator and workers
+ * load it from there; the workers run in-process here, and over HTTP answer the same calls.
+ */
+public class TestClusterRouter {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+    private static final String OSM_DB_PATH_ALTERNATIVES = "tiny-alternatives.osm.xml";
+    private static final String OSM_DB_PATH_RESTRICTIONS = "tiny-restrictions.osm.xml";
+    private static GraphDB graphTiny;
+    private static GraphDB graphAlternatives;
+    private static boolean initialized = false;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        graphAlternatives = new GraphDB(OSM_DB_PATH_ALTERNATIVES);
+        initialized = true;
+    }
+
+    @Test
+    public void testCellsRespectSizeAndBoundary() {
+        CompactGraph c = graphAlternatives.compact();
+        Partition partition = Partition.inertialFlow(c, 3);
+        assertTrue(partition.cellCount >= 3);
+        for (int size : partition.cellSizes()) {
+            assertTrue(size >= 1 && size <= 3);
+        }
+        for (int v = 0; v < c.size(); v += 1) {
+            for (int e = c.firstEdge(v); e < c.endEdge(v); e += 1) {
+                int w = c.target(e);
+                if (partition.cell[v] != partition.cell[w]) {
+                    assertTrue(partition.boundaryIndex[v] >= 0);
+                    assertTrue(partition.boundaryIndex[w] >= 0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testClusterRoutesMatchRouter() throws IOException {
+        for (GraphDB g : new GraphDB[] {graphTiny, graphAlternatives}) {
+            for (int cellSize : new int[] {1, 2, 3, 100}) {
+                checkAllPairs(g.compact(), cellSize);
+            }
+        }
+    }
+
+    @Test
+    public void testTurnRestrictionsObeyedAcrossCells() throws IOException {
+        CompactGraph c = new GraphDB(OSM_DB_PATH_RESTRICTIONS).compact();
+        /* The restriction's via, 2, stays in one cell with all its neighbours, however small
+         * the cells, so no restricted turn is at a boundary vertex. */
+        int via = c.denseId(2);
+        for (int cellSize : new int[] {1, 2, 3, 100}) {
+            Partition partition = Partition.inertialFlow(c, cellSize);
+            assertTrue(cellSize == 100 || partition.cellCount > 1);
+            for (long neighbour : new long[] {1, 3, 4}) {
+                assertEquals(partition.cell[via], partition.cell[c.denseId(neighbour)]);
+            }
+            assertEquals(-1, partition.boundaryIndex[via]);
+            checkAllPairs(c, cellSize);
+        }
+    }
+
+    @Test
+    public void testWorkersLoadOnlyTheirCells() throws IOException {
+        CompactGraph c = graphAlternatives.compact();
+        Partition partition = Partition.inertialFlow(c, 3);
+        Path dir = folder.newFolder().toPath();
+        partition.write(c, dir);
+        CellWorker worker = new CellWorker(dir, 1, 2);
+        for (int k = 0; k < partition.cellCount; k += 1) {
+            assertEquals(k % 2 == 1, worker.owns(k));
+        }
+        List<Integer> expected = new ArrayList<>();
+        for (int k = 1; k < partition.cellCount; k += 2) {
+            expected.add(k);
+        }
+        assertEquals(expected, worker.cells());
+        ClusterOverlay overlay = ClusterOverlay.read(dir);
+        assertEquals(c.size(), overlay.size());
+        assertTrue(Arrays.equals(partition.cell, overlay.cell));
+        assertTrue(Arrays.equals(partition.boundaryIndex, overlay.boundaryIndex));
+        try {
+            worker.clique(0, RouteProfile.DISTANCE);
+            fail("cell 0 belongs to the other worker");
+        } catch (IllegalArgumentException e) {
+            /* Expected. */
+        }
+    }
+
+    @Test
+    public void testBudgetAppliesToOverlaySearch() throws IOException {
+        CompactGraph c = graphAlternatives.compact();
+        ClusterRouter cluster = cluster(c, 1);
+        Router.Result result = cluster.route(0, 1, new Router.Options().maxSettled(0));
+        assertEquals(Router.Status.TIMED_OUT, result.status);
+        assertTrue(result.path.isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEpsilonRefused() throws IOException {
+        CompactGraph c = graphAlternatives.compact();
+        cluster(c, 3).route(0, 1, new Router.Options().epsilon(2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCorridorRefused() throws IOException {
+        CompactGraph c = graphAlternatives.compact();
+        cluster(c, 3).route(0, 1, new Router.Options().corridor(1.5));
+    }
+
+    /**
+     * A coordinator over two in-process workers, serving alternate cells of a partition
+     * written to a new temporary directory.
+     */
+    private ClusterRouter cluster(CompactGraph c, int cellSize) throws IOException {
+        Path dir = folder.newFolder().toPath();
+        Partition.inertialFlow(c, cellSize).write(c, dir);
+        CellWorker[] workers = {new CellWorker(dir, 0, 2), new CellWorker(dir, 1, 2)};
+        ClusterOverlay overlay = ClusterOverlay.read(dir);
+        ClusterRouter.Cells[] owners = new ClusterRouter.Cells[overlay.cellCount];
+        for (int k = 0; k < owners.length; k += 1) {
+            owners[k] = workers[k % 2];
+        }
+        return new ClusterRouter(overlay, owners);
+    }
+
+    private void checkAllPairs(CompactGraph c, int cellSize) throws IOException {
+        ClusterRouter cluster = cluster(c, cellSize);
+        for (RouteProfile profile : RouteProfile.values()) {
+            for (int s = 0; s < c.size(); s += 1) {
+                for (int t = 0; t < c.size(); t += 1) {
+                    Router.Result expected = Router.route(c, null, s, t,
+                            new Router.Options().profile(profile));
+                    Router.Result actual = cluster.route(s, t,
+                            new Router.Options().profile(profile));
+                    assertEquals(expected.status, actual.status);
+                    assertEquals(expected.cost, actual.cost, 1e-9);
+                    if (actual.status == Router.Status.FOUND) {
+                        assertEquals(expected.cost, pathCost(c, actual.path, profile), 1e-9);
+                    }
+                }
+            }
+        }
+    }
+
+    private static double pathCost(CompactGraph c, List<Long> path, RouteProfile profile) {
+        double cost = 0;
+        for (int i = 1; i < path.size(); i += 1) {
+            int v = c.denseId(path.get(i - 1));
+            int w = c.denseId(path.get(i));
+            double cheapest = Double.POSITIVE_INFINITY;
+            for (int e = c.firstEdge(v); e < c.endEdge(v); e += 1) {
+                if (c.target(e) == w) {
+                    cheapest = Math.min(cheapest, profile.weight(c, e));
+                }
+            }
+            cost += cheapest;
+        }
+        return cost;
+    }
+}
@@ -0,0 +1,38 @@
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestCoordinateStore {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+
+    @Test
+    public void testRoundTripsAtOsmPrecision() {
+        CoordinateStore store = new CoordinateStore(true, 1);
+        int berkeley = store.add(-122.2891056, 37.8885798);
+        for (int i = 0; i < 5000; i += 1) {
+            store.add(-180 + i * 0.072, -90 + i * 0.036);
+        }
+        int extreme = store.add(179.9999999, -89.9999999);
+        assertEquals(5002, store.size());
+        assertEquals(-122.2891056, store.lon(berkeley), 1e-9);
+        assertEquals(37.8885798, store.lat(berkeley), 1e-9);
+        assertEquals(-180 + 4999 * 0.072, store.lon(5000), 1e-7);
+        assertEquals(179.9999999, store.lon(extreme), 1e-9);
+        assertEquals(-89.9999999, store.lat(extreme), 1e-9);
+    }
+
+    @Test
+    public void testOffHeapGraphMatchesHeapGraph() {
+        GraphDB heap = new GraphDB(OSM_DB_PATH_TINY, false);
+        GraphDB offHeap = new GraphDB(OSM_DB_PATH_TINY, true);
+        assertTrue(offHeap.compact().coordinates.isOffHeap());
+        assertEquals(heap.compact().size(), offHeap.compact().coordinates.size());
+        for (long v : heap.vertices()) {
+            assertEquals(heap.lon(v), offHeap.lon(v), 0);
+            assertEquals(heap.lat(v), offHeap.lat(v), 0);
+        }
+        assertEquals(0.6, offHeap.lon(63), 1e-9);
+        assertEquals(38.3, offHeap.lat(63), 1e-9);
+    }
+}
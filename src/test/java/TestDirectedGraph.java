@@ -0,0 +1,70 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * One-way streets and turn restrictions on a five node graph; see the comment at the top of
+ * tiny-restrictions.osm.xml for its layout.
+ */
+public class TestDirectedGraph {
+    private static final String OSM_DB_PATH_RESTRICTIONS = "tiny-restrictions.osm.xml";
+    private static GraphDB graph;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graph = new GraphDB(OSM_DB_PATH_RESTRICTIONS);
+        initialized = true;
+    }
+
+    @Test
+    public void testAdjacentIgnoresDirection() {
+        HashSet<Long> actual = new HashSet<>();
+        for (long neighbor : graph.adjacent(5L)) {
+            actual.add(neighbor);
+        }
+        assertEquals(new HashSet<>(Arrays.asList(3L, 4L)), actual);
+    }
+
+    @Test
+    public void testOneWayIsOnlyDrivenForwards() {
+        assertEquals(Arrays.asList(4L, 5L), Router.shortestPath(graph, 0.1, 38.05, 0.2, 38.1));
+        assertEquals(Arrays.asList(5L, 3L, 2L, 1L),
+                Router.shortestPath(graph, 0.2, 38.1, 0.0, 38.0));
+    }
+
+    @Test
+    public void testRestrictedTurnIsAvoided() {
+        assertEquals(Arrays.asList(1L, 2L, 3L, 5L),
+                Router.shortestPath(graph, 0.0, 38.0, 0.2, 38.1));
+    }
+
+    @Test
+    public void testRestrictionTable() {
+        CompactGraph c = graph.compact();
+        int one = c.denseId(1L), two = c.denseId(2L), three = c.denseId(3L);
+        int four = c.denseId(4L);
+        int from = edge(c, one, two), left = edge(c, two, four), straight = edge(c, two, three);
+        assertTrue(c.isRestricted(two, from, left));
+        assertFalse(c.isRestricted(two, from, straight));
+        assertEquals(-1, edge(c, c.denseId(5L), four));
+    }
+
+    private static int edge(CompactGraph c, int from, int to) {
+        for (int e = c.firstEdge(from); e < c.endEdge(from); e += 1) {
+            if (c.target(e) == to) {
+                return e;
+            }
+        }
+        return -1;
+    }
+}
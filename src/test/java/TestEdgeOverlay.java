@@ -0,0 +1,126 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Closures on the tiny graph. 66 can only be reached from 22 along way 1 (22-46-66), and 46
+ * only from 41 through 63 and 66, so closing those ways disconnects the routes below.
+ */
+public class TestEdgeOverlay {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+    private static GraphDB graphTiny;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (!initialized) {
+            graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+            initialized = true;
+        }
+        graphTiny.overlay().clear();
+    }
+
+    @Test
+    public void testCloseAndReopenWay() {
+        List<Long> open = Arrays.asList(22L, 46L, 66L);
+        assertEquals(open, Router.shortestPath(graphTiny, 0.2, 38.2, 0.6, 38.6));
+        graphTiny.overlay().closeWay(1L);
+        assertEquals(new ArrayList<Long>(), Router.shortestPath(graphTiny, 0.2, 38.2, 0.6, 38.6));
+        assertTrue(graphTiny.overlay().reopenWay(1L));
+        assertFalse(graphTiny.overlay().reopenWay(1L));
+        assertEquals(open, Router.shortestPath(graphTiny, 0.2, 38.2, 0.6, 38.6));
+    }
+
+    @Test
+    public void testCloseBox() {
+        int id = graphTiny.overlay().penalizeBox(0.55, 38.35, 0.65, 38.25,
+                Double.POSITIVE_INFINITY);
+        assertEquals(new ArrayList<Long>(), Router.shortestPath(graphTiny, 0.4, 38.1, 0.4, 38.6));
+        assertTrue(graphTiny.overlay().removeBox(id));
+        assertEquals(Arrays.asList(41L, 63L, 66L, 46L),
+                Router.shortestPath(graphTiny, 0.4, 38.1, 0.4, 38.6));
+    }
+
+    @Test
+    public void testPenaltyKeepsOnlyRoute() {
+        graphTiny.overlay().penalizeWay(2L, 3.0);
+        assertEquals(Arrays.asList(41L, 63L, 66L, 46L),
+                Router.shortestPath(graphTiny, 0.4, 38.1, 0.4, 38.6));
+    }
+
+    @Test
+    public void testListenerSeesChangedEdges() {
+        BitSet[] seen = new BitSet[2];
+        graphTiny.overlay().addListener((worse, better) -> {
+            seen[0] = worse;
+            seen[1] = better;
+        });
+        long version = graphTiny.overlay().version();
+        graphTiny.overlay().closeWay(3L);
+        assertTrue(graphTiny.overlay().version() > version);
+        /* Way 3 is the two-way segment 63-55. */
+        assertEquals(2, seen[0].cardinality());
+        assertTrue(seen[1].isEmpty());
+        graphTiny.overlay().reopenWay(3L);
+        assertTrue(seen[0].isEmpty());
+        assertEquals(2, seen[1].cardinality());
+    }
+
+    @Test
+    public void testBoxCoversEdgesTouchingIt() {
+        CompactGraph c = graphTiny.compact();
+        EdgeOverlay.Box box = new EdgeOverlay.Box(0.35, 38.45, 0.65, 38.15, 2.0);
+        graphTiny.overlay().penalizeBox(box.ullon, box.ullat, box.lrlon, box.lrlat, box.factor);
+        double[] factors = graphTiny.overlay().factors();
+        for (int v = 0; v < c.size(); v += 1) {
+            for (int e = c.firstEdge(v); e < c.endEdge(v); e += 1) {
+                int w = c.target(e);
+                boolean touches = box.contains(c.lon(v), c.lat(v))
+                        || box.contains(c.lon(w), c.lat(w));
+                assertEquals(touches ? 2.0 : 1.0, factors[e], 0);
+            }
+        }
+    }
+
+    @Test
+    public void testInvalidFactorsRefused() {
+        double[] invalid = {Double.NaN, 0.5, 0, -1};
+        for (double factor : invalid) {
+            try {
+                graphTiny.overlay().penalizeWay(2L, factor);
+                fail("accepted " + factor);
+            } catch (IllegalArgumentException e) {
+                /* Expected. */
+            }
+        }
+        assertNull(graphTiny.overlay().factors());
+    }
+
+    @Test
+    public void testListenerRunsOutsideLock() throws InterruptedException {
+        boolean[] blocked = new boolean[1];
+        EdgeOverlay overlay = new GraphDB(OSM_DB_PATH_TINY).overlay();
+        overlay.addListener((worse, better) -> {
+            Thread other = new Thread(overlay::rules);
+            other.start();
+            try {
+                other.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            blocked[0] = other.isAlive();
+        });
+        overlay.closeWay(1L);
+        assertFalse(blocked[0]);
+    }
+}
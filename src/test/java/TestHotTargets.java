@@ -0,0 +1,135 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Hot-target trees on the tiny graph. Trees are built on a background thread, so the tests
+ * wait for them to appear.
+ */
+public class TestHotTargets {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+    private static final long WAIT_MILLIS = 5000;
+    private GraphDB graph;
+    private CompactGraph c;
+
+    @Before
+    public void setUp() throws Exception {
+        graph = new GraphDB(OSM_DB_PATH_TINY);
+        c = graph.compact();
+    }
+
+    private static void awaitTree(HotTargets hot, int target, boolean present)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (hot.has(target, RouteProfile.DISTANCE) != present
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(present, hot.has(target, RouteProfile.DISTANCE));
+    }
+
+    @Test
+    public void testTreeRoutesMatchSearch() throws InterruptedException {
+        HotTargets hot = new HotTargets(c, graph.overlay(), 100, 8);
+        int target = c.denseId(46);
+        hot.add(target, RouteProfile.DISTANCE);
+        awaitTree(hot, target, true);
+        Router.Options options = new Router.Options();
+        for (int v = 0; v < c.size(); v += 1) {
+            Router.Result walked = hot.route(v, target, RouteProfile.DISTANCE, null);
+            Router.Result searched = Router.route(c, null, v, target, options);
+            assertNotNull(walked);
+            assertEquals(searched.path, walked.path);
+            assertEquals(searched.cost, walked.cost, 1e-9);
+        }
+        assertNull(hot.route(0, target, RouteProfile.TIME, null));
+    }
+
+    @Test
+    public void testFrequentDestinationGetsTree() throws InterruptedException {
+        HotTargets hot = new HotTargets(c, graph.overlay(), 3, 8);
+        int target = c.denseId(55);
+        hot.recordDestination(target, RouteProfile.DISTANCE);
+        hot.recordDestination(target, RouteProfile.DISTANCE);
+        Thread.sleep(50);
+        assertFalse(hot.has(target, RouteProfile.DISTANCE));
+        hot.recordDestination(target, RouteProfile.DISTANCE);
+        awaitTree(hot, target, true);
+    }
+
+    @Test
+    public void testNewHotTargetDisplacesColdOne() throws InterruptedException {
+        HotTargets hot = new HotTargets(c, graph.overlay(), 3, 1);
+        int old = c.denseId(46);
+        int fresh = c.denseId(55);
+        for (int i = 0; i < 3; i += 1) {
+            hot.recordDestination(old, RouteProfile.DISTANCE);
+        }
+        awaitTree(hot, old, true);
+        /* Routes stop going to 46 and start going to 55; the only slot changes hands. */
+        for (int i = 0; i < 3; i += 1) {
+            hot.recordDestination(fresh, RouteProfile.DISTANCE);
+        }
+        awaitTree(hot, fresh, true);
+        assertFalse(hot.has(old, RouteProfile.DISTANCE));
+        /* A destination routed to once is not hot enough to displace it. */
+        hot.recordDestination(old, RouteProfile.DISTANCE);
+        Thread.sleep(50);
+        assertTrue(hot.has(fresh, RouteProfile.DISTANCE));
+        assertFalse(hot.has(old, RouteProfile.DISTANCE));
+    }
+
+    @Test
+    public void testConfiguredTargetIsNotDisplaced() throws InterruptedException {
+        HotTargets hot = new HotTargets(c, graph.overlay(), 1, 1);
+        int pinned = c.denseId(46);
+        hot.add(pinned, RouteProfile.DISTANCE);
+        awaitTree(hot, pinned, true);
+        for (int i = 0; i < 10; i += 1) {
+            hot.recordDestination(c.denseId(55), RouteProfile.DISTANCE);
+        }
+        Thread.sleep(50);
+        assertTrue(hot.has(pinned, RouteProfile.DISTANCE));
+        assertFalse(hot.has(c.denseId(55), RouteProfile.DISTANCE));
+    }
+
+    @Test
+    public void testTreeRebuiltWhenWeightsChange() throws InterruptedException {
+        HotTargets hot = graph.hotTargets();
+        int target = c.denseId(46);
+        hot.add(target, RouteProfile.DISTANCE);
+        awaitTree(hot, target, true);
+        /* Way 2 (41-63-66) is the only way from 41 towards 46. */
+        graph.overlay().closeWay(2);
+        /* Until the rebuild lands the old tree no longer matches the multipliers and must not
+         * be used; the rebuild may already be done on a graph this small. */
+        Router.Result during = hot.route(c.denseId(41), target, RouteProfile.DISTANCE,
+                graph.overlay().factors());
+        assertTrue(during == null || during.status == Router.Status.UNREACHABLE);
+        awaitTree(hot, target, true);
+        Router.Result result = hot.route(c.denseId(41), target, RouteProfile.DISTANCE,
+                graph.overlay().factors());
+        assertEquals(Router.Status.UNREACHABLE, result.status);
+        assertTrue(result.path.isEmpty());
+    }
+
+    @Test
+    public void testClosedTargetsBuildNothing() throws InterruptedException {
+        HotTargets hot = new HotTargets(c, graph.overlay(), 1, 8);
+        int target = c.denseId(46);
+        hot.add(target, RouteProfile.DISTANCE);
+        awaitTree(hot, target, true);
+        hot.close();
+        assertFalse(hot.has(target, RouteProfile.DISTANCE));
+        hot.add(target, RouteProfile.DISTANCE);
+        hot.recordDestination(c.denseId(55), RouteProfile.DISTANCE);
+        Thread.sleep(50);
+        assertFalse(hot.has(target, RouteProfile.DISTANCE));
+        assertFalse(hot.has(c.denseId(55), RouteProfile.DISTANCE));
+    }
+}
@@ -0,0 +1,67 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Map matching on the tiny graph. Fixes sit on (or next to) vertices, so the expected matches
+ * and stitched routes can be checked by hand against the drawing of the graph.
+ */
+public class TestMapMatcher {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+    private static GraphDB graphTiny;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        initialized = true;
+    }
+
+    @Test
+    public void testTraceOnVertices() {
+        double[] lons = {0.4, 0.6, 0.6, 0.4};
+        double[] lats = {38.1, 38.3, 38.6, 38.6};
+        MapMatcher.Match match = new MapMatcher(graphTiny).match(lons, lats, lons.length);
+        assertArrayEquals(new long[] {41L, 63L, 66L, 46L}, match.matched);
+        assertEquals(Arrays.asList(41L, 63L, 66L, 46L), match.route);
+    }
+
+    @Test
+    public void testRouteIsStitchedBetweenSparseFixes() {
+        double[] lons = {0.2, 0.601};
+        double[] lats = {38.2, 38.599};
+        MapMatcher.Match match = new MapMatcher(graphTiny).match(lons, lats, lons.length);
+        assertArrayEquals(new long[] {22L, 66L}, match.matched);
+        List<Long> expected = Arrays.asList(22L, 46L, 66L);
+        assertEquals(expected, match.route);
+    }
+
+    @Test
+    public void testTimeBudgetStopsMatch() {
+        int count = 200000;
+        double[] lons = new double[count];
+        double[] lats = new double[count];
+        for (int i = 0; i < count; i += 1) {
+            lons[i] = i % 2 == 0 ? 0.2 : 0.6;
+            lats[i] = i % 2 == 0 ? 38.2 : 38.6;
+        }
+        MapMatcher matcher = new MapMatcher(graphTiny);
+        MapMatcher.Match match = matcher.match(lons, lats, count, 1);
+        assertEquals(Router.Status.TIMED_OUT, match.status);
+        assertEquals(0, match.matched.length);
+        assertTrue(match.route.isEmpty());
+        /* The matcher is reusable after a timeout. */
+        match = matcher.match(lons, lats, 2, 60000);
+        assertEquals(Router.Status.FOUND, match.status);
+        assertEquals(2, match.matched.length);
+    }
+}
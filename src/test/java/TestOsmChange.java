@@ -0,0 +1,153 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Changes are applied to the tiny graph, which every test shares; none of them may alter it.
+ */
+public class TestOsmChange {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+    private static final double DELTA = 1e-9;
+    private static GraphDB graphTiny;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        initialized = true;
+    }
+
+    private static OsmChange apply(GraphDB g, String osc) throws IOException {
+        String xml = "<osmChange version=\"0.6\">" + osc + "</osmChange>";
+        return OsmChange.apply(g, new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static Set<Long> adjacent(GraphDB g, long v) {
+        Set<Long> result = new HashSet<>();
+        g.adjacent(v).forEach(result::add);
+        return result;
+    }
+
+    @Test
+    public void testCreateNodeAndWay() throws IOException {
+        OsmChange change = apply(graphTiny, "<create>"
+                + "<node id=\"77\" lat=\"38.1\" lon=\"0.7\"><tag k=\"name\" v=\"Depot\"/></node>"
+                + "<way id=\"9\"><nd ref=\"41\"/><nd ref=\"77\"/>"
+                + "<tag k=\"highway\" v=\"residential\"/></way></create>");
+        GraphDB g = change.graph;
+        assertEquals(1, change.nodes);
+        assertEquals(1, change.ways);
+        assertEquals(new HashSet<>(Arrays.asList(63L, 77L)), adjacent(g, 41));
+        assertEquals(new HashSet<>(Arrays.asList(41L)), adjacent(g, 77));
+        assertEquals(77, g.closest(0.71, 38.1));
+        assertEquals(Arrays.asList(41L, 77L), Router.shortestPath(g, 0.4, 38.1, 0.7, 38.1));
+        assertTrue(g.version() > graphTiny.version());
+    }
+
+    @Test
+    public void testModifyNodeMeasuresEdgesAgain() throws IOException {
+        GraphDB g = apply(graphTiny, "<modify>"
+                + "<node id=\"55\" lat=\"38.5\" lon=\"0.9\"/></modify>").graph;
+        assertEquals(0.9, g.lon(55), DELTA);
+        assertEquals(GraphDB.distance(0.6, 38.3, 0.9, 38.5), g.distance(55, 63), DELTA);
+        assertEquals(new HashSet<>(Arrays.asList(63L)), adjacent(g, 55));
+        assertEquals(Arrays.asList(55L, 63L), Router.shortestPath(g, 0.9, 38.5, 0.6, 38.3));
+    }
+
+    @Test
+    public void testDeleteWay() throws IOException {
+        GraphDB g = apply(graphTiny, "<delete><way id=\"3\"/></delete>").graph;
+        assertEquals(-1, g.compact().denseId(55));
+        assertEquals(new HashSet<>(Arrays.asList(41L, 66L)), adjacent(g, 63));
+        assertEquals(63, g.closest(0.55, 38.4));
+    }
+
+    @Test
+    public void testModifyWayReplacesItsNodes() throws IOException {
+        GraphDB g = apply(graphTiny, "<modify><way id=\"1\"><nd ref=\"22\"/><nd ref=\"66\"/>"
+                + "<tag k=\"highway\" v=\"residential\"/></way></modify>").graph;
+        assertEquals(-1, g.compact().denseId(46));
+        assertEquals(new HashSet<>(Arrays.asList(11L, 66L)), adjacent(g, 22));
+    }
+
+    @Test
+    public void testBaseVersionUnchanged() throws IOException {
+        apply(graphTiny, "<modify><node id=\"55\" lat=\"38.5\" lon=\"0.9\"/></modify>"
+                + "<delete><way id=\"1\"/></delete>");
+        assertEquals(0.5, graphTiny.lon(55), DELTA);
+        assertEquals(new HashSet<>(Arrays.asList(22L, 66L)), adjacent(graphTiny, 46));
+        assertEquals(Arrays.asList(22L, 46L, 66L),
+                Router.shortestPath(graphTiny, 0.2, 38.2, 0.6, 38.6));
+    }
+
+    @Test
+    public void testChangeSharesUntouchedVertices() throws IOException {
+        CompactGraph before = graphTiny.compact();
+        CompactGraph after = apply(graphTiny, "<modify>"
+                + "<node id=\"55\" lat=\"38.5\" lon=\"0.9\"/></modify>").graph.compact();
+        int v = before.denseId(41);
+        assertEquals(v, after.denseId(41));
+        assertEquals(before.firstEdge(v), after.firstEdge(v));
+        assertEquals(before.endEdge(v), after.endEdge(v));
+        assertEquals(before.size(), after.size());
+    }
+
+    @Test
+    public void testOldVersionIsCollectable() throws IOException {
+        GraphDB old = apply(graphTiny, "<modify>"
+                + "<node id=\"55\" lat=\"38.5\" lon=\"0.9\"/></modify>").graph;
+        GraphDB g = apply(old, "<delete><way id=\"1\"/></delete>").graph;
+        WeakReference<GraphDB> oldGraph = new WeakReference<>(old);
+        WeakReference<CompactGraph> oldCompact = new WeakReference<>(old.compact());
+        /* What MapServer.swapGraph does before it lets go of the old version. */
+        old.hotTargets().close();
+        old = null;
+        for (int i = 0; i < 50 && (oldGraph.get() != null || oldCompact.get() != null); i += 1) {
+            System.gc();
+            Thread.yield();
+        }
+        assertNull(oldGraph.get());
+        assertNull(oldCompact.get());
+        assertEquals(0.9, g.lon(55), DELTA);
+        assertEquals(-1, g.compact().denseId(46));
+    }
+
+    @Test
+    public void testManyChangesStayCorrect() throws IOException {
+        GraphDB g = graphTiny;
+        for (int i = 0; i < 400; i += 1) {
+            double lon = i % 2 == 0 ? 0.9 : 0.5;
+            g = apply(g, "<modify><node id=\"55\" lat=\"38.5\" lon=\"" + lon + "\"/>"
+                    + "</modify>").graph;
+        }
+        /* Each change leaves edges unused; the graph is rebuilt before they pile up. */
+        assertTrue(g.compact().edgeCount()
+                < graphTiny.compact().edgeCount() + 2 * Pages.PAGE_SIZE);
+        assertEquals(0.5, g.lon(55), DELTA);
+        assertEquals(new HashSet<>(Arrays.asList(63L)), adjacent(g, 55));
+        assertEquals(adjacent(graphTiny, 41), adjacent(g, 41));
+        assertEquals(Router.shortestPath(graphTiny, 0.2, 38.2, 0.6, 38.6),
+                Router.shortestPath(g, 0.2, 38.2, 0.6, 38.6));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWayToUnknownNodeRejected() throws IOException {
+        apply(graphTiny, "<create><way id=\"9\"><nd ref=\"41\"/><nd ref=\"12345\"/>"
+                + "<tag k=\"highway\" v=\"residential\"/></way></create>");
+    }
+}
@@ -0,0 +1,42 @@
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The example of Google's description of the format, and routes around it.
+ */
+public class TestPolyline {
+    private static final double DELTA = 1e-9;
+    private static final double[] LONS = {-120.2, -120.95, -126.453};
+    private static final double[] LATS = {38.5, 40.7, 43.252};
+    private static final String ENCODED = "_p~iF~ps|U_ulLnnqC_mqNvxq`@";
+
+    @Test
+    public void testEncodesExample() {
+        assertEquals(ENCODED, Polyline.encode(LONS, LATS, LONS.length));
+        assertEquals("_p~iF~ps|U", Polyline.encode(LONS, LATS, 1));
+        assertEquals("", Polyline.encode(LONS, LATS, 0));
+    }
+
+    @Test
+    public void testDecodesExample() {
+        double[][] points = Polyline.decode(ENCODED);
+        assertArrayEquals(LONS, points[0], DELTA);
+        assertArrayEquals(LATS, points[1], DELTA);
+    }
+
+    @Test
+    public void testRoundsToPrecision() {
+        double[] lons = {-122.2998046875, -122.2998046875, 0.000004};
+        double[] lats = {37.892195547244356, 37.8921956, -0.000006};
+        double[][] points = Polyline.decode(Polyline.encode(lons, lats, lons.length));
+        assertArrayEquals(new double[] {-122.29980, -122.29980, 0}, points[0], DELTA);
+        assertArrayEquals(new double[] {37.89220, 37.89220, -0.00001}, points[1], DELTA);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCutOffRejected() {
+        Polyline.decode(ENCODED.substring(0, ENCODED.length() - 1));
+    }
+}
@@ -0,0 +1,56 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Rasters of 100 bytes, with a budget that holds two of them.
+ */
+public class TestRasterCache {
+    private static final int SIZE = 100;
+
+    private RasterCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new RasterCache(2 * SIZE);
+    }
+
+    @Test
+    public void testRepeatedRasterIsKept() {
+        byte[] raster = new byte[SIZE];
+        assertNull(cache.get("d1_x0_y0.png:d1_x1_y1.png:1:0"));
+        cache.put("d1_x0_y0.png:d1_x1_y1.png:1:0", raster);
+        assertSame(raster, cache.get("d1_x0_y0.png:d1_x1_y1.png:1:0"));
+        assertNull(cache.get("d1_x0_y0.png:d1_x1_y1.png:1:1"));
+        Map<String, Object> stats = cache.stats();
+        assertEquals(1L, stats.get("hits"));
+        assertEquals(2L, stats.get("misses"));
+        assertEquals((long) SIZE, stats.get("bytes"));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() {
+        byte[] first = new byte[SIZE];
+        cache.put("a", first);
+        cache.put("b", new byte[SIZE]);
+        cache.get("a");
+        cache.put("c", new byte[SIZE]);
+        assertSame(first, cache.get("a"));
+        assertNull(cache.get("b"));
+        Map<String, Object> stats = cache.stats();
+        assertEquals(1L, stats.get("evictions"));
+        assertEquals(2, stats.get("rasters"));
+    }
+
+    @Test
+    public void testRasterOverBudgetNotKept() {
+        cache.put("a", new byte[3 * SIZE]);
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.stats().get("rasters"));
+    }
+}
@@ -0,0 +1,86 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Images are decoded again with ImageIO, which must read back the exact pixels of every PNG.
+ */
+public class TestRasterEncoder {
+    private static final int WIDTH = 37;
+    private static final int HEIGHT = 23;
+
+    private BufferedImage img;
+
+    @Before
+    public void setUp() {
+        img = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(7);
+        for (int y = 0; y < HEIGHT; y += 1) {
+            for (int x = 0; x < WIDTH; x += 1) {
+                /* Gradients, which the filters predict, with some noise, which they do not. */
+                img.setRGB(x, y, (x * 6) << 16 | (y * 10) << 8 | random.nextInt(64));
+            }
+        }
+    }
+
+    private static BufferedImage decode(byte[] bytes) throws IOException {
+        return ImageIO.read(new ByteArrayInputStream(bytes));
+    }
+
+    private static byte[] encode(RasterEncoder encoder, BufferedImage img, String format)
+            throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        encoder.write(img, format, os);
+        return os.toByteArray();
+    }
+
+    private static void assertSamePixels(BufferedImage expected, BufferedImage actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y += 1) {
+            for (int x = 0; x < expected.getWidth(); x += 1) {
+                assertEquals(expected.getRGB(x, y), actual.getRGB(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void testPngRoundTripsWithEveryFilterAndLevel() throws IOException {
+        for (RasterEncoder.Filter filter : RasterEncoder.Filter.values()) {
+            for (int level : new int[] {0, 1, 9}) {
+                RasterEncoder encoder = new RasterEncoder(level, filter, 0.85f);
+                assertSamePixels(img, decode(encode(encoder, img, "png")));
+            }
+        }
+    }
+
+    @Test
+    public void testBuffersReusedAcrossSizesAndTypes() throws IOException {
+        BufferedImage small = img.getSubimage(0, 0, 5, 4);
+        BufferedImage copy = new BufferedImage(5, 4, BufferedImage.TYPE_3BYTE_BGR);
+        copy.getGraphics().drawImage(small, 0, 0, null);
+        assertSamePixels(img, decode(encode(RasterEncoder.DEFAULT, img, "png")));
+        assertSamePixels(copy, decode(encode(RasterEncoder.DEFAULT, copy, "png")));
+        assertSamePixels(img, decode(encode(RasterEncoder.DEFAULT, img, "png")));
+    }
+
+    @Test
+    public void testJpegDecodes() throws IOException {
+        BufferedImage decoded = decode(encode(RasterEncoder.DEFAULT, img, "jpeg"));
+        assertEquals(WIDTH, decoded.getWidth());
+        assertEquals(HEIGHT, decoded.getHeight());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testLevelOutOfRangeRejected() {
+        new RasterEncoder(10, RasterEncoder.Filter.UP, 0.85f);
+    }
+}
@@ -0,0 +1,92 @@
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * A pool with a budget of two 4 by 4 canvases.
+ */
+public class TestRasterPool {
+    private static final int SIZE = 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private RasterPool pool;
+
+    @Before
+    public void setUp() {
+        pool = new RasterPool(2 * SIZE * SIZE);
+    }
+
+    @Test
+    public void testCanvasReusedBySize() {
+        BufferedImage canvas = pool.canvas(SIZE, SIZE);
+        pool.release(canvas);
+        assertNotSame(canvas, pool.canvas(SIZE, 2 * SIZE));
+        assertSame(canvas, pool.canvas(SIZE, SIZE));
+        assertNotSame(canvas, pool.canvas(SIZE, SIZE));
+        Map<String, Object> stats = pool.stats();
+        assertEquals(1L, stats.get("reused"));
+        assertEquals(3L, stats.get("allocated"));
+        assertEquals(0L, stats.get("pixels"));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedSizeDropped() {
+        BufferedImage wide = pool.canvas(2 * SIZE, SIZE);
+        BufferedImage square = pool.canvas(SIZE, SIZE);
+        pool.release(wide);
+        pool.release(square);
+        Map<String, Object> stats = pool.stats();
+        assertEquals(1, stats.get("canvases"));
+        assertSame(square, pool.canvas(SIZE, SIZE));
+        pool.release(pool.canvas(3 * SIZE, SIZE));
+        assertEquals(0, pool.stats().get("canvases"));
+    }
+
+    @Test
+    public void testGrownBufferDropped() {
+        RasterPool.Buffer buffer = pool.buffer();
+        buffer.write(1);
+        pool.release(buffer);
+        RasterPool.Buffer again = pool.buffer();
+        assertSame(buffer, again);
+        assertEquals(0, again.size());
+        again.write(new byte[17 << 20], 0, 17 << 20);
+        pool.release(again);
+        assertNotSame(again, pool.buffer());
+    }
+
+    @Test
+    public void testStitchClearsReusedCanvas() throws IOException {
+        File dir = folder.newFolder("tiles");
+        BufferedImage tile = new BufferedImage(MapServer.TILE_SIZE, MapServer.TILE_SIZE,
+                BufferedImage.TYPE_INT_RGB);
+        tile.setRGB(0, 0, 0x123456);
+        ImageIO.write(tile, "png", new File(dir, "d1_x0_y0.png"));
+        Rasterer rasterer = Rasterer.load(dir.getPath());
+        String[][] grid = {{"d1_x0_y0.png", "d1_x1_y0.png"}};
+        BufferedImage dirty = rasterer.stitch(grid);
+        Graphics graphic = dirty.getGraphics();
+        graphic.setColor(Color.WHITE);
+        graphic.fillRect(0, 0, dirty.getWidth(), dirty.getHeight());
+        graphic.dispose();
+        RasterPool.SHARED.release(dirty);
+        BufferedImage img = rasterer.stitch(grid);
+        assertEquals(0x123456, img.getRGB(0, 0) & 0xffffff);
+        assertEquals(0, img.getRGB(1, 0) & 0xffffff);
+        assertEquals(0, img.getRGB(MapServer.TILE_SIZE + 7, 9) & 0xffffff);
+    }
+}
@@ -0,0 +1,99 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Search budgets, approximate routing and admission control. Uses the tiny graph, where the
+ * route from 41 to 46 is 41 -> 63 -> 66 -> 46 and settles more than one vertex.
+ */
+public class TestRouteBudget {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+    private static GraphDB graphTiny;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        initialized = true;
+    }
+
+    @Test
+    public void testUnlimitedSearchFindsRoute() {
+        Router.Result result = Router.route(graphTiny, 0.4, 38.1, 0.4, 38.6,
+                new Router.Options());
+        assertEquals(Router.Status.FOUND, result.status);
+        assertEquals(Arrays.asList(41L, 63L, 66L, 46L), result.path);
+        assertTrue(result.cost > 0);
+    }
+
+    @Test
+    public void testSettledBudgetTimesOut() {
+        Router.Result result = Router.route(graphTiny, 0.4, 38.1, 0.4, 38.6,
+                new Router.Options().maxSettled(1));
+        assertEquals(Router.Status.TIMED_OUT, result.status);
+        assertTrue(result.path.isEmpty());
+        assertEquals(Double.POSITIVE_INFINITY, result.cost, 0);
+    }
+
+    @Test
+    public void testApproximateRouteReportsBound() {
+        Router.Result exact = Router.route(graphTiny, 0.2, 38.2, 0.5, 38.5,
+                new Router.Options());
+        Router.Result approximate = Router.route(graphTiny, 0.2, 38.2, 0.5, 38.5,
+                new Router.Options().epsilon(2));
+        assertEquals(Router.Status.FOUND, approximate.status);
+        assertEquals(1, exact.bound, 0);
+        assertEquals(2, approximate.bound, 0);
+        assertTrue(approximate.cost <= approximate.bound * exact.cost);
+    }
+
+    @Test
+    public void testCorridorFallsBackWhenRouteLeavesIt() {
+        /* The only route from 41 to 46 swings east through 63 and 66, far outside a tight
+         * ellipse around the straight line between them. */
+        Router.Result result = Router.route(graphTiny, 0.4, 38.1, 0.4, 38.6,
+                new Router.Options().corridor(1.01));
+        assertEquals(Router.Status.FOUND, result.status);
+        assertEquals(Arrays.asList(41L, 63L, 66L, 46L), result.path);
+    }
+
+    @Test
+    public void testCostGrowsWithDistance() {
+        AdmissionController admission = new AdmissionController(16, 0, 0, 2.0);
+        assertEquals(1, admission.cost(0));
+        assertEquals(1, admission.cost(2));
+        assertEquals(4, admission.cost(4));
+        assertEquals(16, admission.cost(100));
+    }
+
+    @Test
+    public void testAreaCostChargesManySearchesTogether() {
+        AdmissionController admission = new AdmissionController(16, 0, 0, 2.0);
+        assertEquals(admission.cost(4), admission.areaCost(16));
+        /* Ten searches of two miles each cost one unit each. */
+        assertEquals(10, admission.areaCost(10 * 2 * 2));
+        assertEquals(16, admission.areaCost(1e9));
+    }
+
+    @Test
+    public void testShedsWhenSaturated() throws InterruptedException {
+        AdmissionController admission = new AdmissionController(4, 0, 0, 1.0);
+        AdmissionController.Ticket big = admission.admit(2);
+        assertNotNull(big);
+        assertNull(admission.admit(1));
+        assertEquals(1, admission.shed());
+        big.close();
+        big.close();
+        assertEquals(4, admission.available());
+        assertNotNull(admission.admit(1));
+    }
+}
@@ -0,0 +1,52 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Speed parsing and the TIME profile. Every way in the tiny graph is residential, so fastest
+ * and shortest routes coincide there and each edge takes length / 25mph to drive.
+ */
+public class TestRouteProfiles {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+    private static final double DELTA = 1e-9;
+    private static GraphDB graphTiny;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        initialized = true;
+    }
+
+    @Test
+    public void testSpeedParsing() {
+        assertEquals(30, CompactGraph.speedMph("30 mph", "residential"), DELTA);
+        assertEquals(30, CompactGraph.speedMph("30mph", "residential"), DELTA);
+        assertEquals(50 * 0.621371, CompactGraph.speedMph("50", "primary"), DELTA);
+        assertEquals(50 * 0.621371, CompactGraph.speedMph("50 km/h", "primary"), DELTA);
+        assertEquals(65, CompactGraph.speedMph("none", "motorway"), DELTA);
+        assertEquals(25, CompactGraph.speedMph(null, "residential"), DELTA);
+        assertEquals(25, CompactGraph.speedMph(null, null), DELTA);
+    }
+
+    @Test
+    public void testEdgeTimes() {
+        CompactGraph c = graphTiny.compact();
+        assertEquals(25, c.maxSpeedMph, DELTA);
+        for (int e = 0; e < c.edgeCount(); e += 1) {
+            assertEquals(c.length(e) / 25 * 3600, c.time(e), DELTA);
+        }
+    }
+
+    @Test
+    public void testTimeProfileOnUniformSpeeds() {
+        assertEquals(Router.shortestPath(graphTiny, 0.4, 38.1, 0.4, 38.6),
+                Router.shortestPath(graphTiny, 0.4, 38.1, 0.4, 38.6, RouteProfile.TIME));
+        assertEquals(Router.shortestPath(graphTiny, 0.2, 38.2, 0.6, 38.6),
+                Router.shortestPath(graphTiny, 0.2, 38.2, 0.6, 38.6, RouteProfile.TIME));
+    }
+}
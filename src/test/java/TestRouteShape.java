@@ -0,0 +1,117 @@
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Routes laid out in the pixels of the deepest level, DEEP_LON and DEEP_LAT degrees apart.
+ */
+public class TestRouteShape {
+    private static final int DEEPEST = MapServer.MAX_TILE_DEPTH;
+    private static final double DEEP_LON = (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON)
+            / (MapServer.TILE_SIZE << DEEPEST);
+    private static final double DEEP_LAT = (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT)
+            / (MapServer.TILE_SIZE << DEEPEST);
+    private static final double DELTA = 1e-12;
+
+    /** Returns {lons, lats} of points at x, y pixels of the deepest level from the root. */
+    private static double[][] pixels(double[] xs, double[] ys) {
+        double[] lons = new double[xs.length];
+        double[] lats = new double[ys.length];
+        for (int i = 0; i < xs.length; i += 1) {
+            lons[i] = MapServer.ROOT_ULLON + xs[i] * DEEP_LON;
+            lats[i] = MapServer.ROOT_ULLAT - ys[i] * DEEP_LAT;
+        }
+        return new double[][] {lons, lats};
+    }
+
+    @Test
+    public void testStraightRouteKeepsEnds() {
+        double[] xs = new double[1000];
+        double[] ys = new double[1000];
+        for (int i = 0; i < xs.length; i += 1) {
+            xs[i] = i * 0.7;
+            ys[i] = i * 0.3;
+        }
+        double[][] route = pixels(xs, ys);
+        RouteShape shape = new RouteShape(route[0], route[1]);
+        for (int depth = 0; depth <= DEEPEST; depth += 1) {
+            double[][] points = shape.points(depth);
+            assertArrayEquals(new double[] {route[0][0], route[0][999]}, points[0], DELTA);
+            assertArrayEquals(new double[] {route[1][0], route[1][999]}, points[1], DELTA);
+        }
+        assertEquals(1000, shape.points(-1)[0].length);
+    }
+
+    @Test
+    public void testZigzagKeptOnlyWhereItShows() {
+        /* Three pixels across at the deepest level, a fiftieth of a pixel at depth 0. */
+        double[] xs = new double[101];
+        double[] ys = new double[101];
+        for (int i = 0; i < xs.length; i += 1) {
+            xs[i] = i * 10;
+            ys[i] = i % 2 * 3;
+        }
+        double[][] route = pixels(xs, ys);
+        RouteShape shape = new RouteShape(route[0], route[1]);
+        assertEquals(101, shape.points(DEEPEST)[0].length);
+        assertEquals(101, shape.points(DEEPEST + 3)[0].length);
+        assertEquals(2, shape.points(0)[0].length);
+    }
+
+    @Test
+    public void testSimplifiedStaysWithinTolerance() {
+        Random random = new Random(11);
+        double[] xs = new double[5000];
+        double[] ys = new double[5000];
+        for (int i = 1; i < xs.length; i += 1) {
+            xs[i] = xs[i - 1] + random.nextDouble() * 4;
+            ys[i] = ys[i - 1] + random.nextGaussian() * 4;
+        }
+        double[][] route = pixels(xs, ys);
+        RouteShape shape = new RouteShape(route[0], route[1]);
+        int previous = 0;
+        for (int depth = 0; depth <= DEEPEST; depth += 1) {
+            double[][] points = shape.points(depth);
+            assertTrue(points[0].length >= previous);
+            previous = points[0].length;
+            double scale = 1 << (DEEPEST - depth);
+            double worst = 0;
+            for (int i = 0; i < xs.length; i += 1) {
+                worst = Math.max(worst, distance(points, route[0][i], route[1][i], scale));
+            }
+            assertTrue("depth " + depth + " strays " + worst, worst <= RouteShape.TOLERANCE_PX);
+        }
+        assertTrue(shape.points(0)[0].length < 100);
+    }
+
+    /** Distance, in pixels of the depth scale levels up, from lon, lat to the polyline. */
+    private static double distance(double[][] points, double lon, double lat, double scale) {
+        double px = lon / DEEP_LON / scale;
+        double py = lat / DEEP_LAT / scale;
+        double best = Double.POSITIVE_INFINITY;
+        for (int j = 1; j < points[0].length; j += 1) {
+            double ax = points[0][j - 1] / DEEP_LON / scale;
+            double ay = points[1][j - 1] / DEEP_LAT / scale;
+            double dx = points[0][j] / DEEP_LON / scale - ax;
+            double dy = points[1][j] / DEEP_LAT / scale - ay;
+            double length = dx * dx + dy * dy;
+            double t = length == 0 ? 0
+                    : Math.max(0, Math.min(1, ((px - ax) * dx + (py - ay) * dy) / length));
+            best = Math.min(best, Math.hypot(px - ax - t * dx, py - ay - t * dy));
+        }
+        return best;
+    }
+
+    @Test
+    public void testMissingNodesLeftOut() throws Exception {
+        GraphDB g = new GraphDB("../library-sp18/data/tiny-clean.osm.xml");
+        RouteShape shape = new RouteShape(g, Arrays.asList(22L, 12345L, 46L));
+        assertArrayEquals(new double[] {0.2, 0.4}, shape.points(-1)[0], DELTA);
+        assertArrayEquals(new double[] {38.2, 38.6}, shape.points(DEEPEST)[1], DELTA);
+    }
+}
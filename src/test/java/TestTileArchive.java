@@ -0,0 +1,105 @@
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * A pyramid of depth 2 with one tile missing, each tile a different colour.
+ */
+public class TestTileArchive {
+    private static final int SIZE = 8;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private File dir;
+    private Path packed;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = folder.newFolder("tiles");
+        int colour = 1;
+        for (int depth = 0; depth <= 2; depth += 1) {
+            for (int x = 0; x < 1 << depth; x += 1) {
+                for (int y = 0; y < 1 << depth; y += 1) {
+                    if (depth == 2 && x == 3 && y == 1) {
+                        continue;
+                    }
+                    BufferedImage tile = new BufferedImage(SIZE, SIZE,
+                            BufferedImage.TYPE_INT_RGB);
+                    tile.setRGB(0, 0, colour++ * 0x010203);
+                    ImageIO.write(tile, "png", tileFile(depth, x, y));
+                }
+            }
+        }
+        Files.write(new File(dir, "notes.txt").toPath(), new byte[] {1, 2, 3});
+        packed = folder.getRoot().toPath().resolve("tiles.bmt");
+        TileArchive.pack(dir.toPath(), packed);
+    }
+
+    private File tileFile(int depth, int x, int y) {
+        return new File(dir, "d" + depth + "_x" + x + "_y" + y + ".png");
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void testTilesMatchFiles() throws IOException {
+        TileArchive archive = TileArchive.open(packed);
+        assertEquals(20, archive.tileCount());
+        for (int depth = 0; depth <= 2; depth += 1) {
+            for (int x = 0; x < 1 << depth; x += 1) {
+                for (int y = 0; y < 1 << depth; y += 1) {
+                    File f = tileFile(depth, x, y);
+                    ByteBuffer tile = archive.tile(f.getName());
+                    if (f.exists()) {
+                        assertArrayEquals(Files.readAllBytes(f.toPath()), bytes(tile));
+                    } else {
+                        assertNull(tile);
+                    }
+                }
+            }
+        }
+        assertNotEquals(archive.crc("d1_x0_y0.png"), archive.crc("d1_x1_y0.png"));
+    }
+
+    @Test
+    public void testOutsidePyramid() throws IOException {
+        TileArchive archive = TileArchive.open(packed);
+        assertNull(archive.tile("d3_x0_y0.png"));
+        assertNull(archive.tile("d1_x2_y0.png"));
+        assertNull(archive.tile("notes.txt"));
+        assertNull(archive.open("d2_x3_y1.png"));
+    }
+
+    @Test
+    public void testRastererDecodesFromArchive() throws IOException {
+        Rasterer rasterer = Rasterer.load(packed.toString());
+        assertEquals(20, rasterer.tileCount);
+        BufferedImage expected = ImageIO.read(tileFile(2, 1, 3));
+        BufferedImage tile = rasterer.tiles.get("d2_x1_y3.png");
+        assertEquals(expected.getRGB(0, 0), tile.getRGB(0, 0));
+        assertNull(rasterer.tiles.get("d2_x3_y1.png"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotAnArchive() throws IOException {
+        TileArchive.open(new File(dir, "notes.txt").toPath());
+    }
+}
@@ -0,0 +1,66 @@
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tiles of 16 by 16 pixels, with a budget that holds two of them.
+ */
+public class TestTileCache {
+    private static final int SIZE = 16;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private TileCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        for (String name : new String[] {"d0_x0_y0.png", "d1_x0_y0.png", "d1_x1_y0.png"}) {
+            ImageIO.write(new BufferedImage(SIZE, SIZE, BufferedImage.TYPE_INT_RGB), "png",
+                    new File(folder.getRoot(), name));
+        }
+        cache = new TileCache(folder.getRoot().getPath() + File.separator, 2 * SIZE * SIZE);
+    }
+
+    @Test
+    public void testRepeatedTileIsKept() {
+        BufferedImage tile = cache.get("d0_x0_y0.png");
+        assertNotNull(tile);
+        assertSame(tile, cache.get("d0_x0_y0.png"));
+        Map<String, Object> stats = cache.stats();
+        assertEquals(1L, stats.get("hits"));
+        assertEquals(1L, stats.get("misses"));
+        assertEquals((long) SIZE * SIZE, stats.get("pixels"));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() {
+        BufferedImage root = cache.get("d0_x0_y0.png");
+        BufferedImage left = cache.get("d1_x0_y0.png");
+        assertSame(root, cache.get("d0_x0_y0.png"));
+        cache.get("d1_x1_y0.png");
+        assertSame(root, cache.get("d0_x0_y0.png"));
+        Map<String, Object> stats = cache.stats();
+        assertEquals(1L, stats.get("evictions"));
+        assertEquals(2, stats.get("tiles"));
+        assertNotSame(left, cache.get("d1_x0_y0.png"));
+    }
+
+    @Test
+    public void testMissingTileNotKept() {
+        assertNull(cache.get("d7_x0_y0.png"));
+        assertEquals(0, cache.stats().get("tiles"));
+    }
+}
@@ -0,0 +1,160 @@
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tiles small enough that every route of the tiny graph crosses several of them, under a
+ * budget that keeps one tile loaded at a time.
+ */
+public class TestTiledGraph {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+    private static final String OSM_DB_PATH_RESTRICTIONS = "tiny-restrictions.osm.xml";
+    private static GraphDB graphTiny;
+    private static GraphDB graphRestrictions;
+    private static boolean initialized = false;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        graphRestrictions = new GraphDB(OSM_DB_PATH_RESTRICTIONS);
+        initialized = true;
+    }
+
+    private TiledGraph tiles(long budgetBytes) throws IOException {
+        Path dir = folder.getRoot().toPath();
+        TiledGraph.write(graphTiny.compact(), dir, 0.15);
+        return new TiledGraph(dir, budgetBytes);
+    }
+
+    @Test
+    public void testOpeningLoadsNothing() throws IOException {
+        TiledGraph tiled = tiles(1 << 20);
+        assertEquals(7, tiled.size());
+        assertEquals(0, tiled.loadedTiles());
+    }
+
+    @Test
+    public void testClosestMatchesGraph() throws IOException {
+        TiledGraph tiled = tiles(1 << 20);
+        double[][] points = {{0.1, 38.1}, {0.42, 38.55}, {0.61, 38.31}, {-1, 40}, {0.3, 38.35}};
+        for (double[] p : points) {
+            assertEquals(graphTiny.closest(p[0], p[1]), tiled.osmId(tiled.closest(p[0], p[1])));
+        }
+    }
+
+    @Test
+    public void testRoutesAcrossTilesMatchRouter() throws IOException {
+        TiledGraph tiled = tiles(1);
+        CompactGraph c = graphTiny.compact();
+        for (RouteProfile profile : RouteProfile.values()) {
+            for (int s = 0; s < c.size(); s += 1) {
+                for (int t = 0; t < c.size(); t += 1) {
+                    Router.Result expected = Router.route(c, null, s, t,
+                            new Router.Options().profile(profile));
+                    int from = tiled.closest(c.lon(s), c.lat(s));
+                    int to = tiled.closest(c.lon(t), c.lat(t));
+                    Router.Result actual =
+                            tiled.route(from, to, new Router.Options().profile(profile)).result;
+                    assertEquals(expected.status, actual.status);
+                    assertEquals(expected.cost, actual.cost, 1e-9);
+                    assertEquals(expected.path, actual.path);
+                }
+            }
+        }
+        assertEquals(1, tiled.loadedTiles());
+        assertTrue(tiled.evictions() > 0);
+    }
+
+    @Test
+    public void testTurnRestrictionsMatchRouter() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        CompactGraph c = graphRestrictions.compact();
+        TiledGraph.write(c, dir, 0.05);
+        TiledGraph tiled = new TiledGraph(dir, 1);
+        for (RouteProfile profile : RouteProfile.values()) {
+            for (int s = 0; s < c.size(); s += 1) {
+                for (int t = 0; t < c.size(); t += 1) {
+                    Router.Options o = new Router.Options().profile(profile);
+                    Router.Result expected = Router.route(c, null, s, t, o);
+                    Router.Result actual = tiled.route(c.lon(s), c.lat(s), c.lon(t), c.lat(t),
+                            o).result;
+                    assertEquals(expected.status, actual.status);
+                    assertEquals(expected.cost, actual.cost, 1e-9);
+                    assertEquals(expected.path, actual.path);
+                }
+            }
+        }
+        /* The left turn from Main Street onto Side Street at 2 is banned, so 1 to 5 goes
+         * the long way round through 3. */
+        Router.Result around = tiled.route(0.0, 38.0, 0.2, 38.1, new Router.Options()).result;
+        assertEquals(Arrays.asList(1L, 2L, 3L, 5L), around.path);
+    }
+
+    @Test
+    public void testOptionsWorkAsInRouter() throws IOException {
+        TiledGraph tiled = tiles(1 << 20);
+        CompactGraph c = graphTiny.compact();
+        Router.Options[] options = {new Router.Options().epsilon(3),
+            new Router.Options().corridor(1.01), new Router.Options().maxSettled(2)};
+        for (Router.Options o : options) {
+            for (int s = 0; s < c.size(); s += 1) {
+                for (int t = 0; t < c.size(); t += 1) {
+                    Router.Result expected = Router.route(c, null, s, t, o);
+                    Router.Result actual = tiled.route(c.lon(s), c.lat(s), c.lon(t), c.lat(t),
+                            o).result;
+                    assertEquals(expected.status, actual.status);
+                    assertEquals(expected.cost, actual.cost, 1e-9);
+                    assertEquals(expected.bound, actual.bound, 0);
+                    assertEquals(expected.path, actual.path);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testShapeFollowsPath() throws IOException {
+        TiledGraph tiled = tiles(1 << 20);
+        CompactGraph c = graphTiny.compact();
+        TiledGraph.Route r = tiled.route(c.lon(0), c.lat(0), c.lon(6), c.lat(6),
+                new Router.Options());
+        assertEquals(Router.Status.FOUND, r.result.status);
+        double[][] expected = new RouteShape(graphTiny, r.result.path).points(-1);
+        assertArrayEquals(expected[0], r.shape.points(-1)[0], 0);
+        assertArrayEquals(expected[1], r.shape.points(-1)[1], 0);
+    }
+
+    @Test
+    public void testSparseStateGrowsWithReachedVertices() {
+        SparseSearchState state = new SparseSearchState(4);
+        for (int v = 0; v < 100000; v += 1) {
+            assertTrue(state.relax(v * 7919, v, v - 1));
+        }
+        assertEquals(100000, state.size());
+        for (int v = 0; v < 100000; v += 1) {
+            assertEquals(v, state.dist(v * 7919), 0);
+            assertEquals(v - 1, state.parent(v * 7919));
+        }
+        assertFalse(state.reached(1));
+        assertFalse(state.relax(7919, 2, 0));
+        assertTrue(state.relax(7919, 0.5, 0));
+        state.settle(7919);
+        assertTrue(state.isSettled(7919));
+        assertFalse(state.isSettled(0));
+    }
+}
@@ -0,0 +1,66 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Trip planning on the tiny graph, where the vertices 11, 22, 46, 66, 63 and 55 lie along one
+ * road, so the best order is easy to see by hand.
+ */
+public class TestTripPlanner {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+    private static GraphDB graphTiny;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        initialized = true;
+    }
+
+    @Test
+    public void testOpenTripVisitsNearbyStopFirst() {
+        /* Stops 22, 55, 11, 46: from 22 it is cheaper to fetch 11 first and then drive up the
+         * road than to come all the way back for it at the end. */
+        double[] lons = {0.2, 0.5, 0.1, 0.4};
+        double[] lats = {38.2, 38.5, 38.1, 38.6};
+        TripPlanner.Trip trip = TripPlanner.plan(graphTiny, lons, lats, 4, false,
+                RouteProfile.DISTANCE, 1000, 1000);
+        assertArrayEquals(new int[] {0, 2, 3, 1}, trip.order);
+        assertEquals(Arrays.asList(22L, 11L, 22L, 46L, 66L, 63L, 55L), trip.route);
+    }
+
+    @Test
+    public void testRoundTripReturnsToStart() {
+        double[] lons = {0.2, 0.5, 0.4};
+        double[] lats = {38.2, 38.5, 38.1};
+        TripPlanner.Trip trip = TripPlanner.plan(graphTiny, lons, lats, 3, true,
+                RouteProfile.DISTANCE, 1000, 1000);
+        List<Long> route = trip.route;
+        assertEquals(0, trip.order[0]);
+        assertEquals(Long.valueOf(22L), route.get(0));
+        assertEquals(Long.valueOf(22L), route.get(route.size() - 1));
+        double legs = 0;
+        for (int i = 1; i < route.size(); i += 1) {
+            legs += graphTiny.distance(route.get(i - 1), route.get(i));
+        }
+        assertEquals(legs, trip.cost, 1e-9);
+    }
+
+    @Test
+    public void testTripWithoutSearchTimeTimesOut() {
+        double[] lons = {0.2, 0.5, 0.4};
+        double[] lats = {38.2, 38.5, 38.1};
+        TripPlanner.Trip trip = TripPlanner.plan(graphTiny, lons, lats, 3, true,
+                RouteProfile.DISTANCE, -1, 1000);
+        assertEquals(Router.Status.TIMED_OUT, trip.status);
+        assertEquals(0, trip.route.size());
+    }
+}
@@ -0,0 +1,73 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * JMH benchmark of routing and nearest-vertex queries with vertices numbered in nodeList (OSM)
+ * order versus along a Hilbert curve, the default. Not a unit test; after mvn test-compile run
+ * <pre>
+ *   java -cp target/classes:target/test-classes:... org.openjdk.jmh.Main GraphLayoutBenchmark
+ * </pre>
+ * and add -prof perfnorm (Linux, with perf installed) to see the L1 and LLC misses per
+ * operation behind the difference. -p osmPath=... runs it on another extract.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class GraphLayoutBenchmark {
+    @Param({"false", "true"})
+    public boolean spatialOrder;
+
+    @Param({"../library-sp18/data/berkeley-2018.osm.xml"})
+    public String osmPath;
+
+    private IntUnaryOperator route;
+    private IntUnaryOperator nearest;
+    private int queries;
+    private int next;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() throws ReflectiveOperationException {
+        Class<?> workload = Class.forName("GraphLayoutWorkload");
+        Map<String, IntUnaryOperator> operations = (Map<String, IntUnaryOperator>) workload
+                .getMethod("create", String.class, boolean.class)
+                .invoke(null, osmPath, spatialOrder);
+        route = operations.get("route");
+        nearest = operations.get("nearest");
+        queries = workload.getField("QUERIES").getInt(null);
+    }
+
+    private int nextQuery() {
+        int i = next;
+        next = (i + 1) % queries;
+        return i;
+    }
+
+    @Benchmark
+    public int route() {
+        return route.applyAsInt(nextQuery());
+    }
+
+    @Benchmark
+    public int nearest() {
+        return nearest.applyAsInt(nextQuery());
+    }
+}